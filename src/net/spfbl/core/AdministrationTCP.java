@@ -16,6 +16,7 @@
  */
 package net.spfbl.core;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -32,8 +33,10 @@ import java.util.TreeSet;
 import net.spfbl.core.Client.Permission;
 import net.spfbl.core.Peer.Receive;
 import net.spfbl.data.Block;
+import net.spfbl.data.Feed;
 import net.spfbl.data.Generic;
 import net.spfbl.data.Ignore;
+import net.spfbl.data.Import;
 import net.spfbl.data.NoReply;
 import net.spfbl.data.Provider;
 import net.spfbl.data.Trap;
@@ -135,13 +138,17 @@ public final class AdministrationTCP extends Server {
                                 }
                             }
                             if (result == null) {
-                                OutputStream outputStream = socket.getOutputStream();
-                                result = processCommand(command, outputStream);
+                                // As saídas volumosas são escritas em blocos.
+                                OutputStream outputStream = new BufferedOutputStream(
+                                        socket.getOutputStream(), 65536
+                                );
+                                result = processCommand(command, bufferedReader, outputStream);
                                 if (result == null) {
                                     result = "SENT\n";
                                 } else {
                                     outputStream.write(result.getBytes("ISO-8859-1"));
                                 }
+                                outputStream.flush();
                             }
                         }
                     } catch (SocketException ex) {
@@ -185,10 +192,13 @@ public final class AdministrationTCP extends Server {
      * Processa o comando e retorna o resultado.
      * @param client o cliente do processo.
      * @param command a expressão do comando.
+     * @param reader o leitor das linhas seguintes da conexão.
+     * @param outputStream o fluxo de saída da conexão.
      * @return o resultado do processamento.
      */
     protected static String processCommand(
             String command,
+            BufferedReader reader,
             OutputStream outputStream
     ) {
         try {
@@ -200,6 +210,21 @@ public final class AdministrationTCP extends Server {
                 String token = tokenizer.nextToken();
                 if (token.equals("VERSION") && !tokenizer.hasMoreTokens()) {
                     return Core.getAplication() + "\n";
+                } else if (token.equals("FEED") && !tokenizer.hasMoreTokens()) {
+                    result = "SEQUENCE " + Feed.getSequence() + "\n";
+                } else if (token.equals("FEED") && tokenizer.countTokens() == 1) {
+                    // Alterações das listas desde a sequência informada.
+                    try {
+                        long since = Long.parseLong(tokenizer.nextToken());
+                        Feed.write(since, outputStream);
+                        return null;
+                    } catch (NumberFormatException ex) {
+                        result = "INVALID SEQUENCE\n";
+                    }
+                } else if (command.matches("^(BLOCK|WHITE|TRAP|IGNORE) IMPORT$")) {
+                    // Importação em lote das linhas seguintes da conexão.
+                    Import.Type type = Import.Type.valueOf(token);
+                    result = Import.process(type, reader);
                 } else if (token.equals("ANALISE") && tokenizer.hasMoreTokens()) {
                     token = tokenizer.nextToken();
                     if (token.equals("SHOW")) {
@@ -216,21 +241,21 @@ public final class AdministrationTCP extends Server {
                         }
                     } else if (token.equals("DUMP") && tokenizer.countTokens() == 1) {
                         token = tokenizer.nextToken();
-                        StringBuilder builder = new StringBuilder();
+                        int count;
                         if (token.equals("ALL")) {
-                            Analise.dumpAll(builder);
+                            count = Analise.dumpAll(outputStream);
                         } else {
                             Analise analise = Analise.get(token, false);
                             if (analise == null) {
-                                builder.append("NOT FOUND\n");
+                                return "NOT FOUND\n";
                             } else {
-                                analise.dump(builder);
+                                count = analise.dump(outputStream);
                             }
                         }
-                        if (builder.length() == 0) {
+                        if (count == 0) {
                             result = "EMPTY\n";
                         } else {
-                            result = builder.toString();
+                            return null;
                         }
                     } else if (token.equals("DROP") && tokenizer.countTokens() == 1) {
                         token = tokenizer.nextToken();
@@ -319,13 +344,13 @@ public final class AdministrationTCP extends Server {
                         result = "INVALID PARAMETERS\n";
                     }
                 } else if (token.equals("DUMP") && !tokenizer.hasMoreTokens()) {
+                    // Escreve cada seção diretamente no socket para não
+                    // montar a configuração inteira em memória.
                     StringBuilder builder = new StringBuilder();
                     builder.append("BLOCK DROP ALL\n");
-                    for (String block : Block.getAll()) {
-                        builder.append("BLOCK ADD ");
-                        builder.append(block);
-                        builder.append('\n');
-                    }
+                    outputStream.write(builder.toString().getBytes("ISO-8859-1"));
+                    Block.getAll(outputStream, "BLOCK ADD ");
+                    builder.setLength(0);
                     builder.append("CLIENT DROP ALL\n");
                     for (Client clientLocal : Client.getSet()) {
                         builder.append("CLIENT ADD ");
@@ -364,11 +389,9 @@ public final class AdministrationTCP extends Server {
                         builder.append("\"\n");
                     }
                     builder.append("IGNORE DROP ALL\n");
-                    for (String ignore : Ignore.getAll()) {
-                        builder.append("IGNORE ADD ");
-                        builder.append(ignore);
-                        builder.append('\n');
-                    }
+                    outputStream.write(builder.toString().getBytes("ISO-8859-1"));
+                    Ignore.getAll(outputStream, "IGNORE ADD ");
+                    builder.setLength(0);
                     builder.append("PEER DROP ALL\n");
                     for (Peer peer : Peer.getSet()) {
                         builder.append("PEER ADD ");
@@ -386,11 +409,9 @@ public final class AdministrationTCP extends Server {
                         builder.append('\n');
                     }
                     builder.append("PROVIDER DROP ALL\n");
-                    for (String provider : Provider.getAll()) {
-                        builder.append("PROVIDER ADD ");
-                        builder.append(provider);
-                        builder.append('\n');
-                    }
+                    outputStream.write(builder.toString().getBytes("ISO-8859-1"));
+                    Provider.getAll(outputStream, "PROVIDER ADD ");
+                    builder.setLength(0);
                     builder.append("TLD DROP ALL\n");
                     for (String tld : Domain.getTLDSet()) {
                         builder.append("TLD ADD ");
@@ -398,14 +419,9 @@ public final class AdministrationTCP extends Server {
                         builder.append('\n');
                     }
                     builder.append("TRAP DROP ALL\n");
-                    for (String trap : Trap.getTrapAllSet()) {
-                        Long time = Trap.getTime(trap);
-                        builder.append("TRAP ADD ");
-                        builder.append(trap);
-                        builder.append(' ');
-                        builder.append(time);
-                        builder.append('\n');
-                    }
+                    outputStream.write(builder.toString().getBytes("ISO-8859-1"));
+                    Trap.getTrapAll(outputStream, "TRAP ADD ");
+                    builder.setLength(0);
                     builder.append("USER DROP ALL\n");
                     for (User userLocal : User.getSet()) {
                         builder.append("USER ADD ");
@@ -415,13 +431,10 @@ public final class AdministrationTCP extends Server {
                         builder.append('\n');
                     }
                     builder.append("WHITE DROP ALL\n");
-                    for (String white : White.getAll()) {
-                        builder.append("WHITE ADD ");
-                        builder.append(white);
-                        builder.append('\n');
-                    }
-                    builder.append("STORE\n");
-                    result = builder.toString();
+                    outputStream.write(builder.toString().getBytes("ISO-8859-1"));
+                    White.getAll(outputStream, "WHITE ADD ");
+                    outputStream.write("STORE\n".getBytes("ISO-8859-1"));
+                    return null;
                 } else if (token.equals("FIREWALL") && !tokenizer.hasMoreTokens()) {
                     if (Core.hasInterface()) {
                         HashMap<Object,TreeSet<Client>> clientMap;
@@ -643,6 +656,12 @@ public final class AdministrationTCP extends Server {
                         // Houve falha no fechamento dos processos.
                         result = "ERROR: SHUTDOWN\n";
                     }
+                } else if (token.equals("METRICS") && !tokenizer.hasMoreTokens()) {
+                    // Comando para exportar as métricas de latência.
+                    result = Metrics.getPrometheus();
+                    if (result.length() == 0) {
+                        result = "EMPTY\n";
+                    }
                 } else if (token.equals("STORE") && !tokenizer.hasMoreTokens()) {
                     // Comando para gravar o cache em disco.
                     if (tryStoreCache(false)) {
@@ -1246,14 +1265,11 @@ public final class AdministrationTCP extends Server {
                             if (token.equals("ALL")) {
                                 // Mecanismo de visualização de 
                                 // todos os liberação de remetentes.
-                                StringBuilder builder = new StringBuilder();
-                                for (String sender : White.getAll()) {
-                                    builder.append(sender);
-                                    builder.append('\n');
-                                }
-                                result = builder.toString();
-                                if (result.length() == 0) {
-                                    result = "EMPTY\n";
+                                int count = White.getAll(outputStream, null);
+                                if (count == 0) {
+                                    return "EMPTY\n";
+                                } else {
+                                    return null;
                                 }
                             }
                         }
@@ -1629,6 +1645,13 @@ public final class AdministrationTCP extends Server {
                                 } else {
                                     result = "ALREADY THIS VALUE\n";
                                 }
+                            } else if (token.equals("DEADLINE") && tokenizer.countTokens() == 1) {
+                                String deadline = tokenizer.nextToken();
+                                if (clientLocal.setDeadline(deadline)) {
+                                    result = "UPDATED " + clientLocal + "\n";
+                                } else {
+                                    result = "ALREADY THIS VALUE\n";
+                                }
                             } else if (token.equals("PERSONALITY") && tokenizer.countTokens() == 1) {
                                 String personality = tokenizer.nextToken();
                                 if (clientLocal.setPersonality(personality)) {
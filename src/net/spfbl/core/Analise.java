@@ -16,14 +16,14 @@
  */
 package net.spfbl.core;
 
-import com.sun.mail.smtp.SMTPTransport;
-import com.sun.mail.util.MailConnectException;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
@@ -31,12 +31,10 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Properties;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
-import javax.mail.MessagingException;
-import javax.mail.Session;
 import javax.naming.CommunicationException;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
@@ -166,6 +164,7 @@ public class Analise implements Serializable, Comparable<Analise> {
         } else if (resultSet.contains(token)) {
             return false;
         } else if (run && ipSet.add(token)) {
+            indexToken(token);
             if (SEMAPHORE.tryAcquire()) {
                 Process process = new Process();
                 process.start();
@@ -180,7 +179,7 @@ public class Analise implements Serializable, Comparable<Analise> {
     
     public static void initProcess() {
         int count = 0;
-        while (count++ < 256 && getProcessTotal() > 0 && SEMAPHORE.tryAcquire()) {
+        while (count++ < MAX && getProcessTotal() > 0 && SEMAPHORE.tryAcquire()) {
             Process process = new Process();
             process.start();
         }
@@ -231,17 +230,103 @@ public class Analise implements Serializable, Comparable<Analise> {
         return set;
     }
     
-    public static void dumpAll(StringBuilder builder) {
+    private synchronized Object[] getWaitArray() {
+        return ipSet.toArray();
+    }
+    
+    private synchronized Object[] getProcessArray() {
+        return processSet.toArray();
+    }
+    
+    private synchronized Object[] getResultArray() {
+        return resultSet.toArray();
+    }
+    
+    private synchronized boolean containsProcess(String ip) {
+        return processSet.contains(ip);
+    }
+    
+    private synchronized boolean containsResult(String ip) {
+        return resultSet.contains(ip);
+    }
+    
+    /**
+     * Lê do arquivo o último resultado de cada IP analisado.
+     * @return o resultado indexado pelo IP.
+     */
+    private HashMap<String,String> getResultMap() {
+        HashMap<String,String> map = new HashMap<String,String>();
+        File resultFile = getResultFile();
+        if (resultFile.exists()) {
+            try {
+                FileReader fileReader = new FileReader(resultFile);
+                BufferedReader bufferedReader = new BufferedReader(fileReader);
+                try {
+                    String line;
+                    while ((line = bufferedReader.readLine()) != null) {
+                        int index = line.indexOf(' ');
+                        if (index > 0) {
+                            String ip = line.substring(0, index);
+                            if (containsResult(ip)) {
+                                map.put(ip, line.substring(index + 1));
+                            }
+                        }
+                    }
+                } finally {
+                    bufferedReader.close();
+                }
+            } catch (Exception ex) {
+                Server.logError(ex);
+            }
+        }
+        return map;
+    }
+    
+    public static int dumpAll(OutputStream outputStream) throws IOException {
+        int count = 0;
         for (Analise analise : getAnaliseSet()) {
-            analise.dump(builder);
+            count += analise.dump(outputStream);
         }
+        return count;
     }
     
-    public void dump(StringBuilder builder) {
-        for (String line : getResultSet()) {
-            builder.append(line);
-            builder.append('\n');
+    /**
+     * Escreve a situação de cada IP diretamente no fluxo de saída,
+     * uma linha por IP com a mesma precedência de getResultSet():
+     * o resultado gravado prevalece, depois LOST para o IP analisado
+     * sem resultado no arquivo, depois PROCESSING e por fim WAITING.
+     * Somente os resultados são mantidos em memória durante a escrita.
+     * @param outputStream o fluxo de saída.
+     * @return a quantidade de linhas escritas.
+     * @throws IOException se houver falha na escrita.
+     */
+    public int dump(OutputStream outputStream) throws IOException {
+        int count = 0;
+        for (Object element : getWaitArray()) {
+            String ip = (String) element;
+            if (!containsProcess(ip) && !containsResult(ip)) {
+                Core.writeLine(outputStream, null, ip + " WAITING");
+                count++;
+            }
         }
+        for (Object element : getProcessArray()) {
+            String ip = (String) element;
+            if (!containsResult(ip)) {
+                Core.writeLine(outputStream, null, ip + " PROCESSING");
+                count++;
+            }
+        }
+        HashMap<String,String> resultMap = getResultMap();
+        for (Object ip : getResultArray()) {
+            String result = resultMap.get(ip);
+            if (result == null) {
+                Core.writeLine(outputStream, null, ip + " LOST");
+            } else {
+                Core.writeLine(outputStream, null, ip + " " + result);
+            }
+            count++;
+        }
+        return count;
     }
     
     private synchronized String pollFirst() {
@@ -256,7 +341,12 @@ public class Analise implements Serializable, Comparable<Analise> {
     }
     
     private synchronized boolean dropProcess(String token) {
-        return processSet.remove(token);
+        if (processSet.remove(token)) {
+            unindexToken(token);
+            return true;
+        } else {
+            return false;
+        }
     }
     
     public static void dropExpired() {
@@ -365,6 +455,73 @@ public class Analise implements Serializable, Comparable<Analise> {
      * Mapa de processos.
      */
     private static final HashMap<String,Analise> MAP = new HashMap<String,Analise>();
+    /**
+     * Índice global dos tokens de todas as análises,
+     * com a quantidade de análises que contém cada token.
+     * Consultado sem trava pelo fluxo de consulta.
+     */
+    private static final ConcurrentHashMap<String,Integer> INDEX = new ConcurrentHashMap<String,Integer>();
+    
+    private static void indexToken(String token) {
+        while (true) {
+            Integer count = INDEX.get(token);
+            if (count == null) {
+                if (INDEX.putIfAbsent(token, 1) == null) {
+                    return;
+                }
+            } else if (INDEX.replace(token, count, count + 1)) {
+                return;
+            }
+        }
+    }
+    
+    private static void unindexToken(String token) {
+        while (true) {
+            Integer count = INDEX.get(token);
+            if (count == null) {
+                return;
+            } else if (count <= 1) {
+                if (INDEX.remove(token, count)) {
+                    return;
+                }
+            } else if (INDEX.replace(token, count, count - 1)) {
+                return;
+            }
+        }
+    }
+    
+    private synchronized void indexAll() {
+        for (String token : ipSet) {
+            indexToken(token);
+        }
+        for (String token : processSet) {
+            indexToken(token);
+        }
+        for (String token : resultSet) {
+            indexToken(token);
+        }
+    }
+    
+    private synchronized void unindexAll() {
+        for (String token : ipSet) {
+            unindexToken(token);
+        }
+        for (String token : processSet) {
+            unindexToken(token);
+        }
+        for (String token : resultSet) {
+            unindexToken(token);
+        }
+    }
+    
+    /**
+     * Verifica se o token já pertence a alguma análise.
+     * @param token o token normalizado.
+     * @return verdadeiro se o token pertence a alguma análise.
+     */
+    private static boolean containsIndex(String token) {
+        return INDEX.containsKey(token);
+    }
     
     private synchronized static int getProcessTotal() {
         int total = 0;
@@ -436,14 +593,17 @@ public class Analise implements Serializable, Comparable<Analise> {
         Analise analiseDropped = MAP.put(analise.name, analise);
         if (analiseDropped != null) {
             QUEUE.remove(analiseDropped);
+            analiseDropped.unindexAll();
         }
         QUEUE.add(analise);
+        analise.indexAll();
     }
     
     public synchronized static Analise drop(String name) {
         name = normalizeName(name);
         Analise analise;
         if ((analise = MAP.remove(name)) != null) {
+            analise.unindexAll();
             analise.ipSet.clear();
             analise.processSet.clear();
             if (analise.resultWriter != null) {
@@ -492,14 +652,13 @@ public class Analise implements Serializable, Comparable<Analise> {
                 process = false;
             }
             if (process) {
-                boolean contains = false;
-                for (Analise analise : Analise.getAnaliseSet()) {
-                    if (analise.contains(token)) {
-                        contains = true;
-                        break;
-                    }
+                String key;
+                if (token.startsWith("@")) {
+                    key = "@" + Domain.normalizeHostname(token.substring(1), false);
+                } else {
+                    key = Subnet.normalizeIP(token);
                 }
-                if (!contains) {
+                if (!containsIndex(key)) {
                     Date today = new Date();
                     String name = Core.SQL_FORMAT.format(today);
                     Analise analise = Analise.get(name, true);
@@ -549,54 +708,12 @@ public class Analise implements Serializable, Comparable<Analise> {
         return response;
     }
     
+    /**
+     * Lê o banner SMTP através da sonda não bloqueante.
+     * @return o hostname do banner, nulo se não houver ou o status da falha.
+     */
     private static Object getResponseSMTP(String host, int port, int timeout) {
-        try {
-            Properties props = new Properties();
-            props.put("mail.smtp.starttls.enable", "false");
-            props.put("mail.smtp.auth", "false");
-            props.put("mail.smtp.timeout", timeout);
-            Session session = Session.getInstance(props, null);
-            SMTPTransport transport = (SMTPTransport) session.getTransport("smtp");
-            try {
-                transport.setLocalHost(Core.getHostname());
-                transport.connect(host, port, null, null);
-                String response = transport.getLastServerResponse();
-                int beginIndex = 4;
-                int endIndex;
-                for (endIndex = beginIndex; endIndex < response.length(); endIndex++) {
-                    if (response.charAt(endIndex) == ' ') {
-                        break;
-                    } else if (response.charAt(endIndex) == '\n') {
-                        break;
-                    }
-                }
-                String helo = response.substring(beginIndex, endIndex);
-                if (helo.contains(".") && Domain.isHostname(helo)) {
-                    return Domain.normalizeHostname(helo, true);
-                } else {
-                    return null;
-                }
-            } finally {
-                if (transport.isConnected()) {
-                    transport.close();
-                }
-            }
-        } catch (MailConnectException ex) {
-            if (ex.getMessage().contains("timeout -1")) {
-                return Status.CLOSED;
-            } else {
-                return Status.TIMEOUT;
-            }
-        } catch (MessagingException ex) {
-//            if (ex.getMessage().containsExact("TLS")) {
-//                return Status.NOTLS;
-//            } else {
-                return Status.UNAVAILABLE;
-//            }
-        } catch (Exception ex) {
-            Server.logError(ex);
-            return null;
-        }
+        return ProberSMTP.probe(host, port, timeout);
     }
     
     public static void process(
@@ -1039,7 +1156,16 @@ public class Analise implements Serializable, Comparable<Analise> {
         }
     }
 
+    /**
+     * Cada thread aguarda o resultado da sua sonda SMTP, então a
+     * quantidade de threads limita as sondas simultâneas e não pode
+     * ser menor que o limite de sondas.
+     */
     private static final int MAX = 256;
+    
+    static int getProcessLimit() {
+        return MAX;
+    }
     private static final Semaphore SEMAPHORE = new Semaphore(MAX);
     private static boolean run = true;
     
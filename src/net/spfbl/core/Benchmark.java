@@ -0,0 +1,497 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import net.spfbl.data.Block;
+import net.spfbl.dns.RecordedDNS;
+import net.spfbl.spf.SPF;
+import net.spfbl.spf.SPF.Distribution;
+import net.spfbl.whois.Domain;
+import net.spfbl.whois.Owner;
+import net.spfbl.whois.Subnet;
+import net.spfbl.whois.SubnetIPv4;
+import net.spfbl.whois.SubnetIPv6;
+import org.apache.commons.lang3.SerializationUtils;
+
+/**
+ * Medição de desempenho dos caminhos quentes de consulta.
+ *
+ * Cada tarefa é executada em iterações de aquecimento e depois
+ * em iterações de medição de duração fixa, no mesmo esquema do JMH.
+ * O resultado de cada operação é consumido por um sumidouro volátil
+ * para impedir que o compilador elimine o código medido.
+ *
+ * Deve ser executado a partir da pasta de instalação do SPFBL
+ * para que os arquivos data/*.map e data/*.set sejam usados
+ * como massa de dados. Na ausência destes arquivos, somente
+ * dados sintéticos são usados.
+ *
+ * Nenhuma consulta sai para a internet: o DNS é respondido pelo
+ * DNS gravado na mesma JVM a partir destes arquivos e as buscas
+ * no bloqueio rodam com o prazo de consulta esgotado, de modo que
+ * as regras WHOIS avaliam somente os dados já em cache.
+ *
+ * Uso: java -cp SPFBL.jar net.spfbl.core.Benchmark
+ * [warmup=ms] [time=ms] [iterations=n] [size=n] [filter=regex]
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Benchmark {
+
+    private static long WARMUP = 1000;
+    private static long TIME = 1000;
+    private static int ITERATIONS = 5;
+    private static int SIZE = 10000;
+    private static Pattern FILTER = null;
+
+    /**
+     * Sumidouro dos resultados das operações medidas.
+     */
+    private static volatile Object SINK = null;
+
+    /**
+     * Amostras de entrada obtidas dos arquivos de dados.
+     */
+    private static final ArrayList<String> HOST_LIST = new ArrayList<String>();
+    private static final ArrayList<String> IP_LIST = new ArrayList<String>();
+    private static final ArrayList<String> CIDR_LIST = new ArrayList<String>();
+
+    /**
+     * Tarefa de medição.
+     */
+    private static abstract class Task {
+
+        private final String name;
+
+        private Task(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Preparação executada uma única vez antes da medição.
+         * @throws Exception se houver falha na preparação.
+         */
+        protected void setup() throws Exception {
+        }
+
+        /**
+         * Finalização executada uma única vez após a medição.
+         */
+        protected void teardown() {
+        }
+
+        /**
+         * Operação medida.
+         * @param index o índice sequencial da operação.
+         * @return o resultado a ser consumido pelo sumidouro.
+         * @throws Exception se houver falha na operação.
+         */
+        protected abstract Object run(int index) throws Exception;
+    }
+
+    private static String get(ArrayList<String> list, int index) {
+        return list.get((index & 0x7FFFFFFF) % list.size());
+    }
+
+    /**
+     * Carrega os arquivos de dados da pasta ./data,
+     * tanto nos caches como nas listas de amostras.
+     */
+    private static void loadFixtures() {
+        File folder = new File("./data");
+        if (folder.isDirectory()) {
+            Domain.load();
+            Owner.load();
+            SubnetIPv4.load();
+            SubnetIPv6.load();
+            Block.load();
+            SPF.load();
+            loadSample(new File(folder, "spf.map"), HOST_LIST, null);
+            loadSample(new File(folder, "subnet4.map"), IP_LIST, CIDR_LIST);
+            loadSample(new File(folder, "subnet6.map"), IP_LIST, CIDR_LIST);
+        }
+    }
+
+    private static void loadSample(
+            File file,
+            ArrayList<String> list,
+            ArrayList<String> cidrList
+            ) {
+        if (file.exists()) {
+            try {
+                Map<Object,Object> map;
+                FileInputStream fileInputStream = new FileInputStream(file);
+                try {
+                    map = SerializationUtils.deserialize(fileInputStream);
+                } finally {
+                    fileInputStream.close();
+                }
+                if (cidrList == null) {
+                    for (Object key : map.keySet()) {
+                        if (key instanceof String && list.size() < SIZE) {
+                            list.add((String) key);
+                        }
+                    }
+                } else {
+                    for (Object value : map.values()) {
+                        if (value instanceof Subnet && list.size() < SIZE) {
+                            String cidr = ((Subnet) value).getInetnum();
+                            if (cidr != null) {
+                                cidrList.add(cidr);
+                                list.add(Subnet.getFirstIP(cidr));
+                            }
+                        }
+                    }
+                }
+            } catch (Exception ex) {
+                Server.logError(ex);
+            }
+        }
+    }
+
+    /**
+     * Completa as amostras com dados sintéticos
+     * e popula as listas de bloqueio.
+     * 
+     * Somente metade dos blocos CIDR é bloqueada, para que a busca 
+     * por IP meça tanto o acerto no CIDR como a continuação pelos 
+     * critérios REGEX e WHOIS.
+     */
+    private static void loadSynthetic() {
+        Random random = new Random(SIZE);
+        while (HOST_LIST.size() < SIZE) {
+            HOST_LIST.add("mx" + random.nextInt(100)
+                    + ".host" + HOST_LIST.size() + ".example.com");
+        }
+        while (IP_LIST.size() < SIZE) {
+            int a = 1 + random.nextInt(223);
+            int b = random.nextInt(256);
+            int c = random.nextInt(256);
+            IP_LIST.add(a + "." + b + "." + c + "." + (1 + random.nextInt(254)));
+            CIDR_LIST.add(a + "." + b + "." + c + ".0/24");
+        }
+        int count = 0;
+        for (int index = 0; index < SIZE; index++) {
+            if (Block.tryAdd("@spammer" + index + ".example.net")) {
+                count++;
+            }
+            if (index % 2 == 0 && Block.tryAdd("CIDR=" + get(CIDR_LIST, index))) {
+                count++;
+            }
+            if (index % 100 == 0) {
+                if (Block.tryAdd("REGEX=^\\.mx[0-9]+\\.bulk" + index + "\\.example\\.org$")) {
+                    count++;
+                }
+                if (Block.tryAdd("WHOIS/ownerid=" + index)) {
+                    count++;
+                }
+            }
+        }
+        System.out.println("# " + count + " synthetic BLOCK entries added.");
+    }
+
+    /**
+     * Tarefa executada com o prazo de consulta esgotado,
+     * para que as etapas que iriam à rede usem somente o cache.
+     */
+    private static abstract class OfflineTask extends Task {
+
+        private OfflineTask(String name) {
+            super(name);
+        }
+
+        @Override
+        protected void setup() {
+            long time = System.currentTimeMillis();
+            Deadline.start(time - 1000, 1000);
+        }
+
+        @Override
+        protected void teardown() {
+            Deadline.finish();
+        }
+    }
+
+    private static ArrayList<Task> getTaskList() {
+        ArrayList<Task> taskList = new ArrayList<Task>();
+        taskList.add(new OfflineTask("Block.find.sender") {
+            @Override
+            protected Object run(int index) {
+                return Block.find((String) null, "user@" + get(HOST_LIST, index), false);
+            }
+        });
+        taskList.add(new OfflineTask("Block.find.hostname") {
+            @Override
+            protected Object run(int index) {
+                return Block.find((String) null, get(HOST_LIST, index), false);
+            }
+        });
+        taskList.add(new OfflineTask("Block.find.ip") {
+            @Override
+            protected Object run(int index) {
+                return Block.find((String) null, get(IP_LIST, index), false);
+            }
+        });
+        taskList.add(new OfflineTask("Block.find.message") {
+            @Override
+            protected Object run(int index) {
+                // Metade dos HELO casa com o REGEX sintético e a outra
+                // metade segue para o WHOIS do remetente .br.
+                int bulk = ((index & 0x7FFFFFFF) % SIZE) / 50 * 50;
+                return Block.find(
+                        null, null, get(IP_LIST, index),
+                        "user@" + get(HOST_LIST, index) + ".br",
+                        "mx" + (index & 0xFF) + ".bulk" + bulk + ".example.org",
+                        "PASS", null, false
+                );
+            }
+        });
+        taskList.add(new Task("SPF.getQualifier") {
+            @Override
+            protected Object run(int index) throws Exception {
+                try {
+                    return SPF.getQualifier(
+                            get(IP_LIST, index),
+                            "user@" + get(HOST_LIST, index),
+                            null, false
+                    );
+                } catch (ProcessException ex) {
+                    // Domínio sintético sem registro no DNS gravado.
+                    return ex;
+                }
+            }
+        });
+        taskList.add(new Task("Subnet.normalizeIP") {
+            @Override
+            protected Object run(int index) {
+                return Subnet.normalizeIP(get(IP_LIST, index));
+            }
+        });
+        taskList.add(new Task("Subnet.normalizeCIDR") {
+            @Override
+            protected Object run(int index) {
+                return Subnet.normalizeCIDR(get(CIDR_LIST, index));
+            }
+        });
+        taskList.add(new Task("Subnet.containsIP") {
+            @Override
+            protected Object run(int index) {
+                return Subnet.containsIP(get(CIDR_LIST, index), get(IP_LIST, index + 1));
+            }
+        });
+        taskList.add(new Task("SubnetIPv4.isValidIPv4") {
+            @Override
+            protected Object run(int index) {
+                return SubnetIPv4.isValidIPv4(get(IP_LIST, index));
+            }
+        });
+        taskList.add(new Task("SubnetIPv6.isValidIPv6") {
+            @Override
+            protected Object run(int index) {
+                return SubnetIPv6.isValidIPv6(get(IP_LIST, index));
+            }
+        });
+        taskList.add(new Task("Domain.extractHost") {
+            @Override
+            protected Object run(int index) {
+                return Domain.extractHost("User@" + get(HOST_LIST, index), true);
+            }
+        });
+        taskList.add(new Task("Domain.extractDomain") {
+            @Override
+            protected Object run(int index) throws Exception {
+                return Domain.extractDomain(get(HOST_LIST, index), false);
+            }
+        });
+        taskList.add(new Task("Huffman.encode") {
+            @Override
+            protected Object run(int index) throws Exception {
+                return Core.HUFFMAN.encodeByteArray(
+                        "spam " + get(HOST_LIST, index)
+                        + " " + get(IP_LIST, index), 8
+                );
+            }
+        });
+        taskList.add(new Task("Huffman.decode") {
+            private final ArrayList<byte[]> codeList = new ArrayList<byte[]>();
+            @Override
+            protected void setup() throws Exception {
+                for (int index = 0; index < 1000; index++) {
+                    codeList.add(Core.HUFFMAN.encodeByteArray(
+                            "spam " + get(HOST_LIST, index)
+                            + " " + get(IP_LIST, index), 8
+                    ));
+                }
+            }
+            @Override
+            protected Object run(int index) {
+                return Core.HUFFMAN.decode(codeList.get(index % codeList.size()), 8);
+            }
+        });
+        taskList.add(new Task("SPF.createTicket") {
+            @Override
+            protected Object run(int index) throws Exception {
+                TreeSet<String> tokenSet = new TreeSet<String>();
+                tokenSet.add(get(IP_LIST, index));
+                tokenSet.add("." + get(HOST_LIST, index));
+                tokenSet.add("user@" + get(HOST_LIST, index + 1));
+                return SPF.createTicket(System.currentTimeMillis(), tokenSet);
+            }
+        });
+        taskList.add(new Task("Distribution.update") {
+            private final Distribution[] distributionArray = new Distribution[1024];
+            @Override
+            protected void setup() {
+                for (int index = 0; index < distributionArray.length; index++) {
+                    distributionArray[index] = new Distribution();
+                }
+            }
+            @Override
+            protected Object run(int index) {
+                Distribution distribution = distributionArray[index & 1023];
+                long time = System.currentTimeMillis();
+                if (index % 7 == 0) {
+                    return distribution.addSpam(time);
+                } else {
+                    return distribution.addHam(time);
+                }
+            }
+        });
+        taskList.add(new Task("Distribution.getStatus") {
+            @Override
+            protected Object run(int index) {
+                return SPF.getStatus(get(HOST_LIST, index));
+            }
+        });
+        return taskList;
+    }
+
+    /**
+     * Executa a tarefa pelo tempo definido.
+     * @return o tempo médio por operação em nanosegundos.
+     */
+    private static double execute(Task task, long millis) throws Exception {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long start = System.nanoTime();
+        int index = 0;
+        long now;
+        do {
+            // Verifica o relógio a cada 64 operações.
+            for (int count = 0; count < 64; count++) {
+                SINK = task.run(index++);
+            }
+        } while ((now = System.nanoTime()) < deadline);
+        return (double) (now - start) / index;
+    }
+
+    private static void execute(Task task) {
+        try {
+            task.setup();
+            execute(task, WARMUP);
+            double min = Double.MAX_VALUE;
+            double max = 0.0d;
+            double sum = 0.0d;
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                double nanos = execute(task, TIME);
+                min = Math.min(min, nanos);
+                max = Math.max(max, nanos);
+                sum += nanos;
+            }
+            double avg = sum / ITERATIONS;
+            System.out.println(String.format(Locale.US,
+                    "%-28s %14.1f %12.1f %12.1f %12.1f",
+                    task.name, 1000000000.0d / avg, avg, min, max
+            ));
+        } catch (Exception ex) {
+            System.out.println(String.format(Locale.US,
+                    "%-28s FAILED %s", task.name, ex
+            ));
+        } finally {
+            task.teardown();
+        }
+    }
+
+    private static boolean parseArgument(String argument) {
+        int index = argument.indexOf('=');
+        if (index == -1) {
+            return false;
+        } else {
+            String key = argument.substring(0, index);
+            String value = argument.substring(index + 1);
+            try {
+                if (key.equals("warmup")) {
+                    WARMUP = Long.parseLong(value);
+                } else if (key.equals("time")) {
+                    TIME = Long.parseLong(value);
+                } else if (key.equals("iterations")) {
+                    ITERATIONS = Integer.parseInt(value);
+                } else if (key.equals("size")) {
+                    SIZE = Integer.parseInt(value);
+                } else if (key.equals("filter")) {
+                    FILTER = Pattern.compile(value);
+                } else {
+                    return false;
+                }
+                return WARMUP >= 0 && TIME > 0 && ITERATIONS > 0 && SIZE > 0;
+            } catch (Exception ex) {
+                return false;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        Thread.currentThread().setName("BENCHMARK");
+        for (String argument : args) {
+            if (!parseArgument(argument)) {
+                System.err.println("invalid argument '" + argument + "'.");
+                System.exit(1);
+            }
+        }
+        Core.setLevelLOG(Core.Level.ERROR);
+        try {
+            RecordedDNS recordedDNS = new RecordedDNS("127.0.0.1", 0, 0, 0.0f);
+            recordedDNS.load();
+            recordedDNS.start();
+            Server.setProviderDNS("127.0.0.1:" + recordedDNS.getPort());
+            loadFixtures();
+            loadSynthetic();
+            System.out.println(String.format(Locale.US,
+                    "%-28s %14s %12s %12s %12s",
+                    "# task", "ops/s", "ns/op", "min", "max"
+            ));
+            for (Task task : getTaskList()) {
+                if (FILTER == null || FILTER.matcher(task.name).find()) {
+                    execute(task);
+                }
+            }
+            System.out.println("# recorded DNS queries " + recordedDNS.getQueryCount() + ".");
+            recordedDNS.close();
+            System.exit(0);
+        } catch (Exception ex) {
+            Server.logError(ex);
+            System.exit(1);
+        }
+    }
+}
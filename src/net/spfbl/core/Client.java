@@ -24,9 +24,11 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import net.spfbl.data.Generic;
+import net.spfbl.whois.CIDRTrie;
 import net.spfbl.whois.Domain;
 import net.spfbl.whois.Subnet;
 import org.apache.commons.lang3.SerializationUtils;
@@ -46,6 +48,7 @@ public class Client implements Serializable, Comparable<Client> {
     private Permission permission = Permission.NONE;
     private Personality personality = Personality.RATIONAL;
     private int limit = 100;
+    private int deadline = 0; // Prazo da consulta em milissegundos, zero para o padrão.
     private NormalDistribution frequency = null;
     private long last = 0;
     
@@ -232,6 +235,36 @@ public class Client implements Serializable, Comparable<Client> {
         }
     }
     
+    public boolean setDeadline(String deadline) throws ProcessException {
+        try {
+            return setDeadline(Integer.parseInt(deadline));
+        } catch (NumberFormatException ex) {
+            throw new ProcessException("INVALID DEADLINE", ex);
+        }
+    }
+    
+    public boolean setDeadline(int deadline) throws ProcessException {
+        if (deadline < 0 || deadline > 60000) {
+            throw new ProcessException("INVALID DEADLINE");
+        } else if (this.deadline == deadline) {
+            return false;
+        } else {
+            this.deadline = deadline;
+            return CHANGED = true;
+        }
+    }
+    
+    /**
+     * @return o prazo das consultas deste cliente em milissegundos.
+     */
+    public int getDeadline() {
+        if (deadline == 0) {
+            return Deadline.getDefault();
+        } else {
+            return deadline;
+        }
+    }
+    
     public String getCIDR() {
         return cidr;
     }
@@ -316,12 +349,17 @@ public class Client implements Serializable, Comparable<Client> {
      */
     private static final TreeMap<String,Client> MAP = new TreeMap<String,Client>();
     
+    /**
+     * Árvore de prefixos para identificação do cliente sem trava.
+     */
+    private static final CIDRTrie<Client> TRIE = new CIDRTrie<Client>();
+    
     /**
      * Flag que indica se o cache foi modificado.
      */
     private static boolean CHANGED = false;
     
-    public static Client create(
+    public synchronized static Client create(
             String cidr, String domain, String permission, String email
             ) throws ProcessException {
         if (Subnet.isValidCIDR(cidr)) {
@@ -332,6 +370,7 @@ public class Client implements Serializable, Comparable<Client> {
                 client = new Client(cidr, domain, email);
                 client.setPermission(permission);
                 MAP.put(ip, client);
+                TRIE.put(client.getCIDR(), client);
                 CHANGED = true;
                 return client;
             } else {
@@ -387,6 +426,7 @@ public class Client implements Serializable, Comparable<Client> {
     private synchronized static Client dropExact(String key) {
         Client client = MAP.remove(key);
         if (client != null) {
+            TRIE.remove(client.getCIDR());
             CHANGED = true;
         }
         return client;
@@ -467,11 +507,31 @@ public class Client implements Serializable, Comparable<Client> {
         }
     }
     
+    private static final Metrics.Histogram STAGE = Metrics.getStage("client");
+    
+    static {
+        Metrics.registerCacheSize("client", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return size();
+            }
+        });
+    }
+    
+    private static synchronized int size() {
+        return MAP.size();
+    }
+    
     public static Client get(InetAddress address) {
         if (address == null) {
             return null;
         } else {
-            return getByIP(address.getHostAddress());
+            long start = Metrics.time();
+            try {
+                return getByIP(address.getHostAddress());
+            } finally {
+                STAGE.record(start);
+            }
         }
     }
     
@@ -488,27 +548,82 @@ public class Client implements Serializable, Comparable<Client> {
                 cidr = address.getHostAddress() + "/128";
             }
             if (cidr != null) {
-                String ip = address.getHostAddress();
-                String hostame = Reverse.getHostname(ip);
-                String domain;
-                if (Generic.contains(hostame)) {
-                    domain = null;
+                // O domínio é identificado depois pelo reverso.
+                client = Client.create(cidr, null, permissao, null);
+                if (client == null) {
+                    client = get(address);
                 } else {
-                    try {
-                        domain = Domain.extractDomain(hostame, false);
-                    } catch (ProcessException ex) {
-                        domain = null;
-                    }
-                }
-                client = Client.create(cidr, domain, permissao, null);
-                if (client != null) {
                     Server.logDebug("CLIENT ADDED " + client);
+                    Registration.offer(client);
                 }
             }
         }
         return client;
     }
     
+    /**
+     * Identificação do domínio dos clientes cadastrados automaticamente,
+     * para que a consulta de reverso não atrase a resposta ao cliente.
+     */
+    private static final class Registration extends Thread {
+        
+        private static final LinkedList<Client> QUEUE = new LinkedList<Client>();
+        private static Registration THREAD = null;
+        
+        private Registration() {
+            super("CLIENTREG");
+            setDaemon(true);
+            setPriority(Thread.MIN_PRIORITY);
+        }
+        
+        private static synchronized void offer(Client client) {
+            QUEUE.offer(client);
+            if (THREAD == null) {
+                THREAD = new Registration();
+                THREAD.start();
+            }
+            Registration.class.notify();
+        }
+        
+        private static synchronized Client take() throws InterruptedException {
+            while (QUEUE.isEmpty()) {
+                Registration.class.wait();
+            }
+            return QUEUE.poll();
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Client client = take();
+                    try {
+                        String ip = Subnet.getFirstIP(client.getCIDR());
+                        String hostame = Reverse.getHostname(ip);
+                        String domain;
+                        if (hostame == null || Generic.contains(hostame)) {
+                            domain = null;
+                        } else {
+                            try {
+                                domain = Domain.extractDomain(hostame, false);
+                            } catch (ProcessException ex) {
+                                domain = null;
+                            }
+                        }
+                        if (domain != null && client.domain == null) {
+                            client.setDomain(domain);
+                            Server.logDebug("CLIENT UPDATED " + client);
+                        }
+                    } catch (Exception ex) {
+                        Server.logError(ex);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Server.logDebug("client registration interrupted.");
+            }
+        }
+    }
+    
     public static HashMap<Object,TreeSet<Client>> getMap(Permission permission) {
         if (permission == null) {
             return null;
@@ -544,21 +659,13 @@ public class Client implements Serializable, Comparable<Client> {
         }
     }
     
-    public synchronized static Client getByIP(String ip) {
-        if (ip == null) {
-            return null;
-        } else {
-            String key = Subnet.expandIP(ip);
-            key = MAP.floorKey(key);
-            Client client;
-            if (key == null) {
-                return null;
-            } else if ((client = MAP.get(key)).contains(ip)) {
-                return client;
-            } else {
-                return null;
-            }
-        }
+    /**
+     * Busca o cliente do bloco mais específico que contém o IP.
+     * @param ip o IP do cliente.
+     * @return o cliente encontrado ou nulo se não houver.
+     */
+    public static Client getByIP(String ip) {
+        return TRIE.get(ip);
     }
     
     public static synchronized HashMap<String,Client> getMap() {
@@ -573,6 +680,9 @@ public class Client implements Serializable, Comparable<Client> {
                 Server.logTrace("storing client.map");
                 long time = System.currentTimeMillis();
                 HashMap<String,Client> map = getMap();
+                for (Client client : map.values()) {
+                    client.storeFrequency();
+                }
                 File file = new File("./data/client.map");
                 FileOutputStream outputStream = new FileOutputStream(file);
                 try {
@@ -621,6 +731,7 @@ public class Client implements Serializable, Comparable<Client> {
                             client.personality = Personality.RATIONAL;
                         }
                         MAP.put(key, client);
+                        TRIE.put(client.getCIDR(), client);
                     }
                 }
                 Server.logLoad(time, file);
@@ -630,30 +741,82 @@ public class Client implements Serializable, Comparable<Client> {
         }
     }
     
+    /**
+     * Rajada de consultas tolerada antes de considerar abuso.
+     */
+    private static int BURST = 32;
+    
+    public static void setBurst(String burst) {
+        if (burst != null && burst.length() > 0) {
+            try {
+                setBurst(Integer.parseInt(burst));
+            } catch (Exception ex) {
+                Server.logError("invalid client burst '" + burst + "'.");
+            }
+        }
+    }
+    
+    public static synchronized void setBurst(int burst) {
+        if (burst < 1 || burst > Short.MAX_VALUE) {
+            Server.logError("invalid client burst '" + burst + "'.");
+        } else {
+            BURST = burst;
+        }
+    }
+    
+    /**
+     * Medidor de taxa sem trava, reconstruído a partir
+     * da frequência gravada quando o registro é carregado.
+     */
+    private transient volatile RateTracker rate = null;
+    
+    private RateTracker getRate() {
+        RateTracker tracker = rate;
+        if (tracker == null) {
+            synchronized (this) {
+                if ((tracker = rate) == null) {
+                    float average = frequency == null ? 0.0f : frequency.getAverage();
+                    rate = tracker = new RateTracker(average, last);
+                }
+            }
+        }
+        return tracker;
+    }
+    
+    /**
+     * Atualiza a frequência gravada a partir do medidor de taxa.
+     */
+    private void storeFrequency() {
+        RateTracker tracker = rate;
+        if (tracker != null && tracker.hasAverage()) {
+            frequency = new NormalDistribution(tracker.getAverage());
+        }
+    }
+    
     public boolean hasFrequency() {
-        return frequency != null;
+        return getRate().hasAverage();
     }
     
     public long getIdleTimeMillis() {
-        if (last == 0) {
+        long lastQuery = getRate().getLast();
+        if (lastQuery == 0) {
             return 0;
         } else {
-            return System.currentTimeMillis() - last;
+            return System.currentTimeMillis() - lastQuery;
         }
     }
     
+    /**
+     * Verifica se o cliente ultrapassou a rajada tolerada
+     * para o intervalo mínimo entre consultas.
+     * @return verdadeiro se o cliente está abusando.
+     */
     public boolean isAbusing() {
-        if (frequency == null) {
-            return false;
-        } else if (isDead()) {
-            return false;
-        } else {
-            return frequency.getMaximumInt() < limit;
-        }
+        return getRate().isExceeded(limit, BURST);
     }
     
     public boolean isDead() {
-        int frequencyInt = frequency.getMaximumInt();
+        int frequencyInt = (int) getRate().getAverage();
         long idleTimeInt = getIdleTimeMillis();
         return idleTimeInt > frequencyInt * 5 && idleTimeInt > 3600000;
     }
@@ -664,7 +827,7 @@ public class Client implements Serializable, Comparable<Client> {
                 return "DEAD";
             } else {
                 char sinal = '~';
-                int frequencyInt = frequency.getMaximumInt();
+                int frequencyInt = (int) getRate().getAverage();
                 long idleTimeInt = getIdleTimeMillis();
                 if (frequencyInt < limit) {
                     frequencyInt = limit;
@@ -687,29 +850,15 @@ public class Client implements Serializable, Comparable<Client> {
         }
     }
     
-    private Float getInterval() {
-        long current = System.currentTimeMillis();
-        Float interval;
-        if (last == 0) {
-            interval = null;
-        } else {
-            interval = (float) (current - last);
-        }
-        last = current;
-        return interval;
-    }
-    
+    /**
+     * Registra uma consulta do cliente.
+     * @return verdadeiro se não for a primeira consulta.
+     */
     public boolean addQuery() {
-        Float interval = getInterval();
-        if (interval == null) {
-            return false;
-        } else if (frequency == null) {
-            frequency = new NormalDistribution(interval < 1000 ? 1000 : interval);
-            return true;
-        } else {
-            frequency.addElement(interval);
-            return true;
-        }
+        RateTracker tracker = getRate();
+        boolean registered = tracker.add(limit, BURST) >= 0;
+        last = tracker.getLast();
+        return registered;
     }
     
     @Override
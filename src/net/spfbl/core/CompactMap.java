@@ -0,0 +1,536 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Mapa de registros binários compactos fora do heap.
+ *
+ * Os registros ficam numa arena contígua de memória direta, no
+ * formato [tamanho da chave][tamanho do valor][chave][valor], e o
+ * índice é uma tabela de espalhamento com sondagem linear, também
+ * em memória direta, com o hash e a posição de cada registro.
+ * Assim milhões de registros não criam objeto algum no heap e não
+ * pesam na coleta de lixo.
+ *
+ * A alteração de um valor de mesmo tamanho é feita no lugar.
+ * Um valor de tamanho diferente é acrescentado ao final da arena
+ * e o registro anterior é marcado como morto. Quando os registros
+ * mortos ocupam mais da metade da arena, a compactação é agendada
+ * na raia de lote, fora da alteração que a disparou.
+ *
+ * O arquivo gravado é a própria imagem da arena, lido de volta
+ * por mapeamento de memória.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class CompactMap {
+
+    /**
+     * Visitante dos registros do mapa.
+     */
+    public interface Visitor {
+        /**
+         * Visita um registro, com a trava do mapa.
+         * @param key uma cópia da chave.
+         * @param value o valor somente para leitura, da posição zero ao limite.
+         */
+        public void visit(byte[] key, ByteBuffer value);
+    }
+
+    private static final String BYTES = "spfbl_cache_offheap_bytes";
+
+    static {
+        Metrics.setHelp(BYTES, "Direct memory used by each off-heap cache.");
+    }
+
+    private static final int MAGIC = 0x53504643; // SPFC
+    private static final int HEADER = 8;
+    private static final int SLOT = 8;
+    private static final int MIN_COMPACT = 1 << 20;
+
+    private ByteBuffer table;
+    private int mask;
+    private ByteBuffer arena;
+    private int used = 0;
+    private int dead = 0;
+    private int size = 0;
+    private boolean compacting = false;
+
+    /**
+     * Cria o mapa vazio e registra a métrica de memória direta.
+     * @param name o nome do cache nas métricas.
+     */
+    public CompactMap(String name) {
+        this.table = ByteBuffer.allocateDirect(1024 * SLOT);
+        this.mask = 1023;
+        this.arena = ByteBuffer.allocateDirect(64 * 1024);
+        Metrics.registerGauge(BYTES, "cache=\"" + name + "\"", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getBytes();
+            }
+        });
+    }
+
+    private static int hash(byte[] key) {
+        int hash = Arrays.hashCode(key);
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    private int getOffset(int slot) {
+        return table.getInt(slot * SLOT + 4) - 1;
+    }
+
+    private boolean equalsKey(int offset, byte[] key) {
+        if (arena.getInt(offset) != key.length) {
+            return false;
+        } else {
+            int start = offset + HEADER;
+            for (int index = 0; index < key.length; index++) {
+                if (arena.get(start + index) != key[index]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Busca a posição do registro na tabela.
+     * @return a posição encontrada ou -(posição livre + 1) se não houver.
+     */
+    private int find(byte[] key, int hash) {
+        int slot = hash & mask;
+        while (true) {
+            int offset = getOffset(slot);
+            if (offset == -1) {
+                return -(slot + 1);
+            } else if (table.getInt(slot * SLOT) == hash && equalsKey(offset, key)) {
+                return slot;
+            } else {
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+
+    private int getValueOffset(int offset) {
+        return offset + HEADER + arena.getInt(offset);
+    }
+
+    /**
+     * O tamanho da chave, que fica negativo no registro morto.
+     */
+    private static int getKeyLength(int raw) {
+        return raw < 0 ? -raw - 1 : raw;
+    }
+
+    private int getRecordLength(int offset) {
+        return HEADER + getKeyLength(arena.getInt(offset)) + arena.getInt(offset + 4);
+    }
+
+    private void ensureArena(int length) {
+        if (arena.capacity() - used < length) {
+            long required = (long) used + length;
+            if (required > Integer.MAX_VALUE) {
+                throw new IllegalStateException("compact map arena is full");
+            }
+            long capacity = Math.max(required, Math.min(2L * arena.capacity(), Integer.MAX_VALUE));
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) capacity);
+            ByteBuffer source = arena.duplicate();
+            source.position(0);
+            source.limit(used);
+            buffer.put(source);
+            arena = buffer;
+        }
+    }
+
+    private int append(byte[] key, byte[] value) {
+        int length = HEADER + key.length + value.length;
+        ensureArena(length);
+        int offset = used;
+        arena.putInt(offset, key.length);
+        arena.putInt(offset + 4, value.length);
+        ByteBuffer target = arena.duplicate();
+        target.position(offset + HEADER);
+        target.put(key);
+        target.put(value);
+        used += length;
+        return offset;
+    }
+
+    private void kill(int offset) {
+        dead += getRecordLength(offset);
+        arena.putInt(offset, -arena.getInt(offset) - 1);
+    }
+
+    private void resize() {
+        ByteBuffer previous = table;
+        int previousCapacity = mask + 1;
+        int capacity = previousCapacity * 2;
+        table = ByteBuffer.allocateDirect(capacity * SLOT);
+        mask = capacity - 1;
+        for (int index = 0; index < previousCapacity; index++) {
+            int offset = previous.getInt(index * SLOT + 4);
+            if (offset != 0) {
+                int hash = previous.getInt(index * SLOT);
+                int slot = hash & mask;
+                while (getOffset(slot) != -1) {
+                    slot = (slot + 1) & mask;
+                }
+                table.putInt(slot * SLOT, hash);
+                table.putInt(slot * SLOT + 4, offset);
+            }
+        }
+    }
+
+    /**
+     * Copia os registros vivos para uma nova arena.
+     */
+    private void compact() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(
+                (int) Math.max(64 * 1024, Math.min(Integer.MAX_VALUE, (used - dead) * 3L / 2))
+        );
+        ByteBuffer source = arena.duplicate();
+        for (int slot = 0; slot <= mask; slot++) {
+            int offset = getOffset(slot);
+            if (offset != -1) {
+                int length = getRecordLength(offset);
+                source.limit(offset + length);
+                source.position(offset);
+                table.putInt(slot * SLOT + 4, buffer.position() + 1);
+                buffer.put(source);
+                source.limit(source.capacity());
+            }
+        }
+        arena = buffer;
+        used = buffer.position();
+        dead = 0;
+    }
+
+    private boolean isCompactNeeded() {
+        return dead > MIN_COMPACT && dead > used / 2;
+    }
+
+    /**
+     * Agenda a compactação na raia de lote, para que a alteração
+     * que a disparou não pague a cópia da arena.
+     */
+    private void compactIfNeeded() {
+        if (!compacting && isCompactNeeded()) {
+            compacting = Scheduler.executeBatch(new Runnable() {
+                @Override
+                public void run() {
+                    compactScheduled();
+                }
+            });
+        }
+    }
+
+    private synchronized void compactScheduled() {
+        compacting = false;
+        if (isCompactNeeded()) {
+            compact();
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return a memória direta ocupada pelo índice e pela arena.
+     */
+    public synchronized long getBytes() {
+        return (long) table.capacity() + arena.capacity();
+    }
+
+    public synchronized boolean containsKey(byte[] key) {
+        return find(key, hash(key)) >= 0;
+    }
+
+    /**
+     * @return uma cópia do valor ou nulo se não houver.
+     */
+    public synchronized byte[] get(byte[] key) {
+        int slot = find(key, hash(key));
+        if (slot < 0) {
+            return null;
+        } else {
+            int offset = getOffset(slot);
+            byte[] value = new byte[arena.getInt(offset + 4)];
+            ByteBuffer source = arena.duplicate();
+            source.position(getValueOffset(offset));
+            source.get(value);
+            return value;
+        }
+    }
+
+    /**
+     * Associa o valor à chave.
+     * @return verdadeiro se o mapa foi alterado.
+     */
+    public synchronized boolean put(byte[] key, byte[] value) {
+        int hash = hash(key);
+        int slot = find(key, hash);
+        if (slot >= 0) {
+            int offset = getOffset(slot);
+            int start = getValueOffset(offset);
+            if (arena.getInt(offset + 4) == value.length) {
+                boolean changed = false;
+                for (int index = 0; index < value.length; index++) {
+                    if (arena.get(start + index) != value[index]) {
+                        arena.put(start + index, value[index]);
+                        changed = true;
+                    }
+                }
+                return changed;
+            } else {
+                kill(offset);
+                offset = append(key, value);
+                table.putInt(slot * SLOT + 4, offset + 1);
+                compactIfNeeded();
+                return true;
+            }
+        } else {
+            if ((size + 1) * 4L > (mask + 1) * 3L) {
+                resize();
+                slot = find(key, hash);
+            }
+            slot = -slot - 1;
+            int offset = append(key, value);
+            table.putInt(slot * SLOT, hash);
+            table.putInt(slot * SLOT + 4, offset + 1);
+            size++;
+            return true;
+        }
+    }
+
+    /**
+     * Remove o registro, deslocando os seguintes da mesma sequência.
+     * @return verdadeiro se o registro existia.
+     */
+    public synchronized boolean remove(byte[] key) {
+        int hole = find(key, hash(key));
+        if (hole < 0) {
+            return false;
+        } else {
+            kill(getOffset(hole));
+            int next = (hole + 1) & mask;
+            while (getOffset(next) != -1) {
+                int ideal = table.getInt(next * SLOT) & mask;
+                if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                    table.putInt(hole * SLOT, table.getInt(next * SLOT));
+                    table.putInt(hole * SLOT + 4, table.getInt(next * SLOT + 4));
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            table.putInt(hole * SLOT, 0);
+            table.putInt(hole * SLOT + 4, 0);
+            size--;
+            compactIfNeeded();
+            return true;
+        }
+    }
+
+    public synchronized void clear() {
+        this.table = ByteBuffer.allocateDirect(1024 * SLOT);
+        this.mask = 1023;
+        this.arena = ByteBuffer.allocateDirect(64 * 1024);
+        this.used = 0;
+        this.dead = 0;
+        this.size = 0;
+    }
+
+    /**
+     * Lê um campo longo do valor sem copiá-lo.
+     * @param position a posição do campo dentro do valor.
+     * @param absent o retorno caso a chave não exista.
+     */
+    public synchronized long getLong(byte[] key, int position, long absent) {
+        int slot = find(key, hash(key));
+        if (slot < 0) {
+            return absent;
+        } else {
+            return arena.getLong(getValueOffset(getOffset(slot)) + position);
+        }
+    }
+
+    /**
+     * Altera um campo longo do valor no lugar.
+     * @return verdadeiro se a chave existe.
+     */
+    public synchronized boolean putLong(byte[] key, int position, long value) {
+        int slot = find(key, hash(key));
+        if (slot < 0) {
+            return false;
+        } else {
+            arena.putLong(getValueOffset(getOffset(slot)) + position, value);
+            return true;
+        }
+    }
+
+    /**
+     * Incrementa um campo inteiro do valor no lugar.
+     * @return o novo valor do campo ou -1 se a chave não existe.
+     */
+    public synchronized int incrementInt(byte[] key, int position) {
+        int slot = find(key, hash(key));
+        if (slot < 0) {
+            return -1;
+        } else {
+            int index = getValueOffset(getOffset(slot)) + position;
+            int value = arena.getInt(index) + 1;
+            arena.putInt(index, value);
+            return value;
+        }
+    }
+
+    public synchronized void forEach(Visitor visitor) {
+        for (int slot = 0; slot <= mask; slot++) {
+            int offset = getOffset(slot);
+            if (offset != -1) {
+                byte[] key = new byte[arena.getInt(offset)];
+                ByteBuffer value = arena.duplicate();
+                value.position(offset + HEADER);
+                value.get(key);
+                int start = value.position();
+                value.limit(start + arena.getInt(offset + 4));
+                visitor.visit(key, value.slice().asReadOnlyBuffer());
+            }
+        }
+    }
+
+    /**
+     * Grava a imagem da arena num arquivo temporário e o renomeia.
+     */
+    public synchronized void store(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(temp, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(MAGIC);
+            header.putInt(used);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            ByteBuffer source = arena.duplicate();
+            source.position(0);
+            source.limit(used);
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("cannot rename " + temp);
+            }
+        }
+    }
+
+    /**
+     * Verifica se a imagem gravada é íntegra: o tamanho declarado
+     * cabe no arquivo e cada registro termina dentro dele.
+     * @param buffer o arquivo mapeado.
+     * @return a posição final dos registros ou -1 se for inválida.
+     */
+    private static int validate(ByteBuffer buffer) {
+        if (buffer.capacity() < 8 || buffer.getInt(0) != MAGIC) {
+            return -1;
+        } else {
+            int limit = buffer.getInt(4);
+            if (limit < 0 || limit > buffer.capacity() - 8) {
+                return -1;
+            } else {
+                int end = 8 + limit;
+                int offset = 8;
+                while (offset < end) {
+                    if (end - offset < HEADER) {
+                        return -1;
+                    }
+                    int length = getKeyLength(buffer.getInt(offset));
+                    int valueLength = buffer.getInt(offset + 4);
+                    if (valueLength < 0) {
+                        return -1;
+                    }
+                    long next = (long) offset + HEADER + length + valueLength;
+                    if (next > end) {
+                        return -1;
+                    }
+                    offset = (int) next;
+                }
+                return end;
+            }
+        }
+    }
+
+    /**
+     * Carrega os registros vivos de um arquivo gravado.
+     * A imagem é validada por inteiro antes de qualquer alocação.
+     * @return falso se o arquivo não estiver no formato esperado.
+     */
+    public boolean load(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                return false;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int end = validate(buffer);
+            if (end == -1) {
+                return false;
+            } else {
+                int offset = 8;
+                while (offset < end) {
+                    int keyLength = buffer.getInt(offset);
+                    int valueLength = buffer.getInt(offset + 4);
+                    int length = getKeyLength(keyLength);
+                    if (keyLength >= 0) {
+                        byte[] key = new byte[keyLength];
+                        byte[] value = new byte[valueLength];
+                        buffer.position(offset + HEADER);
+                        buffer.get(key);
+                        buffer.get(value);
+                        put(key, value);
+                    }
+                    offset += HEADER + length + valueLength;
+                }
+                return true;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -30,6 +30,7 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.BindException;
 import java.net.InetAddress;
@@ -50,8 +51,6 @@ import java.util.Locale;
 import net.spfbl.whois.QueryTCP;
 import net.spfbl.spf.QuerySPF;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import javax.imageio.ImageIO;
@@ -66,8 +65,10 @@ import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import net.spfbl.data.NoReply;
 import net.spfbl.dns.QueryDNS;
+import net.spfbl.dns.ZoneExport;
 import net.spfbl.http.ServerHTTP;
 import net.spfbl.spf.SPF;
+import net.spfbl.spf.Warmup;
 import net.spfbl.whois.Domain;
 import net.spfbl.whois.Subnet;
 import net.spfbl.whois.SubnetIPv4;
@@ -120,6 +121,14 @@ public class Core {
         }
     }
     
+    public static int getPeerMaxLength() {
+        if (peerUDP == null) {
+            return 0;
+        } else {
+            return peerUDP.getMaxLength();
+        }
+    }
+    
     public static boolean hasPeerConnection() {
         if (peerUDP == null) {
             return false;
@@ -478,12 +487,22 @@ public class Core {
                     Core.setRecaptchaKeySite(properties.getProperty("recaptcha_key_site"));
                     Core.setRecaptchaKeySecret(properties.getProperty("recaptcha_key_secret"));
                     Core.setCacheTimeStore(properties.getProperty("cache_time_store"));
+                    Governor.setBudget(properties.getProperty("memory_cache_budget"));
+                    Deadline.setDefault(properties.getProperty("query_deadline"));
+                    ZoneExport.setFolder(properties.getProperty("zone_export_folder"));
+                    SPF.setReputationBackend(properties.getProperty("reputation_backend"));
+                    Warmup.setEnabled(properties.getProperty("postfix_warmup"));
                     PeerUDP.setConnectionLimit(properties.getProperty("peer_limit"));
                     QueryDNS.setConnectionLimit(properties.getProperty("dnsbl_limit"));
+                    QueryDNS.setDropAbusing(properties.getProperty("dnsbl_drop_abusing"));
+                    Client.setBurst(properties.getProperty("client_burst"));
                     QuerySPF.setConnectionLimit(properties.getProperty("spfbl_limit"));
                     Analise.setAnaliseExpires(properties.getProperty("analise_expires"));
                     Analise.setAnaliseIP(properties.getProperty("analise_ip"));
                     Analise.setAnaliseMX(properties.getProperty("analise_mx"));
+                    ProberSMTP.setProbeLimit(properties.getProperty("analise_probe_limit"));
+                    ProberSMTP.setNetworkLimit(properties.getProperty("analise_probe_network"));
+                    ProberSMTP.setASNLimit(properties.getProperty("analise_probe_asn"));
                     return true;
                 } finally {
                     confIS.close();
@@ -1357,16 +1376,11 @@ public class Core {
         }
     }
     
-    /**
-     * Timer que controla os processos em background.
-     */
-    private static final Timer TIMER = new Timer("BCKGROUND");
-
     public static void cancelTimer() {
-        TIMER.cancel();
+        Scheduler.shutdown();
     }
     
-    private static class TimerSendMessage extends TimerTask {
+    private static class TimerSendMessage implements Runnable {
         @Override
         public void run() {
             try {
@@ -1379,7 +1393,7 @@ public class Core {
         }
     }
     
-    private static class TimerInterruptTimeout extends TimerTask {
+    private static class TimerInterruptTimeout implements Runnable {
         @Override
         public void run() {
             try {
@@ -1392,7 +1406,7 @@ public class Core {
         }
     }
     
-    private static class TimerRefreshSPF extends TimerTask {
+    private static class TimerRefreshSPF implements Runnable {
         @Override
         public void run() {
             try {
@@ -1405,7 +1419,7 @@ public class Core {
         }
     }
     
-    private static class TimerRefreshHELO extends TimerTask {
+    private static class TimerRefreshHELO implements Runnable {
         @Override
         public void run() {
             try {
@@ -1418,7 +1432,7 @@ public class Core {
         }
     }
     
-    private static class TimerRefreshReverse extends TimerTask {
+    private static class TimerRefreshReverse implements Runnable {
         @Override
         public void run() {
             try {
@@ -1431,7 +1445,7 @@ public class Core {
         }
     }
     
-    private static class TimerRefreshWHOIS extends TimerTask {
+    private static class TimerRefreshWHOIS implements Runnable {
         @Override
         public void run() {
             try {
@@ -1444,51 +1458,52 @@ public class Core {
         }
     }
     
-    private static class TimerDropExpiredSPF extends TimerTask {
+    private static class TimerSendHeloToAll implements Runnable {
         @Override
         public void run() {
             try {
                 Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-                // Remoção de registros SPF expirados. 
-                SPF.dropExpiredSPF();
+                // Envio de PING para os peers cadastrados.
+                Peer.sendHeloToAll();
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
     }
     
-    private static class TimerSendHeloToAll extends TimerTask {
+    private static class TimerDropExpiredPeer implements Runnable {
         @Override
         public void run() {
             try {
                 Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-                // Envio de PING para os peers cadastrados.
-                Peer.sendHeloToAll();
+                // Remoção de registros de reputação expirados. 
+                Peer.dropExpired();
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
     }
     
-    private static class TimerDropExpiredPeer extends TimerTask {
+    private static class TimerDropExpiredQuery implements Runnable {
         @Override
         public void run() {
             try {
                 Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-                // Remoção de registros de reputação expirados. 
-                Peer.dropExpired();
+                // Apagar todas as consultas de usuário vencidas.
+                User.dropAllExpiredQuery();
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
     }
     
-    private static class TimerDropExpiredHELO extends TimerTask {
+    private static class TimerDropExpiredCompact implements Runnable {
         @Override
         public void run() {
             try {
                 Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-                // Apagar todas os registros de DNS de HELO vencidos.
+                // Apagar os registros de reverso e HELO vencidos.
+                Reverse.dropExpired();
                 SPF.dropExpiredHELO();
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -1496,47 +1511,59 @@ public class Core {
         }
     }
     
-    private static class TimerDropExpiredReverse extends TimerTask {
+    private static class TimerExportZone implements Runnable {
         @Override
         public void run() {
             try {
                 Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-                // Apagar todas os registros de IP reverso vencidos.
-                Reverse.dropExpired();
+                // Exporta as zonas DNS por completo.
+                ZoneExport.exportAll();
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
     }
     
-    private static class TimerDropExpiredDistribution extends TimerTask {
+    private static class TimerExportZoneDelta implements Runnable {
         @Override
         public void run() {
             try {
                 Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-                // Apagar todas as distribuições e consultas vencidas.
-                User.dropAllExpiredQuery();
-                SPF.dropExpiredDistribution();
+                // Exporta a diferença das zonas DNS.
+                ZoneExport.exportDelta();
+            } catch (Exception ex) {
+                Server.logError(ex);
+            }
+        }
+    }
+    
+    private static class TimerExpiry implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+                // Apagar os registros de cache vencidos no último minuto.
+                Expiry.advance();
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
     }
     
-    private static class TimerDropExpiredDefer extends TimerTask {
+    private static class TimerGovernor implements Runnable {
         @Override
         public void run() {
             try {
                 Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-                // Apagar todas os registros de atrazo programado vencidos.
-                Defer.dropExpired();
+                // Descarta registros de cache se a memória estiver baixa.
+                Governor.govern();
             } catch (Exception ex) {
                 Server.logError(ex);
             }
         }
     }
     
-    private static class TimerStoreCache extends TimerTask {
+    private static class TimerStoreCache implements Runnable {
         @Override
         public void run() {
             try {
@@ -1549,7 +1576,7 @@ public class Core {
         }
     }
     
-    private static class TimerDeleteLogExpired extends TimerTask {
+    private static class TimerDeleteLogExpired implements Runnable {
         @Override
         public void run() {
             try {
@@ -1585,22 +1612,28 @@ public class Core {
     }
     
     public static void startTimer() {
-        TIMER.schedule(new TimerSendMessage(), 30000, 60000); // Frequência de 1 minuto.
-        TIMER.schedule(new TimerInterruptTimeout(), 1000, 1000); // Frequência de 1 segundo.
-        TIMER.schedule(new TimerRefreshSPF(), 30000, 60000); // Frequência de 1 minuto.
-        TIMER.schedule(new TimerRefreshHELO(), 60000, 60000); // Frequência de 1 minuto.
-        TIMER.schedule(new TimerRefreshReverse(), 60000, 60000); // Frequência de 1 minuto.
-        TIMER.schedule(new TimerRefreshWHOIS(), 600000, 600000); // Frequência de 10 minutos.
-        TIMER.schedule(new TimerDropExpiredPeer(), 900000, 1800000); // Frequência de 30 minutos.
-        TIMER.schedule(new TimerSendHeloToAll(), 1800000, 1800000); // Frequência de 30 minutos.
-        TIMER.schedule(new TimerDropExpiredSPF(), 600000, 3600000); // Frequência de 1 hora.
-        TIMER.schedule(new TimerDropExpiredHELO(), 1200000, 3600000); // Frequência de 1 hora.
-        TIMER.schedule(new TimerDropExpiredReverse(), 1200000, 3600000); // Frequência de 1 hora.
-        TIMER.schedule(new TimerDropExpiredDistribution(), 1800000, 3600000); // Frequência de 1 hora.
-        TIMER.schedule(new TimerDropExpiredDefer(), 2400000, 3600000); // Frequência de 1 hora.
-        TIMER.schedule(new TimerDeleteLogExpired(), 3600000, 3600000); // Frequência de 1 hora.
+        // Interrupção das conexões travadas, isolada de todo o resto.
+        Scheduler.scheduleCritical("interrupt_timeout", new TimerInterruptTimeout(), 1000, 1000); // Frequência de 1 segundo.
+        // Manutenção leve em memória.
+        Scheduler.scheduleFast("expiry", new TimerExpiry(), 60000, 60000); // Frequência de 1 minuto.
+        // Processos pesados de lote.
+        Scheduler.scheduleBatch("governor", new TimerGovernor(), 30000, 30000); // Frequência de 30 segundos.
+        Scheduler.scheduleBatch("refresh_spf", new TimerRefreshSPF(), 30000, 60000); // Frequência de 1 minuto.
+        Scheduler.scheduleBatch("refresh_helo", new TimerRefreshHELO(), 60000, 60000); // Frequência de 1 minuto.
+        Scheduler.scheduleBatch("refresh_reverse", new TimerRefreshReverse(), 60000, 60000); // Frequência de 1 minuto.
+        Scheduler.scheduleBatch("send_message", new TimerSendMessage(), 30000, 60000); // Frequência de 1 minuto.
+        Scheduler.scheduleBatch("refresh_whois", new TimerRefreshWHOIS(), 600000, 600000); // Frequência de 10 minutos.
+        Scheduler.scheduleBatch("drop_expired_peer", new TimerDropExpiredPeer(), 900000, 1800000); // Frequência de 30 minutos.
+        Scheduler.scheduleBatch("send_helo", new TimerSendHeloToAll(), 1800000, 1800000); // Frequência de 30 minutos.
+        Scheduler.scheduleBatch("drop_expired_query", new TimerDropExpiredQuery(), 1800000, 3600000); // Frequência de 1 hora.
+        Scheduler.scheduleBatch("drop_expired_compact", new TimerDropExpiredCompact(), 2700000, 3600000); // Frequência de 1 hora.
+        Scheduler.scheduleBatch("delete_log_expired", new TimerDeleteLogExpired(), 3600000, 3600000); // Frequência de 1 hora.
+        if (ZoneExport.isEnabled()) {
+            Scheduler.scheduleBatch("export_zone", new TimerExportZone(), 300000, 3600000); // Frequência de 1 hora.
+            Scheduler.scheduleBatch("export_zone_delta", new TimerExportZoneDelta(), 600000, 300000); // Frequência de 5 minutos.
+        }
         if (CACHE_TIME_STORE > 0) {
-            TIMER.schedule(new TimerStoreCache(), CACHE_TIME_STORE, CACHE_TIME_STORE);
+            Scheduler.scheduleBatch("store_cache", new TimerStoreCache(), CACHE_TIME_STORE, CACHE_TIME_STORE);
         }
     }
     
@@ -1721,6 +1754,84 @@ public class Core {
         }
     }
     
+    /**
+     * Escreve uma linha de resposta em ISO-8859-1, a mesma codificação
+     * das demais respostas administrativas, diretamente no fluxo,
+     * sem montar a resposta inteira em memória.
+     * @param outputStream o fluxo de saída.
+     * @param prefix o prefixo da linha ou nulo se não houver.
+     * @param line o conteúdo da linha.
+     * @throws IOException se houver falha na escrita.
+     */
+    public static void writeLine(
+            OutputStream outputStream,
+            String prefix,
+            Object line
+    ) throws IOException {
+        if (prefix != null) {
+            outputStream.write(prefix.getBytes("ISO-8859-1"));
+        }
+        outputStream.write(String.valueOf(line).getBytes("ISO-8859-1"));
+        outputStream.write('\n');
+    }
+    
+    /**
+     * Escreve cada elemento do retrato de um conjunto como uma linha.
+     * @param outputStream o fluxo de saída.
+     * @param prefix o prefixo de cada linha ou nulo se não houver.
+     * @param array o retrato do conjunto ou nulo se não houver.
+     * @return a quantidade de linhas escritas.
+     * @throws IOException se houver falha na escrita.
+     */
+    public static int writeLines(
+            OutputStream outputStream,
+            String prefix,
+            Object[] array
+    ) throws IOException {
+        return writeLines(outputStream, prefix, null, "", array);
+    }
+    
+    /**
+     * Escreve o retrato do conjunto de um cliente no formato
+     * das listas, com o cliente e o rótulo antes de cada valor.
+     * Os blocos CIDR são escritos na forma normalizada.
+     * @param outputStream o fluxo de saída.
+     * @param prefix o prefixo de cada linha ou nulo se não houver.
+     * @param client o cliente dono do conjunto ou nulo se for global.
+     * @param label o rótulo de cada valor, como "CIDR=" ou "WHOIS/".
+     * @param array o retrato do conjunto ou nulo se não houver.
+     * @return a quantidade de linhas escritas.
+     * @throws IOException se houver falha na escrita.
+     */
+    public static int writeLines(
+            OutputStream outputStream,
+            String prefix,
+            String client,
+            String label,
+            Object[] array
+    ) throws IOException {
+        int count = 0;
+        if (array != null) {
+            for (Object element : array) {
+                String value = element.toString();
+                if (!label.equals("CIDR=")) {
+                    value = label + value;
+                } else if (value.contains(":")) {
+                    value = label + SubnetIPv6.normalizeCIDRv6(value);
+                } else {
+                    value = label + SubnetIPv4.normalizeCIDRv4(value);
+                }
+                if (client == null) {
+                    writeLine(outputStream, prefix, value);
+                } else {
+                    writeLine(outputStream, prefix, client + ':' + value);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+    
     public static Integer getInteger(String text) {
         if (text == null) {
             return null;
@@ -1744,7 +1855,10 @@ public class Core {
     private static final Runtime RUNTIME = Runtime.getRuntime();
     
     public static float relativeFreeMemory() {
-        return (float) RUNTIME.freeMemory() / (float) RUNTIME.maxMemory();
+        // Inclui a parte do heap que ainda não foi alocada pela JVM.
+        long maxMemory = RUNTIME.maxMemory();
+        long freeMemory = RUNTIME.freeMemory() + maxMemory - RUNTIME.totalMemory();
+        return (float) freeMemory / (float) maxMemory;
     }
     
     public static boolean hasLowMemory() {
@@ -0,0 +1,165 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.util.TreeSet;
+
+/**
+ * Prazo de processamento da consulta corrente.
+ *
+ * Cada consulta SPFBL ou Postfix recebe um prazo, definido por
+ * cliente ou pelo padrão da configuração, guardado na thread que a
+ * processa. As etapas caras, como critérios WHOIS, DNSBL externas,
+ * includes SPF fora do cache e a recursão do reverso no bloqueio,
+ * consultam o prazo antes de ir à rede. Quando resta menos de um
+ * quarto do prazo, a etapa é pulada e a resposta é tirada apenas
+ * dos dados em cache. As etapas puladas são registradas no LOG da
+ * consulta e nas métricas.
+ *
+ * Uma thread sem prazo, como as de segundo plano, nunca pula etapas.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Deadline {
+
+    private static final String SKIPPED = "spfbl_deadline_skipped_total";
+
+    static {
+        Metrics.setHelp(SKIPPED, "Expensive query stages skipped near the query deadline.");
+    }
+
+    /**
+     * Prazo padrão em milissegundos. Zero desabilita o prazo.
+     */
+    private static int DEFAULT = 10000;
+
+    private final long start;
+    private final long end;
+    private final long reserve;
+    private TreeSet<String> skippedSet = null;
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+
+    private Deadline(long start, int budget) {
+        this.start = start;
+        this.end = start + budget;
+        this.reserve = budget / 4;
+    }
+
+    public static void setDefault(String deadline) {
+        if (deadline != null && deadline.length() > 0) {
+            try {
+                setDefault(Integer.parseInt(deadline));
+            } catch (Exception ex) {
+                Server.logError("invalid query deadline '" + deadline + "'.");
+            }
+        }
+    }
+
+    public static synchronized void setDefault(int deadline) {
+        if (deadline < 0 || deadline > 60000) {
+            Server.logError("invalid query deadline '" + deadline + "'.");
+        } else {
+            Deadline.DEFAULT = deadline;
+        }
+    }
+
+    public static synchronized int getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Inicia o prazo da consulta na thread corrente.
+     * @param start o instante de recebimento da consulta.
+     * @param budget o prazo em milissegundos ou zero para nenhum.
+     */
+    public static void start(long start, int budget) {
+        if (budget > 0) {
+            CURRENT.set(new Deadline(start, budget));
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Encerra o prazo da consulta na thread corrente.
+     * @return as etapas puladas separadas por vírgula ou nulo se nenhuma.
+     */
+    public static String finish() {
+        Deadline deadline = CURRENT.get();
+        CURRENT.remove();
+        if (deadline == null || deadline.skippedSet == null) {
+            return null;
+        } else {
+            StringBuilder builder = new StringBuilder();
+            for (String stage : deadline.skippedSet) {
+                if (builder.length() > 0) {
+                    builder.append(',');
+                }
+                builder.append(stage);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * @return verdadeiro se alguma etapa da consulta corrente foi pulada.
+     */
+    public static boolean isDegraded() {
+        Deadline deadline = CURRENT.get();
+        return deadline != null && deadline.skippedSet != null;
+    }
+
+    /**
+     * @return o tempo restante em milissegundos ou Long.MAX_VALUE sem prazo.
+     */
+    public static long getRemaining() {
+        Deadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return Long.MAX_VALUE;
+        } else {
+            return deadline.end - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Verifica se uma etapa cara deve ser pulada por falta de prazo.
+     * Deve ser chamado apenas quando a etapa realmente iria à rede.
+     * @param stage o nome da etapa no LOG e nas métricas.
+     * @return verdadeiro se a etapa deve ser pulada.
+     */
+    public static boolean skip(String stage) {
+        Deadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return false;
+        } else if (deadline.end - System.currentTimeMillis() > deadline.reserve) {
+            return false;
+        } else {
+            if (deadline.skippedSet == null) {
+                deadline.skippedSet = new TreeSet<String>();
+                Server.logDebug(
+                        "query deadline nearly exhausted after "
+                        + (System.currentTimeMillis() - deadline.start) + "ms."
+                );
+            }
+            if (deadline.skippedSet.add(stage)) {
+                Metrics.getCounter(SKIPPED, "stage=\"" + stage + "\"").increment();
+            }
+            return true;
+        }
+    }
+}
@@ -23,7 +23,6 @@ import java.io.FileOutputStream;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.TreeSet;
 import org.apache.commons.lang3.SerializationUtils;
 
 /**
@@ -70,15 +69,10 @@ public class Defer implements Serializable, Comparable<Defer> {
         if (!value.equals(ret)) {
             CHANGED = true;
         }
+        EXPIRY.register(key, value.start + EXPIRE_TIME);
         return ret;
     }
 
-    private static synchronized TreeSet<String> keySet() {
-        TreeSet<String> keySet = new TreeSet<String>();
-        keySet.addAll(MAP.keySet());
-        return keySet;
-    }
-
     private static synchronized HashMap<String,Defer> getMap() {
         HashMap<String,Defer> map = new HashMap<String,Defer>();
         map.putAll(MAP);
@@ -105,15 +99,22 @@ public class Defer implements Serializable, Comparable<Defer> {
         CHANGED = false;
     }
     
-    public static void dropExpired() {
-        long expire = System.currentTimeMillis() - (5 * 24 * 60 * 60 * 1000); // Expira em cinco dias
-        for (String id : keySet()) {
+    private static final long EXPIRE_TIME = 5L * Server.DAY_TIME; // Expira em cinco dias
+    
+    private static final Expiry.Handler EXPIRY = new Expiry.Handler("defer") {
+        @Override
+        protected long expire(String id) {
             Defer defer = getExact(id);
-            if (defer != null && defer.start < expire) {
+            if (defer == null) {
+                return 0;
+            } else if (defer.start < System.currentTimeMillis() - EXPIRE_TIME) {
                 drop(id);
+                return 0;
+            } else {
+                return defer.start + EXPIRE_TIME;
             }
         }
-    }
+    };
 
     private synchronized void addCount() {
         this.count++;
@@ -167,7 +168,31 @@ public class Defer implements Serializable, Comparable<Defer> {
         }
     }
 
+    private static synchronized int size() {
+        return MAP.size();
+    }
+    
+    private static final Metrics.Histogram STAGE = Metrics.getStage("defer");
+    
+    static {
+        Metrics.registerCacheSize("defer", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return size();
+            }
+        });
+    }
+
     public static boolean defer(String id, int minutes) {
+        long start = Metrics.time();
+        try {
+            return deferInternal(id, minutes);
+        } finally {
+            STAGE.record(start);
+        }
+    }
+    
+    private static boolean deferInternal(String id, int minutes) {
         if (id == null) {
             return false;
         } else if (minutes == 0) {
@@ -0,0 +1,235 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Serviço compartilhado de expiração dos caches.
+ *
+ * Os registros são agendados numa roda de tempo hierárquica de três
+ * níveis com 64 posições cada, com passo de um minuto, cobrindo cerca
+ * de 180 dias. A cada minuto somente a posição corrente é processada,
+ * no lugar da varredura completa de cada cache a cada hora.
+ *
+ * O agendamento é feito na inserção do registro. A consulta ao
+ * registro não reagenda, para não onerar o fluxo de consulta: quando
+ * o prazo vence, o dono do cache verifica o registro e informa o
+ * novo prazo caso ele tenha sido consultado neste intervalo.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Expiry {
+
+    /**
+     * Dono de um conjunto de registros agendados.
+     */
+    public static abstract class Handler {
+
+        private final HashMap<String,Entry> entryMap = new HashMap<String,Entry>();
+
+        public Handler(final String name) {
+            Metrics.registerGauge("spfbl_expiry_entries", "cache=\"" + name + "\"", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return size(Handler.this);
+                }
+            });
+        }
+
+        /**
+         * Agenda a verificação de um registro.
+         * Se o registro já estiver agendado, somente o prazo é atualizado.
+         * @param key a chave do registro no cache.
+         * @param deadline o prazo de expiração em milissegundos.
+         */
+        public final void register(String key, long deadline) {
+            Expiry.register(this, key, deadline);
+        }
+
+        /**
+         * Verifica o registro vencido e o remove se estiver expirado.
+         * Chamado sem trava alguma do serviço de expiração.
+         * @param key a chave do registro no cache.
+         * @return o novo prazo em milissegundos, se o registro continua
+         * válido, ou zero se o registro não existe mais.
+         */
+        protected abstract long expire(String key);
+    }
+
+    private static final class Entry {
+
+        private final Handler handler;
+        private final String key;
+        private long tick;
+        private Entry previous = null;
+        private Entry next = null;
+        private Entry[] slot = null;
+
+        private Entry(Handler handler, String key, long tick) {
+            this.handler = handler;
+            this.key = key;
+            this.tick = tick;
+        }
+    }
+
+    private static final long TICK_TIME = 60000;
+    private static final int BITS = 6;
+    private static final int SIZE = 1 << BITS;
+    private static final int MASK = SIZE - 1;
+    private static final int LEVELS = 3;
+
+    /**
+     * Cabeça da lista duplamente encadeada de cada posição.
+     */
+    private static final Entry[][][] WHEEL = new Entry[LEVELS][SIZE][1];
+    private static long CURRENT = System.currentTimeMillis() / TICK_TIME;
+
+    private Expiry() {
+    }
+
+    private static synchronized int size(Handler handler) {
+        return handler.entryMap.size();
+    }
+
+    private static void link(Entry entry) {
+        long delta = entry.tick - CURRENT;
+        Entry[] slot;
+        if (delta < SIZE) {
+            slot = WHEEL[0][(int) (Math.max(entry.tick, CURRENT + 1) & MASK)];
+        } else if (delta < SIZE * SIZE) {
+            slot = WHEEL[1][(int) ((entry.tick >>> BITS) & MASK)];
+        } else if (delta < SIZE * SIZE * SIZE) {
+            slot = WHEEL[2][(int) ((entry.tick >>> (2 * BITS)) & MASK)];
+        } else {
+            // Além do alcance da roda: reavaliado na última posição.
+            slot = WHEEL[2][(int) (((CURRENT >>> (2 * BITS)) + MASK) & MASK)];
+        }
+        entry.slot = slot;
+        entry.previous = null;
+        entry.next = slot[0];
+        if (slot[0] != null) {
+            slot[0].previous = entry;
+        }
+        slot[0] = entry;
+    }
+
+    private static void unlink(Entry entry) {
+        if (entry.previous == null) {
+            entry.slot[0] = entry.next;
+        } else {
+            entry.previous.next = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.previous = entry.previous;
+        }
+        entry.slot = null;
+        entry.previous = null;
+        entry.next = null;
+    }
+
+    private static synchronized void register(Handler handler, String key, long deadline) {
+        if (key != null) {
+            long tick = deadline / TICK_TIME + 1;
+            Entry entry = handler.entryMap.get(key);
+            if (entry == null) {
+                entry = new Entry(handler, key, tick);
+                handler.entryMap.put(key, entry);
+                link(entry);
+            } else if (tick < entry.tick) {
+                unlink(entry);
+                entry.tick = tick;
+                link(entry);
+            } else {
+                // Reposicionado somente quando a posição atual vencer.
+                entry.tick = tick;
+            }
+        }
+    }
+
+    /**
+     * Redistribui uma posição de nível superior nos níveis inferiores.
+     */
+    private static void cascade(Entry[] slot) {
+        Entry entry = slot[0];
+        slot[0] = null;
+        while (entry != null) {
+            Entry next = entry.next;
+            link(entry);
+            entry = next;
+        }
+    }
+
+    /**
+     * Avança a roda um passo.
+     * @return os registros vencidos, já retirados do agendamento.
+     */
+    private static synchronized ArrayList<Entry> step(long now) {
+        ArrayList<Entry> expiredList = new ArrayList<Entry>();
+        if (CURRENT < now) {
+            CURRENT++;
+            if ((CURRENT & MASK) == 0) {
+                if (((CURRENT >>> BITS) & MASK) == 0) {
+                    cascade(WHEEL[2][(int) ((CURRENT >>> (2 * BITS)) & MASK)]);
+                }
+                cascade(WHEEL[1][(int) ((CURRENT >>> BITS) & MASK)]);
+            }
+            Entry[] slot = WHEEL[0][(int) (CURRENT & MASK)];
+            Entry entry = slot[0];
+            slot[0] = null;
+            while (entry != null) {
+                Entry next = entry.next;
+                if (entry.tick > CURRENT) {
+                    link(entry);
+                } else {
+                    entry.slot = null;
+                    entry.previous = null;
+                    entry.next = null;
+                    entry.handler.entryMap.remove(entry.key);
+                    expiredList.add(entry);
+                }
+                entry = next;
+            }
+        }
+        return expiredList;
+    }
+
+    private static synchronized boolean isBehind(long now) {
+        return CURRENT < now;
+    }
+
+    /**
+     * Processa todos os passos vencidos até o momento.
+     * Chamado a cada minuto pelo temporizador de background.
+     */
+    public static void advance() {
+        long now = System.currentTimeMillis() / TICK_TIME;
+        while (isBehind(now)) {
+            for (Entry entry : step(now)) {
+                try {
+                    long deadline = entry.handler.expire(entry.key);
+                    if (deadline > 0) {
+                        register(entry.handler, entry.key, deadline);
+                    }
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Controle do uso de memória pelos caches.
+ *
+ * Cada cache grande recebe uma fatia do orçamento de memória
+ * proporcional ao seu peso e informa uma estimativa de bytes por
+ * registro. Quando a memória livre fica baixa, os caches acima do
+ * orçamento descartam seus registros de menor valor na proporção
+ * do excesso. Se nenhum cache estiver acima do orçamento, todos
+ * descartam na proporção do seu tamanho estimado.
+ *
+ * Um novo descarte só é feito depois que o coletor de lixo rodou,
+ * pois a memória dos registros descartados só volta a aparecer
+ * como livre depois da coleta.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Governor {
+
+    private static final String BYTES = "spfbl_cache_bytes";
+    private static final String BUDGET = "spfbl_cache_budget_bytes";
+    private static final String SHED = "spfbl_cache_shed_total";
+
+    static {
+        Metrics.setHelp(BYTES, "Estimated memory used by each cache.");
+        Metrics.setHelp(BUDGET, "Memory budget assigned to each cache.");
+        Metrics.setHelp(SHED, "Cache entries discarded under memory pressure.");
+    }
+
+    /**
+     * Cache controlado pelo orçamento de memória.
+     */
+    public static abstract class Cache {
+
+        private final String name;
+        private final int weight;
+        private final int entryBytes;
+        private final Metrics.Counter shed;
+
+        /**
+         * Registra o cache no controle de memória.
+         * @param name o nome do cache nas métricas.
+         * @param weight o peso do cache na divisão do orçamento.
+         * @param entryBytes a estimativa de bytes por registro.
+         */
+        public Cache(String name, int weight, int entryBytes) {
+            this.name = name;
+            this.weight = weight;
+            this.entryBytes = entryBytes;
+            String labels = "cache=\"" + name + "\"";
+            this.shed = Metrics.getCounter(SHED, labels);
+            Metrics.registerGauge(BYTES, labels, new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return getBytes();
+                }
+            });
+            Metrics.registerGauge(BUDGET, labels, new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return getBudget();
+                }
+            });
+            add(this);
+        }
+
+        /**
+         * @return a quantidade atual de registros.
+         */
+        protected abstract long size();
+
+        /**
+         * Descarta os registros de menor valor.
+         * @param count a quantidade de registros a descartar.
+         * @return a quantidade efetivamente descartada.
+         */
+        protected abstract int shed(int count);
+
+        public final long getBytes() {
+            return size() * entryBytes;
+        }
+
+        public final long getBudget() {
+            return getTotalBudget() * weight / getTotalWeight();
+        }
+    }
+
+    /**
+     * Seleção dos registros de menor valor sem ordenar o cache inteiro.
+     *
+     * Mantém um heap limitado à quantidade pedida, de modo que o
+     * custo é n.log(k) para n registros e k descartes.
+     */
+    public static final class Selector<K> {
+
+        private final int count;
+        private final PriorityQueue<Object[]> queue;
+
+        public Selector(int count) {
+            this.count = Math.max(1, count);
+            this.queue = new PriorityQueue<Object[]>(this.count, new Comparator<Object[]>() {
+                @Override
+                public int compare(Object[] entry1, Object[] entry2) {
+                    // Heap invertido: o maior valor fica no topo.
+                    return ((Long) entry2[1]).compareTo((Long) entry1[1]);
+                }
+            });
+        }
+
+        /**
+         * Considera um registro para descarte.
+         * @param key a chave do registro.
+         * @param value o valor do registro, como o instante da última consulta.
+         */
+        public void add(K key, long value) {
+            if (queue.size() < count) {
+                queue.add(new Object[]{key, value});
+            } else if (value < (Long) queue.peek()[1]) {
+                queue.poll();
+                queue.add(new Object[]{key, value});
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public ArrayList<K> getList() {
+            ArrayList<K> list = new ArrayList<K>(queue.size());
+            for (Object[] entry : queue) {
+                list.add((K) entry[0]);
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Descarte de um cache em janelas de chaves.
+     *
+     * A cópia das chaves é a única passagem completa sob a trava do
+     * cache. A avaliação e a remoção são feitas janela a janela, cada
+     * uma na sua própria seção crítica curta, descartando em cada
+     * janela a sua parte proporcional dos registros de menor valor.
+     */
+    public static abstract class Sweep<K> {
+
+        /**
+         * Descarta os registros de menor valor dentro da janela.
+         * Deve ser executado sob a trava do cache.
+         * @param keyList as chaves da janela.
+         * @param count a quantidade a descartar na janela.
+         * @return a quantidade efetivamente descartada.
+         */
+        protected abstract int drop(List<K> keyList, int count);
+
+        /**
+         * Percorre as chaves em janelas e descarta os de menor valor.
+         * @param keyList a cópia das chaves do cache.
+         * @param count a quantidade total a descartar.
+         * @return a quantidade efetivamente descartada.
+         */
+        public final int shed(List<K> keyList, int count) {
+            int size = keyList.size();
+            int removed = 0;
+            for (int begin = 0; begin < size; begin += WINDOW) {
+                int end = Math.min(size, begin + WINDOW);
+                int quota = (int) ((long) count * end / size - (long) count * begin / size);
+                if (quota > 0) {
+                    removed += drop(keyList.subList(begin, end), quota);
+                }
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Quantidade de chaves avaliadas em cada seção crítica do descarte.
+     */
+    private static final int WINDOW = 1024;
+
+    private static final ArrayList<Cache> LIST = new ArrayList<Cache>();
+    private static int TOTAL_WEIGHT = 0;
+
+    /**
+     * Fração máxima do heap ocupada pelos caches em porcentagem.
+     */
+    private static int PERCENT = 50;
+
+    /**
+     * Fração do total estimado descartada a cada rodada.
+     */
+    private static final int SHED_DIVISOR = 8;
+
+    /**
+     * Quantidade de coletas de lixo no momento do último descarte.
+     */
+    private static long COLLECTIONS = -1;
+
+    private Governor() {
+    }
+
+    private static synchronized void add(Cache cache) {
+        LIST.add(cache);
+        TOTAL_WEIGHT += cache.weight;
+    }
+
+    private static synchronized ArrayList<Cache> getList() {
+        return new ArrayList<Cache>(LIST);
+    }
+
+    private static synchronized int getTotalWeight() {
+        return TOTAL_WEIGHT;
+    }
+
+    private static synchronized long getTotalBudget() {
+        return Runtime.getRuntime().maxMemory() / 100 * PERCENT;
+    }
+
+    public static void setBudget(String percent) {
+        if (percent != null && percent.length() > 0) {
+            try {
+                setBudget(Integer.parseInt(percent));
+            } catch (Exception ex) {
+                Server.logError("invalid memory cache budget '" + percent + "'.");
+            }
+        }
+    }
+
+    public static synchronized void setBudget(int percent) {
+        if (percent < 10 || percent > 90) {
+            Server.logError("invalid memory cache budget '" + percent + "'.");
+        } else {
+            Governor.PERCENT = percent;
+        }
+    }
+
+    private static long getCollections() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Verifica a memória livre e descarta registros se necessário.
+     * Chamado periodicamente pelo agendador de background.
+     */
+    public static void govern() {
+        if (Core.hasLowMemory()) {
+            long collections = getCollections();
+            synchronized (Governor.class) {
+                if (collections == COLLECTIONS) {
+                    // Aguarda a coleta do descarte anterior.
+                    return;
+                } else {
+                    COLLECTIONS = collections;
+                }
+            }
+            ArrayList<Cache> list = getList();
+            long[] shareArray = new long[list.size()];
+            long totalBytes = 0;
+            long totalExcess = 0;
+            for (int index = 0; index < list.size(); index++) {
+                Cache cache = list.get(index);
+                long bytes = cache.getBytes();
+                long excess = bytes - cache.getBudget();
+                totalBytes += bytes;
+                if (excess > 0) {
+                    shareArray[index] = excess;
+                    totalExcess += excess;
+                }
+            }
+            long totalShare = totalExcess;
+            if (totalExcess == 0) {
+                for (int index = 0; index < list.size(); index++) {
+                    shareArray[index] = list.get(index).getBytes();
+                }
+                totalShare = totalBytes;
+            }
+            if (totalShare > 0) {
+                long target = Math.max(totalBytes / SHED_DIVISOR, totalExcess);
+                StringBuilder builder = new StringBuilder();
+                for (int index = 0; index < list.size(); index++) {
+                    Cache cache = list.get(index);
+                    long bytes = (long) ((double) target * shareArray[index] / totalShare);
+                    long count = Math.min(bytes / cache.entryBytes, cache.size() / 4);
+                    if (count > 0) {
+                        int removed = cache.shed((int) Math.min(count, Integer.MAX_VALUE));
+                        if (removed > 0) {
+                            cache.shed.add(removed);
+                            builder.append(' ');
+                            builder.append(cache.name);
+                            builder.append('=');
+                            builder.append(removed);
+                        }
+                    }
+                }
+                if (builder.length() > 0) {
+                    Server.logInfo("low memory, cache entries discarded:" + builder);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registro central de métricas de latência e contadores.
+ *
+ * Os histogramas usam baldes logarítmicos com oito subdivisões
+ * por potência de dois, no mesmo espírito do HDR Histogram,
+ * para que o registro de uma amostra seja apenas um incremento atômico.
+ *
+ * A exportação segue o formato texto do Prometheus.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Metrics {
+
+    /**
+     * Família dos histogramas de latência por estágio.
+     */
+    public static final String STAGE = "spfbl_stage_latency_seconds";
+
+    /**
+     * Família dos histogramas de latência por consulta completa.
+     */
+    public static final String QUERY = "spfbl_query_latency_seconds";
+
+    /**
+     * Família dos contadores de acesso aos caches.
+     */
+    public static final String CACHE = "spfbl_cache_requests_total";
+
+    /**
+     * Família dos tamanhos de cache.
+     */
+    public static final String SIZE = "spfbl_cache_size";
+
+    private static final ConcurrentHashMap<String,Histogram> HISTOGRAM_MAP = new ConcurrentHashMap<String,Histogram>();
+    private static final ConcurrentHashMap<String,Counter> COUNTER_MAP = new ConcurrentHashMap<String,Counter>();
+    private static final ConcurrentHashMap<String,Gauge> GAUGE_MAP = new ConcurrentHashMap<String,Gauge>();
+    private static final ConcurrentHashMap<String,String> HELP_MAP = new ConcurrentHashMap<String,String>();
+
+    static {
+        HELP_MAP.put(STAGE, "Latency of each stage of the query pipeline.");
+        HELP_MAP.put(QUERY, "Latency of each complete query by server.");
+        HELP_MAP.put(CACHE, "Cache lookups by result.");
+        HELP_MAP.put(SIZE, "Number of entries in each cache.");
+    }
+
+    private static String getKey(String family, String labels) {
+        if (labels == null || labels.length() == 0) {
+            return family;
+        } else {
+            return family + '{' + labels + '}';
+        }
+    }
+
+    public static Histogram getHistogram(String family, String labels) {
+        String key = getKey(family, labels);
+        Histogram histogram = HISTOGRAM_MAP.get(key);
+        if (histogram == null) {
+            histogram = new Histogram(family, labels);
+            Histogram previous = HISTOGRAM_MAP.putIfAbsent(key, histogram);
+            if (previous != null) {
+                histogram = previous;
+            }
+        }
+        return histogram;
+    }
+
+    public static Counter getCounter(String family, String labels) {
+        String key = getKey(family, labels);
+        Counter counter = COUNTER_MAP.get(key);
+        if (counter == null) {
+            counter = new Counter(family, labels);
+            Counter previous = COUNTER_MAP.putIfAbsent(key, counter);
+            if (previous != null) {
+                counter = previous;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Histograma de latência de um estágio do processamento.
+     * @param stage o nome do estágio.
+     * @return o histograma do estágio.
+     */
+    public static Histogram getStage(String stage) {
+        return getHistogram(STAGE, "stage=\"" + stage + "\"");
+    }
+
+    /**
+     * Histograma de latência de uma consulta completa.
+     * @param server o nome do servidor que atende a consulta.
+     * @return o histograma do servidor.
+     */
+    public static Histogram getQuery(String server) {
+        return getHistogram(QUERY, "server=\"" + server + "\"");
+    }
+
+    public static Counter getCacheHit(String cache) {
+        return getCounter(CACHE, "cache=\"" + cache + "\",result=\"hit\"");
+    }
+
+    public static Counter getCacheMiss(String cache) {
+        return getCounter(CACHE, "cache=\"" + cache + "\",result=\"miss\"");
+    }
+
+    public static void registerGauge(String family, String labels, Gauge gauge) {
+        if (gauge != null) {
+            GAUGE_MAP.put(getKey(family, labels), gauge);
+        }
+    }
+
+    public static void registerCacheSize(String cache, Gauge gauge) {
+        registerGauge(SIZE, "cache=\"" + cache + "\"", gauge);
+    }
+
+    public static void setHelp(String family, String help) {
+        if (family != null && help != null) {
+            HELP_MAP.put(family, help);
+        }
+    }
+
+    /**
+     * Marca de tempo para início de uma medição.
+     * @return a marca de tempo em nanosegundos.
+     */
+    public static long time() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Valor numérico observado sob demanda no momento da exportação.
+     */
+    public interface Gauge {
+        public long getValue();
+    }
+
+    /**
+     * Contador monotônico.
+     */
+    public static final class Counter {
+
+        private final String family;
+        private final String labels;
+        private final AtomicLong value = new AtomicLong(0);
+
+        private Counter(String family, String labels) {
+            this.family = family;
+            this.labels = labels;
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Histograma de latência em microsegundos.
+     *
+     * Valores abaixo de 8 têm baldes exatos e cada potência de dois
+     * acima disto é dividida em 8 baldes, dando erro relativo máximo
+     * de 12,5% em qualquer escala até cerca de 12 dias.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKET_COUNT = (40 - SUB_BITS + 1) * SUB_COUNT;
+
+        private final String family;
+        private final String labels;
+        private final AtomicLongArray bucketArray = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong sum = new AtomicLong(0);
+        private final AtomicLong max = new AtomicLong(0);
+
+        private Histogram(String family, String labels) {
+            this.family = family;
+            this.labels = labels;
+        }
+
+        private static int getIndex(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            } else {
+                int exponent = 63 - Long.numberOfLeadingZeros(value);
+                int sub = (int) (value >>> (exponent - SUB_BITS)) - SUB_COUNT;
+                int index = (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+                return Math.min(index, BUCKET_COUNT - 1);
+            }
+        }
+
+        private static long getUpperValue(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            } else {
+                int exponent = index / SUB_COUNT + SUB_BITS - 1;
+                int sub = index % SUB_COUNT;
+                long lower = (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+                return lower + (1L << (exponent - SUB_BITS)) - 1;
+            }
+        }
+
+        /**
+         * Registra a latência desde a marca de tempo informada.
+         * @param start a marca obtida por Metrics.time().
+         */
+        public void record(long start) {
+            recordMicros((System.nanoTime() - start) / 1000);
+        }
+
+        /**
+         * Registra a latência desde o tempo de relógio informado,
+         * no mesmo formato usado nos registros de LOG.
+         * @param time o tempo inicial em milisegundos.
+         */
+        public void recordElapsed(long time) {
+            recordMicros((System.currentTimeMillis() - time) * 1000);
+        }
+
+        public void recordMicros(long micros) {
+            if (micros < 0) {
+                micros = 0;
+            }
+            bucketArray.incrementAndGet(getIndex(micros));
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+            long current;
+            while (micros > (current = max.get())) {
+                if (max.compareAndSet(current, micros)) {
+                    break;
+                }
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSumMicros() {
+            return sum.get();
+        }
+
+        public long getMaxMicros() {
+            return max.get();
+        }
+
+        /**
+         * Calcula o quantil aproximado.
+         * @param quantile o quantil entre 0 e 1.
+         * @return o valor aproximado em microsegundos.
+         */
+        public long getQuantileMicros(double quantile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            } else {
+                long target = (long) Math.ceil(quantile * total);
+                if (target < 1) {
+                    target = 1;
+                }
+                long cumulative = 0;
+                for (int index = 0; index < BUCKET_COUNT; index++) {
+                    cumulative += bucketArray.get(index);
+                    if (cumulative >= target) {
+                        return Math.min(getUpperValue(index), max.get());
+                    }
+                }
+                return max.get();
+            }
+        }
+    }
+
+    private static final double[] QUANTILE_ARRAY = {0.5, 0.9, 0.99, 0.999};
+
+    private static String formatSeconds(long micros) {
+        return String.format(Locale.US, "%.6f", micros / 1000000.0d);
+    }
+
+    private static void appendSeries(
+            StringBuilder builder,
+            String name,
+            String labels,
+            String extra,
+            String value
+    ) {
+        builder.append(name);
+        if (labels != null && labels.length() > 0) {
+            builder.append('{');
+            builder.append(labels);
+            if (extra != null) {
+                builder.append(',');
+                builder.append(extra);
+            }
+            builder.append('}');
+        } else if (extra != null) {
+            builder.append('{');
+            builder.append(extra);
+            builder.append('}');
+        }
+        builder.append(' ');
+        builder.append(value);
+        builder.append('\n');
+    }
+
+    private static void appendHeader(
+            StringBuilder builder,
+            String family,
+            String type
+    ) {
+        String help = HELP_MAP.get(family);
+        if (help != null) {
+            builder.append("# HELP ");
+            builder.append(family);
+            builder.append(' ');
+            builder.append(help);
+            builder.append('\n');
+        }
+        builder.append("# TYPE ");
+        builder.append(family);
+        builder.append(' ');
+        builder.append(type);
+        builder.append('\n');
+    }
+
+    /**
+     * Exporta todas as métricas no formato texto do Prometheus.
+     * @return o texto das métricas.
+     */
+    public static String getPrometheus() {
+        StringBuilder builder = new StringBuilder();
+        String family = null;
+        for (Histogram histogram : new TreeMap<String,Histogram>(HISTOGRAM_MAP).values()) {
+            if (!histogram.family.equals(family)) {
+                family = histogram.family;
+                appendHeader(builder, family, "summary");
+            }
+            for (double quantile : QUANTILE_ARRAY) {
+                appendSeries(
+                        builder, family, histogram.labels,
+                        "quantile=\"" + quantile + "\"",
+                        formatSeconds(histogram.getQuantileMicros(quantile))
+                );
+            }
+            appendSeries(
+                    builder, family + "_sum", histogram.labels, null,
+                    formatSeconds(histogram.getSumMicros())
+            );
+            appendSeries(
+                    builder, family + "_count", histogram.labels, null,
+                    Long.toString(histogram.getCount())
+            );
+        }
+        family = null;
+        for (Counter counter : new TreeMap<String,Counter>(COUNTER_MAP).values()) {
+            if (!counter.family.equals(family)) {
+                family = counter.family;
+                appendHeader(builder, family, "counter");
+            }
+            appendSeries(
+                    builder, family, counter.labels, null,
+                    Long.toString(counter.get())
+            );
+        }
+        family = null;
+        for (String key : new TreeMap<String,Gauge>(GAUGE_MAP).keySet()) {
+            Gauge gauge = GAUGE_MAP.get(key);
+            int index = key.indexOf('{');
+            String gaugeFamily = index == -1 ? key : key.substring(0, index);
+            String labels = index == -1 ? null : key.substring(index + 1, key.length() - 1);
+            if (!gaugeFamily.equals(family)) {
+                family = gaugeFamily;
+                appendHeader(builder, family, "gauge");
+            }
+            long value;
+            try {
+                value = gauge.getValue();
+            } catch (Exception ex) {
+                value = -1;
+            }
+            appendSeries(
+                    builder, family, labels, null,
+                    Long.toString(value)
+            );
+        }
+        return builder.toString();
+    }
+}
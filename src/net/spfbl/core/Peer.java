@@ -25,12 +25,14 @@ import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.NavigableMap;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import net.spfbl.data.Generic;
 import net.spfbl.spf.SPF;
 import net.spfbl.spf.SPF.Distribution;
@@ -54,6 +56,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
     private Send send = Send.REPUTATION; // Status de envio para este peer.
     private Receive receive = Receive.DROP; // Status de recebimento deste peer.
     private String email = null; // E-mail do responsável.
+    private boolean batch = false; // Aceita lotes de BLOCK, anunciado no HELO.
     private int limit = 100;
     private NormalDistribution frequency = null;
     private long last = 0; // Último recebimento.
@@ -66,6 +69,18 @@ public final class Peer implements Serializable, Comparable<Peer> {
     private TreeMap<String,Binomial> reputationMap2 = new TreeMap<String,Binomial>();
     private short reputationMax = 0;
     
+    /**
+     * Índices da tabela de reputação para consulta por faixa.
+     * 
+     * O índice de IP usa a forma hexadecimal de largura fixa, de modo
+     * que um CIDR corresponde a uma faixa contígua de chaves.
+     * O índice de domínio usa os rótulos invertidos, de modo que um
+     * sufixo de domínio corresponde a uma faixa de prefixo.
+     * São reconstruídos sob demanda depois do carregamento.
+     */
+    private transient TreeMap<String,String> ipIndex = null;
+    private transient TreeMap<String,String> domainIndex = null;
+    
     private Peer(Peer other) {
         this.address = other.address;
         this.port = other.port;
@@ -234,6 +249,17 @@ public final class Peer implements Serializable, Comparable<Peer> {
         }
     }
     
+    public boolean isBatch() {
+        return batch;
+    }
+    
+    public void setBatch(boolean batch) {
+        if (this.batch != batch) {
+            this.batch = batch;
+            CHANGED = true;
+        }
+    }
+    
     public boolean setSendStatus(Send status) throws ProcessException {
         if (status == null) {
             throw new ProcessException("INVALID SEND");
@@ -438,6 +464,7 @@ public final class Peer implements Serializable, Comparable<Peer> {
         peerNew.send = this.send;
         peerNew.receive = this.receive;
         peerNew.email = this.email;
+        peerNew.batch = this.batch;
         peerNew.limit = this.limit;
         peerNew.frequency = this.frequency.replicate();
         peerNew.last = this.last;
@@ -456,7 +483,17 @@ public final class Peer implements Serializable, Comparable<Peer> {
         }
     }
     
-    public synchronized static Peer create(
+    public static Peer create(
+            String hostname, int port
+            ) throws ProcessException {
+        Peer peer = createExact(hostname, port);
+        if (peer != null) {
+            peer.index(false);
+        }
+        return peer;
+    }
+    
+    private synchronized static Peer createExact(
             String hostname, int port
             ) throws ProcessException {
         hostname = Domain.extractHost(hostname, false);
@@ -560,11 +597,91 @@ public final class Peer implements Serializable, Comparable<Peer> {
     public static Peer drop(String address) {
         Peer peer = MAP.remove(address);
         if (peer != null) {
+            peer.unindex();
             CHANGED = true;
         }
         return peer;
     }
     
+    /**
+     * Índice dos IPs resolvidos de cada peer, para identificar
+     * o remetente de cada pacote com uma única busca.
+     */
+    private static final ConcurrentHashMap<String,Peer> IP_MAP = new ConcurrentHashMap<String,Peer>();
+    
+    /**
+     * IPs do peer atualmente no índice.
+     */
+    private transient TreeSet<String> ipSet = null;
+    
+    /**
+     * Indica que o peer foi removido e não deve voltar ao índice.
+     */
+    private transient boolean unindexed = false;
+    
+    /**
+     * Atualiza o índice com os IPs atuais do peer.
+     * A resolução no DNS é feita fora da trava do peer,
+     * que também protege os métodos de reputação.
+     * @param refresh se o endereço do peer deve ser resolvido novamente no DNS.
+     */
+    private void index(boolean refresh) {
+        TreeSet<String> resolvedSet;
+        if (Subnet.isValidIP(address)) {
+            resolvedSet = new TreeSet<String>();
+            resolvedSet.add(Subnet.normalizeIP(address));
+        } else {
+            resolvedSet = SPF.getAddressSetHELO(address, refresh);
+        }
+        setIndex(resolvedSet);
+    }
+    
+    private synchronized void setIndex(TreeSet<String> resolvedSet) {
+        if (!unindexed) {
+            if (ipSet != null) {
+                for (String ip : ipSet) {
+                    if (!resolvedSet.contains(ip)) {
+                        IP_MAP.remove(ip, this);
+                    }
+                }
+            }
+            for (String ip : resolvedSet) {
+                IP_MAP.put(ip, this);
+            }
+            ipSet = resolvedSet;
+        }
+    }
+    
+    private synchronized void unindex() {
+        unindexed = true;
+        if (ipSet != null) {
+            for (String ip : ipSet) {
+                IP_MAP.remove(ip, this);
+            }
+            ipSet = null;
+        }
+    }
+    
+    /**
+     * Resolve novamente o endereço de todos os peers no índice.
+     */
+    private static void indexAll(boolean refresh) {
+        for (Peer peer : getSet()) {
+            try {
+                peer.index(refresh);
+            } catch (Exception ex) {
+                Server.logError(ex);
+            }
+        }
+    }
+    
+    /**
+     * Atualiza o índice após a confirmação do endereço no HELO do peer.
+     */
+    public void refreshIndex() {
+        index(true);
+    }
+    
     public static Peer get(String address) {
         if (address == null) {
             return null;
@@ -576,19 +693,11 @@ public final class Peer implements Serializable, Comparable<Peer> {
     public static Peer get(InetAddress inetAddress) {
         String ip = inetAddress.getHostAddress();
         ip = Subnet.normalizeIP(ip);
-        for (Peer peer : getSet()) {
-//            try {
-//                if (ip.equals(peer.getIP())) {
-//                    return peer;
-//                }
-//            } catch (UnknownHostException ex) {
-//                Server.logDebug("peer '" + peer.getAddress() + "' has unknown host.");
-//            }
-            if (SPF.matchHELO(ip, peer.getAddress())) {
-                return peer;
-            }
+        if (ip == null) {
+            return null;
+        } else {
+            return IP_MAP.get(ip);
         }
-        return null;
     }
     
     public static HashMap<String,Peer> getMap() {
@@ -685,6 +794,70 @@ public final class Peer implements Serializable, Comparable<Peer> {
         }
     }
     
+    /**
+     * Envia um lote de bloqueios para todos os peers,
+     * resolvendo o conjunto de destinos uma única vez.
+     * Para os peers que anunciaram BATCH no HELO, os comandos BLOCK 
+     * são agrupados, um por linha, em pacotes até o tamanho máximo 
+     * da mensagem UDP. Os demais recebem um comando por pacote.
+     * @param tokenList os bloqueios a serem enviados.
+     */
+    public static void sendBlockToAll(Collection<String> tokenList) {
+        if (Core.hasPeerConnection()) {
+            long time = System.currentTimeMillis();
+            String origin = null;
+            String result = "SENT";
+            int count = 0;
+            int packets = 0;
+            try {
+                TreeSet<Peer> batchSet = new TreeSet<Peer>();
+                TreeSet<Peer> singleSet = new TreeSet<Peer>();
+                for (Peer peer : getSendAllSet()) {
+                    if (peer.isBatch()) {
+                        batchSet.add(peer);
+                    } else {
+                        singleSet.add(peer);
+                    }
+                }
+                int max = Core.getPeerMaxLength();
+                StringBuilder builder = new StringBuilder();
+                for (String token : tokenList) {
+                    if (isValidBlock(token)) {
+                        String command = "BLOCK " + token;
+                        if (!singleSet.isEmpty()) {
+                            sendToPeerSet(command, singleSet);
+                        }
+                        if (!batchSet.isEmpty()) {
+                            if (builder.length() > 0 && builder.length() + 1 + command.length() > max) {
+                                sendToPeerSet(builder.toString(), batchSet);
+                                builder.setLength(0);
+                                packets++;
+                            }
+                            if (builder.length() > 0) {
+                                builder.append('\n');
+                            }
+                            builder.append(command);
+                        }
+                        count++;
+                    }
+                }
+                if (builder.length() > 0) {
+                    sendToPeerSet(builder.toString(), batchSet);
+                    packets++;
+                }
+            } catch (Exception ex) {
+                result = ex.getMessage();
+            }
+            Server.logPeerSend(time, origin, "BLOCK " + count + " tokens in " + packets + " packets", result);
+        }
+    }
+    
+    private static void sendToPeerSet(String command, TreeSet<Peer> peerSet) {
+        for (Peer peer : peerSet) {
+            Core.sendCommandToPeer(command, peer.getAddress(), peer.getPort());
+        }
+    }
+    
     /**
      * Método de transição.
      * @param token
@@ -721,14 +894,31 @@ public final class Peer implements Serializable, Comparable<Peer> {
         }
     }
     
+    /**
+     * Monta o comando HELO deste servidor.
+     * 
+     * A capacidade BATCH vai depois do e-mail porque versões anteriores 
+     * ignoram os tokens excedentes. Sem e-mail, o token seria lido como 
+     * e-mail e o HELO seria recusado, então não é anunciada.
+     * @param connection a conexão deste servidor.
+     * @return o comando HELO.
+     */
+    private static String getHELO(String connection) {
+        String email = Core.getAdminEmail();
+        if (email == null) {
+            return "HELO " + connection;
+        } else {
+            return "HELO " + connection + " " + email + " BATCH";
+        }
+    }
+    
     public boolean sendHELO() {
         String connection = Core.getPeerConnection();
         if (connection == null) {
             return false;
         } else {
             String origin = null;
-            String email = Core.getAdminEmail();
-            String helo = "HELO " + connection + (email == null ? "" : " " + email);
+            String helo = getHELO(connection);
             long time = System.currentTimeMillis();
             String address = getAddress();
             int port = getPort();
@@ -744,8 +934,9 @@ public final class Peer implements Serializable, Comparable<Peer> {
         if (connection != null) {
             String origin = null;
             String result = "SENT";
-            String email = Core.getAdminEmail();
-            String helo = "HELO " + connection + (email == null ? "" : " " + email);
+            String helo = getHELO(connection);
+            // Resolve novamente os endereços dos peers.
+            indexAll(true);
             try {
                 for (Peer peer : getSendAllSet()) {
                     String address = peer.getAddress();
@@ -998,6 +1189,8 @@ public final class Peer implements Serializable, Comparable<Peer> {
                                 peer.reputationMap.clear();
                             }
                             MAP.put(address, peer);
+                            peer.registerReputationAll();
+                            peer.index(false);
                         }
                     }
                 }
@@ -1218,18 +1411,8 @@ public final class Peer implements Serializable, Comparable<Peer> {
                 }
             } else {
                 try {
+                    // Reputações expiram pelo serviço de expiração.
                     peer.refreshReputationMax();
-                    TreeMap<String, Binomial> reputationMap = peer.getReputationMap();
-                    for (String key : reputationMap.keySet()) {
-                        time = System.currentTimeMillis();
-                        Binomial binomial = reputationMap.get(key);
-                        if (binomial.isExpired3()) {
-                            binomial = peer.dropReputation(key);
-                            if (binomial != null) {
-                                Server.log(time, Core.Level.INFO, "PEERR", peer.getAddress(), key, "EXPIRED");
-                            }
-                        }
-                    }
                 } catch (Exception ex) {
                     Server.logError(ex);
                 }
@@ -1257,11 +1440,115 @@ public final class Peer implements Serializable, Comparable<Peer> {
         }
     }
     
-    private synchronized Set<String> subSet(String begin, String end) {
+    /**
+     * Converte o IP para a chave do índice numérico.
+     * @param ip o IP normalizado.
+     * @return a chave hexadecimal de largura fixa ou nulo se inválido.
+     */
+    private static String getIndexIP(String ip) {
+        byte[] address = Subnet.packIP(ip);
+        if (address == null) {
+            return null;
+        } else {
+            StringBuilder builder = new StringBuilder(33);
+            builder.append(address.length == 4 ? '4' : '6');
+            for (byte octet : address) {
+                builder.append(Character.forDigit((octet >> 4) & 0xF, 16));
+                builder.append(Character.forDigit(octet & 0xF, 16));
+            }
+            return builder.toString();
+        }
+    }
+    
+    /**
+     * Inverte os rótulos do domínio para o índice de sufixo.
+     * Por exemplo, "mail.example.com" se torna "com.example.mail.".
+     * @param domain o domínio sem o ponto ou arroba inicial.
+     * @return os rótulos invertidos terminados por ponto.
+     */
+    private static String getIndexDomain(String domain) {
+        StringBuilder builder = new StringBuilder(domain.length() + 1);
+        int end = domain.length();
+        while (end > 0) {
+            int begin = domain.lastIndexOf('.', end - 1) + 1;
+            builder.append(domain, begin, end);
+            builder.append('.');
+            end = begin - 1;
+        }
+        return builder.toString();
+    }
+    
+    private void index(String key) {
+        if (key.startsWith(".") || key.startsWith("@")) {
+            // O caractere inicial distingue o host do MX de mesmo domínio.
+            domainIndex.put(getIndexDomain(key.substring(1)) + key.charAt(0), key);
+        } else {
+            String indexKey = getIndexIP(key);
+            if (indexKey != null) {
+                ipIndex.put(indexKey, key);
+            }
+        }
+    }
+    
+    private void unindex(String key) {
+        if (ipIndex == null) {
+            return;
+        } else if (key.startsWith(".") || key.startsWith("@")) {
+            domainIndex.remove(getIndexDomain(key.substring(1)) + key.charAt(0));
+        } else {
+            String indexKey = getIndexIP(key);
+            if (indexKey != null) {
+                ipIndex.remove(indexKey);
+            }
+        }
+    }
+    
+    private void buildIndex() {
+        if (ipIndex == null) {
+            ipIndex = new TreeMap<String,String>();
+            domainIndex = new TreeMap<String,String>();
+            if (reputationMap2 != null) {
+                for (String key : reputationMap2.keySet()) {
+                    index(key);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Lista os IPs da tabela de reputação contidos no CIDR.
+     * @param cidr o CIDR normalizado.
+     * @return o conjunto dos IPs da faixa.
+     */
+    private synchronized Set<String> subSetCIDR(String cidr) {
         TreeSet<String> subSet = new TreeSet<String>();
-        if (reputationMap2 != null) {
-            NavigableMap<String,Binomial> subMap = reputationMap2.subMap(begin, false, end, false);
-            subSet.addAll(subMap.keySet());
+        String first = getIndexIP(Subnet.getFirstIP(cidr));
+        String last = getIndexIP(Subnet.getLastIP(cidr));
+        if (first != null && last != null) {
+            buildIndex();
+            subSet.addAll(ipIndex.subMap(first, true, last, true).values());
+        }
+        return subSet;
+    }
+    
+    /**
+     * Lista os hosts e MX da tabela de reputação sob o domínio.
+     * @param hostname o domínio com ponto inicial.
+     * @return o conjunto das chaves terminadas no domínio.
+     */
+    private synchronized Set<String> subSetDomain(String hostname) {
+        TreeSet<String> subSet = new TreeSet<String>();
+        String prefix = getIndexDomain(hostname.substring(1));
+        buildIndex();
+        NavigableMap<String,String> subMap = domainIndex.subMap(
+                prefix, true, prefix + Character.MAX_VALUE, false
+        );
+        for (String key : subMap.values()) {
+            if (key.startsWith("@")) {
+                subSet.add('.' + key.substring(1));
+            } else {
+                subSet.add(key);
+            }
         }
         return subSet;
     }
@@ -1275,29 +1562,9 @@ public final class Peer implements Serializable, Comparable<Peer> {
             }
         } else if (Subnet.isValidCIDR(value)) {
             String cidr = Subnet.normalizeCIDR(value);
-            for (String ip : subSet("0", ":")) {
-                if (Subnet.containsIP(cidr, ip)) {
-                    blockSet.add(ip);
-                }
-            }
-            for (String ip : subSet("a", "g")) {
-                if (SubnetIPv6.containsIP(cidr, ip)) {
-                    blockSet.add(ip);
-                }
-            }
+            blockSet.addAll(subSetCIDR(cidr));
         } else if (value.startsWith(".")) {
-            String hostname = value;
-            for (String key : subSet(".", "/")) {
-                if (key.endsWith(hostname)) {
-                    blockSet.add(key);
-                }
-            }
-            for (String mx : subSet("@", "A")) {
-                String hostKey = '.' + mx.substring(1);
-                if (hostKey.endsWith(hostname)) {
-                    blockSet.add(hostKey);
-                }
-            }
+            blockSet.addAll(subSetDomain(value));
         } else if (containsReputationExact(value)) {
             blockSet.add(value);
         }
@@ -1308,7 +1575,11 @@ public final class Peer implements Serializable, Comparable<Peer> {
         if (reputationMap2 == null) {
             return null;
         } else {
-            return reputationMap2.remove(key);
+            Binomial binomial = reputationMap2.remove(key);
+            if (binomial != null) {
+                unindex(key);
+            }
+            return binomial;
         }
     }
     
@@ -1316,9 +1587,48 @@ public final class Peer implements Serializable, Comparable<Peer> {
         if (reputationMap2 == null) {
             reputationMap2 = new TreeMap<String,Binomial>();
         }
-        return reputationMap2.put(key, binomial);
+        EXPIRY.register(address + ' ' + key, binomial.last + 259200000);
+        Binomial previous = reputationMap2.put(key, binomial);
+        if (previous == null && ipIndex != null) {
+            index(key);
+        }
+        return previous;
+    }
+    
+    private synchronized void registerReputationAll() {
+        for (String key : reputationMap2.keySet()) {
+            Binomial binomial = reputationMap2.get(key);
+            EXPIRY.register(address + ' ' + key, binomial.last + 259200000);
+        }
     }
     
+    /**
+     * Expiração das reputações recebidas, com chave "peer reputação".
+     */
+    private static final Expiry.Handler EXPIRY = new Expiry.Handler("reputation") {
+        @Override
+        protected long expire(String token) {
+            int index = token.indexOf(' ');
+            String address = token.substring(0, index);
+            String key = token.substring(index + 1);
+            Peer peer = Peer.get(address);
+            Binomial binomial;
+            if (peer == null) {
+                return 0;
+            } else if ((binomial = peer.getReputation(key)) == null) {
+                return 0;
+            } else if (binomial.isExpired3()) {
+                long time = System.currentTimeMillis();
+                if (peer.dropReputation(key) != null) {
+                    Server.log(time, Core.Level.INFO, "PEERR", address, key, "EXPIRED");
+                }
+                return 0;
+            } else {
+                return binomial.last + 259200000;
+            }
+        }
+    };
+    
     public synchronized Binomial getReputation(String key) {
         if (reputationMap2 == null) {
             return null;
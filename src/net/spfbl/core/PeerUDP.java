@@ -38,6 +38,8 @@ import net.spfbl.whois.Domain;
  */
 public final class PeerUDP extends Server {
 
+    private static final Metrics.Histogram QUERY = Metrics.getQuery("peer");
+
     private final String HOSTNAME;
     private final int PORT;
     private final int SIZE; // Tamanho máximo da mensagem do pacote UDP de reposta.
@@ -65,6 +67,14 @@ public final class PeerUDP extends Server {
         return HOSTNAME != null;
     }
     
+    /**
+     * @return o tamanho máximo da mensagem de um pacote,
+     * limitado ao buffer de recebimento dos peers.
+     */
+    public int getMaxLength() {
+        return Math.min(SIZE, 1024);
+    }
+    
     public String getConnection() {
         if (HOSTNAME == null) {
             return null;
@@ -176,6 +186,7 @@ public final class PeerUDP extends Server {
                             StringTokenizer tokenizer = new StringTokenizer(helo, " ");
                             String connection = null;
                             String email = null;
+                            boolean batch = false;
                             if (tokenizer.hasMoreTokens()) {
                                 connection = tokenizer.nextToken();
                                 connection = connection.toLowerCase();
@@ -183,6 +194,12 @@ public final class PeerUDP extends Server {
                                     email = tokenizer.nextToken();
                                     email = email.toLowerCase();
                                 }
+                                while (tokenizer.hasMoreTokens()) {
+                                    // Capacidades anunciadas pelo peer.
+                                    if (tokenizer.nextToken().equals("BATCH")) {
+                                        batch = true;
+                                    }
+                                }
                             }
                             if (connection == null || connection.length() == 0) {
                                 result = "INVALID";
@@ -194,23 +211,31 @@ public final class PeerUDP extends Server {
                                 String port = connection.substring(index + 1);
                                 if (hasAddress(hostname, ipAddress)) {
                                     Peer peer = Peer.get(ipAddress);
+                                    if (peer == null) {
+                                        // Peer conhecido cujo IP mudou desde a última resolução.
+                                        peer = Peer.get(hostname);
+                                    }
                                     if (peer == null) {
                                         peer = Peer.create(hostname, port);
                                         if (peer == null) {
                                             result = "NOT CREATED";
                                         } else {
                                             peer.setEmail(email);
+                                            peer.setBatch(batch);
                                             peer.addNotification();
                                             result = "CREATED";
                                         }
                                     } else if (peer.getAddress().equals(hostname)) {
                                         peer.setPort(port);
                                         peer.setEmail(email);
+                                        peer.setBatch(batch);
                                         peer.addNotification();
+                                        peer.refreshIndex();
                                         result = "UPDATED";
                                     } else {
                                         peer.drop();
                                         peer = peer.clone(hostname);
+                                        peer.setBatch(batch);
                                         peer.addNotification();
                                         result = "UPDATED";
                                     }
@@ -251,16 +276,26 @@ public final class PeerUDP extends Server {
                         }
                     } else if (token.startsWith("BLOCK ")) {
                         type = "PEERB";
-                        int index = token.indexOf(' ') + 1;
-                        String block = token.substring(index);
                         Peer peer = Peer.get(ipAddress);
                         if (peer == null) {
                             address = ipAddress.getHostAddress();
                             result = "UNKNOWN";
                         } else {
                             address = peer.getAddress();
-                            peer.addNotification();
-                            result = peer.processBlock(block);
+                            // O pacote pode trazer um lote, um bloqueio por linha.
+                            StringBuilder builder = new StringBuilder();
+                            for (String line : token.split("\n")) {
+                                if (line.startsWith("BLOCK ")) {
+                                    int index = line.indexOf(' ') + 1;
+                                    String block = line.substring(index).trim();
+                                    peer.addNotification();
+                                    if (builder.length() > 0) {
+                                        builder.append(' ');
+                                    }
+                                    builder.append(peer.processBlock(block));
+                                }
+                            }
+                            result = builder.toString();
                         }
                     } else {
                         Peer peer = Peer.get(ipAddress);
@@ -285,6 +320,7 @@ public final class PeerUDP extends Server {
                             token,
                             result
                             );
+                    QUERY.recordElapsed(time);
                 } catch (Exception ex) {
                     Server.logError(ex);
                 } finally {
@@ -0,0 +1,557 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeSet;
+import javax.naming.CommunicationException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import net.spfbl.core.Analise.Status;
+import net.spfbl.whois.Domain;
+import net.spfbl.whois.Subnet;
+import net.spfbl.whois.SubnetIPv4;
+import net.spfbl.whois.SubnetIPv6;
+
+/**
+ * Sonda de banner SMTP não bloqueante.
+ *
+ * Uma única thread conduz todas as conexões através de um seletor:
+ * conecta, lê o banner 220, envia QUIT e fecha, sem negociar EHLO.
+ * As threads de análise apenas aguardam o resultado da sua sonda.
+ *
+ * O número de conexões simultâneas é limitado globalmente, por rede
+ * /24 ou /48 e por sistema autônomo, quando este estiver em cache,
+ * para que uma lista concentrada numa mesma rede não seja vista
+ * como varredura pelo destino.
+ *
+ * A resolução de hostnames é compartilhada entre as sondas.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class ProberSMTP extends Thread {
+
+    private static int PROBE_LIMIT = 64;
+    private static int NETWORK_LIMIT = 2;
+    private static int ASN_LIMIT = 8;
+
+    public static void setProbeLimit(String limit) {
+        if (limit != null && limit.length() > 0) {
+            try {
+                setProbeLimit(Integer.parseInt(limit));
+            } catch (Exception ex) {
+                Server.logError("invalid analise probe limit '" + limit + "'.");
+            }
+        }
+    }
+
+    public static synchronized void setProbeLimit(int limit) {
+        if (limit < 1 || limit > Analise.getProcessLimit()) {
+            Server.logError("invalid analise probe limit '" + limit + "'.");
+        } else {
+            PROBE_LIMIT = limit;
+        }
+    }
+
+    public static void setNetworkLimit(String limit) {
+        if (limit != null && limit.length() > 0) {
+            try {
+                setNetworkLimit(Integer.parseInt(limit));
+            } catch (Exception ex) {
+                Server.logError("invalid analise probe network limit '" + limit + "'.");
+            }
+        }
+    }
+
+    public static synchronized void setNetworkLimit(int limit) {
+        if (limit < 1 || limit > Byte.MAX_VALUE) {
+            Server.logError("invalid analise probe network limit '" + limit + "'.");
+        } else {
+            NETWORK_LIMIT = limit;
+        }
+    }
+
+    public static void setASNLimit(String limit) {
+        if (limit != null && limit.length() > 0) {
+            try {
+                setASNLimit(Integer.parseInt(limit));
+            } catch (Exception ex) {
+                Server.logError("invalid analise probe ASN limit '" + limit + "'.");
+            }
+        }
+    }
+
+    public static synchronized void setASNLimit(int limit) {
+        if (limit < 1 || limit > Short.MAX_VALUE) {
+            Server.logError("invalid analise probe ASN limit '" + limit + "'.");
+        } else {
+            ASN_LIMIT = limit;
+        }
+    }
+
+    /**
+     * Tamanho máximo do banner lido.
+     */
+    private static final int BANNER_SIZE = 4096;
+
+    private static final byte[] QUIT = "QUIT\r\n".getBytes();
+
+    /**
+     * Sonda de um único IP.
+     */
+    private static final class Probe {
+
+        private final String ip;
+        private final int port;
+        private final int timeout;
+        private final String network;
+        private final String asn;
+        /**
+         * Limite de espera na fila ou, após iniciar, limite da conexão.
+         */
+        private long deadline;
+        private boolean connected = false;
+        private SocketChannel channel = null;
+        private ByteBuffer buffer = null;
+
+        private boolean done = false;
+        private Object result = null;
+
+        private Probe(String ip, int port, int timeout) {
+            this.ip = ip;
+            this.port = port;
+            this.timeout = timeout;
+            this.network = getNetwork(ip);
+            this.asn = Subnet.getCachedAutNum(ip);
+            this.deadline = System.currentTimeMillis() + timeout;
+        }
+
+        private synchronized void finish(Object result) {
+            if (!done) {
+                this.result = result;
+                this.done = true;
+                notifyAll();
+            }
+        }
+
+        private synchronized Object waitResult(long limit) throws InterruptedException {
+            long time;
+            while (!done && (time = limit - System.currentTimeMillis()) > 0) {
+                wait(time);
+            }
+            return result;
+        }
+    }
+
+    private static final LinkedList<Probe> WAITING = new LinkedList<Probe>();
+    private static final HashMap<String,Integer> NETWORK_MAP = new HashMap<String,Integer>();
+    private static final HashMap<String,Integer> ASN_MAP = new HashMap<String,Integer>();
+    private static int ACTIVE = 0;
+    private static ProberSMTP THREAD = null;
+
+    static {
+        Metrics.registerGauge("spfbl_analise_probe_active", null, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getActive();
+            }
+        });
+        Metrics.setHelp("spfbl_analise_probe_active", "Open SMTP banner probes.");
+        Metrics.registerGauge("spfbl_analise_probe_waiting", null, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getWaiting();
+            }
+        });
+        Metrics.setHelp("spfbl_analise_probe_waiting", "SMTP banner probes waiting for a network slot.");
+    }
+
+    private static synchronized int getActive() {
+        return ACTIVE;
+    }
+
+    private static synchronized int getWaiting() {
+        return WAITING.size();
+    }
+
+    /**
+     * Rede de agrupamento do IP: /24 para IPv4 e /48 para IPv6.
+     * @param ip o IP normalizado.
+     * @return a chave da rede.
+     */
+    private static String getNetwork(String ip) {
+        if (SubnetIPv4.isValidIPv4(ip)) {
+            return ip.substring(0, ip.lastIndexOf('.'));
+        } else {
+            return SubnetIPv6.expandIPv6(ip).substring(0, 14);
+        }
+    }
+
+    private final Selector selector;
+
+    private ProberSMTP(Selector selector) {
+        super("PROBESMTP");
+        this.selector = selector;
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    private static synchronized ProberSMTP getThread() throws IOException {
+        if (THREAD == null) {
+            THREAD = new ProberSMTP(Selector.open());
+            THREAD.start();
+        }
+        return THREAD;
+    }
+
+    /**
+     * Resolução de hostname compartilhada entre as sondas.
+     */
+    private static final class Resolution {
+
+        private final Object value;
+        private final long time = System.currentTimeMillis();
+
+        private Resolution(Object value) {
+            this.value = value;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - time > RESOLUTION_TIME;
+        }
+    }
+
+    private static final long RESOLUTION_TIME = Server.HOUR_TIME / 12;
+    private static final int RESOLUTION_SIZE = 4096;
+    private static final HashMap<String,Resolution> RESOLUTION_MAP = new HashMap<String,Resolution>();
+
+    private static synchronized Resolution getResolution(String host) {
+        Resolution resolution = RESOLUTION_MAP.get(host);
+        if (resolution == null) {
+            return null;
+        } else if (resolution.isExpired()) {
+            RESOLUTION_MAP.remove(host);
+            return null;
+        } else {
+            return resolution;
+        }
+    }
+
+    private static synchronized void putResolution(String host, Object value) {
+        if (RESOLUTION_MAP.size() >= RESOLUTION_SIZE) {
+            Iterator<Resolution> iterator = RESOLUTION_MAP.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isExpired()) {
+                    iterator.remove();
+                }
+            }
+            if (RESOLUTION_MAP.size() >= RESOLUTION_SIZE) {
+                RESOLUTION_MAP.clear();
+            }
+        }
+        RESOLUTION_MAP.put(host, new Resolution(value));
+    }
+
+    /**
+     * Resolve o host para o IP a ser sondado, preferindo IPv4.
+     * @param host o IP ou hostname.
+     * @return o IP normalizado ou o status de falha.
+     */
+    private static Object resolve(String host) {
+        if (Subnet.isValidIP(host)) {
+            return Subnet.normalizeIP(host);
+        } else if ((host = Domain.normalizeHostname(host, false)) == null) {
+            return Status.CLOSED;
+        } else {
+            Resolution resolution = getResolution(host);
+            if (resolution != null) {
+                return resolution.value;
+            }
+            Object value;
+            try {
+                TreeSet<String> ipSet = Reverse.getAddressSet(host);
+                value = Status.CLOSED;
+                if (ipSet != null) {
+                    for (String ip : ipSet) {
+                        if (SubnetIPv4.isValidIPv4(ip)) {
+                            value = ip;
+                            break;
+                        } else if (value == Status.CLOSED) {
+                            value = ip;
+                        }
+                    }
+                }
+            } catch (NameNotFoundException ex) {
+                value = Status.CLOSED;
+            } catch (CommunicationException ex) {
+                // Falha transitória não é compartilhada.
+                return Status.TIMEOUT;
+            } catch (NamingException ex) {
+                return Status.UNAVAILABLE;
+            }
+            putResolution(host, value);
+            return value;
+        }
+    }
+
+    /**
+     * Lê o banner SMTP do host.
+     * @param host o IP ou hostname do servidor.
+     * @param port a porta SMTP.
+     * @param timeout o limite de espera na fila e também da conexão.
+     * @return o hostname apresentado no banner, nulo se não houver
+     * hostname válido ou um Status se a conexão falhar.
+     */
+    public static Object probe(String host, int port, int timeout) {
+        Object resolved = resolve(host);
+        if (resolved instanceof Status) {
+            return resolved;
+        }
+        try {
+            ProberSMTP thread = getThread();
+            Probe probe = new Probe((String) resolved, port, timeout);
+            synchronized (ProberSMTP.class) {
+                WAITING.offer(probe);
+            }
+            thread.selector.wakeup();
+            // Fila, conexão e margem para a volta do seletor.
+            return probe.waitResult(System.currentTimeMillis() + 2L * timeout + 1000);
+        } catch (InterruptedException ex) {
+            return null;
+        } catch (IOException ex) {
+            Server.logError(ex);
+            return null;
+        }
+    }
+
+    private static int increment(HashMap<String,Integer> map, String key) {
+        Integer count = map.get(key);
+        count = count == null ? 1 : count + 1;
+        map.put(key, count);
+        return count;
+    }
+
+    private static void decrement(HashMap<String,Integer> map, String key) {
+        Integer count = map.get(key);
+        if (count == null || count <= 1) {
+            map.remove(key);
+        } else {
+            map.put(key, count - 1);
+        }
+    }
+
+    private static boolean isBelow(HashMap<String,Integer> map, String key, int limit) {
+        if (key == null) {
+            return true;
+        } else {
+            Integer count = map.get(key);
+            return count == null || count < limit;
+        }
+    }
+
+    /**
+     * Retira da fila as sondas que cabem nos limites de concorrência
+     * e descarta as que esperaram além do próprio limite.
+     * @return as sondas a serem iniciadas.
+     */
+    private static synchronized LinkedList<Probe> pollStartable() {
+        LinkedList<Probe> startList = new LinkedList<Probe>();
+        long time = System.currentTimeMillis();
+        Iterator<Probe> iterator = WAITING.iterator();
+        while (iterator.hasNext()) {
+            Probe probe = iterator.next();
+            if (probe.deadline < time) {
+                iterator.remove();
+                Server.logTrace("SMTP probe of " + probe.ip + " not started by network limit.");
+                probe.finish(null);
+            } else if (ACTIVE >= PROBE_LIMIT) {
+                break;
+            } else if (isBelow(NETWORK_MAP, probe.network, NETWORK_LIMIT)
+                    && isBelow(ASN_MAP, probe.asn, ASN_LIMIT)) {
+                iterator.remove();
+                ACTIVE++;
+                increment(NETWORK_MAP, probe.network);
+                if (probe.asn != null) {
+                    increment(ASN_MAP, probe.asn);
+                }
+                startList.add(probe);
+            }
+        }
+        return startList;
+    }
+
+    private static synchronized void release(Probe probe) {
+        ACTIVE--;
+        decrement(NETWORK_MAP, probe.network);
+        if (probe.asn != null) {
+            decrement(ASN_MAP, probe.asn);
+        }
+    }
+
+    private void close(Probe probe, Object result) {
+        if (probe.channel != null) {
+            try {
+                probe.channel.close();
+            } catch (IOException ex) {
+                // Fazer nada.
+            }
+            probe.channel = null;
+            release(probe);
+        }
+        probe.finish(result);
+    }
+
+    private void start(Probe probe) {
+        try {
+            probe.channel = SocketChannel.open();
+            probe.channel.configureBlocking(false);
+            probe.deadline = System.currentTimeMillis() + probe.timeout;
+            if (probe.channel.connect(new InetSocketAddress(probe.ip, probe.port))) {
+                probe.connected = true;
+                probe.buffer = ByteBuffer.allocate(BANNER_SIZE);
+                probe.channel.register(selector, SelectionKey.OP_READ, probe);
+            } else {
+                probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+            }
+        } catch (IOException ex) {
+            if (probe.channel == null) {
+                // Falha local, como limite de arquivos abertos.
+                Server.logError(ex);
+                release(probe);
+                probe.finish(null);
+            } else {
+                close(probe, Status.CLOSED);
+            }
+        }
+    }
+
+    /**
+     * Procura a última linha do banner, cujo código é seguido de espaço.
+     * @param buffer o conteúdo lido até o momento.
+     * @return verdadeiro se o banner está completo.
+     */
+    private static boolean isComplete(ByteBuffer buffer) {
+        int length = buffer.position();
+        int begin = 0;
+        for (int index = 0; index < length; index++) {
+            if (buffer.get(index) == '\n') {
+                if (index - begin < 4 || buffer.get(begin + 3) != '-') {
+                    return true;
+                }
+                begin = index + 1;
+            }
+        }
+        return length == buffer.capacity();
+    }
+
+    /**
+     * Interpreta o banner da mesma forma que a leitura pelo SMTPTransport.
+     * @param buffer o banner completo.
+     * @return o hostname do banner, nulo se não houver ou UNAVAILABLE.
+     */
+    private static Object getHostname(ByteBuffer buffer) {
+        int length = buffer.position();
+        if (length < 3 || buffer.get(0) != '2' || buffer.get(1) != '2' || buffer.get(2) != '0') {
+            return Status.UNAVAILABLE;
+        }
+        int beginIndex = 4;
+        int endIndex;
+        for (endIndex = beginIndex; endIndex < length; endIndex++) {
+            byte character = buffer.get(endIndex);
+            if (character == ' ' || character == '\r' || character == '\n') {
+                break;
+            }
+        }
+        if (beginIndex >= endIndex) {
+            return null;
+        } else {
+            String helo = new String(buffer.array(), beginIndex, endIndex - beginIndex);
+            if (helo.contains(".") && Domain.isHostname(helo)) {
+                return Domain.normalizeHostname(helo, true);
+            } else {
+                return null;
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Probe probe = (Probe) key.attachment();
+        try {
+            if (!probe.connected) {
+                if (probe.channel.finishConnect()) {
+                    probe.connected = true;
+                    probe.buffer = ByteBuffer.allocate(BANNER_SIZE);
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (probe.channel.read(probe.buffer) < 0) {
+                close(probe, Status.UNAVAILABLE);
+            } else if (isComplete(probe.buffer)) {
+                Object result = getHostname(probe.buffer);
+                try {
+                    // Encerramento educado sem aguardar a resposta.
+                    probe.channel.write(ByteBuffer.wrap(QUIT));
+                } catch (IOException ex) {
+                    // Fazer nada.
+                }
+                close(probe, result);
+            }
+        } catch (IOException ex) {
+            close(probe, probe.connected ? Status.UNAVAILABLE : Status.CLOSED);
+        }
+    }
+
+    private void expire() {
+        long time = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            Probe probe = (Probe) key.attachment();
+            if (key.isValid() && probe.deadline < time) {
+                close(probe, probe.connected ? Status.UNAVAILABLE : Status.TIMEOUT);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                for (Probe probe : pollStartable()) {
+                    start(probe);
+                }
+                selector.select(1000);
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid()) {
+                        handle(key);
+                    }
+                }
+                expire();
+            } catch (Exception ex) {
+                Server.logError(ex);
+            }
+        }
+    }
+}
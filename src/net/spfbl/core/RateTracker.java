@@ -0,0 +1,122 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Medidor de taxa de consultas sem trava.
+ *
+ * O balde é representado pelo instante teórico em que ele estaria
+ * vazio: cada consulta soma um intervalo mínimo a este instante e o
+ * tempo decorrido o esvazia. O nível do balde é a distância entre
+ * este instante e o momento atual, medida em consultas.
+ *
+ * O intervalo médio entre consultas é uma média móvel exponencial
+ * com o mesmo peso da população da distribuição normal anterior.
+ *
+ * Todas as atualizações são feitas por comparação e troca atômicas,
+ * de modo que nenhuma consulta espera por outra.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class RateTracker {
+
+    private static final int POPULATION = 32;
+
+    /**
+     * Instante em que o balde estaria vazio.
+     */
+    private final AtomicLong empty = new AtomicLong(0);
+    /**
+     * Intervalo médio entre consultas em milissegundos.
+     */
+    private final AtomicInteger average;
+    /**
+     * Última consulta registrada.
+     */
+    private final AtomicLong last;
+
+    /**
+     * Medidor vazio ou reconstruído a partir do registro gravado.
+     * @param average o intervalo médio conhecido ou zero se não houver.
+     * @param last o instante da última consulta ou zero se não houver.
+     */
+    public RateTracker(float average, long last) {
+        this.average = new AtomicInteger(Float.floatToIntBits(average));
+        this.last = new AtomicLong(last);
+    }
+
+    /**
+     * Registra uma consulta.
+     * @param interval o intervalo mínimo esperado entre consultas.
+     * @param burst a quantidade de consultas toleradas em rajada.
+     * @return o intervalo desde a consulta anterior ou -1 se for a primeira.
+     */
+    public long add(int interval, int burst) {
+        long now = System.currentTimeMillis();
+        long previous = last.getAndSet(now);
+        long limit = now + 2L * interval * burst;
+        while (true) {
+            long current = empty.get();
+            long next = Math.min(Math.max(current, now) + interval, limit);
+            if (empty.compareAndSet(current, next)) {
+                break;
+            }
+        }
+        if (previous == 0) {
+            return -1;
+        } else {
+            long elapsed = now - previous;
+            while (true) {
+                int bits = average.get();
+                float value = Float.intBitsToFloat(bits);
+                if (value == 0.0f) {
+                    value = elapsed < 1000 ? 1000 : elapsed;
+                } else {
+                    value += (elapsed - value) / POPULATION;
+                }
+                if (average.compareAndSet(bits, Float.floatToIntBits(value))) {
+                    return elapsed;
+                }
+            }
+        }
+    }
+
+    /**
+     * Verifica se a rajada tolerada foi ultrapassada, sem registrar consulta.
+     * @param interval o intervalo mínimo esperado entre consultas.
+     * @param burst a quantidade de consultas toleradas em rajada.
+     * @return verdadeiro se o balde estiver acima da rajada tolerada.
+     */
+    public boolean isExceeded(int interval, int burst) {
+        return empty.get() - System.currentTimeMillis() > (long) interval * burst;
+    }
+
+    public boolean hasAverage() {
+        return average.get() != Float.floatToIntBits(0.0f);
+    }
+
+    public float getAverage() {
+        return Float.intBitsToFloat(average.get());
+    }
+
+    public long getLast() {
+        return last.get();
+    }
+}
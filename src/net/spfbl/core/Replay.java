@@ -0,0 +1,430 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.spfbl.dns.RecordedDNS;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * Reprodução de tráfego de produção a partir dos registros de LOG.
+ *
+ * As consultas SPFBL, DNSBL e HTTP GET encontradas no LOG
+ * são reenviadas a uma instância local mantendo o intervalo
+ * original entre elas, dividido pelo multiplicador de velocidade.
+ * Com velocidade zero, as consultas são enviadas o mais rápido possível.
+ *
+ * A latência é medida a partir do instante previsto de envio,
+ * e não do instante em que a thread retira a consulta da fila,
+ * para que o atraso acumulado na fila entre na medição
+ * quando a instância local não acompanha o ritmo original.
+ *
+ * Opcionalmente inicia o DNS gravado na mesma JVM, para que
+ * a instância local use dns_provider=127.0.0.1:porta
+ * e não dependa da internet durante a reprodução.
+ *
+ * Uso: java -cp SPFBL.jar net.spfbl.core.Replay log=arquivo [log=arquivo]
+ * [host=127.0.0.1] [spfbl=9877] [dnsbl=53] [http=0] [speed=1.0]
+ * [threads=32] [timeout=ms] [dns=porta] [latency=ms] [loss=0.0]
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Replay {
+
+    private static final LinkedList<String> LOG_LIST = new LinkedList<String>();
+    private static String HOST = "127.0.0.1";
+    private static int PORT_SPFBL = 9877;
+    private static int PORT_DNSBL = 53;
+    private static int PORT_HTTP = 0;
+    private static float SPEED = 1.0f;
+    private static int THREADS = 32;
+    private static int PORT_DNS = 0;
+    private static int LATENCY = 0;
+    private static float LOSS = 0.0f;
+    private static int TIMEOUT = 10000;
+
+    private static final String FAMILY = "spfbl_replay_latency_seconds";
+
+    private static final Metrics.Histogram SPFBL = Metrics.getHistogram(FAMILY, "server=\"spfbl\"");
+    private static final Metrics.Histogram DNSBL = Metrics.getHistogram(FAMILY, "server=\"dnsbl\"");
+    private static final Metrics.Histogram HTTP = Metrics.getHistogram(FAMILY, "server=\"http\"");
+
+    private static final AtomicLong SENT = new AtomicLong(0);
+    private static final AtomicLong ERRORS = new AtomicLong(0);
+    private static final AtomicLong SKIPPED = new AtomicLong(0);
+
+    /**
+     * Mesmo formato de data usado pelo Server.log.
+     */
+    private static final SimpleDateFormat FORMAT_DATE_LOG = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+    /**
+     * Consulta extraída de uma linha de LOG.
+     */
+    private static abstract class Query implements Runnable {
+
+        private final long time;
+        protected final String query;
+        private long due = 0;
+
+        private Query(long time, String query) {
+            this.time = time;
+            this.query = query;
+        }
+
+        protected abstract Metrics.Histogram getHistogram();
+
+        protected abstract void send() throws Exception;
+
+        @Override
+        public void run() {
+            try {
+                send();
+                getHistogram().record(due);
+            } catch (Exception ex) {
+                ERRORS.incrementAndGet();
+            }
+        }
+    }
+
+    private static class QuerySPFBL extends Query {
+
+        private QuerySPFBL(long time, String query) {
+            super(time, query);
+        }
+
+        @Override
+        protected Metrics.Histogram getHistogram() {
+            return SPFBL;
+        }
+
+        @Override
+        protected void send() throws Exception {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(HOST, PORT_SPFBL), TIMEOUT);
+                socket.setSoTimeout(TIMEOUT);
+                OutputStream outputStream = socket.getOutputStream();
+                outputStream.write(query.getBytes("UTF-8"));
+                outputStream.flush();
+                InputStream inputStream = socket.getInputStream();
+                byte[] buffer = new byte[1024];
+                while (inputStream.read(buffer) != -1);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    private static class QueryDNSBL extends Query {
+
+        private final int type;
+
+        private QueryDNSBL(long time, String query, int type) {
+            super(time, query);
+            this.type = type;
+        }
+
+        @Override
+        protected Metrics.Histogram getHistogram() {
+            return DNSBL;
+        }
+
+        @Override
+        protected void send() throws Exception {
+            Name name = Name.fromString(query);
+            Record question = Record.newRecord(name, type, DClass.IN);
+            byte[] data = Message.newQuery(question).toWire();
+            DatagramSocket socket = new DatagramSocket();
+            try {
+                socket.setSoTimeout(TIMEOUT);
+                InetAddress address = InetAddress.getByName(HOST);
+                socket.send(new DatagramPacket(data, data.length, address, PORT_DNSBL));
+                byte[] buffer = new byte[1024];
+                socket.receive(new DatagramPacket(buffer, buffer.length));
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    private static class QueryHTTP extends Query {
+
+        private QueryHTTP(long time, String query) {
+            super(time, query);
+        }
+
+        @Override
+        protected Metrics.Histogram getHistogram() {
+            return HTTP;
+        }
+
+        @Override
+        protected void send() throws Exception {
+            URL url = new URL("http", HOST, PORT_HTTP, query);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                connection.setConnectTimeout(TIMEOUT);
+                connection.setReadTimeout(TIMEOUT);
+                connection.setInstanceFollowRedirects(false);
+                int code = connection.getResponseCode();
+                InputStream inputStream = code < 400
+                        ? connection.getInputStream()
+                        : connection.getErrorStream();
+                if (inputStream != null) {
+                    try {
+                        byte[] buffer = new byte[1024];
+                        while (inputStream.read(buffer) != -1);
+                    } finally {
+                        inputStream.close();
+                    }
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Interpreta uma linha de LOG no formato do Server.log:
+     * data latência thread tipo origem: consulta => resultado
+     *
+     * @param line a linha de LOG.
+     * @return a consulta a ser reproduzida ou nulo se não for reproduzível.
+     */
+    private static Query parseLine(String line) {
+        try {
+            int index1 = line.indexOf(' ');
+            int index2 = line.indexOf(' ', index1 + 1);
+            int index3 = line.indexOf(' ', index2 + 1);
+            int index4 = line.indexOf(' ', index3 + 1);
+            if (index4 == -1) {
+                return null;
+            } else {
+                String type = line.substring(index3 + 1, index4);
+                String message = line.substring(index4 + 1);
+                int index5 = message.indexOf(": ");
+                int index6 = message.lastIndexOf(" => ");
+                if (index5 == -1) {
+                    return null;
+                } else {
+                    String query;
+                    if (index6 > index5) {
+                        query = message.substring(index5 + 2, index6);
+                    } else {
+                        query = message.substring(index5 + 2);
+                    }
+                    long time;
+                    synchronized (FORMAT_DATE_LOG) {
+                        time = FORMAT_DATE_LOG.parse(line.substring(0, index1)).getTime();
+                    }
+                    if (type.equals("SPFBL") && PORT_SPFBL > 0) {
+                        if (query.startsWith("request=smtpd_access_policy\\n")) {
+                            // Consulta do Postfix gravada com quebras escapadas.
+                            return new QuerySPFBL(time, query.replace("\\n", "\n"));
+                        } else {
+                            return new QuerySPFBL(time, query + "\n");
+                        }
+                    } else if ((type.startsWith("DNS") || type.equals("URIBL")) && PORT_DNSBL > 0) {
+                        int index = query.indexOf(' ');
+                        if (index == -1) {
+                            return null;
+                        } else {
+                            int dnsType = Type.value(query.substring(0, index));
+                            String name = query.substring(index + 1);
+                            if (dnsType == -1 || !name.endsWith(".")) {
+                                return null;
+                            } else {
+                                return new QueryDNSBL(time, name, dnsType);
+                            }
+                        }
+                    } else if (query.startsWith("GET /") && PORT_HTTP > 0) {
+                        return new QueryHTTP(time, query.substring(4));
+                    } else {
+                        return null;
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static void replay(ExecutorService executor) throws Exception {
+        long logStart = 0;
+        long replayStart = Metrics.time();
+        for (String log : LOG_LIST) {
+            FileInputStream inputStream = new FileInputStream(log);
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Query query = parseLine(line);
+                    if (query == null) {
+                        SKIPPED.incrementAndGet();
+                    } else {
+                        if (logStart == 0) {
+                            logStart = query.time;
+                        }
+                        if (SPEED > 0.0f) {
+                            // Instante previsto em nanossegundos.
+                            query.due = replayStart + (long) ((query.time - logStart) * 1000000.0d / SPEED);
+                            long wait = (query.due - Metrics.time()) / 1000000;
+                            if (wait > 0) {
+                                Thread.sleep(wait);
+                            }
+                        } else {
+                            query.due = Metrics.time();
+                        }
+                        SENT.incrementAndGet();
+                        executor.execute(query);
+                    }
+                }
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    private static void report(String server, Metrics.Histogram histogram, long elapsed) {
+        long count = histogram.getCount();
+        if (count > 0) {
+            System.out.println(String.format(Locale.US,
+                    "%-6s %9d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f",
+                    server, count, count * 1000.0d / elapsed,
+                    histogram.getQuantileMicros(0.5) / 1000.0d,
+                    histogram.getQuantileMicros(0.9) / 1000.0d,
+                    histogram.getQuantileMicros(0.99) / 1000.0d,
+                    histogram.getQuantileMicros(0.999) / 1000.0d,
+                    histogram.getMaxMicros() / 1000.0d
+            ));
+        }
+    }
+
+    private static boolean parseArgument(String argument) {
+        int index = argument.indexOf('=');
+        if (index == -1) {
+            return false;
+        } else {
+            String key = argument.substring(0, index);
+            String value = argument.substring(index + 1);
+            try {
+                if (key.equals("log")) {
+                    LOG_LIST.add(value);
+                } else if (key.equals("host")) {
+                    HOST = value;
+                } else if (key.equals("spfbl")) {
+                    PORT_SPFBL = Integer.parseInt(value);
+                } else if (key.equals("dnsbl")) {
+                    PORT_DNSBL = Integer.parseInt(value);
+                } else if (key.equals("http")) {
+                    PORT_HTTP = Integer.parseInt(value);
+                } else if (key.equals("speed")) {
+                    SPEED = Float.parseFloat(value);
+                } else if (key.equals("threads")) {
+                    THREADS = Integer.parseInt(value);
+                } else if (key.equals("dns")) {
+                    PORT_DNS = Integer.parseInt(value);
+                } else if (key.equals("latency")) {
+                    LATENCY = Integer.parseInt(value);
+                } else if (key.equals("loss")) {
+                    LOSS = Float.parseFloat(value);
+                } else if (key.equals("timeout")) {
+                    TIMEOUT = Integer.parseInt(value);
+                } else {
+                    return false;
+                }
+                return SPEED >= 0.0f && THREADS > 0 && TIMEOUT > 0;
+            } catch (Exception ex) {
+                return false;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        Thread.currentThread().setName("REPLAYLOG");
+        for (String argument : args) {
+            if (!parseArgument(argument)) {
+                System.err.println("invalid argument '" + argument + "'.");
+                System.exit(1);
+            }
+        }
+        if (LOG_LIST.isEmpty()) {
+            System.err.println("no log file defined.");
+            System.exit(1);
+        }
+        try {
+            RecordedDNS recordedDNS = null;
+            if (PORT_DNS > 0) {
+                recordedDNS = new RecordedDNS("127.0.0.1", PORT_DNS, LATENCY, LOSS);
+                recordedDNS.load();
+                recordedDNS.start();
+            }
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    THREADS, THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>()
+            );
+            long start = System.currentTimeMillis();
+            replay(executor);
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.HOURS);
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            System.out.println("# sent " + SENT.get() + ", errors " + ERRORS.get()
+                    + ", skipped lines " + SKIPPED.get() + ", elapsed " + elapsed + "ms.");
+            if (recordedDNS != null) {
+                System.out.println("# recorded DNS queries " + recordedDNS.getQueryCount()
+                        + ", dropped " + recordedDNS.getDropCount() + ".");
+                recordedDNS.close();
+            }
+            System.out.println(String.format(Locale.US,
+                    "%-6s %9s %10s %9s %9s %9s %9s %9s",
+                    "#", "count", "query/s", "p50 ms", "p90 ms",
+                    "p99 ms", "p999 ms", "max ms"
+            ));
+            report("SPFBL", SPFBL, elapsed);
+            report("DNSBL", DNSBL, elapsed);
+            report("HTTP", HTTP, elapsed);
+            System.exit(0);
+        } catch (Exception ex) {
+            Server.logError(ex);
+            System.exit(1);
+        }
+    }
+}
@@ -19,8 +19,10 @@ package net.spfbl.core;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -59,9 +61,16 @@ public final class Reverse implements Serializable {
     private long lastQuery;
     
     /**
-     * Mapa de atributos da verificação do reverso.
+     * Mapa de atributos da verificação do reverso, fora do heap.
+     * 
+     * A chave é o IP compactado e o valor é o registro
+     * [última consulta][consultas][quantidade][hosts].
      */
-    private static final HashMap<String,Reverse> MAP = new HashMap<String,Reverse>();
+    private static final CompactMap MAP = new CompactMap("reverse");
+    private static final int LAST_QUERY = 0;
+    private static final int QUERY_COUNT = 8;
+    private static final int ADDRESS_COUNT = 12;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     /**
      * Flag que indica se o cache foi modificado.
      */
@@ -69,55 +78,115 @@ public final class Reverse implements Serializable {
     /**
      * O próximo registro de reverso que deve ser atualizado.
      */
-    private static Reverse refresh = null;
+    private static String refreshIP = null;
+    private static int refreshCount = 0;
+    
+    private byte[] encode() {
+        int length = ADDRESS_COUNT + 2;
+        ArrayList<byte[]> hostList = new ArrayList<byte[]>();
+        if (addressSet != null) {
+            for (String host : addressSet) {
+                byte[] bytes = host.getBytes(UTF8);
+                if (bytes.length <= Short.MAX_VALUE) {
+                    hostList.add(bytes);
+                    length += 2 + bytes.length;
+                }
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putLong(lastQuery);
+        buffer.putInt(queryCount);
+        buffer.putShort(addressSet == null ? -1 : (short) hostList.size());
+        for (byte[] bytes : hostList) {
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+        return buffer.array();
+    }
+    
+    private static Reverse decode(String ip, byte[] value) {
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        long lastQuery = buffer.getLong();
+        int queryCount = buffer.getInt();
+        short count = buffer.getShort();
+        TreeSet<String> addressSet = null;
+        if (count >= 0) {
+            addressSet = new TreeSet<String>();
+            for (int index = 0; index < count; index++) {
+                byte[] bytes = new byte[buffer.getShort()];
+                buffer.get(bytes);
+                addressSet.add(new String(bytes, UTF8));
+            }
+        }
+        return new Reverse(ip, addressSet, queryCount, lastQuery);
+    }
     
-    private static synchronized Reverse dropExact(String ip) {
-        Reverse ret = MAP.remove(ip);
-        if (ret != null) {
+    private static synchronized boolean dropExact(String ip) {
+        byte[] key = Subnet.packIP(ip);
+        if (key != null && MAP.remove(key)) {
             CHANGED = true;
+            return true;
+        } else {
+            return false;
         }
-        return ret;
     }
 
-    private static synchronized Reverse putExact(String key, Reverse value) {
-        Reverse reverse = MAP.put(key, value);
-        if (!value.equals(reverse)) {
+    private static synchronized void putExact(Reverse value) {
+        byte[] key = Subnet.packIP(value.ip);
+        if (key != null && MAP.put(key, value.encode())) {
             CHANGED = true;
         }
-        return reverse;
     }
 
-    private static synchronized TreeSet<String> keySet() {
-        TreeSet<String> keySet = new TreeSet<String>();
-        keySet.addAll(MAP.keySet());
-        return keySet;
+    private static Reverse getExact(String ip) {
+        byte[] key = Subnet.packIP(ip);
+        if (key == null) {
+            return null;
+        } else {
+            byte[] value = MAP.get(key);
+            if (value == null) {
+                return null;
+            } else {
+                return decode(ip, value);
+            }
+        }
     }
 
-    private static synchronized HashMap<String,Reverse> getMap() {
-        HashMap<String,Reverse> map = new HashMap<String,Reverse>();
-        map.putAll(MAP);
-        return map;
+    private static int size() {
+        return MAP.size();
     }
-
-    private static Reverse getExact(String ip) {
-        return MAP.get(ip);
+    
+    private static final Metrics.Histogram STAGE = Metrics.getStage("reverse");
+    private static final Metrics.Counter HIT = Metrics.getCacheHit("reverse");
+    private static final Metrics.Counter MISS = Metrics.getCacheMiss("reverse");
+    
+    static {
+        Metrics.registerCacheSize("reverse", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return size();
+            }
+        });
     }
 
-    private static synchronized Reverse getRefreshReverse() {
-        Reverse reverse = refresh;
-        refresh = null;
-        return reverse;
+    private static synchronized String getRefreshReverse() {
+        String ip = refreshIP;
+        refreshIP = null;
+        refreshCount = 0;
+        return ip;
     }
 
-    private static synchronized void addQuery(Reverse reverse) {
-        reverse.queryCount++;
-        reverse.lastQuery = System.currentTimeMillis();
-        if (refresh == null) {
-            refresh = reverse;
-        } else if (refresh.queryCount < reverse.queryCount) {
-            refresh = reverse;
+    private static synchronized void addQuery(String ip) {
+        byte[] key = Subnet.packIP(ip);
+        int count = MAP.incrementInt(key, QUERY_COUNT);
+        if (count > 0) {
+            MAP.putLong(key, LAST_QUERY, System.currentTimeMillis());
+            if (refreshIP == null || refreshCount < count) {
+                refreshIP = ip;
+                refreshCount = count;
+            }
+            CHANGED = true;
         }
-        CHANGED = true;
     }
     
     private boolean contains(String host) {
@@ -209,10 +278,17 @@ public final class Reverse implements Serializable {
     
     private Reverse(String ip) {
         this.ip = Subnet.normalizeIP(ip);
-        refresh();
+        lookup();
         this.lastQuery = System.currentTimeMillis();
     }
     
+    private Reverse(String ip, TreeSet<String> addressSet, int queryCount, long lastQuery) {
+        this.ip = ip;
+        this.addressSet = addressSet;
+        this.queryCount = queryCount;
+        this.lastQuery = lastQuery;
+    }
+    
     public static String getListed(String ip, String server, Set<String> valueSet) {
         String host = Reverse.getHostReverse(ip, server);
         if (host == null) {
@@ -224,14 +300,14 @@ public final class Reverse implements Serializable {
                 for (String value : valueSet) {
                     if (SubnetIPv4.isValidIPv4(value)) {
                         if (IPv4Set == null) {
-                            IPv4Set = getIPv4Set(host);
+                            IPv4Set = getListedSet(host, false);
                         }
                         if (IPv4Set.contains(value)) {
                             return value;
                         }
                     } else if (SubnetIPv6.isValidIPv6(value)) {
                         if (IPv6Set == null) {
-                            IPv6Set = getIPv6Set(host);
+                            IPv6Set = getListedSet(host, true);
                         }
                         if (IPv6Set.contains(value)) {
                             return value;
@@ -255,6 +331,85 @@ public final class Reverse implements Serializable {
         }
     }
     
+    /**
+     * Resposta recente de uma DNSBL externa.
+     */
+    private static final class Listed {
+        
+        private final long time = System.currentTimeMillis();
+        private final TreeSet<String> ipSet;
+        
+        private Listed(TreeSet<String> ipSet) {
+            this.ipSet = ipSet;
+        }
+        
+        private boolean isExpired() {
+            return System.currentTimeMillis() - time > LISTED_TIMEOUT;
+        }
+    }
+    
+    /**
+     * Validade das respostas das DNSBL externas em milissegundos.
+     */
+    private static final long LISTED_TIMEOUT = 300000;
+    
+    /**
+     * Respostas recentes das DNSBL externas, para que a consulta
+     * antecipada na conexão seja aproveitada na decisão do RCPT.
+     */
+    private static final HashMap<String,Listed> LISTED_MAP = new HashMap<String,Listed>();
+    
+    private static final Expiry.Handler LISTED_EXPIRY = new Expiry.Handler("dnsbl") {
+        @Override
+        protected long expire(String key) {
+            Listed listed = getListedExact(key);
+            if (listed == null) {
+                return 0;
+            } else if (listed.isExpired()) {
+                dropListed(key, listed);
+                return 0;
+            } else {
+                return listed.time + LISTED_TIMEOUT;
+            }
+        }
+    };
+    
+    private static synchronized Listed getListedExact(String key) {
+        return LISTED_MAP.get(key);
+    }
+    
+    private static synchronized void dropListed(String key, Listed listed) {
+        if (LISTED_MAP.get(key) == listed) {
+            LISTED_MAP.remove(key);
+        }
+    }
+    
+    /**
+     * Consulta os endereços de uma DNSBL externa com cache curto.
+     * A resposta inexistente também é guardada, como conjunto vazio.
+     */
+    private static TreeSet<String> getListedSet(String host, boolean ipv6) throws NamingException {
+        String key = (ipv6 ? "AAAA " : "A ") + host;
+        Listed listed = getListedExact(key);
+        if ((listed == null || listed.isExpired()) && Deadline.skip("dnsbl")) {
+            // Sem prazo para consultar a DNSBL externa.
+            return new TreeSet<String>();
+        } else if (listed == null || listed.isExpired()) {
+            TreeSet<String> ipSet;
+            try {
+                ipSet = ipv6 ? getIPv6Set(host) : getIPv4Set(host);
+            } catch (NameNotFoundException ex) {
+                ipSet = new TreeSet<String>();
+            }
+            listed = new Listed(ipSet);
+            synchronized (Reverse.class) {
+                LISTED_MAP.put(key, listed);
+            }
+            LISTED_EXPIRY.register(key, listed.time + LISTED_TIMEOUT);
+        }
+        return listed.ipSet;
+    }
+    
     public static boolean isListed(String ip, String dnsbl, String value) {
         String host = Reverse.getHostReverse(ip, dnsbl);
         if (host == null) {
@@ -545,7 +700,15 @@ public final class Reverse implements Serializable {
         return ipSet;
     }
     
+    /**
+     * Atualiza o registro e o grava no cache.
+     */
     public void refresh() {
+        lookup();
+        putExact(this);
+    }
+    
+    private void lookup() {
         long time = System.currentTimeMillis();
         try {
             String reverse;
@@ -573,7 +736,6 @@ public final class Reverse implements Serializable {
             Server.logReverseDNS(time, ip, "ERROR " + ex.getClass() + " " + ex.getExplanation());
         } finally {
             this.queryCount = 0;
-            CHANGED = true;
         }
     }
 
@@ -600,11 +762,16 @@ public final class Reverse implements Serializable {
     }
     
     public static String getHostname(String ip) {
-        Reverse reverse = Reverse.get(ip);
-        if (reverse == null) {
-            return null;
-        } else {
-            return reverse.getAddressOnly();
+        long start = Metrics.time();
+        try {
+            Reverse reverse = Reverse.get(ip);
+            if (reverse == null) {
+                return null;
+            } else {
+                return reverse.getAddressOnly();
+            }
+        } finally {
+            STAGE.record(start);
         }
     }
     
@@ -612,20 +779,36 @@ public final class Reverse implements Serializable {
         return get(ip, false);
     }
     
+    /**
+     * @return verdadeiro se o reverso pode ser respondido sem ir à rede.
+     */
+    public static boolean isCached(String ip) {
+        if ((ip = Subnet.normalizeIP(ip)) == null) {
+            return false;
+        } else {
+            Reverse reverse = getExact(ip);
+            return reverse != null && !reverse.isExpired7();
+        }
+    }
+    
     public static Reverse get(String ip, boolean refresh) {
         if ((ip = Subnet.normalizeIP(ip)) == null) {
             return null;
         } else {
             Reverse reverse = getExact(ip);
             if (reverse == null) {
+                MISS.increment();
                 reverse = new Reverse(ip);
-                putExact(ip, reverse);
+                putExact(reverse);
             } else if (refresh) {
+                MISS.increment();
                 reverse.refresh();
             } else if (reverse.isExpired7()) {
+                MISS.increment();
                 reverse.refresh();
             } else {
-                addQuery(reverse);
+                HIT.increment();
+                addQuery(ip);
             }
             return reverse;
         }
@@ -635,34 +818,52 @@ public final class Reverse implements Serializable {
      * Atualiza o registro mais consultado.
      */
     public static void refreshLast() {
-        Reverse reverseMax = getRefreshReverse();
-        if (reverseMax == null) {
-            for (String ip : keySet()) {
-                Reverse reverse = getExact(ip);
-                if (reverse != null) {
-                    if (reverseMax == null) {
-                        reverseMax = reverse;
-                    } else if (reverseMax.getQueryCount() < reverse.getQueryCount()) {
-                        reverseMax = reverse;
+        String ipMax = getRefreshReverse();
+        if (ipMax == null) {
+            final byte[][] keyMax = new byte[1][];
+            final int[] countMax = new int[1];
+            MAP.forEach(new CompactMap.Visitor() {
+                @Override
+                public void visit(byte[] key, ByteBuffer value) {
+                    int count = value.getInt(QUERY_COUNT);
+                    if (keyMax[0] == null || countMax[0] < count) {
+                        keyMax[0] = key;
+                        countMax[0] = count;
                     }
                 }
-            }
+            });
+            ipMax = Subnet.unpackIP(keyMax[0]);
         }
+        Reverse reverseMax = ipMax == null ? null : getExact(ipMax);
         if (reverseMax != null && reverseMax.getQueryCount() > 3) {
             reverseMax.refresh();
         }
     }
     
+    private static final long EXPIRE_TIME = 1209600000;
+    
+    /**
+     * Remove os registros sem consulta há mais de 14 dias.
+     * 
+     * A varredura é feita na própria arena fora do heap, pois agendar
+     * cada registro na roda de expiração criaria um objeto por registro.
+     */
     public static void dropExpired() {
-        for (String ip : keySet()) {
-            long time = System.currentTimeMillis();
-            Reverse reverse = getExact(ip);
-            if (reverse != null && reverse.isExpired14()) {
-                reverse = dropExact(ip);
-                if (reverse != null) {
-                    Server.logReverseDNS(time, ip, "EXPIRED");
+        final long time = System.currentTimeMillis();
+        final ArrayList<byte[]> expiredList = new ArrayList<byte[]>();
+        MAP.forEach(new CompactMap.Visitor() {
+            @Override
+            public void visit(byte[] key, ByteBuffer value) {
+                if (time - value.getLong(LAST_QUERY) > EXPIRE_TIME) {
+                    expiredList.add(key);
                 }
             }
+        });
+        for (byte[] key : expiredList) {
+            String ip = Subnet.unpackIP(key);
+            if (dropExact(ip)) {
+                Server.logReverseDNS(time, ip, "EXPIRED");
+            }
         }
     }
     
@@ -677,17 +878,11 @@ public final class Reverse implements Serializable {
     public static void store() {
         if (isChanged()) {
             try {
-                Server.logTrace("storing reverse.map");
+                Server.logTrace("storing reverse.dat");
                 long time = System.currentTimeMillis();
-                File file = new File("./data/reverse.map");
-                HashMap<String,Reverse> map = getMap();
-                FileOutputStream outputStream = new FileOutputStream(file);
-                try {
-                    SerializationUtils.serialize(map, outputStream);
-                    setStored();
-                } finally {
-                    outputStream.close();
-                }
+                File file = new File("./data/reverse.dat");
+                MAP.store(file);
+                setStored();
                 Server.logStore(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -695,13 +890,56 @@ public final class Reverse implements Serializable {
         }
     }
 
+    /**
+     * Lê os reversos de um arquivo gravado, sem alterar o cache.
+     * @param file o arquivo no formato do reverse.dat.
+     * @return o mapa de cada IP para seus hosts de reverso.
+     * @throws IOException se o arquivo não puder ser lido ou for inválido.
+     */
+    public static HashMap<String,TreeSet<String>> getAddressMap(File file) throws IOException {
+        CompactMap map = new CompactMap("recorded");
+        if (!map.load(file)) {
+            throw new IOException("invalid file " + file);
+        }
+        final HashMap<String,TreeSet<String>> addressMap = new HashMap<String,TreeSet<String>>();
+        map.forEach(new CompactMap.Visitor() {
+            @Override
+            public void visit(byte[] key, ByteBuffer value) {
+                String ip = Subnet.unpackIP(key);
+                if (ip != null) {
+                    byte[] bytes = new byte[value.remaining()];
+                    value.get(bytes);
+                    Reverse reverse = decode(ip, bytes);
+                    if (reverse.addressSet != null) {
+                        addressMap.put(ip, reverse.addressSet);
+                    }
+                }
+            }
+        });
+        map.clear();
+        return addressMap;
+    }
+
     public static void load() {
         long time = System.currentTimeMillis();
-        File file = new File("./data/reverse.map");
+        File file = new File("./data/reverse.dat");
+        File legacy = new File("./data/reverse.map");
         if (file.exists()) {
+            try {
+                if (MAP.load(file)) {
+                    setStored();
+                    Server.logLoad(time, file);
+                } else {
+                    Server.logError("invalid file " + file);
+                }
+            } catch (Exception ex) {
+                Server.logError(ex);
+            }
+        } else if (legacy.exists()) {
+            // Conversão do formato serializado anterior.
             try {
                 HashMap<String,Object> map;
-                FileInputStream fileInputStream = new FileInputStream(file);
+                FileInputStream fileInputStream = new FileInputStream(legacy);
                 try {
                     map = SerializationUtils.deserialize(fileInputStream);
                 } finally {
@@ -709,13 +947,16 @@ public final class Reverse implements Serializable {
                 }
                 for (String key : map.keySet()) {
                     Object value = map.get(key);
-                    if (value instanceof Reverse) {
+                    String ip = Subnet.normalizeIP(key);
+                    if (ip != null && value instanceof Reverse) {
                         Reverse reverse = (Reverse) value;
-                        putExact(key, reverse);
+                        putExact(new Reverse(
+                                ip, reverse.addressSet,
+                                reverse.queryCount, reverse.lastQuery
+                        ));
                     }
                 }
-                setStored();
-                Server.logLoad(time, file);
+                Server.logLoad(time, legacy);
             } catch (Exception ex) {
                 Server.logError(ex);
             }
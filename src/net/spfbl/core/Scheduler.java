@@ -0,0 +1,214 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.core;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Agendador dos processos em background.
+ *
+ * Os processos são separados em três raias com threads próprias:
+ * a raia crítica atende somente a interrupção de conexões vencidas,
+ * a raia rápida atende a manutenção leve em memória, como a roda de
+ * expiração, e a raia de lote atende os processos pesados, como as
+ * consultas DNS de atualização, a varredura dos caches e a gravação
+ * em disco. Assim um processo longo não atrasa a manutenção rápida
+ * e nada atrasa a interrupção das conexões travadas.
+ *
+ * Cada processo nunca roda em paralelo consigo mesmo e as execuções
+ * acumuladas durante uma execução longa são aglutinadas numa só.
+ * O tempo de cada execução, as execuções que ultrapassaram o período
+ * e as execuções descartadas são expostos nas métricas.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Scheduler {
+
+    private static final String DURATION = "spfbl_task_duration_seconds";
+    private static final String OVERRUN = "spfbl_task_overrun_total";
+    private static final String SKIPPED = "spfbl_task_skipped_total";
+
+    static {
+        Metrics.setHelp(DURATION, "Run time of each background task.");
+        Metrics.setHelp(OVERRUN, "Background task runs that took longer than their period.");
+        Metrics.setHelp(SKIPPED, "Background task runs skipped because the previous run was late.");
+    }
+
+    /**
+     * Raia exclusiva da interrupção de conexões vencidas.
+     */
+    private static final ScheduledThreadPoolExecutor CRITICAL = newLane("INTERRUPT", 1);
+
+    /**
+     * Raia da manutenção leve em memória.
+     */
+    private static final ScheduledThreadPoolExecutor FAST = newLane("BCKGROUND", 1);
+
+    /**
+     * Raia dos processos pesados de lote.
+     */
+    private static final ScheduledThreadPoolExecutor BATCH = newLane("BATCHJOBS", 3);
+
+    private Scheduler() {
+    }
+
+    private static ScheduledThreadPoolExecutor newLane(final String name, int size) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(size, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+
+    /**
+     * Processo periódico com medição e exclusão de sobreposição.
+     */
+    private static final class Task implements Runnable {
+
+        private final String name;
+        private final Runnable runnable;
+        private final long period;
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private final Metrics.Histogram duration;
+        private final Metrics.Counter overrun;
+        private final Metrics.Counter skipped;
+        private volatile long last = 0;
+
+        private Task(String name, Runnable runnable, long period) {
+            this.name = name;
+            this.runnable = runnable;
+            this.period = period;
+            String labels = "task=\"" + name + "\"";
+            this.duration = Metrics.getHistogram(DURATION, labels);
+            this.overrun = Metrics.getCounter(OVERRUN, labels);
+            this.skipped = Metrics.getCounter(SKIPPED, labels);
+        }
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            if (start - last < period / 2) {
+                // Execução acumulada durante a execução anterior.
+                skipped.increment();
+            } else if (!running.compareAndSet(false, true)) {
+                skipped.increment();
+            } else {
+                long time = Metrics.time();
+                try {
+                    runnable.run();
+                } catch (Throwable ex) {
+                    Server.logError(ex);
+                } finally {
+                    duration.record(time);
+                    last = System.currentTimeMillis();
+                    long elapsed = last - start;
+                    if (elapsed > period) {
+                        overrun.increment();
+                        Server.logDebug("background task " + name + " took " + elapsed + "ms.");
+                    }
+                    running.set(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Agenda um processo na raia crítica, que deve ser sempre curto.
+     * @param name o nome do processo nas métricas.
+     * @param runnable o processo.
+     * @param delay o atraso inicial em milissegundos.
+     * @param period o período em milissegundos.
+     */
+    public static void scheduleCritical(String name, Runnable runnable, long delay, long period) {
+        CRITICAL.scheduleAtFixedRate(new Task(name, runnable, period), delay, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Agenda um processo na raia rápida.
+     * @param name o nome do processo nas métricas.
+     * @param runnable o processo.
+     * @param delay o atraso inicial em milissegundos.
+     * @param period o período em milissegundos.
+     */
+    public static void scheduleFast(String name, Runnable runnable, long delay, long period) {
+        FAST.scheduleAtFixedRate(new Task(name, runnable, period), delay, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Agenda um processo na raia de lote.
+     * @param name o nome do processo nas métricas.
+     * @param runnable o processo.
+     * @param delay o atraso inicial em milissegundos.
+     * @param period o período em milissegundos.
+     */
+    public static void scheduleBatch(String name, Runnable runnable, long delay, long period) {
+        BATCH.scheduleAtFixedRate(new Task(name, runnable, period), delay, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Executa uma única vez um processo na raia de lote.
+     * @param runnable o processo.
+     * @return falso se a raia já foi encerrada.
+     */
+    public static boolean executeBatch(final Runnable runnable) {
+        try {
+            BATCH.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } catch (Throwable ex) {
+                        Server.logError(ex);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Cancela os agendamentos e aguarda as execuções em andamento,
+     * para que a gravação final dos caches não concorra com elas.
+     */
+    public static void shutdown() {
+        CRITICAL.shutdown();
+        FAST.shutdown();
+        BATCH.shutdown();
+        try {
+            CRITICAL.awaitTermination(10, TimeUnit.SECONDS);
+            FAST.awaitTermination(10, TimeUnit.SECONDS);
+            BATCH.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Server.logError(ex);
+        }
+    }
+}
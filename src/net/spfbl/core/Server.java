@@ -31,6 +31,7 @@ import net.spfbl.whois.Owner;
 import net.spfbl.whois.Subnet;
 import net.spfbl.whois.SubnetIPv4;
 import net.spfbl.whois.SubnetIPv6;
+import net.spfbl.whois.WhoisQueue;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -185,7 +186,6 @@ public abstract class Server extends Thread {
         NoReply.store();
         Defer.store();
         QueryDNS.store();
-        System.gc();
     }
 
     private static SecretKey privateKey = null;
@@ -397,6 +397,7 @@ public abstract class Server extends Thread {
      */
     public static void log(long time, Core.Level level, String type, String message, String result) {
         if (level.ordinal() <= Core.LOG_LEVEL.ordinal()) {
+            long start = Metrics.time();
             int latencia = (int) (System.currentTimeMillis() - time);
             if (latencia > 99999) {
                 // Para manter a formatação correta no LOG,
@@ -427,9 +428,12 @@ public abstract class Server extends Thread {
             } else {
                 writer.println(text);
             }
+            STAGE_LOG.record(start);
         }
     }
     
+    private static final Metrics.Histogram STAGE_LOG = Metrics.getStage("log");
+    
     private static File logFolder = null;
     private static File logFile = null;
     private static PrintWriter logWriter = null;
@@ -945,6 +949,33 @@ public abstract class Server extends Thread {
         WHOIS_SEMAPHORE_TIMER.schedule(whoisSemaphore, HOUR_TIME);
     }
     
+    /**
+     * Verifica se há direito e conexão livres para uma consulta comum no WHOIS.
+     * @return verdadeiro se uma consulta comum pode ser feita agora.
+     */
+    public static boolean hasWhoisQuery() {
+        return WHOIS_QUERY_SEMAPHORE.availablePermits() > 0
+                && WHOIS_CONNECTION_SEMAPHORE.availablePermits() > 0;
+    }
+    
+    /**
+     * Verifica se todo o direito de consulta comum no WHOIS está disponível.
+     * @return verdadeiro se nenhuma consulta comum foi feita no intervalo.
+     */
+    public static boolean isWhoisQueryIdle() {
+        return WHOIS_QUERY_SEMAPHORE.availablePermits() == WHOIS_QUERY_LIMIT
+                && WHOIS_CONNECTION_SEMAPHORE.availablePermits() > 0;
+    }
+    
+    /**
+     * Verifica se há direito e conexão livres para uma consulta de identificação no WHOIS.
+     * @return verdadeiro se uma consulta de identificação pode ser feita agora.
+     */
+    public static boolean hasWhoisIDQuery() {
+        return WHOIS_ID_QUERY_SEMAPHORE.availablePermits() > 0
+                && WHOIS_CONNECTION_SEMAPHORE.availablePermits() > 0;
+    }
+    
     /**
      * Semáphoro que controla o número máximo de consultas no WHOIS.
      * Controla a taxa de 30 consultas no intervalo de 24 horas.
@@ -1045,7 +1076,7 @@ public abstract class Server extends Thread {
     private static InitialDirContext INITIAL_DIR_CONTEXT;
     
     public static Attributes getAttributesDNS(String hostname, String[] types) throws NamingException {
-        return INITIAL_DIR_CONTEXT.getAttributes("dns:/" + hostname, types);
+        return INITIAL_DIR_CONTEXT.getAttributes(DNS_URL + hostname, types);
     }
     
 //    public static String getProviderDNS() {
@@ -1069,13 +1100,34 @@ public abstract class Server extends Thread {
     
     private static String DNS_PROVIDER = null;
     
+    /**
+     * Prefixo das consultas DNS. Um nome "dns:/" sem servidor
+     * ignora o provedor do contexto e usa o resolvedor do sistema,
+     * portanto o provedor fixo precisa constar no próprio nome.
+     */
+    private static String DNS_URL = "dns:/";
+    
     public static void setProviderDNS(String ip) {
         if (ip != null && ip.length() > 0) {
+            int index = ip.lastIndexOf(':');
             if (Subnet.isValidIP(ip)) {
                 Server.DNS_PROVIDER = Subnet.normalizeIP(ip);
                 Server.logInfo("using " + ip + " as fixed DNS provider.");
+            } else if (index > 0 && SubnetIPv4.isValidIPv4(ip.substring(0, index))
+                    && ip.substring(index + 1).matches("^[0-9]{1,5}$")) {
+                // Provedor IPv4 em porta não padrão, como o DNS gravado.
+                Server.DNS_PROVIDER = SubnetIPv4.normalizeIPv4(ip.substring(0, index))
+                        + ip.substring(index);
+                Server.logInfo("using " + ip + " as fixed DNS provider.");
             } else {
                 Server.logError("invalid DNS provider '" + ip + "'.");
+                return;
+            }
+            try {
+                // O contexto já foi criado na carga da classe.
+                initDNS();
+            } catch (NamingException ex) {
+                Server.logError(ex);
             }
         }
     }
@@ -1087,7 +1139,12 @@ public abstract class Server extends Thread {
         env.put("com.sun.jndi.dns.timeout.initial", "3000");
         env.put("com.sun.jndi.dns.timeout.retries", "1");
         if (DNS_PROVIDER != null) {
-            env.put("java.naming.provider.url", "dns://" + DNS_PROVIDER);
+            String provider = DNS_PROVIDER;
+            if (SubnetIPv6.isValidIPv6(provider)) {
+                provider = '[' + provider + ']';
+            }
+            env.put("java.naming.provider.url", "dns://" + provider);
+            DNS_URL = "dns://" + provider + "/";
         }
         INITIAL_DIR_CONTEXT = new InitialDirContext(env);
     }
@@ -1153,18 +1210,22 @@ public abstract class Server extends Thread {
 //    }
     
     /**
-     * Atualiza os registros quase expirando.
+     * Enfileira a atualização dos registros quase expirando.
+     * A fila só executa a atualização quando todo o direito
+     * de consulta estiver disponível e depois dos pedidos
+     * vindos do fluxo de consulta.
      */
-    public static synchronized boolean tryRefreshWHOIS() {
-        if (WHOIS_QUERY_SEMAPHORE.availablePermits() == WHOIS_QUERY_LIMIT) {
-            if (Domain.backgroundRefresh()) {
-                return true;
-            } else {
-                return Subnet.backgroundRefresh();
+    public static boolean tryRefreshWHOIS() {
+        return WhoisQueue.request(
+                WhoisQueue.Priority.BACKGROUND,
+                new WhoisQueue.Request("BACKGROUND") {
+            @Override
+            public void run() throws ProcessException {
+                if (!Domain.backgroundRefresh()) {
+                    Subnet.backgroundRefresh();
+                }
             }
-        } else {
-            return false;
-        }
+        });
     }
     
     /**
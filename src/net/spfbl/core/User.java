@@ -253,6 +253,62 @@ public class User implements Serializable, Comparable<User> {
         }
     }
     
+    private synchronized int getQueryCount() {
+        if (queryMap == null) {
+            return 0;
+        } else {
+            return queryMap.size();
+        }
+    }
+    
+    private synchronized int dropOldestQuery(int count) {
+        int removed = 0;
+        while (removed < count && queryMap != null && queryMap.pollFirstEntry() != null) {
+            CHANGED = true;
+            removed++;
+        }
+        return removed;
+    }
+    
+    private static long getQueryTotal() {
+        long total = 0;
+        for (User user : getSet()) {
+            total += user.getQueryCount();
+        }
+        return total;
+    }
+    
+    /**
+     * Descarta as consultas mais antigas de cada usuário,
+     * na proporção da quantidade de consultas de cada um.
+     * @param count a quantidade total de consultas a descartar.
+     * @return a quantidade descartada.
+     */
+    private static int dropOldestQueryAll(int count) {
+        long total = getQueryTotal();
+        int removed = 0;
+        if (total > 0) {
+            for (User user : getSet()) {
+                int share = (int) ((long) count * user.getQueryCount() / total);
+                if (share > 0) {
+                    removed += user.dropOldestQuery(share);
+                }
+            }
+        }
+        return removed;
+    }
+    
+    private static final Governor.Cache GOVERNOR = new Governor.Cache("query", 3, 1024) {
+        @Override
+        protected long size() {
+            return getQueryTotal();
+        }
+        @Override
+        protected int shed(int count) {
+            return dropOldestQueryAll(count);
+        }
+    };
+    
     /**
      * Mapa de usuário com busca de hash O(1).
      */
@@ -35,6 +35,9 @@ import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import net.spfbl.core.Client;
+import net.spfbl.core.Core;
+import net.spfbl.core.Deadline;
+import net.spfbl.core.Metrics;
 import net.spfbl.core.Peer;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Server;
@@ -94,14 +97,12 @@ public class Block {
             return resultSet;
         }
         
-        public static synchronized int getAll(OutputStream outputStream) throws Exception {
-            int count = 0;
-            for (String token : SET) {
-                outputStream.write(token.getBytes("UTF-8"));
-                outputStream.write('\n');
-                count++;
-            }
-            return count;
+        private static synchronized Object[] getArray() {
+            return SET.toArray();
+        }
+        
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+            return Core.writeLines(outputStream, prefix, getArray());
         }
                 
         public static synchronized TreeSet<String> getAll() {
@@ -110,12 +111,37 @@ public class Block {
             return set;
         }
         
+        private static synchronized void load(String token) {
+            SET.add(token);
+        }
+        
         private static synchronized boolean addExact(String token) {
-            return SET.add(token);
+            if (SET.add(token)) {
+                Feed.add("BLOCK ADD", token);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        
+        private static synchronized ArrayList<String> addAll(Collection<String> tokenList) {
+            ArrayList<String> addedList = new ArrayList<String>();
+            for (String token : tokenList) {
+                if (SET.add(token)) {
+                    Feed.add("BLOCK ADD", token);
+                    addedList.add(token);
+                }
+            }
+            return addedList;
         }
         
         private static synchronized boolean dropExact(String token) {
-            return SET.remove(token);
+            if (SET.remove(token)) {
+                Feed.add("BLOCK DROP", token);
+                return true;
+            } else {
+                return false;
+            }
         }
         
         public static synchronized boolean contains(String token) {
@@ -161,19 +187,23 @@ public class Block {
             return resultSet;
         }
         
-        public static synchronized int getAll(OutputStream outputStream) throws Exception {
+        private static synchronized Object[] getKeyArray() {
+            return MAP.keySet().toArray();
+        }
+        
+        private static synchronized Object[] getClientArray(String client) {
+            TreeSet<String> clientSet = MAP.get(client);
+            if (clientSet == null) {
+                return null;
+            } else {
+                return clientSet.toArray();
+            }
+        }
+        
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
             int count = 0;
-            for (String client : MAP.keySet()) {
-                for (String whois : MAP.get(client)) {
-                    if (client != null) {
-                        outputStream.write(client.getBytes("UTF-8"));
-                        outputStream.write(':');
-                    }
-                    outputStream.write("WHOIS/".getBytes("UTF-8"));
-                    outputStream.write(whois.getBytes("UTF-8"));
-                    outputStream.write('\n');
-                    count++;
-                }
+            for (Object key : getKeyArray()) {
+                count += Core.writeLines(outputStream, prefix, (String) key, "WHOIS/", getClientArray((String) key));
             }
             return count;
         }
@@ -210,11 +240,14 @@ public class Block {
                 if (set.isEmpty()) {
                     MAP.remove(client);
                 }
+                if (removed) {
+                    Feed.add("BLOCK DROP", token);
+                }
                 return removed;
             }
         }
         
-        private static synchronized boolean addExact(String client, String token) {
+        private static synchronized boolean load(String client, String token) {
             int index = token.indexOf('/');
             String whois = token.substring(index+1);
             TreeSet<String> set = MAP.get(client);
@@ -240,7 +273,12 @@ public class Block {
                 set = new TreeSet<String>();
                 MAP.put(client, set);
             }
-            return set.add(whois);
+            if (set.add(whois)) {
+                Feed.add("BLOCK ADD", token);
+                return true;
+            } else {
+                return false;
+            }
         }
         
         private static synchronized TreeSet<String> getClientSet(String client) {
@@ -308,11 +346,17 @@ public class Block {
                                 for (String token : tokenSet) {
                                     String value = null;
                                     if (Subnet.isValidIP(token)) {
-                                        value = Subnet.getValue(token, key);
+                                        if (Subnet.isCached(token) || !Deadline.skip("whois")) {
+                                            value = Subnet.getValue(token, key);
+                                        }
                                     } else if (token.startsWith(".") && Domain.isHostname(token)) {
-                                        value = Domain.getValue(token, key);
+                                        if (Domain.isCached(token) || !Deadline.skip("whois")) {
+                                            value = Domain.getValue(token, key);
+                                        }
                                     } else if (!token.startsWith(".") && Domain.isHostname(token.substring(1))) {
-                                        value = Domain.getValue(token, key);
+                                        if (Domain.isCached(token) || !Deadline.skip("whois")) {
+                                            value = Domain.getValue(token, key);
+                                        }
                                     }
                                     if (value != null) {
                                         if (signal == '=') {
@@ -411,19 +455,23 @@ public class Block {
             return resultSet;
         }
         
-        public static synchronized int getAll(OutputStream outputStream) throws Exception {
+        private static synchronized Object[] getKeyArray() {
+            return MAP.keySet().toArray();
+        }
+        
+        private static synchronized Object[] getClientArray(String client) {
+            TreeSet<String> clientSet = MAP.get(client);
+            if (clientSet == null) {
+                return null;
+            } else {
+                return clientSet.toArray();
+            }
+        }
+        
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
             int count = 0;
-            for (String client : MAP.keySet()) {
-                for (String dnsbl : MAP.get(client)) {
-                    if (client != null) {
-                        outputStream.write(client.getBytes("UTF-8"));
-                        outputStream.write(':');
-                    }
-                    outputStream.write("DNSBL=".getBytes("UTF-8"));
-                    outputStream.write(dnsbl.getBytes("UTF-8"));
-                    outputStream.write('\n');
-                    count++;
-                }
+            for (Object key : getKeyArray()) {
+                count += Core.writeLines(outputStream, prefix, (String) key, "DNSBL=", getClientArray((String) key));
             }
             return count;
         }
@@ -460,11 +508,14 @@ public class Block {
                 if (set.isEmpty()) {
                     MAP.remove(client);
                 }
+                if (removed) {
+                    Feed.add("BLOCK DROP", token);
+                }
                 return removed;
             }
         }
         
-        private static synchronized boolean addExact(String client, String token) {
+        private static synchronized boolean load(String client, String token) {
             int index = token.indexOf('=');
             String dnsbl = token.substring(index+1);
             TreeSet<String> set = MAP.get(client);
@@ -490,7 +541,12 @@ public class Block {
                 set = new TreeSet<String>();
                 MAP.put(client, set);
             }
-            return set.add(dnsbl);
+            if (set.add(dnsbl)) {
+                Feed.add("BLOCK ADD", token);
+                return true;
+            } else {
+                return false;
+            }
         }
         
         public static synchronized boolean contains(String client, String dnsbl) {
@@ -615,22 +671,19 @@ public class Block {
             return keySet;
         }
         
-        public static int getAll(OutputStream outputStream) throws Exception {
+        private static synchronized Object[] getClientArray(String client) {
+            ArrayList<Pattern> patternList = MAP.get(client);
+            if (patternList == null) {
+                return null;
+            } else {
+                return patternList.toArray();
+            }
+        }
+        
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
             int count = 0;
             for (String client : getKeySet()) {
-                ArrayList<Pattern> patternList = getClientList(client);
-                if (patternList != null) {
-                    for (Pattern pattern : patternList) {
-                        if (client != null) {
-                            outputStream.write(client.getBytes("UTF-8"));
-                            outputStream.write(':');
-                        }
-                        outputStream.write("REGEX=".getBytes("UTF-8"));
-                        outputStream.write(pattern.toString().getBytes("UTF-8"));
-                        outputStream.write('\n');
-                        count++;
-                    }
-                }
+                count += Core.writeLines(outputStream, prefix, client, "REGEX=", getClientArray(client));
             }
             return count;
         }
@@ -652,7 +705,7 @@ public class Block {
             return set;
         }
         
-        private static boolean dropExact(String token) {
+        private static synchronized boolean dropExact(String token) {
             if (token == null) {
                 return false;
             } else {
@@ -678,6 +731,7 @@ public class Block {
                             if (list.isEmpty()) {
                                 drop(client);
                             }
+                            Feed.add("BLOCK DROP", token);
                             return true;
                         }
                     }
@@ -686,7 +740,7 @@ public class Block {
             }
         }
         
-        private static synchronized boolean addExact(String client, String token) {
+        private static synchronized boolean load(String client, String token) {
             int index = token.indexOf('=');
             String regex = token.substring(index+1);
             ArrayList<Pattern> list = MAP.get(client);
@@ -721,6 +775,7 @@ public class Block {
             }
             Pattern pattern = Pattern.compile(regex);
             list.add(pattern);
+            Feed.add("BLOCK ADD", token);
             return true;
         }
         
@@ -886,27 +941,10 @@ public class Block {
             return resultSet;
         }
         
-        public static int getAll(OutputStream outputStream) throws Exception {
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
             int count = 0;
             for (String client : getKeySet()) {
-                TreeSet<String> clientSet = getClientSet(client);
-                if (clientSet != null) {
-                    for (String cidr : clientSet) {
-                        if (cidr.contains(":")) {
-                            cidr = SubnetIPv6.normalizeCIDRv6(cidr);
-                        } else {
-                            cidr = SubnetIPv4.normalizeCIDRv4(cidr);
-                        }
-                        if (client != null) {
-                            outputStream.write(client.getBytes("UTF-8"));
-                            outputStream.write(':');
-                        }
-                        outputStream.write("CIDR=".getBytes("UTF-8"));
-                        outputStream.write(cidr.getBytes("UTF-8"));
-                        outputStream.write('\n');
-                        count++;
-                    }
-                }
+                count += Core.writeLines(outputStream, prefix, client, "CIDR=", getClientArray(client));
             }
             return count;
         }
@@ -993,6 +1031,9 @@ public class Block {
                     if (set.isEmpty()) {
                         MAP.remove(client);
                     }
+                    if (removed) {
+                        Feed.add("BLOCK DROP", token);
+                    }
                     return removed;
                 }
             }
@@ -1033,7 +1074,7 @@ public class Block {
             }
         }
         
-        private static synchronized boolean addExact(
+        private static synchronized boolean load(
                 String client, String token
         ) {
             int index = token.indexOf('=');
@@ -1104,13 +1145,41 @@ public class Block {
                 String error = errorBuilder.toString();
                 if (error.length() == 0) {
                     set.removeAll(overlapSet);
-                    return set.add(key);
+                    // Registra dentro da trava para manter a ordem das alterações.
+                    String prefix = client == null ? "CIDR=" : client + ":CIDR=";
+                    for (String elementExpanded : overlapSet) {
+                        Feed.add("BLOCK DROP", prefix + Subnet.normalizeCIDR(elementExpanded));
+                    }
+                    if (set.add(key)) {
+                        Feed.add("BLOCK ADD", prefix + Subnet.normalizeCIDR(cidr));
+                        return true;
+                    } else {
+                        return false;
+                    }
                 } else {
                     throw new ProcessException(error);
                 }
             }
         }
         
+        private static ArrayList<String> addAll(Collection<String> tokenList) {
+            // A ordenação fora da trava faz a inserção sequencial.
+            TreeSet<String> tokenSet = new TreeSet<String>(tokenList);
+            ArrayList<String> addedList = new ArrayList<String>();
+            synchronized (CIDR.class) {
+                for (String token : tokenSet) {
+                    try {
+                        if (addExact(token, false)) {
+                            addedList.add(token);
+                        }
+                    } catch (ProcessException ex) {
+                        // Conflito com um bloco já existente.
+                    }
+                }
+            }
+            return addedList;
+        }
+        
         public static boolean contains(Client client, String cidr) {
             if (client == null) {
                 return contains((String) null, cidr);
@@ -1222,10 +1291,48 @@ public class Block {
         REGEX.clear();
         DNSBL.clear();
         WHOIS.clear();
+        Feed.add("BLOCK DROP", "ALL");
         CHANGED = true;
         return true;
     }
 
+    /**
+     * Adiciona um lote de tokens já normalizados.
+     * Os blocos IP e os remetentes são inseridos numa única
+     * aquisição da trava de cada conjunto.
+     * @param tokenList os tokens normalizados.
+     * @return os tokens efetivamente adicionados.
+     */
+    static ArrayList<String> addAll(Collection<String> tokenList) {
+        ArrayList<String> setList = new ArrayList<String>();
+        ArrayList<String> cidrList = new ArrayList<String>();
+        ArrayList<String> addedList = new ArrayList<String>();
+        for (String token : tokenList) {
+            if (token.contains("WHOIS/") || token.contains("DNSBL=") || token.contains("REGEX=")) {
+                try {
+                    if (addExact(token)) {
+                        addedList.add(token);
+                    }
+                } catch (ProcessException ex) {
+                    Server.logError(ex);
+                }
+            } else if (token.contains("CIDR=")) {
+                cidrList.add(token);
+            } else {
+                setList.add(token);
+            }
+        }
+        addedList.addAll(SET.addAll(setList));
+        addedList.addAll(CIDR.addAll(cidrList));
+        for (String token : addedList) {
+            Peer.releaseAll(token);
+        }
+        if (!addedList.isEmpty()) {
+            CHANGED = true;
+        }
+        return addedList;
+    }
+
     public static boolean addExact(String token) throws ProcessException {
         if (token == null) {
             return false;
@@ -1378,7 +1485,7 @@ public class Block {
         }
     }
     
-    private static String normalizeTokenBlock(String token) throws ProcessException {
+    static String normalizeTokenBlock(String token) throws ProcessException {
         int index = token.indexOf(':');
         if (index > 0 && Domain.isEmail(token.substring(0, index))) {
             String client = token.substring(0, index).toLowerCase();
@@ -1609,11 +1716,25 @@ public class Block {
     }
     
     public static int getAll(OutputStream outputStream) throws Exception {
-        int count = SET.getAll(outputStream);
-        count += CIDR.getAll(outputStream);
-        count += REGEX.getAll(outputStream);
-        count += DNSBL.getAll(outputStream);
-        count += WHOIS.getAll(outputStream);
+        return getAll(outputStream, null);
+    }
+    
+    /**
+     * Escreve todos os bloqueios diretamente no fluxo de saída.
+     * Cada conjunto é percorrido sobre um retrato dos seus elementos,
+     * tirado sob trava, de modo que a escrita lenta no socket não
+     * bloqueia as alterações nem exige cópia ordenada do conjunto.
+     * @param outputStream o fluxo de saída.
+     * @param prefix o prefixo de cada linha ou nulo se não houver.
+     * @return a quantidade de linhas escritas.
+     * @throws Exception se houver falha na escrita.
+     */
+    public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+        int count = SET.getAll(outputStream, prefix);
+        count += CIDR.getAll(outputStream, prefix);
+        count += REGEX.getAll(outputStream, prefix);
+        count += DNSBL.getAll(outputStream, prefix);
+        count += WHOIS.getAll(outputStream, prefix);
         outputStream.flush();
         return count;
     }
@@ -1856,7 +1977,13 @@ public class Block {
             } else if ((dnsbl = DNSBL.get(userEmail, token)) != null) {
                 return dnsbl;
             }
-            Reverse reverse = Reverse.get(token);
+            Reverse reverse;
+            if (!Reverse.isCached(token) && Deadline.skip("reverse")) {
+                // Sem prazo para consultar o reverso fora do cache.
+                reverse = null;
+            } else {
+                reverse = Reverse.get(token);
+            }
             if (reverse != null) {
                 for (String host : reverse.getAddressSet()) {
                     String block = find(userEmail, host, autoBlock);
@@ -1898,7 +2025,9 @@ public class Block {
         try {
             // Verifica critérios do WHOIS.
             String whois;
-            if ((whois = WHOIS.get(userEmail, whoisSet, autoBlock)) != null) {
+            if (whoisSet.isEmpty()) {
+                // Nenhum critério do WHOIS.
+            } else if ((whois = WHOIS.get(userEmail, whoisSet, autoBlock)) != null) {
                 return whois;
             }
         } catch (Exception ex) {
@@ -1956,9 +2085,16 @@ public class Block {
             String ip, String sender, String helo,
             String qualifier, String recipient, boolean autoblock
             ) throws ProcessException {
-        return find(client, user, ip, sender, helo,
-                qualifier, recipient, autoblock) != null;
+        long start = Metrics.time();
+        try {
+            return find(client, user, ip, sender, helo,
+                    qualifier, recipient, autoblock) != null;
+        } finally {
+            STAGE_BLOCK.record(start);
+        }
     }
+    
+    private static final Metrics.Histogram STAGE_BLOCK = Metrics.getStage("block");
 
     public static String find(
             Client client,
@@ -2056,7 +2192,13 @@ public class Block {
             } else if ((dnsbl = DNSBL.get(userEmail, ip)) != null) {
                 return dnsbl;
             }
-            Reverse reverse = Reverse.get(ip);
+            Reverse reverse;
+            if (!Reverse.isCached(ip) && Deadline.skip("reverse")) {
+                // Sem prazo para consultar o reverso fora do cache.
+                reverse = null;
+            } else {
+                reverse = Reverse.get(ip);
+            }
             if (reverse != null) {
                 for (String host : reverse.getAddressSet()) {
                     String block = find(client, user, host, autoblock);
@@ -2079,7 +2221,9 @@ public class Block {
         try {
             // Verifica critérios do WHOIS.
             String whois;
-            if ((whois = WHOIS.get(userEmail, whoisSet, autoblock)) != null) {
+            if (whoisSet.isEmpty()) {
+                // Nenhum critério do WHOIS.
+            } else if ((whois = WHOIS.get(userEmail, whoisSet, autoblock)) != null) {
                 return whois;
             }
         } catch (Exception ex) {
@@ -2509,15 +2653,15 @@ public class Block {
                         identifier = token;
                     }
                     if (identifier.startsWith("CIDR=")) {
-                        CIDR.addExact(client, identifier);
+                        CIDR.load(client, identifier);
                     } else if (token.startsWith("WHOIS/")) {
-                        WHOIS.addExact(client, token);
+                        WHOIS.load(client, token);
                     } else if (token.startsWith("DNSBL=")) {
-                        DNSBL.addExact(client, token);
+                        DNSBL.load(client, token);
                     } else if (token.startsWith("REGEX=")) {
-                        REGEX.addExact(client, token);
+                        REGEX.load(client, token);
                     } else {
-                        SET.addExact(token);
+                        SET.load(token);
                     }
                 }
                 CHANGED = false;
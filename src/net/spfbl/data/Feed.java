@@ -0,0 +1,142 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import net.spfbl.core.Core;
+
+/**
+ * Registro incremental das alterações das listas.
+ *
+ * Cada alteração de BLOCK, WHITE, TRAP, IGNORE, PROVIDER e GENERIC
+ * recebe um número de sequência crescente e é guardada num anel de
+ * tamanho fixo na forma do comando administrativo que a reproduz,
+ * como "BLOCK ADD token" ou "WHITE DROP token".
+ *
+ * A sequência começa no instante de inicialização multiplicado por
+ * mil, de modo que continua crescente depois de reiniciar o serviço
+ * e qualquer sequência anterior à inicialização é tratada como antiga
+ * demais, exigindo a ressincronização completa pelo DUMP.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Feed {
+
+    /**
+     * Quantidade de alterações retidas.
+     */
+    private static final int SIZE = 262144;
+
+    /**
+     * Quantidade de alterações copiadas por vez para escrita.
+     */
+    private static final int CHUNK = 4096;
+
+    private static final String[] RING = new String[SIZE];
+
+    /**
+     * Sequência anterior à primeira alteração desta execução.
+     */
+    private static final long ORIGIN = System.currentTimeMillis() * 1000;
+
+    /**
+     * Sequência da última alteração registrada.
+     */
+    private static long SEQUENCE = ORIGIN;
+
+    private Feed() {
+    }
+
+    /**
+     * Registra uma alteração.
+     *
+     * Deve ser chamado dentro da mesma trava que altera a estrutura,
+     * para que a ordem das sequências seja a ordem das alterações.
+     * @param command o comando da alteração, como "BLOCK ADD".
+     * @param token o elemento alterado.
+     * @return a sequência atribuída.
+     */
+    public static synchronized long add(String command, String token) {
+        long sequence = ++SEQUENCE;
+        RING[(int) (sequence % SIZE)] = command + ' ' + token;
+        return sequence;
+    }
+
+    public static synchronized long getSequence() {
+        return SEQUENCE;
+    }
+
+    private static synchronized long getFirst() {
+        return Math.max(ORIGIN, SEQUENCE - SIZE);
+    }
+
+    /**
+     * Copia um trecho do anel, ainda dentro da retenção.
+     * @return as alterações a partir da sequência ou nulo se já descartadas.
+     */
+    private static synchronized String[] getChunk(long since) {
+        if (since < getFirst()) {
+            return null;
+        } else {
+            int length = (int) Math.min(CHUNK, SEQUENCE - since);
+            String[] chunk = new String[length];
+            for (int index = 0; index < length; index++) {
+                chunk[index] = RING[(int) ((since + index + 1) % SIZE)];
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Escreve as alterações posteriores à sequência informada,
+     * uma por linha no formato "sequência comando token", seguidas
+     * da linha "SEQUENCE última" para a próxima consulta.
+     *
+     * Se a sequência for antiga demais ou desconhecida, escreve
+     * apenas "RESYNC atual": o consumidor deve guardar esta sequência,
+     * importar o DUMP completo e continuar a partir dela.
+     * @param since a última sequência conhecida pelo consumidor.
+     * @param outputStream o fluxo de saída.
+     * @return a quantidade de alterações escritas ou -1 se exigir ressincronização.
+     * @throws IOException se houver falha na escrita.
+     */
+    public static int write(long since, OutputStream outputStream) throws IOException {
+        long current = getSequence();
+        if (since < getFirst() || since > current) {
+            Core.writeLine(outputStream, "RESYNC ", current);
+            return -1;
+        } else {
+            int count = 0;
+            while (since < current) {
+                String[] chunk = getChunk(since);
+                if (chunk == null) {
+                    // Alterações descartadas durante a escrita.
+                    Core.writeLine(outputStream, "RESYNC ", getSequence());
+                    return -1;
+                } else {
+                    for (String change : chunk) {
+                        Core.writeLine(outputStream, ++since + " ", change);
+                        count++;
+                    }
+                }
+            }
+            Core.writeLine(outputStream, "SEQUENCE ", since);
+            return count;
+        }
+    }
+}
@@ -221,21 +221,31 @@ public class Generic {
         if (token == null) {
             return false;
         } else if (token.contains("REGEX=")) {
-            if (REGEX.dropExact(token)) {
-                return CHANGED = true;
-            } else {
-                return false;
+            // Registra na mesma trava da alteração para manter a ordem.
+            synchronized (REGEX.class) {
+                if (REGEX.dropExact(token)) {
+                    Feed.add("GENERIC DROP", token);
+                    return CHANGED = true;
+                } else {
+                    return false;
+                }
             }
-        } else if (SET.dropExact(token)) {
-            return CHANGED = true;
         } else {
-            return false;
+            synchronized (SET.class) {
+                if (SET.dropExact(token)) {
+                    Feed.add("GENERIC DROP", token);
+                    return CHANGED = true;
+                } else {
+                    return false;
+                }
+            }
         }
     }
 
     public static boolean dropAll() {
         SET.clear();
         REGEX.clear();
+        Feed.add("GENERIC DROP", "ALL");
         return CHANGED = true;
     }
 
@@ -243,15 +253,23 @@ public class Generic {
         if (token == null) {
             return false;
         } else if (token.contains("REGEX=")) {
-            if (REGEX.addExact(token)) {
-                return CHANGED = true;
-            } else {
-                return false;
+            synchronized (REGEX.class) {
+                if (REGEX.addExact(token)) {
+                    Feed.add("GENERIC ADD", token);
+                    return CHANGED = true;
+                } else {
+                    return false;
+                }
             }
-        } else if (SET.addExact(token)) {
-            return CHANGED = true;
         } else {
-            return false;
+            synchronized (SET.class) {
+                if (SET.addExact(token)) {
+                    Feed.add("GENERIC ADD", token);
+                    return CHANGED = true;
+                } else {
+                    return false;
+                }
+            }
         }
     }
     
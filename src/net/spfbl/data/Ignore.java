@@ -19,10 +19,14 @@ package net.spfbl.data;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.TreeSet;
+import net.spfbl.core.Core;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Server;
 import net.spfbl.spf.SPF;
@@ -65,12 +69,45 @@ public class Ignore {
             return set;
         }
         
-        private static synchronized boolean addExact(String token) {
+        private static synchronized Object[] getArray() {
+            return SET.toArray();
+        }
+        
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+            return Core.writeLines(outputStream, prefix, getArray());
+        }
+        
+        private static synchronized boolean load(String token) {
             return SET.add(token);
         }
         
+        private static synchronized boolean addExact(String token) {
+            if (load(token)) {
+                Feed.add("IGNORE ADD", token);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        
+        private static synchronized ArrayList<String> addAll(Collection<String> tokenList) {
+            ArrayList<String> addedList = new ArrayList<String>();
+            for (String token : tokenList) {
+                if (SET.add(token)) {
+                    Feed.add("IGNORE ADD", token);
+                    addedList.add(token);
+                }
+            }
+            return addedList;
+        }
+        
         private static synchronized boolean dropExact(String token) {
-            return SET.remove(token);
+            if (SET.remove(token)) {
+                Feed.add("IGNORE DROP", token);
+                return true;
+            } else {
+                return false;
+            }
         }
         
         public static synchronized boolean contains(String token) {
@@ -112,6 +149,15 @@ public class Ignore {
             return set;
         }
         
+        public static synchronized TreeSet<String> getExtended() {
+            TreeSet<String> returnSet = new TreeSet<String>();
+            TreeSet<String> cidrSet = MAP.get(null);
+            if (cidrSet != null) {
+                returnSet.addAll(cidrSet);
+            }
+            return returnSet;
+        }
+        
         private static synchronized boolean dropExact(String token) {
             int index = token.indexOf('=');
             String cidr = token.substring(index+1);
@@ -131,11 +177,14 @@ public class Ignore {
                 if (set.isEmpty()) {
                     MAP.remove(client);
                 }
+                if (removed) {
+                    Feed.add("IGNORE DROP", token);
+                }
                 return removed;
             }
         }
         
-        private static synchronized boolean addExact(String token) throws ProcessException {
+        private static synchronized boolean load(String token) throws ProcessException {
             int index = token.indexOf('=');
             String cidr = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -192,6 +241,36 @@ public class Ignore {
             }
         }
         
+        private static synchronized boolean addExact(String token) throws ProcessException {
+            if (load(token)) {
+                Feed.add("IGNORE ADD", token);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        
+        private static synchronized Object[] getKeyArray() {
+            return MAP.keySet().toArray();
+        }
+        
+        private static synchronized Object[] getClientArray(String client) {
+            TreeSet<String> clientSet = MAP.get(client);
+            if (clientSet == null) {
+                return null;
+            } else {
+                return clientSet.toArray();
+            }
+        }
+        
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+            int count = 0;
+            for (Object key : getKeyArray()) {
+                count += Core.writeLines(outputStream, prefix, (String) key, "CIDR=", getClientArray((String) key));
+            }
+            return count;
+        }
+        
         private static synchronized TreeSet<String> getClientSet(String client) {
             return MAP.get(client);
         }
@@ -253,6 +332,34 @@ public class Ignore {
         }
     }
 
+    /**
+     * Adiciona um lote de tokens já normalizados.
+     * @param tokenList os tokens normalizados.
+     * @return os tokens efetivamente adicionados.
+     */
+    static ArrayList<String> addAll(Collection<String> tokenList) {
+        ArrayList<String> setList = new ArrayList<String>();
+        ArrayList<String> addedList = new ArrayList<String>();
+        for (String token : tokenList) {
+            if (token.contains("CIDR=")) {
+                try {
+                    if (CIDR.addExact(token)) {
+                        addedList.add(token);
+                    }
+                } catch (ProcessException ex) {
+                    Server.logError(ex);
+                }
+            } else {
+                setList.add(token);
+            }
+        }
+        addedList.addAll(SET.addAll(setList));
+        if (!addedList.isEmpty()) {
+            CHANGED = true;
+        }
+        return addedList;
+    }
+
     private static boolean addExact(String token) throws ProcessException {
         if (token == null) {
             return false;
@@ -270,6 +377,34 @@ public class Ignore {
             return false;
         }
     }
+    
+    /**
+     * Insere um token carregado do disco sem registrar no feed,
+     * pois não se trata de uma alteração.
+     */
+    private static boolean loadExact(String token) throws ProcessException {
+        if (token == null) {
+            return false;
+        } else if (token.contains("CIDR=")) {
+            return CIDR.load(token);
+        } else {
+            return SET.load(token);
+        }
+    }
+
+    /**
+     * Escreve todos os ignorados diretamente no fluxo de saída,
+     * sem montar a cópia ordenada dos conjuntos.
+     * @param outputStream o fluxo de saída.
+     * @param prefix o prefixo de cada linha ou nulo se não houver.
+     * @return a quantidade de linhas escritas.
+     * @throws Exception se houver falha na escrita.
+     */
+    public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+        int count = SET.getAll(outputStream, prefix);
+        count += CIDR.getAll(outputStream, prefix);
+        return count;
+    }
 
     public static TreeSet<String> getAll() throws ProcessException {
         TreeSet<String> ignoreSet = SET.getAll();
@@ -299,7 +434,7 @@ public class Ignore {
         }
     }
     
-    private static String normalizeTokenCIDR(String token) throws ProcessException {
+    static String normalizeTokenCIDR(String token) throws ProcessException {
         return SPF.normalizeToken(token, false, false, true, false,
 //                false,
                 false);
@@ -335,6 +470,10 @@ public class Ignore {
         }
     }
     
+    public static TreeSet<String> getExtendedCIDR() {
+        return CIDR.getExtended();
+    }
+    
     public static boolean containsCIDR(String ip) {
         return CIDR.get(null, ip) != null;
     }
@@ -458,9 +597,9 @@ public class Ignore {
                     }
                     try {
                         if (client == null) {
-                            addExact(identifier);
+                            loadExact(identifier);
                         } else {
-                            addExact(client + ':' + identifier);
+                            loadExact(client + ':' + identifier);
                         }
                     } catch (ProcessException ex) {
                         Server.logDebug("IGNORE CIDR " + identifier + " " + ex.getErrorMessage());
@@ -0,0 +1,251 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.spfbl.core.Peer;
+import net.spfbl.core.ProcessException;
+import net.spfbl.core.Server;
+import net.spfbl.whois.Domain;
+
+/**
+ * Importação em lote de listas grandes.
+ *
+ * As linhas são lidas em lotes, cada lote é normalizado em paralelo
+ * e depois inserido no conjunto de destino numa única aquisição da
+ * trava de cada estrutura. Os bloqueios adicionados são propagados
+ * aos peers uma vez por lote. A simplificação dos blocos IP e a
+ * gravação em disco são feitas uma única vez no final.
+ *
+ * Cada linha contém um token, opcionalmente precedido do e-mail
+ * do cliente separado por dois pontos.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Import {
+
+    public enum Type {
+        BLOCK,
+        WHITE,
+        TRAP,
+        IGNORE
+    }
+
+    /**
+     * Quantidade de linhas de cada lote.
+     */
+    private static final int BATCH = 65536;
+
+    private Import() {
+    }
+
+    private static String normalizeToken(Type type, String token) throws ProcessException {
+        switch (type) {
+            case BLOCK:
+                return Block.normalizeTokenBlock(token);
+            case WHITE:
+                return White.normalizeTokenWhite(token);
+            case TRAP:
+                return Trap.isValid(token) ? token.toLowerCase() : null;
+            case IGNORE:
+                return Ignore.normalizeTokenCIDR(token);
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isClientToken(String token) {
+        int index = token.indexOf(':');
+        return index > 0 && Domain.isEmail(token.substring(0, index));
+    }
+
+    /**
+     * Normaliza uma linha da importação.
+     * @param type o tipo da importação.
+     * @param line a linha lida.
+     * @return o token normalizado ou nulo se for inválido.
+     */
+    private static String normalize(Type type, String line) {
+        try {
+            String token = line.trim();
+            int index = token.indexOf(':');
+            if (token.length() == 0) {
+                return null;
+            } else if (index > 0 && Domain.isEmail(token.substring(0, index))) {
+                if (type == Type.IGNORE) {
+                    return null;
+                } else {
+                    String client = token.substring(0, index).toLowerCase();
+                    token = normalizeToken(type, token.substring(index + 1));
+                    return token == null ? null : client + ':' + token;
+                }
+            } else {
+                return normalizeToken(type, token);
+            }
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newExecutor(int size) {
+        return Executors.newFixedThreadPool(size, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "IMPORTER" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Normaliza o lote em paralelo, dividido em partes contíguas.
+     * @return os tokens válidos, na ordem original.
+     */
+    private static ArrayList<String> normalize(
+            ExecutorService executor,
+            int size,
+            final Type type,
+            final ArrayList<String> lineList
+    ) throws Exception {
+        final String[] tokenArray = new String[lineList.size()];
+        int chunk = (lineList.size() + size - 1) / size;
+        ArrayList<Future<?>> futureList = new ArrayList<Future<?>>(size);
+        for (int begin = 0; begin < lineList.size(); begin += chunk) {
+            final int first = begin;
+            final int last = Math.min(begin + chunk, lineList.size());
+            futureList.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int index = first; index < last; index++) {
+                        tokenArray[index] = normalize(type, lineList.get(index));
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futureList) {
+            future.get();
+        }
+        ArrayList<String> tokenList = new ArrayList<String>(tokenArray.length);
+        for (String token : tokenArray) {
+            if (token != null) {
+                tokenList.add(token);
+            }
+        }
+        return tokenList;
+    }
+
+    private static ArrayList<String> addAll(Type type, ArrayList<String> tokenList) {
+        switch (type) {
+            case BLOCK:
+                ArrayList<String> addedList = Block.addAll(tokenList);
+                ArrayList<String> sendList = new ArrayList<String>(addedList.size());
+                for (String token : addedList) {
+                    if (!isClientToken(token)) {
+                        sendList.add(token);
+                    }
+                }
+                Peer.sendBlockToAll(sendList);
+                return addedList;
+            case WHITE:
+                return White.addAll(tokenList);
+            case TRAP:
+                return Trap.addAll(tokenList);
+            case IGNORE:
+                return Ignore.addAll(tokenList);
+            default:
+                return new ArrayList<String>(0);
+        }
+    }
+
+    private static void store(Type type) {
+        switch (type) {
+            case BLOCK:
+                Block.store(true);
+                break;
+            case WHITE:
+                White.store();
+                break;
+            case TRAP:
+                Trap.store();
+                break;
+            case IGNORE:
+                Ignore.store();
+                break;
+        }
+    }
+
+    /**
+     * Importa os tokens lidos linha a linha até o fim do fluxo.
+     * @param type o tipo da importação.
+     * @param reader o leitor das linhas.
+     * @return o resumo da importação.
+     * @throws ProcessException se houver falha na leitura ou na normalização.
+     */
+    public static String process(Type type, BufferedReader reader) throws ProcessException {
+        long time = System.currentTimeMillis();
+        int size = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = newExecutor(size);
+        int added = 0;
+        int existing = 0;
+        int invalid = 0;
+        try {
+            ArrayList<String> lineList = new ArrayList<String>(BATCH);
+            String line;
+            do {
+                line = reader.readLine();
+                if (line != null && line.length() > 0) {
+                    lineList.add(line);
+                }
+                if (lineList.size() == BATCH || (line == null && !lineList.isEmpty())) {
+                    ArrayList<String> tokenList = normalize(executor, size, type, lineList);
+                    int count = addAll(type, tokenList).size();
+                    invalid += lineList.size() - tokenList.size();
+                    existing += tokenList.size() - count;
+                    added += count;
+                    lineList.clear();
+                }
+            } while (line != null);
+        } catch (IOException ex) {
+            throw new ProcessException("ERROR: IMPORT READ", ex);
+        } catch (Exception ex) {
+            throw new ProcessException("ERROR: IMPORT", ex);
+        } finally {
+            executor.shutdown();
+            if (added > 0) {
+                store(type);
+            }
+            Server.logInfo(
+                    type.name() + " import finished in "
+                    + (System.currentTimeMillis() - time) + "ms: "
+                    + added + " added, " + existing + " existing, "
+                    + invalid + " invalid."
+            );
+        }
+        return "ADDED " + added + "\n"
+                + "ALREADY EXISTS " + existing + "\n"
+                + "INVALID " + invalid + "\n";
+    }
+}
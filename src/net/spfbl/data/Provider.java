@@ -19,6 +19,7 @@ package net.spfbl.data;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.TreeSet;
@@ -65,12 +66,34 @@ public class Provider {
             return set;
         }
         
-        private static synchronized boolean addExact(String token) {
+        private static synchronized Object[] getArray() {
+            return SET.toArray();
+        }
+        
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+            return Core.writeLines(outputStream, prefix, getArray());
+        }
+        
+        private static synchronized boolean load(String token) {
             return SET.add(token);
         }
         
+        private static synchronized boolean addExact(String token) {
+            if (load(token)) {
+                Feed.add("PROVIDER ADD", token);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        
         private static synchronized boolean dropExact(String token) {
-            return SET.remove(token);
+            if (SET.remove(token)) {
+                Feed.add("PROVIDER DROP", token);
+                return true;
+            } else {
+                return false;
+            }
         }
         
         public static synchronized boolean contains(String token) {
@@ -131,11 +154,14 @@ public class Provider {
                 if (set.isEmpty()) {
                     MAP.remove(client);
                 }
+                if (removed) {
+                    Feed.add("PROVIDER DROP", token);
+                }
                 return removed;
             }
         }
         
-        private static synchronized boolean addExact(String token) throws ProcessException {
+        private static synchronized boolean load(String token) throws ProcessException {
             int index = token.indexOf('=');
             String cidr = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -192,6 +218,36 @@ public class Provider {
             }
         }
         
+        private static synchronized boolean addExact(String token) throws ProcessException {
+            if (load(token)) {
+                Feed.add("PROVIDER ADD", token);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        
+        private static synchronized Object[] getKeyArray() {
+            return MAP.keySet().toArray();
+        }
+        
+        private static synchronized Object[] getClientArray(String client) {
+            TreeSet<String> clientSet = MAP.get(client);
+            if (clientSet == null) {
+                return null;
+            } else {
+                return clientSet.toArray();
+            }
+        }
+        
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+            int count = 0;
+            for (Object key : getKeyArray()) {
+                count += Core.writeLines(outputStream, prefix, (String) key, "CIDR=", getClientArray((String) key));
+            }
+            return count;
+        }
+        
         private static synchronized TreeSet<String> getClientSet(String client) {
             return MAP.get(client);
         }
@@ -288,6 +344,34 @@ public class Provider {
             return false;
         }
     }
+    
+    /**
+     * Insere um token carregado do disco sem registrar no feed,
+     * pois não se trata de uma alteração.
+     */
+    private static boolean loadExact(String token) throws ProcessException {
+        if (token == null) {
+            return false;
+        } else if (token.contains("CIDR=")) {
+            return CIDR.load(token);
+        } else {
+            return SET.load(token);
+        }
+    }
+
+    /**
+     * Escreve todos os provedores diretamente no fluxo de saída,
+     * sem montar a cópia ordenada dos conjuntos.
+     * @param outputStream o fluxo de saída.
+     * @param prefix o prefixo de cada linha ou nulo se não houver.
+     * @return a quantidade de linhas escritas.
+     * @throws Exception se houver falha na escrita.
+     */
+    public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+        int count = SET.getAll(outputStream, prefix);
+        count += CIDR.getAll(outputStream, prefix);
+        return count;
+    }
 
     public static TreeSet<String> getAll() throws ProcessException {
         TreeSet<String> ignoreSet = SET.getAll();
@@ -425,7 +509,7 @@ public class Provider {
                 }
                 for (String token : set) {
                     try {
-                        addExact(token);
+                        loadExact(token);
                     } catch (ProcessException ex) {
                         Server.logDebug("PROVIDER CIDR " + token + " " + ex.getErrorMessage());
                     }
@@ -20,11 +20,16 @@ package net.spfbl.data;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import net.spfbl.core.Client;
+import net.spfbl.core.Core;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Server;
 import net.spfbl.core.User;
@@ -54,6 +59,7 @@ public class Trap {
         } else if (MAP.remove(token) == null) {
             return false;
         } else {
+            Feed.add("TRAP DROP", token);
             CHANGED = true;
             return true;
         }
@@ -128,6 +134,9 @@ public class Trap {
             return false;
         } else {
             Long timeOld = MAP.put(token, timeNew);
+            if (!timeNew.equals(timeOld)) {
+                Feed.add("TRAP ADD", token + " " + timeNew);
+            }
             if (timeOld == null) {
                 return CHANGED = true;
             } else {
@@ -137,12 +146,23 @@ public class Trap {
         }
     }
 
+    /**
+     * Insere uma armadilha carregada do disco sem registrar no feed,
+     * pois não se trata de uma alteração.
+     */
+    private synchronized static void load(String token, Long time) {
+        if (token != null && time != null) {
+            MAP.put(token, time);
+        }
+    }
+
     private synchronized static boolean addTrapExact(String token) {
         if (token == null) {
             return false;
         } else {
             Long time = MAP.put(token, 0L);
             if (time == null || !time.equals(0L)) {
+                Feed.add("TRAP ADD", token + " 0");
                 return CHANGED = true;
             } else {
                 return false;
@@ -150,6 +170,27 @@ public class Trap {
         }
     }
 
+    /**
+     * Adiciona um lote de armadilhas já normalizadas
+     * numa única aquisição da trava.
+     * @param tokenList as armadilhas normalizadas.
+     * @return as armadilhas efetivamente adicionadas.
+     */
+    synchronized static ArrayList<String> addAll(Collection<String> tokenList) {
+        ArrayList<String> addedList = new ArrayList<String>();
+        for (String token : tokenList) {
+            Long time = MAP.put(token, 0L);
+            if (time == null || !time.equals(0L)) {
+                Feed.add("TRAP ADD", token + " 0");
+                addedList.add(token);
+            }
+        }
+        if (!addedList.isEmpty()) {
+            CHANGED = true;
+        }
+        return addedList;
+    }
+
     public synchronized static TreeSet<String> getTrapAllSet() {
         TreeSet<String> blockSet = new TreeSet<String>();
         for (String key : MAP.keySet()) {
@@ -160,6 +201,31 @@ public class Trap {
         return blockSet;
     }
     
+    private synchronized static Object[] getKeyArray() {
+        return MAP.keySet().toArray();
+    }
+    
+    /**
+     * Escreve todas as armadilhas diretamente no fluxo de saída,
+     * no formato "armadilha tempo", sem montar a cópia ordenada.
+     * @param outputStream o fluxo de saída.
+     * @param prefix o prefixo de cada linha ou nulo se não houver.
+     * @return a quantidade de linhas escritas.
+     * @throws IOException se houver falha na escrita.
+     */
+    public static int getTrapAll(OutputStream outputStream, String prefix) throws IOException {
+        int count = 0;
+        long now = System.currentTimeMillis();
+        for (Object key : getKeyArray()) {
+            Long time = getTime((String) key);
+            if (time != null && now > time) {
+                Core.writeLine(outputStream, prefix, key + " " + time);
+                count++;
+            }
+        }
+        return count;
+    }
+    
     public synchronized static TreeSet<String> getInexistentAllSet() {
         TreeSet<String> blockSet = new TreeSet<String>();
         for (String key : MAP.keySet()) {
@@ -654,7 +720,7 @@ public class Trap {
                 }
                 for (String token : map.keySet()) {
                     Long time2 = map.get(token);
-                    putExact(token, time2);
+                    load(token, time2);
                 }
                 CHANGED = false;
                 Server.logLoad(time, file);
@@ -671,7 +737,7 @@ public class Trap {
                     fileInputStream.close();
                 }
                 for (String token : set) {
-                    addTrapExact(token);
+                    load(token, 0L);
                 }
                 CHANGED = false;
                 Server.logLoad(time, file);
@@ -20,8 +20,10 @@ package net.spfbl.data;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -31,6 +33,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import net.spfbl.core.Client;
 import net.spfbl.core.Core;
+import net.spfbl.core.Metrics;
 import net.spfbl.core.Peer;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Server;
@@ -79,12 +82,45 @@ public class White {
             return set;
         }
         
-        private static synchronized boolean addExact(String token) {
+        private static synchronized Object[] getArray() {
+            return SET.toArray();
+        }
+        
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+            return Core.writeLines(outputStream, prefix, getArray());
+        }
+        
+        private static synchronized boolean load(String token) {
             return SET.add(token);
         }
         
+        private static synchronized boolean addExact(String token) {
+            if (load(token)) {
+                Feed.add("WHITE ADD", token);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        
+        private static synchronized ArrayList<String> addAll(Collection<String> tokenList) {
+            ArrayList<String> addedList = new ArrayList<String>();
+            for (String token : tokenList) {
+                if (SET.add(token)) {
+                    Feed.add("WHITE ADD", token);
+                    addedList.add(token);
+                }
+            }
+            return addedList;
+        }
+        
         private static synchronized boolean dropExact(String token) {
-            return SET.remove(token);
+            if (SET.remove(token)) {
+                Feed.add("WHITE DROP", token);
+                return true;
+            } else {
+                return false;
+            }
         }
         
         public static synchronized boolean contains(String token) {
@@ -141,11 +177,14 @@ public class White {
                 if (set.isEmpty()) {
                     MAP.remove(client);
                 }
+                if (removed) {
+                    Feed.add("WHITE DROP", token);
+                }
                 return removed;
             }
         }
         
-        private static synchronized boolean addExact(String token) {
+        private static synchronized boolean load(String token) {
             int index = token.indexOf('/');
             String whois = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -163,6 +202,36 @@ public class White {
             return set.add(whois);
         }
         
+        private static synchronized boolean addExact(String token) {
+            if (load(token)) {
+                Feed.add("WHITE ADD", token);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        
+        private static synchronized Object[] getKeyArray() {
+            return MAP.keySet().toArray();
+        }
+        
+        private static synchronized Object[] getClientArray(String client) {
+            TreeSet<String> clientSet = MAP.get(client);
+            if (clientSet == null) {
+                return null;
+            } else {
+                return clientSet.toArray();
+            }
+        }
+        
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+            int count = 0;
+            for (Object key : getKeyArray()) {
+                count += Core.writeLines(outputStream, prefix, (String) key, "WHOIS/", getClientArray((String) key));
+            }
+            return count;
+        }
+        
         private static synchronized TreeSet<String> getClientSet(String client) {
             return MAP.get(client);
         }
@@ -316,6 +385,7 @@ public class White {
                         if (list.isEmpty()) {
                             MAP.remove(client);
                         }
+                        Feed.add("WHITE DROP", token);
                         return true;
                     }
                 }
@@ -323,7 +393,7 @@ public class White {
             }
         }
         
-        private static synchronized boolean addExact(String token) {
+        private static synchronized boolean load(String token) {
             int index = token.indexOf('=');
             String regex = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -349,6 +419,36 @@ public class White {
             return true;
         }
         
+        private static synchronized boolean addExact(String token) {
+            if (load(token)) {
+                Feed.add("WHITE ADD", token);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        
+        private static synchronized Object[] getKeyArray() {
+            return MAP.keySet().toArray();
+        }
+        
+        private static synchronized Object[] getClientArray(String client) {
+            ArrayList<Pattern> clientSet = MAP.get(client);
+            if (clientSet == null) {
+                return null;
+            } else {
+                return clientSet.toArray();
+            }
+        }
+        
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+            int count = 0;
+            for (Object key : getKeyArray()) {
+                count += Core.writeLines(outputStream, prefix, (String) key, "REGEX=", getClientArray((String) key));
+            }
+            return count;
+        }
+        
         private static synchronized ArrayList<Pattern> getClientList(String client) {
             return MAP.get(client);
         }
@@ -479,11 +579,14 @@ public class White {
                 if (set.isEmpty()) {
                     MAP.remove(client);
                 }
+                if (removed) {
+                    Feed.add("WHITE DROP", token);
+                }
                 return removed;
             }
         }
         
-        private static synchronized boolean addExact(String token) throws ProcessException {
+        private static synchronized boolean load(String token) throws ProcessException {
             int index = token.indexOf('=');
             String cidr = token.substring(index+1);
             index = token.lastIndexOf(':', index);
@@ -540,6 +643,36 @@ public class White {
             }
         }
         
+        private static synchronized boolean addExact(String token) throws ProcessException {
+            if (load(token)) {
+                Feed.add("WHITE ADD", token);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        
+        private static synchronized Object[] getKeyArray() {
+            return MAP.keySet().toArray();
+        }
+        
+        private static synchronized Object[] getClientArray(String client) {
+            TreeSet<String> clientSet = MAP.get(client);
+            if (clientSet == null) {
+                return null;
+            } else {
+                return clientSet.toArray();
+            }
+        }
+        
+        public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+            int count = 0;
+            for (Object key : getKeyArray()) {
+                count += Core.writeLines(outputStream, prefix, (String) key, "CIDR=", getClientArray((String) key));
+            }
+            return count;
+        }
+        
         private static synchronized TreeSet<String> getClientSet(String client) {
             return MAP.get(client);
         }
@@ -646,10 +779,44 @@ public class White {
         set.addAll(CIDR.clear());
         set.addAll(REGEX.clear());
         set.addAll(WHOIS.clear());
+        Feed.add("WHITE DROP", "ALL");
         CHANGED = true;
         return set;
     }
 
+    /**
+     * Adiciona um lote de tokens já normalizados.
+     * Os remetentes são inseridos numa única aquisição da trava.
+     * @param tokenList os tokens normalizados.
+     * @return os tokens efetivamente adicionados.
+     */
+    static ArrayList<String> addAll(Collection<String> tokenList) {
+        ArrayList<String> setList = new ArrayList<String>();
+        ArrayList<String> addedList = new ArrayList<String>();
+        for (String token : tokenList) {
+            if (token.contains("WHOIS/") || token.contains("CIDR=") || token.contains("REGEX=")) {
+                try {
+                    if (addExact(token)) {
+                        addedList.add(token);
+                    }
+                } catch (ProcessException ex) {
+                    Server.logError(ex);
+                }
+            } else {
+                setList.add(token);
+            }
+        }
+        ArrayList<String> setAddedList = SET.addAll(setList);
+        for (String token : setAddedList) {
+            Peer.releaseAll(token);
+        }
+        addedList.addAll(setAddedList);
+        if (!addedList.isEmpty()) {
+            CHANGED = true;
+        }
+        return addedList;
+    }
+
     public static boolean addExact(String token) throws ProcessException {
         if (token == null) {
             return false;
@@ -685,6 +852,41 @@ public class White {
             return false;
         }
     }
+    
+    /**
+     * Insere um token carregado do disco sem registrar no feed,
+     * pois não se trata de uma alteração.
+     */
+    private static boolean loadExact(String token) throws ProcessException {
+        if (token == null) {
+            return false;
+        } else if (token.contains("WHOIS/")) {
+            return WHOIS.load(token);
+        } else if (token.contains("CIDR=")) {
+            return CIDR.load(token);
+        } else if (token.contains("REGEX=")) {
+            return REGEX.load(token);
+        } else {
+            return SET.load(token);
+        }
+    }
+
+    /**
+     * Escreve todas as liberações diretamente no fluxo de saída,
+     * sem montar a cópia ordenada dos conjuntos.
+     * @param outputStream o fluxo de saída.
+     * @param prefix o prefixo de cada linha ou nulo se não houver.
+     * @return a quantidade de linhas escritas.
+     * @throws Exception se houver falha na escrita.
+     */
+    public static int getAll(OutputStream outputStream, String prefix) throws Exception {
+        int count = SET.getAll(outputStream, prefix);
+        count += CIDR.getAll(outputStream, prefix);
+        count += REGEX.getAll(outputStream, prefix);
+        count += WHOIS.getAll(outputStream, prefix);
+        outputStream.flush();
+        return count;
+    }
 
     public static synchronized TreeSet<String> getAll() throws ProcessException {
         TreeSet<String> whiteSet = SET.getAll();
@@ -1055,9 +1257,16 @@ public class White {
     public static boolean contains(Client client, User user,
             String ip, String sender, String hostname,
             String qualifier, String recipient) {
-        return find(client, user, ip, sender, hostname, qualifier, recipient) != null;
+        long start = Metrics.time();
+        try {
+            return find(client, user, ip, sender, hostname, qualifier, recipient) != null;
+        } finally {
+            STAGE_WHITE.record(start);
+        }
     }
     
+    private static final Metrics.Histogram STAGE_WHITE = Metrics.getStage("white");
+    
     public static String find(
             Client client, User user,
             String ip, String sender, String hostname,
@@ -1408,9 +1617,9 @@ public class White {
                     if (identifier != null) {
                         try {
                             if (client == null) {
-                                addExact(identifier);
+                                loadExact(identifier);
                             } else if (Domain.isEmail(client)) {
-                                addExact(client + ':' + identifier);
+                                loadExact(client + ':' + identifier);
                             }
                         } catch (ProcessException ex) {
                             Server.logDebug("WHITE CIDR " + identifier + " " + ex.getErrorMessage());
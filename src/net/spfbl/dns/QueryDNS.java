@@ -37,6 +37,7 @@ import net.spfbl.data.Block;
 import net.spfbl.core.Client;
 import net.spfbl.core.Client.Permission;
 import net.spfbl.core.Core;
+import net.spfbl.core.Metrics;
 import net.spfbl.data.Ignore;
 import net.spfbl.dnsbl.ServerDNSBL;
 import net.spfbl.whois.Domain;
@@ -64,6 +65,8 @@ import org.xbill.DNS.WireParseException;
  */
 public final class QueryDNS extends Server {
 
+    private static final Metrics.Histogram QUERY = Metrics.getQuery("dnsbl");
+
     private final int PORT;
     private final DatagramSocket SERVER_SOCKET;
 
@@ -766,6 +769,7 @@ public final class QueryDNS extends Server {
                                     query,
                                     result
                             );
+                            QUERY.recordElapsed(time);
                             clearPacket();
                             // Oferece a conexão ociosa na última posição da lista.
                             offer(this);
@@ -817,6 +821,49 @@ public final class QueryDNS extends Server {
             CONNECTION_LIMIT = (byte) limit;
         }
     }
+    
+    /**
+     * Descarte dos pacotes de clientes abusivos ainda no laço de recepção,
+     * antes da interpretação do pacote e da passagem para a conexão.
+     */
+    private static boolean DROP_ABUSING = false;
+    
+    private static final Metrics.Counter DROPPED = Metrics.getCounter(
+            "spfbl_dns_dropped_total", null
+    );
+    
+    static {
+        Metrics.setHelp("spfbl_dns_dropped_total", "DNS packets dropped from abusing clients before dispatch.");
+    }
+    
+    public static void setDropAbusing(String drop) {
+        if (drop != null && drop.length() > 0) {
+            try {
+                DROP_ABUSING = Boolean.parseBoolean(drop);
+            } catch (Exception ex) {
+                Server.logError("invalid DNS drop abusing boolean set '" + drop + "'.");
+            }
+        }
+    }
+    
+    /**
+     * Verifica se o pacote deve ser descartado sem resposta.
+     * A consulta continua sendo contabilizada para que o cliente
+     * permaneça em abuso enquanto não reduzir a taxa.
+     * @param packet o pacote recebido.
+     * @return verdadeiro se o pacote foi descartado.
+     */
+    private static boolean dropAbusing(DatagramPacket packet) {
+        if (DROP_ABUSING) {
+            Client client = Client.getByIP(packet.getAddress().getHostAddress());
+            if (client != null && client.isAbusing()) {
+                client.addQuery();
+                DROPPED.increment();
+                return true;
+            }
+        }
+        return false;
+    }
 
     private synchronized Connection poll() {
         return CONNECTION_POLL.poll();
@@ -900,7 +947,9 @@ public final class QueryDNS extends Server {
                             receiveData, receiveData.length
                     );
                     SERVER_SOCKET.receive(packet);
-                    if (continueListenning()) {
+                    if (dropAbusing(packet)) {
+                        // Pacote descartado antes do processamento.
+                    } else if (continueListenning()) {
                         long time = System.currentTimeMillis();
                         Connection connection = pollConnection();
                         if (connection == null) {
@@ -0,0 +1,363 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.dns;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.spfbl.core.Reverse;
+import net.spfbl.core.Server;
+import net.spfbl.spf.SPF;
+import org.apache.commons.lang3.SerializationUtils;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.PTRRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.Type;
+
+/**
+ * Servidor DNS autoritativo que responde somente com
+ * os registros gravados em ./data/spf.map e ./data/reverse.dat,
+ * ou no formato anterior ./data/reverse.map se for o único presente.
+ *
+ * Serve de substituto local da internet durante a reprodução
+ * de tráfego, com latência e perda de pacotes configuráveis.
+ * Qualquer nome desconhecido é respondido com NXDOMAIN.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class RecordedDNS extends Thread {
+
+    private static final long TTL = 3600;
+
+    private final DatagramSocket SERVER_SOCKET;
+    private final int LATENCY;
+    private final float LOSS;
+    private final Random RANDOM = new Random();
+    private final ScheduledThreadPoolExecutor EXECUTOR;
+
+    /**
+     * Registros TXT indexados pelo nome absoluto.
+     */
+    private final HashMap<String,String> TXT_MAP = new HashMap<String,String>();
+    /**
+     * Registros PTR indexados pelo nome reverso absoluto.
+     */
+    private final HashMap<String,TreeSet<String>> PTR_MAP = new HashMap<String,TreeSet<String>>();
+    /**
+     * Registros A e AAAA obtidos pela inversão dos reversos.
+     */
+    private final HashMap<String,TreeSet<String>> ADDRESS_MAP = new HashMap<String,TreeSet<String>>();
+
+    private final AtomicLong QUERY_COUNT = new AtomicLong(0);
+    private final AtomicLong DROP_COUNT = new AtomicLong(0);
+
+    /**
+     * Configuração e intanciamento do servidor.
+     * @param address o endereço local a ser vinculado.
+     * @param port a porta UDP a ser vinculada.
+     * @param latency a latência adicionada a cada resposta em milisegundos.
+     * @param loss a probabilidade de descarte de cada consulta.
+     * @throws java.net.SocketException se houver falha durante o bind.
+     */
+    public RecordedDNS(
+            String address,
+            int port,
+            int latency,
+            float loss
+            ) throws SocketException {
+        super("RECORDDNS");
+        setDaemon(true);
+        LATENCY = Math.max(0, latency);
+        LOSS = Math.max(0.0f, Math.min(1.0f, loss));
+        EXECUTOR = new ScheduledThreadPoolExecutor(4);
+        SERVER_SOCKET = new DatagramSocket(new InetSocketAddress(address, port));
+    }
+
+    private static String getAbsolute(String host) {
+        host = host.toLowerCase();
+        if (host.endsWith(".")) {
+            return host;
+        } else {
+            return host + '.';
+        }
+    }
+
+    private void putReverse(String ip, TreeSet<String> hostSet) {
+        String reverse = Reverse.getHostReverse(ip, "in-addr.arpa");
+        if (reverse == null) {
+            reverse = Reverse.getHostReverse(ip, "ip6.arpa");
+        }
+        if (reverse != null && hostSet != null) {
+            for (String host : hostSet) {
+                if (host.startsWith(".")) {
+                    host = host.substring(1);
+                }
+                putSet(PTR_MAP, getAbsolute(reverse), getAbsolute(host));
+                putSet(ADDRESS_MAP, getAbsolute(host), ip);
+            }
+        }
+    }
+
+    private static void putSet(HashMap<String,TreeSet<String>> map, String key, String value) {
+        TreeSet<String> set = map.get(key);
+        if (set == null) {
+            set = new TreeSet<String>();
+            map.put(key, set);
+        }
+        set.add(value);
+    }
+
+    private static Map<Object,Object> deserialize(File file) throws Exception {
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            return SerializationUtils.deserialize(fileInputStream);
+        } finally {
+            fileInputStream.close();
+        }
+    }
+
+    /**
+     * Carrega os registros gravados na pasta ./data.
+     */
+    public void load() {
+        long time = System.currentTimeMillis();
+        File file = new File("./data/spf.map");
+        if (file.exists()) {
+            try {
+                Map<Object,Object> map = deserialize(file);
+                for (Object key : map.keySet()) {
+                    Object value = map.get(key);
+                    if (key instanceof String && value instanceof SPF) {
+                        String record = ((SPF) value).getRecord();
+                        if (record != null) {
+                            TXT_MAP.put(getAbsolute((String) key), record);
+                        }
+                    }
+                }
+                Server.logLoad(time, file);
+            } catch (Exception ex) {
+                Server.logError(ex);
+            }
+        }
+        time = System.currentTimeMillis();
+        file = new File("./data/reverse.dat");
+        File legacy = new File("./data/reverse.map");
+        if (file.exists()) {
+            try {
+                HashMap<String,TreeSet<String>> map = Reverse.getAddressMap(file);
+                for (String ip : map.keySet()) {
+                    putReverse(ip, map.get(ip));
+                }
+                Server.logLoad(time, file);
+            } catch (Exception ex) {
+                Server.logError(ex);
+            }
+        } else if (legacy.exists()) {
+            file = legacy;
+            try {
+                Map<Object,Object> map = deserialize(file);
+                for (Object key : map.keySet()) {
+                    Object value = map.get(key);
+                    if (key instanceof String && value instanceof Reverse) {
+                        putReverse((String) key, ((Reverse) value).getAddressSet());
+                    }
+                }
+                Server.logLoad(time, file);
+            } catch (Exception ex) {
+                Server.logError(ex);
+            }
+        }
+    }
+
+    /**
+     * Divide o registro TXT em strings de até 255 bytes,
+     * limite de cada string de caracteres do registro TXT.
+     * @param record o registro TXT completo.
+     * @return a lista de strings do registro.
+     */
+    private static List<String> getStringList(String record) {
+        ArrayList<String> list = new ArrayList<String>();
+        int begin = 0;
+        int length = 0;
+        for (int index = 0; index < record.length(); index++) {
+            int size = record.charAt(index) < 0x80 ? 1 : 3;
+            if (length + size > 255) {
+                list.add(record.substring(begin, index));
+                begin = index;
+                length = 0;
+            }
+            length += size;
+        }
+        list.add(record.substring(begin));
+        return list;
+    }
+
+    /**
+     * Monta a resposta da consulta a partir dos registros gravados.
+     * @param data o pacote da consulta.
+     * @return o pacote da resposta ou nulo se a consulta for inválida.
+     */
+    private byte[] process(byte[] data) {
+        try {
+            Message message = new Message(data);
+            Header header = message.getHeader();
+            Record question = message.getQuestion();
+            if (question == null) {
+                return null;
+            } else {
+                Name name = question.getName();
+                String key = name.toString().toLowerCase();
+                int type = question.getType();
+                boolean found = false;
+                header.setFlag(Flags.QR);
+                header.setFlag(Flags.AA);
+                if (type == Type.TXT || type == Type.SPF || type == Type.ANY) {
+                    String record = TXT_MAP.get(key);
+                    if (record != null) {
+                        message.addRecord(new TXTRecord(name, DClass.IN, TTL, getStringList(record)), Section.ANSWER);
+                        found = true;
+                    }
+                }
+                if (type == Type.PTR || type == Type.ANY) {
+                    TreeSet<String> hostSet = PTR_MAP.get(key);
+                    if (hostSet != null) {
+                        for (String host : hostSet) {
+                            message.addRecord(new PTRRecord(name, DClass.IN, TTL, Name.fromString(host)), Section.ANSWER);
+                        }
+                        found = true;
+                    }
+                }
+                if (type == Type.A || type == Type.AAAA || type == Type.ANY) {
+                    TreeSet<String> ipSet = ADDRESS_MAP.get(key);
+                    if (ipSet != null) {
+                        for (String ip : ipSet) {
+                            InetAddress address = InetAddress.getByName(ip);
+                            if (ip.contains(":")) {
+                                if (type != Type.A) {
+                                    message.addRecord(new AAAARecord(name, DClass.IN, TTL, address), Section.ANSWER);
+                                }
+                            } else if (type != Type.AAAA) {
+                                message.addRecord(new ARecord(name, DClass.IN, TTL, address), Section.ANSWER);
+                            }
+                        }
+                        found = true;
+                    }
+                }
+                if (!found && !TXT_MAP.containsKey(key)
+                        && !PTR_MAP.containsKey(key)
+                        && !ADDRESS_MAP.containsKey(key)) {
+                    header.setRcode(Rcode.NXDOMAIN);
+                }
+                return message.toWire();
+            }
+        } catch (Exception ex) {
+            Server.logError(ex);
+            return null;
+        }
+    }
+
+    private void send(byte[] data, InetAddress address, int port) {
+        try {
+            SERVER_SOCKET.send(new DatagramPacket(data, data.length, address, port));
+        } catch (Exception ex) {
+            Server.logError(ex);
+        }
+    }
+
+    @Override
+    public void run() {
+        Server.logInfo("listening recorded DNS on UDP port " + SERVER_SOCKET.getLocalPort() + ".");
+        try {
+            while (!SERVER_SOCKET.isClosed()) {
+                byte[] buffer = new byte[512];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                SERVER_SOCKET.receive(packet);
+                QUERY_COUNT.incrementAndGet();
+                if (LOSS > 0.0f && RANDOM.nextFloat() < LOSS) {
+                    DROP_COUNT.incrementAndGet();
+                } else {
+                    byte[] data = new byte[packet.getLength()];
+                    System.arraycopy(buffer, 0, data, 0, data.length);
+                    final byte[] response = process(data);
+                    if (response != null) {
+                        final InetAddress address = packet.getAddress();
+                        final int port = packet.getPort();
+                        if (LATENCY == 0) {
+                            send(response, address, port);
+                        } else {
+                            EXECUTOR.schedule(new Runnable() {
+                                @Override
+                                public void run() {
+                                    send(response, address, port);
+                                }
+                            }, LATENCY, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                }
+            }
+        } catch (SocketException ex) {
+            // Socket fechado.
+        } catch (Exception ex) {
+            Server.logError(ex);
+        } finally {
+            EXECUTOR.shutdown();
+            Server.logInfo("recorded DNS closed.");
+        }
+    }
+
+    public int getPort() {
+        return SERVER_SOCKET.getLocalPort();
+    }
+
+    public void close() {
+        SERVER_SOCKET.close();
+    }
+
+    public long getQueryCount() {
+        return QUERY_COUNT.get();
+    }
+
+    public long getDropCount() {
+        return DROP_COUNT.get();
+    }
+
+    public int getRecordCount() {
+        return TXT_MAP.size() + PTR_MAP.size() + ADDRESS_MAP.size();
+    }
+}
@@ -0,0 +1,549 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.dns;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import net.spfbl.core.Core;
+import net.spfbl.core.Server;
+import net.spfbl.data.Block;
+import net.spfbl.data.Feed;
+import net.spfbl.data.Ignore;
+import net.spfbl.spf.SPF;
+import net.spfbl.spf.SPF.Distribution;
+import net.spfbl.whois.Subnet;
+import net.spfbl.whois.SubnetIPv4;
+import net.spfbl.whois.SubnetIPv6;
+
+/**
+ * Exportação das zonas DNSBL e DNSWL para servidores DNS externos.
+ *
+ * Cada zona é materializada numa lista ordenada de faixas IP sem
+ * sobreposição, cada uma com o código da resposta, reproduzindo as
+ * mesmas regras da consulta em QueryDNS. A lista é gravada nos
+ * formatos ip4set e ip6trie do rbldnsd e num instantâneo binário
+ * compacto, sempre num arquivo temporário renomeado no final, de modo
+ * que o leitor nunca veja um arquivo pela metade.
+ *
+ * Entre as exportações completas, a exportação incremental grava
+ * apenas as faixas removidas e adicionadas desde o último instantâneo,
+ * acumuladas num único arquivo de diferença por zona.
+ *
+ * As consultas por domínio e a resposta NXDOMAIN dada aos clientes
+ * passivos continuam exclusivas do QueryDNS.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class ZoneExport {
+
+    /**
+     * Identificação dos arquivos binários: "SPZ1".
+     */
+    private static final int MAGIC = 0x53505A31;
+
+    private static final byte SNAPSHOT = 'S';
+    private static final byte DELTA = 'D';
+
+    /**
+     * Tempo de vida das respostas exportadas em segundos.
+     */
+    private static final int TTL = 86400;
+
+    /**
+     * Pasta de exportação ou nulo se desabilitada.
+     */
+    private static File FOLDER = null;
+
+    /**
+     * Último instantâneo completo de cada zona.
+     */
+    private static final HashMap<String,Snapshot> MAP = new HashMap<String,Snapshot>();
+
+    private ZoneExport() {
+    }
+
+    public static synchronized void setFolder(String path) {
+        if (path == null || path.length() == 0) {
+            ZoneExport.FOLDER = null;
+        } else {
+            File folder = new File(path);
+            if (folder.exists()) {
+                if (folder.isDirectory()) {
+                    ZoneExport.FOLDER = folder;
+                } else {
+                    Server.logError("'" + path + "' is not a folder.");
+                }
+            } else {
+                Server.logError("folder '" + path + "' not exists.");
+            }
+        }
+    }
+
+    private static synchronized File getFolder() {
+        return FOLDER;
+    }
+
+    public static boolean isEnabled() {
+        return getFolder() != null;
+    }
+
+    /**
+     * Faixa contínua de IPs com o mesmo código de resposta.
+     */
+    private static final class Range implements Comparable<Range> {
+
+        private final BigInteger first;
+        private final BigInteger last;
+        private final byte code;
+
+        private Range(BigInteger first, BigInteger last, byte code) {
+            this.first = first;
+            this.last = last;
+            this.code = code;
+        }
+
+        @Override
+        public int compareTo(Range other) {
+            return this.first.compareTo(other.first);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (object instanceof Range) {
+                Range other = (Range) object;
+                return this.code == other.code
+                        && this.first.equals(other.first)
+                        && this.last.equals(other.last);
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return first.hashCode() * 31 + last.hashCode() + code;
+        }
+    }
+
+    /**
+     * Limite de um intervalo na varredura: abertura ou fechamento
+     * de uma camada de prioridade.
+     */
+    private static final class Edge implements Comparable<Edge> {
+
+        private final BigInteger position;
+        private final int priority;
+        private final int delta;
+
+        private Edge(BigInteger position, int priority, int delta) {
+            this.position = position;
+            this.priority = priority;
+            this.delta = delta;
+        }
+
+        @Override
+        public int compareTo(Edge other) {
+            return this.position.compareTo(other.position);
+        }
+    }
+
+    /**
+     * Conjunto de intervalos em camadas de prioridade. Onde houver
+     * sobreposição, vale o código da camada de maior prioridade.
+     */
+    private static final class Layers {
+
+        private final byte[] codeArray;
+        private final ArrayList<Edge> edgeList4 = new ArrayList<Edge>();
+        private final ArrayList<Edge> edgeList6 = new ArrayList<Edge>();
+
+        /**
+         * @param codeArray o código de cada prioridade, onde zero
+         * significa não listado.
+         */
+        private Layers(byte... codeArray) {
+            this.codeArray = codeArray;
+        }
+
+        private void add(String first, String last, int priority) {
+            byte[] address1 = Subnet.packIP(first);
+            byte[] address2 = Subnet.packIP(last);
+            if (address1 != null && address2 != null && address1.length == address2.length) {
+                ArrayList<Edge> edgeList = address1.length == 4 ? edgeList4 : edgeList6;
+                edgeList.add(new Edge(new BigInteger(1, address1), priority, 1));
+                edgeList.add(new Edge(new BigInteger(1, address2).add(BigInteger.ONE), priority, -1));
+            }
+        }
+
+        private void addCIDR(String cidr, int priority) {
+            if ((cidr = Subnet.normalizeCIDR(cidr)) != null) {
+                add(Subnet.getFirstIP(cidr), Subnet.getLastIP(cidr), priority);
+            }
+        }
+
+        private void addIP(String ip, int priority) {
+            add(ip, ip, priority);
+        }
+
+        /**
+         * Varre os limites em ordem e funde as faixas vizinhas
+         * de mesmo código.
+         */
+        private ArrayList<Range> flatten(ArrayList<Edge> edgeList) {
+            Collections.sort(edgeList);
+            int[] countArray = new int[codeArray.length];
+            ArrayList<Range> rangeList = new ArrayList<Range>();
+            BigInteger begin = null;
+            byte current = 0;
+            int index = 0;
+            while (index < edgeList.size()) {
+                BigInteger position = edgeList.get(index).position;
+                while (index < edgeList.size() && edgeList.get(index).position.equals(position)) {
+                    Edge edge = edgeList.get(index++);
+                    countArray[edge.priority] += edge.delta;
+                }
+                byte code = 0;
+                for (int priority = codeArray.length - 1; priority > 0; priority--) {
+                    if (countArray[priority] > 0) {
+                        code = codeArray[priority];
+                        break;
+                    }
+                }
+                if (code != current) {
+                    if (current != 0) {
+                        rangeList.add(new Range(begin, position.subtract(BigInteger.ONE), current));
+                    }
+                    begin = position;
+                    current = code;
+                }
+            }
+            return rangeList;
+        }
+    }
+
+    /**
+     * Resultado materializado de uma zona.
+     */
+    private static final class Snapshot {
+
+        private final long sequence;
+        private final ArrayList<Range> rangeList4;
+        private final ArrayList<Range> rangeList6;
+
+        private Snapshot(long sequence, Layers layers) {
+            this.sequence = sequence;
+            this.rangeList4 = layers.flatten(layers.edgeList4);
+            this.rangeList6 = layers.flatten(layers.edgeList6);
+        }
+    }
+
+    /**
+     * Materializa as regras de resposta de uma zona.
+     *
+     * Na DNSBL, os blocos IP respondem 127.0.0.3 e os IPs com
+     * reputação RED, ou YELLOW dentro de um bloco, respondem 127.0.0.2.
+     * Na DNSWL, os blocos bloqueados não são listados, os IPs bons
+     * respondem 127.0.0.2 e o restante dos blocos ignorados 127.0.0.3.
+     */
+    private static Snapshot getSnapshot(Zone zone, long sequence) {
+        Layers layers;
+        if (zone.isDNSBL()) {
+            layers = new Layers((byte) 0, (byte) 3, (byte) 2);
+            for (String cidr : Block.getExtendedCIDR()) {
+                layers.addCIDR(cidr, 1);
+            }
+            addDistribution(layers, SPF.getDistributionMapIPv4(), true);
+            addDistribution(layers, SPF.getDistributionMapIPv6(), true);
+        } else {
+            layers = new Layers((byte) 0, (byte) 3, (byte) 2, (byte) 0);
+            for (String cidr : Ignore.getExtendedCIDR()) {
+                layers.addCIDR(cidr, 1);
+            }
+            addDistribution(layers, SPF.getDistributionMapIPv4(), false);
+            addDistribution(layers, SPF.getDistributionMapIPv6(), false);
+            for (String cidr : Block.getExtendedCIDR()) {
+                layers.addCIDR(cidr, 3);
+            }
+        }
+        return new Snapshot(sequence, layers);
+    }
+
+    private static void addDistribution(
+            Layers layers,
+            Map<String,Distribution> distributionMap,
+            boolean dnsbl
+    ) {
+        for (Map.Entry<String,Distribution> entry : distributionMap.entrySet()) {
+            String ip = entry.getKey();
+            Distribution distribution = entry.getValue();
+            if (dnsbl) {
+                SPF.Status status = distribution.getStatus();
+                if (status == SPF.Status.RED) {
+                    layers.addIP(ip, 2);
+                } else if (status == SPF.Status.YELLOW && Block.containsCIDR(ip)) {
+                    layers.addIP(ip, 2);
+                }
+            } else if (distribution.isGood()) {
+                layers.addIP(ip, 2);
+            }
+        }
+    }
+
+    private static byte[] toBytes(BigInteger value, int length) {
+        byte[] source = value.toByteArray();
+        byte[] address = new byte[length];
+        int count = Math.min(length, source.length);
+        System.arraycopy(source, source.length - count, address, length - count, count);
+        return address;
+    }
+
+    private static String toIP(BigInteger value, int length) {
+        return Subnet.unpackIP(toBytes(value, length));
+    }
+
+    /**
+     * Decompõe uma faixa no menor conjunto de blocos CIDR.
+     */
+    private static ArrayList<String> getCIDRList(Range range, int length) {
+        ArrayList<String> cidrList = new ArrayList<String>();
+        int bits = length * 8;
+        BigInteger first = range.first;
+        while (first.compareTo(range.last) <= 0) {
+            int size = first.signum() == 0 ? bits : Math.min(bits, first.getLowestSetBit());
+            while (first.add(BigInteger.ONE.shiftLeft(size)).subtract(BigInteger.ONE).compareTo(range.last) > 0) {
+                size--;
+            }
+            String ip = toIP(first, length);
+            if (size == 0) {
+                cidrList.add(ip);
+            } else {
+                cidrList.add(ip + "/" + (bits - size));
+            }
+            first = first.add(BigInteger.ONE.shiftLeft(size));
+        }
+        return cidrList;
+    }
+
+    private static File getTemp(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private static void rename(File temp, File file) throws IOException {
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("cannot rename " + temp);
+            }
+        }
+    }
+
+    /**
+     * Grava a zona no formato do rbldnsd. O TXT usa o símbolo $,
+     * que o rbldnsd substitui pelo IP consultado.
+     */
+    private static void writeText(
+            Zone zone, Snapshot snapshot,
+            ArrayList<Range> rangeList,
+            int length, File file
+    ) throws IOException {
+        File temp = getTemp(file);
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(temp), 65536);
+        try {
+            String message = zone.getMessage("$");
+            Core.writeLine(outputStream, "# ", zone.getTypeName() + " " + zone.getHostName());
+            Core.writeLine(outputStream, "# SEQUENCE ", snapshot.sequence);
+            Core.writeLine(outputStream, "$TTL ", TTL);
+            Core.writeLine(outputStream, ":127.0.0.2:", message == null ? "" : message);
+            for (Range range : rangeList) {
+                String value = " :127.0.0." + range.code + ":" + (message == null ? "" : message);
+                for (String cidr : getCIDRList(range, length)) {
+                    Core.writeLine(outputStream, cidr, value);
+                }
+            }
+        } finally {
+            outputStream.close();
+        }
+        rename(temp, file);
+    }
+
+    private static void writeHeader(
+            DataOutputStream outputStream, byte kind,
+            Zone zone, long base, long sequence
+    ) throws IOException {
+        outputStream.writeInt(MAGIC);
+        outputStream.writeByte(kind);
+        outputStream.writeLong(base);
+        outputStream.writeLong(sequence);
+        outputStream.writeLong(System.currentTimeMillis());
+        outputStream.writeUTF(zone.getHostName());
+        outputStream.writeUTF(zone.getTypeName());
+    }
+
+    /**
+     * Grava as faixas ordenadas: a quantidade seguida do primeiro
+     * IP, do último IP e do código de cada faixa.
+     */
+    private static void writeRanges(
+            DataOutputStream outputStream,
+            ArrayList<Range> rangeList,
+            int length
+    ) throws IOException {
+        outputStream.writeInt(rangeList.size());
+        for (Range range : rangeList) {
+            outputStream.write(toBytes(range.first, length));
+            outputStream.write(toBytes(range.last, length));
+            outputStream.writeByte(range.code);
+        }
+    }
+
+    private static void writeSnapshot(Zone zone, Snapshot snapshot, File file) throws IOException {
+        File temp = getTemp(file);
+        DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 65536)
+        );
+        try {
+            writeHeader(outputStream, SNAPSHOT, zone, snapshot.sequence, snapshot.sequence);
+            writeRanges(outputStream, snapshot.rangeList4, 4);
+            writeRanges(outputStream, snapshot.rangeList6, 16);
+        } finally {
+            outputStream.close();
+        }
+        rename(temp, file);
+    }
+
+    /**
+     * @return as faixas da primeira lista ausentes na segunda.
+     */
+    private static ArrayList<Range> getMissing(ArrayList<Range> rangeList1, ArrayList<Range> rangeList2) {
+        HashSet<Range> rangeSet = new HashSet<Range>(rangeList2);
+        ArrayList<Range> resultList = new ArrayList<Range>();
+        for (Range range : rangeList1) {
+            if (!rangeSet.contains(range)) {
+                resultList.add(range);
+            }
+        }
+        return resultList;
+    }
+
+    /**
+     * Grava a diferença acumulada desde o instantâneo completo:
+     * primeiro as faixas removidas e depois as adicionadas.
+     * @return a quantidade de faixas alteradas.
+     */
+    private static int writeDelta(Zone zone, Snapshot base, Snapshot current, File file) throws IOException {
+        ArrayList<Range> removedList4 = getMissing(base.rangeList4, current.rangeList4);
+        ArrayList<Range> removedList6 = getMissing(base.rangeList6, current.rangeList6);
+        ArrayList<Range> addedList4 = getMissing(current.rangeList4, base.rangeList4);
+        ArrayList<Range> addedList6 = getMissing(current.rangeList6, base.rangeList6);
+        File temp = getTemp(file);
+        DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 65536)
+        );
+        try {
+            writeHeader(outputStream, DELTA, zone, base.sequence, current.sequence);
+            writeRanges(outputStream, removedList4, 4);
+            writeRanges(outputStream, removedList6, 16);
+            writeRanges(outputStream, addedList4, 4);
+            writeRanges(outputStream, addedList6, 16);
+        } finally {
+            outputStream.close();
+        }
+        rename(temp, file);
+        return removedList4.size() + removedList6.size()
+                + addedList4.size() + addedList6.size();
+    }
+
+    private static synchronized Snapshot getBase(String hostname) {
+        return MAP.get(hostname);
+    }
+
+    private static synchronized void putBase(String hostname, Snapshot snapshot) {
+        MAP.put(hostname, snapshot);
+    }
+
+    /**
+     * Exporta todas as zonas por completo: os arquivos ip4set e
+     * ip6trie do rbldnsd e o instantâneo binário. O arquivo de
+     * diferença anterior é apagado por ficar obsoleto.
+     */
+    public static void exportAll() {
+        File folder = getFolder();
+        if (folder != null) {
+            for (Zone zone : QueryDNS.getValues()) {
+                long time = System.currentTimeMillis();
+                String hostname = zone.getHostName();
+                try {
+                    Snapshot snapshot = getSnapshot(zone, Feed.getSequence());
+                    writeText(zone, snapshot, snapshot.rangeList4, 4, new File(folder, hostname + ".ip4set"));
+                    writeText(zone, snapshot, snapshot.rangeList6, 16, new File(folder, hostname + ".ip6trie"));
+                    writeSnapshot(zone, snapshot, new File(folder, hostname + ".snapshot"));
+                    new File(folder, hostname + ".delta").delete();
+                    putBase(hostname, snapshot);
+                    Server.logTrace(
+                            "zone " + hostname + " exported with "
+                            + (snapshot.rangeList4.size() + snapshot.rangeList6.size())
+                            + " ranges in " + (System.currentTimeMillis() - time) + "ms."
+                    );
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Exporta a diferença de cada zona desde o último instantâneo
+     * completo. As zonas ainda sem instantâneo são exportadas por
+     * completo.
+     */
+    public static void exportDelta() {
+        File folder = getFolder();
+        if (folder != null) {
+            for (Zone zone : QueryDNS.getValues()) {
+                long time = System.currentTimeMillis();
+                String hostname = zone.getHostName();
+                Snapshot base = getBase(hostname);
+                if (base == null) {
+                    exportAll();
+                    return;
+                } else {
+                    try {
+                        Snapshot current = getSnapshot(zone, Feed.getSequence());
+                        int count = writeDelta(zone, base, current, new File(folder, hostname + ".delta"));
+                        Server.logTrace(
+                                "zone " + hostname + " delta exported with "
+                                + count + " ranges in "
+                                + (System.currentTimeMillis() - time) + "ms."
+                        );
+                    } catch (Exception ex) {
+                        Server.logError(ex);
+                    }
+                }
+            }
+        }
+    }
+}
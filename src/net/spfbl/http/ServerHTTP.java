@@ -21,6 +21,7 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -58,12 +59,15 @@ import net.spfbl.core.Client;
 import static net.spfbl.core.Client.Permission.DNSBL;
 import net.spfbl.core.Core;
 import net.spfbl.core.Defer;
+import net.spfbl.core.Metrics;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Reverse;
 import net.spfbl.core.User;
 import net.spfbl.core.User.Query;
 import net.spfbl.core.User.Situation;
+import net.spfbl.data.Feed;
 import net.spfbl.data.Generic;
+import net.spfbl.data.Import;
 import net.spfbl.data.NoReply;
 import net.spfbl.data.Provider;
 import net.spfbl.data.Trap;
@@ -469,7 +473,34 @@ public final class ServerHTTP extends Server {
                         );
                     }
                 } else if (request.equals("POST")) {
-                    if (command.equals("/")) {
+                    if (command.startsWith("/import/")) {
+                        type = "IMPRT";
+                        Import.Type importType;
+                        try {
+                            importType = Import.Type.valueOf(command.substring(8).toUpperCase());
+                        } catch (IllegalArgumentException ex) {
+                            importType = null;
+                        }
+                        if (client == null || !client.hasPermission(Client.Permission.ALL)) {
+                            code = 403;
+                            result = "Forbidden\n";
+                        } else if (importType == null) {
+                            code = 404;
+                            result = "Not found\n";
+                        } else {
+                            // Importação em lote das linhas do corpo da requisição.
+                            InputStreamReader reader = new InputStreamReader(exchange.getRequestBody(), "UTF-8");
+                            try {
+                                code = 200;
+                                result = Import.process(importType, new BufferedReader(reader));
+                            } catch (ProcessException ex) {
+                                code = 500;
+                                result = ex.getMessage() + "\n";
+                            } finally {
+                                reader.close();
+                            }
+                        }
+                    } else if (command.equals("/")) {
                         type = "MMENU";
                         code = 200;
                         String message;
@@ -2109,6 +2140,38 @@ public final class ServerHTTP extends Server {
                             }
                             result = getMessageHMTL(title, message);
                         }
+                    } else if (command.startsWith("/feed/")) {
+                        type = "HTTPF";
+                        if (client == null || !client.hasPermission(Client.Permission.ALL)) {
+                            code = 403;
+                            result = "Forbidden\n";
+                        } else {
+                            // Alterações das listas desde a sequência informada.
+                            try {
+                                long since = Long.parseLong(command.substring(6));
+                                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                                Feed.write(since, outputStream);
+                                code = 200;
+                                result = outputStream.toString("ISO-8859-1");
+                            } catch (NumberFormatException ex) {
+                                code = 400;
+                                result = "Invalid sequence\n";
+                            }
+                        }
+                    } else if (command.equals("/metrics")) {
+                        if (client != null && client.hasPermission(Client.Permission.ALL)) {
+                            // Exportação das métricas para o Prometheus.
+                            type = "HTTPM";
+                            code = 200;
+                            result = Metrics.getPrometheus();
+                            exchange.getResponseHeaders().set(
+                                    "Content-Type", "text/plain; version=0.0.4"
+                            );
+                        } else {
+                            type = "HTTPM";
+                            code = 403;
+                            result = "Forbidden\n";
+                        }
                     } else if (command.startsWith("/favicon.ico")) {
                         type = "HTTPC";
                         code = 403;
@@ -35,12 +35,15 @@ import java.util.concurrent.TimeUnit;
 import net.spfbl.data.Block;
 import net.spfbl.core.Client;
 import net.spfbl.core.Core;
+import net.spfbl.core.Deadline;
+import net.spfbl.core.Metrics;
 import net.spfbl.core.User;
 import net.spfbl.data.NoReply;
 import net.spfbl.data.Provider;
 import net.spfbl.data.Trap;
 import net.spfbl.data.White;
 import net.spfbl.whois.Domain;
+import net.spfbl.whois.Subnet;
 
 /**
  * Servidor de consulta em SPF.
@@ -51,6 +54,8 @@ import net.spfbl.whois.Domain;
  */
 public final class QuerySPF extends Server {
 
+    private static final Metrics.Histogram QUERY = Metrics.getQuery("spfbl");
+
     private final int PORT;
     private final ServerSocket SERVER_SOCKET;
 
@@ -169,6 +174,7 @@ public final class QuerySPF extends Server {
                         try {
                             client = Client.get(ipAddress);
                             user = client == null ? null : client.getUser();
+                            Deadline.start(time, client == null ? Deadline.getDefault() : client.getDeadline());
                             InputStream inputStream = socket.getInputStream();
                             InputStreamReader inputStreamReader = new InputStreamReader(inputStream, "UTF-8");
                             BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
@@ -183,6 +189,8 @@ public final class QuerySPF extends Server {
                                     String sender = null;
                                     String helo = null;
                                     String recipient = null;
+                                    String instance = null;
+                                    String protocolState = null;
                                     query = "";
                                     do {
                                         query += line + "\\n";
@@ -198,13 +206,19 @@ public final class QuerySPF extends Server {
                                         } else if (line.startsWith("recipient=")) {
                                             int index = line.indexOf('=') + 1;
                                             recipient = line.substring(index);
+                                        } else if (line.startsWith("instance=")) {
+                                            int index = line.indexOf('=') + 1;
+                                            instance = line.substring(index);
+                                        } else if (line.startsWith("protocol_state=")) {
+                                            int index = line.indexOf('=') + 1;
+                                            protocolState = line.substring(index).toUpperCase();
                                         }
                                     } while ((line = bufferedReader.readLine()).length() > 0);
                                     Server.logTrace(query);
                                     query += "\\n";
                                     LinkedList<User> userResult = new LinkedList<User>();
                                     result = SPF.processPostfixSPF(
-                                            ipAddress, client, user, ip, sender, helo, recipient, userResult
+                                            ipAddress, client, user, ip, sender, helo, recipient, instance, protocolState, userResult
                                     );
                                     user = userResult.isEmpty() ? user : userResult.getLast();
                                 } else {
@@ -507,6 +521,23 @@ public final class QuerySPF extends Server {
                                         } else {
                                             result = "FALSE\n";
                                         }
+                                    } else if (line.startsWith("WARM ")) {
+                                        query = line.substring(5).trim();
+                                        type = "WARMP";
+                                        // Aquecimento antecipado dos caches: WARM ip helo [sender]
+                                        StringTokenizer warmTokenizer = new StringTokenizer(query, " ");
+                                        String ip = warmTokenizer.hasMoreTokens() ? warmTokenizer.nextToken() : null;
+                                        String helo = warmTokenizer.hasMoreTokens() ? warmTokenizer.nextToken() : null;
+                                        String sender = warmTokenizer.hasMoreTokens() ? warmTokenizer.nextToken() : null;
+                                        if (!Subnet.isValidIP(ip) || Subnet.isReservedIP(ip)) {
+                                            result = "INVALID\n";
+                                        } else if (sender == null) {
+                                            ip = Subnet.normalizeIP(ip);
+                                            result = Warmup.connect(ip, helo) ? "QUEUED\n" : "IGNORED\n";
+                                        } else {
+                                            ip = Subnet.normalizeIP(ip);
+                                            result = Warmup.mail(client, ip, sender, helo) ? "QUEUED\n" : "IGNORED\n";
+                                        }
                                     } else if (line.startsWith("WHITE ADD ")) {
                                         query = line.substring(6).trim();
                                         type = "WHITE";
@@ -659,6 +690,11 @@ public final class QuerySPF extends Server {
                         } finally {
                             // Fecha conexão logo após resposta.
                             socket.close();
+                            // Etapas puladas por falta de prazo.
+                            String degraded = Deadline.finish();
+                            if (degraded != null && result != null) {
+                                result += " DEGRADED " + degraded;
+                            }
                             // Log da consulta com o respectivo resultado.
                             String origin = ipAddress.getHostAddress();
                             if (client != null) {
@@ -688,6 +724,7 @@ public final class QuerySPF extends Server {
                                     query == null ? "DISCONNECTED" : query,
                                     result
                             );
+                            QUERY.recordElapsed(time);
                         }
                     } catch (Exception ex) {
                         Server.logError(ex);
@@ -17,7 +17,10 @@
 package net.spfbl.spf;
 
 import net.spfbl.core.Core;
+import net.spfbl.core.Deadline;
+import net.spfbl.core.Metrics;
 import net.spfbl.core.NormalDistribution;
+import net.spfbl.whois.Address;
 import net.spfbl.whois.Domain;
 import net.spfbl.core.ProcessException;
 import net.spfbl.core.Server;
@@ -33,6 +36,8 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -40,6 +45,7 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Properties;
@@ -64,8 +70,11 @@ import javax.naming.directory.InvalidAttributeIdentifierException;
 import net.spfbl.core.Action;
 import net.spfbl.core.Analise;
 import net.spfbl.core.Client;
+import net.spfbl.core.CompactMap;
 import net.spfbl.data.Block;
 import net.spfbl.core.Defer;
+import net.spfbl.core.Expiry;
+import net.spfbl.core.Governor;
 import net.spfbl.data.Ignore;
 import net.spfbl.data.NoReply;
 import net.spfbl.core.Peer;
@@ -895,6 +904,11 @@ public final class SPF implements Serializable {
                             // Continuar a verificação dos demais 
                             // mecanismos antes de efetivar o erro.
                             hostNotFound = true;
+                        } else if (ex.getMessage().equals("ERROR: DEADLINE")) {
+                            // Include fora do cache pulado por falta
+                            // de prazo: tratar como o host inexistente,
+                            // resultando em SOFTFAIL se nada mais casar.
+                            hostNotFound = true;
                         } else {
                             throw ex;
                         }
@@ -1609,6 +1623,9 @@ public final class SPF implements Serializable {
                 int deep, TreeSet<String> hostVisitedSet,
                 LinkedList<String> logList) throws ProcessException {
             String hostname = getHostname(ip, sender, helo);
+            if (!CacheSPF.isCached(hostname) && Deadline.skip("include")) {
+                throw new ProcessException("ERROR: DEADLINE");
+            }
             SPF spf = CacheSPF.get(hostname);
             if (spf == null) {
                 return null;
@@ -1627,6 +1644,39 @@ public final class SPF implements Serializable {
         }
     }
 
+    /**
+     * Reconstrói o registro TXT a partir dos mecanismos em cache.
+     * @return o registro SPF normalizado ou nulo se não houver registro.
+     */
+    public String getRecord() {
+        ArrayList<Mechanism> mechanismListLocal = mechanismList;
+        if (mechanismListLocal == null) {
+            return null;
+        } else {
+            StringBuilder builder = new StringBuilder("v=spf1");
+            for (Mechanism mechanism : mechanismListLocal) {
+                builder.append(' ');
+                builder.append(mechanism.getExpression());
+            }
+            if (redirect != null) {
+                builder.append(" redirect=");
+                builder.append(redirect);
+            }
+            if (explanation != null) {
+                builder.append(" exp=");
+                builder.append(explanation);
+            }
+            if (all == Qualifier.FAIL) {
+                builder.append(" -all");
+            } else if (all == Qualifier.SOFTFAIL) {
+                builder.append(" ~all");
+            } else if (all == Qualifier.NEUTRAL) {
+                builder.append(" ?all");
+            }
+            return builder.toString();
+        }
+    }
+
     @Override
     public String toString() {
         return hostname + " " + mechanismList + " " + redirect + " " + all;
@@ -1671,6 +1721,7 @@ public final class SPF implements Serializable {
             if (!value.equals(ret)) {
                 CHANGED = true;
             }
+            EXPIRY.register(key, value.lastRefresh + Server.DAY_TIME);
             return ret;
         }
         
@@ -1689,6 +1740,69 @@ public final class SPF implements Serializable {
         private static SPF getExact(String host) {
             return MAP.get(host);
         }
+
+        private static synchronized int size() {
+            return MAP.size();
+        }
+        
+        static {
+            Metrics.registerCacheSize("spf", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return size();
+                }
+            });
+        }
+        
+        /**
+         * Descarta os registros menos consultados.
+         * @param count a quantidade de registros a descartar.
+         * @return a quantidade descartada.
+         */
+        private static int dropLeast(int count) {
+            return SWEEP.shed(getKeyList(), count);
+        }
+        
+        private static synchronized ArrayList<String> getKeyList() {
+            return new ArrayList<String>(MAP.keySet());
+        }
+        
+        private static final Governor.Sweep<String> SWEEP = new Governor.Sweep<String>() {
+            @Override
+            protected int drop(List<String> keyList, int count) {
+                synchronized (CacheSPF.class) {
+                    Governor.Selector<String> selector = new Governor.Selector<String>(count);
+                    for (String host : keyList) {
+                        SPF spf = MAP.get(host);
+                        if (spf != null) {
+                            selector.add(host, spf.queries);
+                        }
+                    }
+                    int removed = 0;
+                    for (String host : selector.getList()) {
+                        if (dropExact(host) != null) {
+                            removed++;
+                        }
+                    }
+                    return removed;
+                }
+            }
+        };
+        
+        private static final Governor.Cache GOVERNOR = new Governor.Cache("spf", 3, 2048) {
+            @Override
+            protected long size() {
+                return CacheSPF.size();
+            }
+            @Override
+            protected int shed(int count) {
+                return dropLeast(count);
+            }
+        };
+        
+        private static final Metrics.Histogram STAGE = Metrics.getStage("spf");
+        private static final Metrics.Counter HIT = Metrics.getCacheHit("spf");
+        private static final Metrics.Counter MISS = Metrics.getCacheMiss("spf");
         
         private static synchronized Collection<SPF> getValues() {
             return MAP.values();
@@ -1709,18 +1823,24 @@ public final class SPF implements Serializable {
             }
         }
         
-        private static void dropExpired() {
-            for (String host : keySet()) {
+        private static final Expiry.Handler EXPIRY = new Expiry.Handler("spf") {
+            @Override
+            protected long expire(String host) {
                 long time = System.currentTimeMillis();
                 SPF spf = getExact(host);
-                if (spf != null && spf.isRegistryExpired14()) {
+                if (spf == null) {
+                    return 0;
+                } else if (spf.isRegistryExpired14()) {
                     spf = dropExact(host);
                     if (spf != null) {
                         Server.logLookupSPF(time, host, "EXPIRED");
                     }
+                    return 0;
+                } else {
+                    return spf.lastRefresh + Server.DAY_TIME;
                 }
             }
-        }
+        };
 
         /**
          * Adiciona um registro SPF no mapa de cache.
@@ -1756,6 +1876,19 @@ public final class SPF implements Serializable {
         private static SPF get(String address) throws ProcessException {
             return get(address, false);
         }
+        
+        /**
+         * @return verdadeiro se o registro está em cache e não vencido.
+         */
+        private static boolean isCached(String address) {
+            String host = Domain.extractHost(address, false);
+            if (host == null) {
+                return false;
+            } else {
+                SPF spf = getExact(host);
+                return spf != null && !spf.isRegistryExpired();
+            }
+        }
 
         /**
          * Retorna o registro SPF do e-mail.
@@ -1765,15 +1898,26 @@ public final class SPF implements Serializable {
          * @throws ProcessException se houver falha no processamento.
          */
         private static SPF get(String address, boolean refresh) throws ProcessException {
+            long start = Metrics.time();
+            try {
+                return getInternal(address, refresh);
+            } finally {
+                STAGE.record(start);
+            }
+        }
+        
+        private static SPF getInternal(String address, boolean refresh) throws ProcessException {
             String host = Domain.extractHost(address, false);
             if (host == null) {
                 return null;
             } else {
                 SPF spf = getExact(host);
                 if (spf == null) {
+                    MISS.increment();
                     spf = new SPF(host);
                     add(spf);
                 } else if (refresh || spf.isRegistryExpired()) {
+                    MISS.increment();
                     try {
                         // Atualiza o registro se ele for antigo demais.
                         spf.refresh(false, false);
@@ -1785,6 +1929,8 @@ public final class SPF implements Serializable {
                             throw ex;
                         }
                     }
+                } else {
+                    HIT.increment();
                 }
 //                spf.queries++; // Incrementa o contador de consultas.
                 addQuerie(spf); // Incrementa o contador de consultas.
@@ -1879,10 +2025,6 @@ public final class SPF implements Serializable {
         return spf.getQualifier(ip, sender, helo, 0, new TreeSet<String>(), null);
     }
     
-    public static void dropExpiredSPF() {
-        CacheSPF.dropExpired();
-    }
-    
     public static void refreshSPF() {
         CacheSPF.refresh();
     }
@@ -1891,6 +2033,10 @@ public final class SPF implements Serializable {
         CacheHELO.refresh();
     }
     
+    public static void dropExpiredHELO() {
+        CacheHELO.dropExpired();
+    }
+    
     /**
      * Adiciona uma nova reclamação de SPAM.
      *
@@ -2339,11 +2485,45 @@ public final class SPF implements Serializable {
          * Mapa de distribuição binomial dos tokens encontrados.
          */
         private static final TreeMap<String,Distribution> MAP = new TreeMap<String,Distribution>();
+        /**
+         * Instantes dos tickets que não foram contabilizados na reputação,
+         * como os dos destinatários adicionais de uma mesma mensagem,
+         * associados ao instante do ticket que contabilizou a mensagem.
+         * Reclamações e liberações destes tickets atuam sobre o instante
+         * contabilizado, de modo que a mensagem conta uma única vez.
+         */
+        private static final TreeMap<Long,Long> UNCOUNTED = new TreeMap<Long,Long>();
         /**
          * Flag que indica se o cache foi modificado.
          */
         private static boolean CHANGED = false;
         
+        private static void addUncounted(long time, long counted) {
+            synchronized (UNCOUNTED) {
+                // Mantém somente a janela de sete dias da reputação.
+                UNCOUNTED.headMap(System.currentTimeMillis() - 604800000).clear();
+                UNCOUNTED.put(time, counted);
+            }
+            CHANGED = true;
+        }
+        
+        /**
+         * @param time o instante do ticket.
+         * @return o instante contabilizado na reputação para o ticket.
+         */
+        private static long getCounted(long time) {
+            synchronized (UNCOUNTED) {
+                Long counted = UNCOUNTED.get(time);
+                return counted == null ? time : counted;
+            }
+        }
+        
+        private static TreeMap<Long,Long> getUncountedMap() {
+            synchronized (UNCOUNTED) {
+                return new TreeMap<Long,Long>(UNCOUNTED);
+            }
+        }
+        
         private static synchronized Distribution dropExact(String key) {
             Distribution ret = MAP.remove(key);
             if (ret != null) {
@@ -2357,6 +2537,7 @@ public final class SPF implements Serializable {
             if (!value.equals(ret)) {
                 CHANGED = true;
             }
+            EXPIRY.register(key, value.getExpiration());
             return ret;
         }
         
@@ -2397,6 +2578,65 @@ public final class SPF implements Serializable {
             return MAP.subMap(fromKey, true, toKey, true);
         }
         
+        private static synchronized int size() {
+            return MAP.size();
+        }
+        
+        static {
+            Metrics.registerCacheSize("distribution", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return size();
+                }
+            });
+        }
+        
+        /**
+         * Descarta as distribuições consultadas há mais tempo.
+         * @param count a quantidade de registros a descartar.
+         * @return a quantidade descartada.
+         */
+        private static int dropLeast(int count) {
+            return SWEEP.shed(getKeyList(), count);
+        }
+        
+        private static synchronized ArrayList<String> getKeyList() {
+            return new ArrayList<String>(MAP.keySet());
+        }
+        
+        private static final Governor.Sweep<String> SWEEP = new Governor.Sweep<String>() {
+            @Override
+            protected int drop(List<String> keyList, int count) {
+                synchronized (CacheDistribution.class) {
+                    Governor.Selector<String> selector = new Governor.Selector<String>(count);
+                    for (String token : keyList) {
+                        Distribution distribution = MAP.get(token);
+                        if (distribution != null) {
+                            selector.add(token, distribution.lastQuery);
+                        }
+                    }
+                    int removed = 0;
+                    for (String token : selector.getList()) {
+                        if (dropExact(token) != null) {
+                            removed++;
+                        }
+                    }
+                    return removed;
+                }
+            }
+        };
+        
+        private static final Governor.Cache GOVERNOR = new Governor.Cache("distribution", 4, 512) {
+            @Override
+            protected long size() {
+                return CacheDistribution.size();
+            }
+            @Override
+            protected int shed(int count) {
+                return dropLeast(count);
+            }
+        };
+        
         private static Distribution getExact(String host) {
             return MAP.get(host);
         }
@@ -2433,6 +2673,14 @@ public final class SPF implements Serializable {
                         outputStream.close();
                     }
                     Server.logStore(time, file);
+                    file = new File("./data/uncounted.map");
+                    outputStream = new FileOutputStream(file);
+                    try {
+                        SerializationUtils.serialize(getUncountedMap(), outputStream);
+                    } finally {
+                        outputStream.close();
+                    }
+                    Server.logStore(time, file);
                 } catch (Exception ex) {
                     Server.logError(ex);
                 }
@@ -2441,7 +2689,25 @@ public final class SPF implements Serializable {
 
         private static void load() {
             long time = System.currentTimeMillis();
-            File file = new File("./data/distribution.map");
+            File file = new File("./data/uncounted.map");
+            if (file.exists()) {
+                try {
+                    Map<Long,Long> map;
+                    FileInputStream fileInputStream = new FileInputStream(file);
+                    try {
+                        map = SerializationUtils.deserialize(fileInputStream);
+                    } finally {
+                        fileInputStream.close();
+                    }
+                    synchronized (UNCOUNTED) {
+                        UNCOUNTED.putAll(map);
+                    }
+                    Server.logLoad(time, file);
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                }
+            }
+            file = new File("./data/distribution.map");
             if (file.exists()) {
                 try {
                     Map<String,Object> map;
@@ -2484,25 +2750,28 @@ public final class SPF implements Serializable {
             }
         }
 
-        private static void dropExpired() {
-            TreeSet<String> distributionKeySet = new TreeSet<String>();
-            distributionKeySet.addAll(keySet());
-            for (String token : distributionKeySet) {
+        private static final Expiry.Handler EXPIRY = new Expiry.Handler("distribution") {
+            @Override
+            protected long expire(String token) {
                 long time = System.currentTimeMillis();
                 Distribution distribution = getExact(token);
-                if (distribution != null) {
-                    if (distribution.hasLastQuery() && distribution.isExpired14()) {
-                        distribution = drop(token);
-                        if (distribution != null) {
-                            Server.log(time, Core.Level.DEBUG, "REPTN", token, "EXPIRED");
-                        }
-                    } else if (distribution.dropExpiredQuery()) {
+                if (distribution == null) {
+                    return 0;
+                } else if (distribution.hasLastQuery() && distribution.isExpired14()) {
+                    distribution = drop(token);
+                    if (distribution != null) {
+                        Server.log(time, Core.Level.DEBUG, "REPTN", token, "EXPIRED");
+                    }
+                    return 0;
+                } else {
+                    if (distribution.dropExpiredQuery()) {
                         distribution.getStatus(token);
                         Peer.sendToAll(token, distribution);
                     }
+                    return distribution.getExpiration();
                 }
             }
-        }
+        };
 
         private static Distribution drop(String key) {
             Distribution distribution = dropExact(key);
@@ -2660,10 +2929,6 @@ public final class SPF implements Serializable {
         }
     }
     
-    public static void dropExpiredDistribution() {
-        CacheDistribution.dropExpired();
-    }
-    
 
     public static TreeMap<String,Distribution> getDistributionMap() {
         return CacheDistribution.getTreeMap();
@@ -3125,67 +3390,93 @@ public final class SPF implements Serializable {
     private static class CacheHELO {
 
         /**
-         * Mapa de atributos da verificação de HELO.
+         * Mapa de atributos da verificação de HELO, fora do heap.
+         * 
+         * A chave é o hostname e o valor é o registro
+         * [última consulta][consultas][quantidade][IPs compactados].
          */
-        private static final HashMap<String,HELO> MAP = new HashMap<String,HELO>();
+        private static final CompactMap MAP = new CompactMap("helo");
+        private static final int LAST_QUERY = 0;
+        private static final int QUERY_COUNT = 8;
+        private static final int ADDRESS_COUNT = 12;
+        private static final long EXPIRE_TIME = 1209600000;
+        private static final Charset UTF8 = Charset.forName("UTF-8");
         /**
          * O próximo registro HELO que deve ser atualizado.
          */
         private static String hostRefresh = null;
-        private static HELO heloRefresh = null;
+        private static int countRefresh = 0;
         /**
          * Flag que indica se o cache foi modificado.
          */
         private static boolean CHANGED = false;
         
-        private static synchronized HELO dropExact(String token) {
-            HELO ret = MAP.remove(token);
-            if (ret != null) {
+        private static byte[] getKey(String host) {
+            return host.getBytes(UTF8);
+        }
+        
+        private static synchronized boolean dropExact(String host) {
+            if (MAP.remove(getKey(host))) {
                 CHANGED = true;
+                return true;
+            } else {
+                return false;
             }
-            return ret;
         }
 
-        private static synchronized HELO putExact(String key, HELO value) {
-            HELO ret = MAP.put(key, value);
-            if (!value.equals(ret)) {
+        private static synchronized void putExact(String host, HELO value) {
+            if (MAP.put(getKey(host), value.encode())) {
                 CHANGED = true;
             }
-            return ret;
         }
         
-        private static synchronized TreeSet<String> keySet() {
-            TreeSet<String> keySet = new TreeSet<String>();
-            keySet.addAll(MAP.keySet());
-            return keySet;
+        private static int size() {
+            return MAP.size();
         }
         
-        private static synchronized HashMap<String,HELO> getMap() {
-            HashMap<String,HELO> map = new HashMap<String,HELO>();
-            map.putAll(MAP);
-            return map;
+        private static final Metrics.Histogram STAGE = Metrics.getStage("helo");
+        private static final Metrics.Counter HIT = Metrics.getCacheHit("helo");
+        private static final Metrics.Counter MISS = Metrics.getCacheMiss("helo");
+        
+        static {
+            Metrics.registerCacheSize("helo", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return size();
+                }
+            });
         }
         
         private static HELO getExact(String host) {
-            return MAP.get(host);
+            if (host == null) {
+                return null;
+            } else {
+                byte[] value = MAP.get(getKey(host));
+                if (value == null) {
+                    return null;
+                } else {
+                    return HELO.decode(value);
+                }
+            }
         }
         
         private static synchronized String getRefreshHELO() {
             String helo = hostRefresh;
             hostRefresh = null;
-            heloRefresh = null;
+            countRefresh = 0;
             return helo;
         }
         
-        private static synchronized void addQuery(String host, HELO helo) {
-            helo.queryCount++;
-            helo.lastQuery = System.currentTimeMillis();
-            if (hostRefresh == null || heloRefresh == null) {
-                hostRefresh = host;
-                heloRefresh = helo;
-            } else if (heloRefresh.queryCount < helo.queryCount) {
-                hostRefresh = host;
-                heloRefresh = helo;
+        private static synchronized void addQuery(String host) {
+            byte[] key = getKey(host);
+            int count = MAP.incrementInt(key, QUERY_COUNT);
+            if (count > 0) {
+                MAP.putLong(key, LAST_QUERY, System.currentTimeMillis());
+                if (hostRefresh == null || countRefresh < count) {
+                    hostRefresh = host;
+                    countRefresh = count;
+                }
+                CHANGED = true;
             }
         }
 
@@ -3205,10 +3496,79 @@ public final class SPF implements Serializable {
             
             private HELO(String hostname) {
                 this.lastQuery = System.currentTimeMillis();
-                refresh(hostname);
+                lookup(hostname);
+            }
+            
+            private HELO(TreeSet<String> addressSet, int queryCount, long lastQuery) {
+                this.addressSet = addressSet;
+                this.queryCount = queryCount;
+                this.lastQuery = lastQuery;
+                if (addressSet != null) {
+                    for (String address : addressSet) {
+                        if (SubnetIPv4.isValidIPv4(address)) {
+                            this.address4 = this.address4 == null ? address : "";
+                        } else {
+                            this.address6 = this.address6 == null ? address : "";
+                        }
+                    }
+                    if ("".equals(address4)) {
+                        this.address4 = null;
+                    }
+                    if ("".equals(address6)) {
+                        this.address6 = null;
+                    }
+                }
+            }
+            
+            private byte[] encode() {
+                int length = ADDRESS_COUNT + 2;
+                ArrayList<byte[]> addressList = new ArrayList<byte[]>();
+                if (addressSet != null) {
+                    for (String address : addressSet) {
+                        byte[] bytes = Subnet.packIP(address);
+                        if (bytes != null) {
+                            addressList.add(bytes);
+                            length += 1 + bytes.length;
+                        }
+                    }
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                buffer.putLong(lastQuery);
+                buffer.putInt(queryCount);
+                buffer.putShort(addressSet == null ? -1 : (short) addressList.size());
+                for (byte[] bytes : addressList) {
+                    buffer.put((byte) bytes.length);
+                    buffer.put(bytes);
+                }
+                return buffer.array();
+            }
+            
+            private static HELO decode(byte[] value) {
+                ByteBuffer buffer = ByteBuffer.wrap(value);
+                long lastQuery = buffer.getLong();
+                int queryCount = buffer.getInt();
+                short count = buffer.getShort();
+                TreeSet<String> addressSet = null;
+                if (count >= 0) {
+                    addressSet = new TreeSet<String>();
+                    for (int index = 0; index < count; index++) {
+                        byte[] bytes = new byte[buffer.get()];
+                        buffer.get(bytes);
+                        addressSet.add(Subnet.unpackIP(bytes));
+                    }
+                }
+                return new HELO(addressSet, queryCount, lastQuery);
             }
 
+            /**
+             * Atualiza o registro e o grava no cache.
+             */
             public synchronized void refresh(String hostname) {
+                lookup(hostname);
+                putExact(hostname, this);
+            }
+            
+            private void lookup(String hostname) {
                 long time = System.currentTimeMillis();
                 try {
                     TreeSet<String> ipv4Set = new TreeSet<String>();
@@ -3276,13 +3636,14 @@ public final class SPF implements Serializable {
                 } finally {
                     this.attributes = null;
                     this.queryCount = 0;
-                    CHANGED = true;
                 }
             }
             
             public TreeSet<String> getAddressSet() {
                 TreeSet<String> set = new TreeSet<String>();
-                set.addAll(this.addressSet);
+                if (this.addressSet != null) {
+                    set.addAll(this.addressSet);
+                }
                 return set;
             }
             
@@ -3380,8 +3741,40 @@ public final class SPF implements Serializable {
         }
 
         public static boolean match(String ip, String helo, boolean refresh) {
+            long start = Metrics.time();
+            try {
+                if ((helo = Domain.extractHost(helo, false)) == null) {
+                    return false;
+                } else {
+                    HELO heloObj = getExact(helo);
+                    if (heloObj == null) {
+                        MISS.increment();
+                        heloObj = new HELO(helo);
+                        putExact(helo, heloObj);
+                    } else if (refresh) {
+                        MISS.increment();
+                        heloObj.refresh(helo);
+                        addQuery(helo);
+                    } else {
+                        HIT.increment();
+                        addQuery(helo);
+                    }
+                    return heloObj.contains(ip);
+                }
+            } finally {
+                STAGE.record(start);
+            }
+        }
+
+        /**
+         * Retorna os IPs resolvidos do HELO, criando o registro se necessário.
+         * @param helo o hostname a ser resolvido.
+         * @param refresh se o registro deve ser atualizado no DNS.
+         * @return o conjunto de IPs normalizados, vazio se não houver.
+         */
+        private static TreeSet<String> getAddressSet(String helo, boolean refresh) {
             if ((helo = Domain.extractHost(helo, false)) == null) {
-                return false;
+                return new TreeSet<String>();
             } else {
                 HELO heloObj = getExact(helo);
                 if (heloObj == null) {
@@ -3389,26 +3782,33 @@ public final class SPF implements Serializable {
                     putExact(helo, heloObj);
                 } else if (refresh) {
                     heloObj.refresh(helo);
-                    addQuery(helo, heloObj);
-                    CHANGED = true;
-                } else {
-                    addQuery(helo, heloObj);
-                    CHANGED = true;
                 }
-                return heloObj.contains(ip);
+                return heloObj.getAddressSet();
             }
         }
 
+        /**
+         * Remove os registros sem consulta há mais de 14 dias.
+         * 
+         * A varredura é feita na própria arena fora do heap, pois agendar
+         * cada registro na roda de expiração criaria um objeto por registro.
+         */
         private static void dropExpired() {
-            for (String helo : keySet()) {
-                long time = System.currentTimeMillis();
-                HELO heloObj = getExact(helo);
-                if (heloObj != null && heloObj.isExpired14()) {
-                    heloObj = dropExact(helo);
-                    if (heloObj != null) {
-                        Server.logLookupHELO(time, helo, "EXPIRED");
+            final long time = System.currentTimeMillis();
+            final ArrayList<byte[]> expiredList = new ArrayList<byte[]>();
+            MAP.forEach(new CompactMap.Visitor() {
+                @Override
+                public void visit(byte[] key, ByteBuffer value) {
+                    if (time - value.getLong(LAST_QUERY) > EXPIRE_TIME) {
+                        expiredList.add(key);
                     }
                 }
+            });
+            for (byte[] key : expiredList) {
+                String helo = new String(key, UTF8);
+                if (dropExact(helo)) {
+                    Server.logLookupHELO(time, helo, "EXPIRED");
+                }
             }
         }
 
@@ -3417,22 +3817,25 @@ public final class SPF implements Serializable {
          */
         private static void refresh() {
             String heloMax = getRefreshHELO();
-            HELO heloObjMax = getExact(heloMax);
-            if (heloObjMax == null) {
-                for (String hostname : keySet()) {
-                    HELO heloObj = getExact(hostname);
-                    if (heloObj != null) {
-                        if (heloObjMax == null) {
-                            heloMax = hostname;
-                            heloObjMax = heloObj;
-                        } else if (heloObjMax.queryCount < heloObj.queryCount) {
-                            heloMax = hostname;
-                            heloObjMax = heloObj;
+            if (heloMax == null) {
+                final byte[][] keyMax = new byte[1][];
+                final int[] countMax = new int[1];
+                MAP.forEach(new CompactMap.Visitor() {
+                    @Override
+                    public void visit(byte[] key, ByteBuffer value) {
+                        int count = value.getInt(QUERY_COUNT);
+                        if (keyMax[0] == null || countMax[0] < count) {
+                            keyMax[0] = key;
+                            countMax[0] = count;
                         }
                     }
+                });
+                if (keyMax[0] != null) {
+                    heloMax = new String(keyMax[0], UTF8);
                 }
             }
-            if (heloMax != null && heloObjMax != null && heloObjMax.queryCount > 3) {
+            HELO heloObjMax = getExact(heloMax);
+            if (heloObjMax != null && heloObjMax.queryCount > 3) {
                 heloObjMax.refresh(heloMax);
             }
         }
@@ -3440,17 +3843,11 @@ public final class SPF implements Serializable {
         private static void store() {
             if (CHANGED) {
                 try {
-                    Server.logTrace("storing helo.map");
+                    Server.logTrace("storing helo.dat");
                     long time = System.currentTimeMillis();
-                    File file = new File("./data/helo.map");
-                    HashMap<String,HELO> map = getMap();
-                    FileOutputStream outputStream = new FileOutputStream(file);
-                    try {
-                        SerializationUtils.serialize(map, outputStream);
-                        CHANGED = false;
-                    } finally {
-                        outputStream.close();
-                    }
+                    File file = new File("./data/helo.dat");
+                    MAP.store(file);
+                    CHANGED = false;
                     Server.logStore(time, file);
                 } catch (Exception ex) {
                     Server.logError(ex);
@@ -3460,11 +3857,24 @@ public final class SPF implements Serializable {
 
         private static void load() {
             long time = System.currentTimeMillis();
-            File file = new File("./data/helo.map");
+            File file = new File("./data/helo.dat");
+            File legacy = new File("./data/helo.map");
             if (file.exists()) {
+                try {
+                    if (MAP.load(file)) {
+                        CHANGED = false;
+                        Server.logLoad(time, file);
+                    } else {
+                        Server.logError("invalid file " + file);
+                    }
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                }
+            } else if (legacy.exists()) {
+                // Conversão do formato serializado anterior.
                 try {
                     HashMap<String,Object> map;
-                    FileInputStream fileInputStream = new FileInputStream(file);
+                    FileInputStream fileInputStream = new FileInputStream(legacy);
                     try {
                         map = SerializationUtils.deserialize(fileInputStream);
                     } finally {
@@ -3474,12 +3884,10 @@ public final class SPF implements Serializable {
                         Object value = map.get(key);
                         if (value instanceof HELO) {
                             HELO helo = (HELO) value;
-//                            helo.update();
                             putExact(key, helo);
                         }
                     }
-                    CHANGED = false;
-                    Server.logLoad(time, file);
+                    Server.logLoad(time, legacy);
                 } catch (Exception ex) {
                     Server.logError(ex);
                 }
@@ -3487,8 +3895,8 @@ public final class SPF implements Serializable {
         }
     }
     
-    public static void dropExpiredHELO() {
-        CacheHELO.dropExpired();
+    public static TreeSet<String> getAddressSetHELO(String helo, boolean refresh) {
+        return CacheHELO.getAddressSet(helo, refresh);
     }
     
     public static boolean matchHELO(String ip, String helo, boolean refresh) {
@@ -3499,50 +3907,349 @@ public final class SPF implements Serializable {
         return CacheHELO.match(ip, helo, false);
     }
 
-    protected static String processPostfixSPF(
-            InetAddress ipAddress,
-            Client client,
-            User user,
-            String ip,
-            String sender,
-            String helo,
-            String recipient,
-            LinkedList<User> userResult
-            ) throws ProcessException {
-        if (sender == null) {
-            sender = null;
-        } else if (sender.trim().length() == 0) {
-            sender = null;
-        } else if (Domain.isEmail(sender)) {
-            sender = sender.toLowerCase();
-        } else {
-            sender = null;
+    /**
+     * Memória dos resultados do Postfix independentes do destinatário.
+     *
+     * O Postfix faz uma consulta de política para cada RCPT TO da
+     * mesma mensagem. O reverso, o resultado SPF, os tokens e a origem
+     * dependem apenas do cliente, do IP, do remetente e do HELO, e são
+     * reaproveitados por alguns minutos. A reputação dos tokens também
+     * é contabilizada uma única vez por mensagem para cada tipo, HAM
+     * ou SPAM, ainda que cada destinatário gere o seu próprio ticket.
+     * A mensagem é identificada pelo atributo instance do Postfix.
+     */
+    private static final class MemoPostfix {
+        
+        private static final HashMap<String,MemoPostfix> MAP = new HashMap<String,MemoPostfix>();
+        
+        /**
+         * Validade da memória em milissegundos.
+         */
+        private static final long TIMEOUT = 120000;
+        
+        private static final Expiry.Handler EXPIRY = new Expiry.Handler("postfix") {
+            @Override
+            protected long expire(String key) {
+                MemoPostfix memo = getExact(key);
+                if (memo == null) {
+                    return 0;
+                } else if (memo.isExpired()) {
+                    drop(key, memo);
+                    return 0;
+                } else {
+                    return memo.time + TIMEOUT;
+                }
+            }
+        };
+        
+        private final long time = System.currentTimeMillis();
+        private final TreeSet<String> tokenSet;
+        private final String hostname;
+        private final SPF spf;
+        private final String result;
+        private final String mx;
+        private final String origem;
+        private String instance = null;
+        private long ham = 0;
+        private long spam = 0;
+        
+        private MemoPostfix(
+                TreeSet<String> tokenSet,
+                String hostname,
+                SPF spf,
+                String result,
+                String mx,
+                String origem
+                ) {
+            this.tokenSet = tokenSet;
+            this.hostname = hostname;
+            this.spf = spf;
+            this.result = result;
+            this.mx = mx;
+            this.origem = origem;
         }
-        if (recipient == null) {
-            recipient = null;
-        } else if (recipient.trim().length() == 0) {
-            recipient = null;
-        } else {
-            recipient = recipient.toLowerCase();
+        
+        private static String getKey(Client client, String ip, String sender, String helo) {
+            return (client == null ? "" : client.getEmail()) + ' '
+                    + ip + ' ' + sender + ' ' + helo;
         }
-        if (!Domain.isHostname(helo)) {
-            helo = null;
+        
+        private static synchronized MemoPostfix getExact(String key) {
+            return MAP.get(key);
         }
-        if (!Subnet.isValidIP(ip)) {
-            return "action=554 5.7.1 SPFBL "
-                    + ip + " is not a valid public IP.\n\n";
+        
+        private static synchronized void drop(String key, MemoPostfix memo) {
+            if (MAP.get(key) == memo) {
+                MAP.remove(key);
+            }
+        }
+        
+        private static MemoPostfix get(Client client, String ip, String sender, String helo) {
+            MemoPostfix memo = getExact(getKey(client, ip, sender, helo));
+            if (memo == null || memo.isExpired()) {
+                return null;
+            } else {
+                return memo;
+            }
+        }
+        
+        private static MemoPostfix create(
+                Client client,
+                String ip,
+                String sender,
+                Address senderAddress,
+                String helo
+                ) throws ProcessException {
+            TreeSet<String> tokenSet = new TreeSet<String>();
+            Analise.processToday(ip);
+            tokenSet.add(ip);
+            // Passar a acompanhar todos os 
+            // HELO quando apontados para o IP para 
+            // uma nova forma de interpretar dados.
+            String hostname;
+            if (CacheHELO.match(ip, helo, false)) {
+                hostname = Domain.normalizeHostname(helo, true);
+            } else {
+                hostname = Reverse.getHostname(ip);
+                hostname = Domain.normalizeHostname(hostname, true);
+            }
+            if (hostname == null) {
+                Server.logDebug("no reverse for " + ip + ".");
+            } else {
+                String ipv4 = CacheHELO.getUniqueIPv4(hostname);
+                if (ipv4 != null && CacheHELO.match(ipv4, hostname, false)) {
+                    // Equivalência de pilha dupla se 
+                    // IPv4 for único para o hostname.
+                    tokenSet.add(ipv4);
+                }
+                String ipv6 = CacheHELO.getUniqueIPv6(hostname);
+                if (ipv6 != null && CacheHELO.match(ipv6, hostname, false)) {
+                    // Equivalência de pilha dupla se 
+                    // IPv6 for único para o hostname.
+                    tokenSet.add(ipv6);
+                }
+            }
+            if (Generic.contains(hostname)) {
+                // Quando o reverso for 
+                // genérico, não considerá-lo.
+                hostname = null;
+            } else if (hostname != null) {
+                tokenSet.add(hostname);
+            }
+            String result;
+            LinkedList<String> logList = new LinkedList<String>();
+            SPF spf;
+            if (sender == null) {
+                spf = null;
+                result = "NONE";
+            } else if (!senderAddress.isEmail()) {
+                spf = null;
+                result = "NONE";
+            } else if (senderAddress.isReserved()) {
+                spf = null;
+                result = "NONE";
+            } else if ((spf = CacheSPF.get(sender)) == null) {
+                result = "NONE";
+            } else if (spf.isInexistent()) {
+                result = "NONE";
+            } else {
+                result = spf.getResult(ip, sender, helo, logList);
+            }
+            String origem;
+            String mx = sender == null ? null : senderAddress.getHost(true);
+            Analise.processToday(mx);
+            if (result.equals("PASS") || (sender != null && Provider.containsHELO(ip, helo))) {
+                // Quando fo PASS, significa que o domínio
+                // autorizou envio pelo IP, portanto o dono dele
+                // é responsavel pelas mensagens.
+                if (!Provider.containsExact(mx)) {
+                    // Não é um provedor então
+                    // o MX deve ser listado.
+                    tokenSet.add(mx);
+                    origem = mx;
+                } else if (senderAddress.isValidEmail()) {
+                    // Listar apenas o remetente se o
+                    // hostname for um provedor de e-mail.
+                    tokenSet.add(sender);
+                    origem = sender;
+                } else {
+                    origem = sender;
+                }
+            } else if (hostname == null) {
+                origem = (sender == null ? "" : sender + '>') + ip;
+            } else {
+                String dominio = Domain.extractDomain(hostname, true);
+                origem = (sender == null ? "" : sender + '>') + (dominio == null ? hostname : dominio.substring(1));
+            }
+            MemoPostfix memo = new MemoPostfix(tokenSet, hostname, spf, result, mx, origem);
+            if (Deadline.isDegraded()) {
+                // Resultado parcial por falta de prazo: não reaproveitar,
+                // para que o próximo destinatário recalcule com prazo cheio.
+                return memo;
+            } else {
+                String key = getKey(client, ip, sender, helo);
+                synchronized (MemoPostfix.class) {
+                    MAP.put(key, memo);
+                }
+                EXPIRY.register(key, memo.time + TIMEOUT);
+                return memo;
+            }
+        }
+        
+        private boolean isExpired() {
+            return System.currentTimeMillis() - time > TIMEOUT;
+        }
+        
+        /**
+         * @return uma cópia dos tokens para acrescentar os do destinatário.
+         */
+        private TreeSet<String> getTokenSet() {
+            return new TreeSet<String>(tokenSet);
+        }
+        
+        /**
+         * Reinicia a contabilização quando a instância do Postfix muda,
+         * pois a instância identifica cada mensagem da sessão SMTP.
+         */
+        private void setInstance(String instance) {
+            if (!instance.equals(this.instance)) {
+                this.instance = instance;
+                this.ham = 0;
+                this.spam = 0;
+            }
+        }
+        
+        /**
+         * @param instance o identificador da mensagem no Postfix.
+         * @param time o instante do ticket do destinatário.
+         * @return o instante do ticket que contabilizou HAM para a
+         * mensagem, que é o próprio instante na primeira contabilização
+         * ou sempre que a mensagem não for identificada.
+         */
+        private synchronized long getCountedHam(String instance, long time) {
+            if (instance == null) {
+                return time;
+            } else {
+                setInstance(instance);
+                if (ham == 0) {
+                    ham = time;
+                }
+                return ham;
+            }
+        }
+        
+        /**
+         * @param instance o identificador da mensagem no Postfix.
+         * @param time o instante do ticket do destinatário.
+         * @return o instante do ticket que contabilizou SPAM para a
+         * mensagem, que é o próprio instante na primeira contabilização
+         * ou sempre que a mensagem não for identificada.
+         */
+        private synchronized long getCountedSpam(String instance, long time) {
+            if (instance == null) {
+                return time;
+            } else {
+                setInstance(instance);
+                if (spam == 0) {
+                    spam = time;
+                }
+                return spam;
+            }
+        }
+    }
+
+    private static boolean isWarmupState(String protocolState) {
+        if (protocolState == null) {
+            return false;
+        } else if (protocolState.equals("CONNECT")) {
+            return true;
+        } else if (protocolState.equals("HELO")) {
+            return true;
+        } else if (protocolState.equals("EHLO")) {
+            return true;
+        } else if (protocolState.equals("MAIL")) {
+            return true;
+        } else {
+            return false;
+        }
+    }
+    
+    /**
+     * Calcula antecipadamente os resultados independentes do
+     * destinatário, para a consulta do RCPT encontrá-los em memória.
+     */
+    static void warmPostfix(Client client, String ip, String sender, String helo) {
+        Address senderAddress = Address.parse(sender);
+        sender = senderAddress.isEmail() ? senderAddress.getEmail() : null;
+        if (!Domain.isHostname(helo)) {
+            helo = null;
+        }
+        if (MemoPostfix.get(client, ip, sender, helo) == null) {
+            try {
+                MemoPostfix.create(client, ip, sender, senderAddress, helo);
+            } catch (ProcessException ex) {
+                Server.logDebug("warm-up of " + ip + " failed: " + ex.getMessage());
+            }
+        }
+    }
+    
+    protected static String processPostfixSPF(
+            InetAddress ipAddress,
+            Client client,
+            User user,
+            String ip,
+            String sender,
+            String helo,
+            String recipient,
+            String instance,
+            String protocolState,
+            LinkedList<User> userResult
+            ) throws ProcessException {
+        // Interpretação única dos endereços da consulta.
+        Address senderAddress = Address.parse(sender);
+        Address remoteAddress = Address.parse(ip);
+        if (senderAddress.isEmail()) {
+            sender = senderAddress.getEmail();
+        } else {
+            sender = null;
+        }
+        if (recipient == null) {
+            recipient = null;
+        } else if (recipient.trim().length() == 0) {
+            recipient = null;
+        } else {
+            recipient = recipient.toLowerCase();
+        }
+        if (!Domain.isHostname(helo)) {
+            helo = null;
+        }
+        if (!remoteAddress.isIP()) {
+            return "action=554 5.7.1 SPFBL "
+                    + ip + " is not a valid public IP.\n\n";
         } else if (Subnet.isReservedIP(ip)) {
             // Message from LAN.
             return "action=DUNNO\n\n";
         } else if (client != null && client.contains(ip)) {
             // Message from LAN.
             return "action=DUNNO\n\n";
+        } else if (Warmup.isEnabled() && isWarmupState(protocolState)) {
+            // Estágio anterior ao RCPT: apenas aquecer os caches.
+            if (protocolState.equals("MAIL")) {
+                Warmup.mail(client, remoteAddress.getIP(), sender, helo);
+            } else {
+                Warmup.connect(remoteAddress.getIP(), helo);
+            }
+            return "action=DUNNO\n\n";
         } else {
             try {
-                TreeSet<String> tokenSet = new TreeSet<String>();
-                ip = Subnet.normalizeIP(ip);
-                Analise.processToday(ip);
-                tokenSet.add(Subnet.normalizeIP(ip));
+                ip = remoteAddress.getIP();
+                // Resultados independentes do destinatário, calculados
+                // uma única vez para todos os destinatários da mensagem.
+                MemoPostfix memo = MemoPostfix.get(client, ip, sender, helo);
+                if (memo == null) {
+                    memo = MemoPostfix.create(client, ip, sender, senderAddress, helo);
+                }
+                TreeSet<String> tokenSet = memo.getTokenSet();
                 if (Domain.isValidEmail(recipient)) {
                     // Se houver um remetente válido,
                     // Adicionar no ticket para controle externo.
@@ -3563,88 +4270,12 @@ public final class SPF implements Serializable {
                 } else if (client != null && client.hasEmail()) {
                     tokenSet.add(client.getEmail() + ':');
                 }
-                // Passar a acompanhar todos os 
-                // HELO quando apontados para o IP para 
-                // uma nova forma de interpretar dados.
-                String hostname;
-                if (CacheHELO.match(ip, helo, false)) {
-                    hostname = Domain.normalizeHostname(helo, true);
-                } else {
-                    hostname = Reverse.getHostname(ip);
-                    hostname = Domain.normalizeHostname(hostname, true);
-                }
-                if (hostname == null) {
-                    Server.logDebug("no reverse for " + ip + ".");
-                } else {
-                    String ipv4 = CacheHELO.getUniqueIPv4(hostname);
-                    if (ipv4 != null && CacheHELO.match(ipv4, hostname, false)) {
-                        // Equivalência de pilha dupla se 
-                        // IPv4 for único para o hostname.
-                        tokenSet.add(ipv4);
-                    }
-                    String ipv6 = CacheHELO.getUniqueIPv6(hostname);
-                    if (ipv6 != null && CacheHELO.match(ipv6, hostname, false)) {
-                        // Equivalência de pilha dupla se 
-                        // IPv6 for único para o hostname.
-                        tokenSet.add(ipv6);
-                    }
-                }
-                if (Generic.contains(hostname)) {
-                    // Quando o reverso for 
-                    // genérico, não considerá-lo.
-                    hostname = null;
-                } else if (hostname != null) {
-                    tokenSet.add(hostname);
-                }
-                String result;
-                LinkedList<String> logList = new LinkedList<String>();
-                SPF spf;
-                if (sender == null) {
-                    spf = null;
-                    result = "NONE";
-                } else if (!Domain.isEmail(sender)) {
-                    spf = null;
-                    result = "NONE";
-                } else if (Domain.isReserved(sender)) {
-                    spf = null;
-                    result = "NONE";
-                } else if ((spf = CacheSPF.get(sender)) == null) {
-                    result = "NONE";
-                } else if (spf.isInexistent()) {
-                    result = "NONE";
-                } else {
-                    result = spf.getResult(ip, sender, helo, logList);
-                }
-                String origem;
-                String fluxo;
-                String mx = Domain.extractHost(sender, true);
-                Analise.processToday(mx);
-                if (result.equals("PASS") || (sender != null && Provider.containsHELO(ip, helo))) {
-                    // Quando fo PASS, significa que o domínio
-                    // autorizou envio pelo IP, portanto o dono dele
-                    // é responsavel pelas mensagens.
-                    if (!Provider.containsExact(mx)) {
-                        // Não é um provedor então
-                        // o MX deve ser listado.
-                        tokenSet.add(mx);
-                        origem = mx;
-                    } else if (Domain.isValidEmail(sender)) {
-                        // Listar apenas o remetente se o
-                        // hostname for um provedor de e-mail.
-                        tokenSet.add(sender);
-                        origem = sender;
-                    } else {
-                        origem = sender;
-                    }
-                    fluxo = origem + ">" + recipient;
-                } else if (hostname == null) {
-                    origem = (sender == null ? "" : sender + '>') + ip;
-                    fluxo = origem + ">" + recipient;
-                } else {
-                    String dominio = Domain.extractDomain(hostname, true);
-                    origem = (sender == null ? "" : sender + '>') + (dominio == null ? hostname : dominio.substring(1));
-                    fluxo = origem + ">" + recipient;
-                }
+                String hostname = memo.hostname;
+                SPF spf = memo.spf;
+                String result = memo.result;
+                String mx = memo.mx;
+                String origem = memo.origem;
+                String fluxo = origem + ">" + recipient;
                 Long recipientTrapTime = Trap.getTime(client, user, recipient);
                 if (recipientTrapTime == null && White.contains(client, user, ip, sender, hostname, result, recipient)) {
                     if (White.contains(client, user, ip, sender, hostname, result, null)) {
@@ -3654,8 +4285,8 @@ public final class SPF implements Serializable {
                     // Calcula frequencia de consultas.
                     String url = Core.getURL();
 //                    String ticket = SPF.addQueryHam(tokenSet);
-                    String ticket = SPF.addQueryHam(
-                            client, user, ip, helo, hostname, sender,
+                    String ticket = addQueryHam(
+                            memo, instance, client, user, ip, helo, hostname, sender,
                             result, recipient, tokenSet, "WHITE"
                     );
                     return "action=PREPEND "
@@ -3665,8 +4296,8 @@ public final class SPF implements Serializable {
                     Action action = client == null ? Action.REJECT : client.getActionBLOCK();
                     if (action == Action.REJECT) {
                         // Calcula frequencia de consultas.
-                        SPF.addQuerySpam(
-                                client, user, ip, helo, hostname, sender,
+                        addQuerySpam(
+                                memo, instance, client, user, ip, helo, hostname, sender,
                                 result, recipient, tokenSet, "BLOCK"
                         );
                         String url = Core.getUnblockURL(
@@ -3698,8 +4329,8 @@ public final class SPF implements Serializable {
                 } else if (spf != null && spf.isDefinitelyInexistent()) {
                     // O domínio foi dado como inexistente inúmeras vezes.
                     // Rejeitar e denunciar o host pois há abuso de tentativas.
-                    SPF.addQuerySpam(
-                            client, user, ip, helo, hostname, sender,
+                    addQuerySpam(
+                            memo, instance, client, user, ip, helo, hostname, sender,
                             result, recipient, tokenSet, "NXDOMAIN"
                     );
                     return "action=554 5.7.1 SPFBL "
@@ -3719,8 +4350,8 @@ public final class SPF implements Serializable {
                             Server.logDebug("new BLOCK '" + block + "' added by '" + recipient + ";FAIL'.");
                         }
                     }
-                    SPF.addQuerySpam(
-                            client, user, ip, helo, hostname, sender,
+                    addQuerySpam(
+                            memo, instance, client, user, ip, helo, hostname, sender,
                             result, recipient, tokenSet, "FAIL"
                     );
                     // Retornar REJECT somente se não houver 
@@ -3729,15 +4360,15 @@ public final class SPF implements Serializable {
                             + sender + " is not allowed to "
                             + "send mail from " + ip + ".\n\n";
                 } else if (sender != null && !Domain.isEmail(sender)) {
-                    SPF.addQuerySpam(
-                            client, user, ip, helo, hostname, sender,
+                    addQuerySpam(
+                            memo, instance, client, user, ip, helo, hostname, sender,
                             result, recipient, tokenSet, "INVALID"
                     );
                     return "action=554 5.7.1 SPFBL "
                             + sender + " is not a valid e-mail address.\n\n";
                 } else if (sender != null && Domain.isReserved(sender)) {
-                    SPF.addQuerySpam(
-                            client, user, ip, helo, hostname, sender,
+                    addQuerySpam(
+                            memo, instance, client, user, ip, helo, hostname, sender,
                             result, recipient, tokenSet, "RESERVED"
                     );
                     return "action=554 5.7.1 SPFBL "
@@ -3777,15 +4408,15 @@ public final class SPF implements Serializable {
                         }
                     }
 //                    SPF.addQuerySpam(tokenSet);
-                    SPF.addQuerySpam(
-                            client, user, ip, helo, hostname, sender,
+                    addQuerySpam(
+                            memo, instance, client, user, ip, helo, hostname, sender,
                             result, recipient, tokenSet, "INVALID"
                     );
                     return "action=554 5.7.1 SPFBL invalid hostname.\n\n";
                 } else if (hostname == null && Core.isReverseRequired()) {
 //                    SPF.addQuerySpam(tokenSet);
-                    SPF.addQuerySpam(
-                            client, user, ip, helo, hostname, sender,
+                    addQuerySpam(
+                            memo, instance, client, user, ip, helo, hostname, sender,
                             result, recipient, tokenSet, "INVALID"
                     );
                     if (Block.tryAdd(ip)) {
@@ -3807,8 +4438,8 @@ public final class SPF implements Serializable {
                             }
                         }
                         // Calcula frequencia de consultas.
-                        SPF.addQuerySpam(
-                                client, user, ip, helo, hostname, sender,
+                        addQuerySpam(
+                                memo, instance, client, user, ip, helo, hostname, sender,
                                 result, recipient, tokenSet, "TRAP"
                         );
                         return "action=DISCARD SPFBL discarded by spamtrap.\n\n";
@@ -3838,8 +4469,8 @@ public final class SPF implements Serializable {
                     Defer.end(fluxo);
                     Server.logDefer(time, fluxo, "DEFER FLOOD");
 //                    SPF.addQuerySpam(tokenSet);
-                    SPF.addQuerySpam(
-                            client, user, ip, helo, hostname, sender,
+                    addQuerySpam(
+                            memo, instance, client, user, ip, helo, hostname, sender,
                             result, recipient, tokenSet, "FLOOD"
                     );
                     return "action=554 5.7.1 SPFBL too many retries.\n\n";
@@ -3852,8 +4483,8 @@ public final class SPF implements Serializable {
                         }
                     }
 //                    SPF.addQuerySpam(tokenSet);
-                    SPF.addQuerySpam(
-                            client, user, ip, helo, hostname, sender,
+                    addQuerySpam(
+                            memo, instance, client, user, ip, helo, hostname, sender,
                             result, recipient, tokenSet, "INVALID"
                     );
                     return "action=554 5.7.1 SPFBL invalid hostname.\n\n";
@@ -3870,8 +4501,8 @@ public final class SPF implements Serializable {
                     // O remetente é válido e tem excelente reputação,
                     // ainda que o provedor dele esteja com reputação ruim.
                     String url = Core.getURL();
-                    String ticket = SPF.addQueryHam(
-                            client, user, ip, helo, hostname, sender,
+                    String ticket = addQueryHam(
+                            memo, instance, client, user, ip, helo, hostname, sender,
                             result, recipient, tokenSet, "ACCEPT"
                     );
                     return "action=PREPEND "
@@ -3882,8 +4513,8 @@ public final class SPF implements Serializable {
                     if (action == Action.REJECT) {
                         // Calcula frequencia de consultas.
 //                        SPF.addQuerySpam(tokenSet);
-                        SPF.addQuerySpam(
-                                client, user, ip, helo, hostname, sender,
+                        addQuerySpam(
+                                memo, instance, client, user, ip, helo, hostname, sender,
                                 result, recipient, tokenSet, "REJECT"
                         );
                         return "action=554 5.7.1 SPFBL "
@@ -3910,8 +4541,8 @@ public final class SPF implements Serializable {
                         } else {
                             // Calcula frequencia de consultas.
 //                            SPF.addQuerySpam(tokenSet);
-                            SPF.addQuerySpam(
-                                    client, user, ip, helo, hostname, sender,
+                            addQuerySpam(
+                                    memo, instance, client, user, ip, helo, hostname, sender,
                                     result, recipient, tokenSet, "REJECT"
                             );
                             return "action=554 5.7.1 SPFBL too many retries.\n\n";
@@ -3983,8 +4614,8 @@ public final class SPF implements Serializable {
                 } else {
                     // Calcula frequencia de consultas.
                     String url = Core.getURL();
-                    String ticket = SPF.addQueryHam(
-                            client, user, ip, helo, hostname, sender,
+                    String ticket = addQueryHam(
+                            memo, instance, client, user, ip, helo, hostname, sender,
                             result, recipient, tokenSet, "ACCEPT"
                     );
                     return "action=PREPEND "
@@ -4649,7 +5280,10 @@ public final class SPF implements Serializable {
                                 helo = helo.substring(1, helo.length() - 1);
                             }
                         }
-                        if (!Subnet.isValidIP(ip)) {
+                        // Interpretação única dos endereços da consulta.
+                        Address senderAddress = Address.parse(sender);
+                        Address remoteAddress = Address.parse(ip);
+                        if (!remoteAddress.isIP()) {
                             return "INVALID\n";
                         } else if (Subnet.isReservedIP(ip)) {
                             // Message from LAN.
@@ -4659,7 +5293,7 @@ public final class SPF implements Serializable {
                             return "LAN\n";
                         } else {
                             TreeSet<String> tokenSet = new TreeSet<String>();
-                            ip = Subnet.normalizeIP(ip);
+                            ip = remoteAddress.getIP();
                             Analise.processToday(ip);
                             tokenSet.add(ip);
                             if (Domain.isValidEmail(recipient)) {
@@ -4731,10 +5365,10 @@ public final class SPF implements Serializable {
                             if (sender == null) {
                                 spf = null;
                                 result = "NONE";
-                            } else if (!Domain.isEmail(sender)) {
+                            } else if (!senderAddress.isEmail()) {
                                 spf = null;
                                 result = "NONE";
-                            } else if (Domain.isReserved(sender)) {
+                            } else if (senderAddress.isReserved()) {
                                 spf = null;
                                 result = "NONE";
                             } else if ((spf = CacheSPF.get(sender)) == null) {
@@ -4744,7 +5378,7 @@ public final class SPF implements Serializable {
                             } else {
                                 result = spf.getResult(ip, sender, helo, logList);
                             }
-                            String mx = Domain.extractHost(sender, true);
+                            String mx = senderAddress.getHost(true);
                             Analise.processToday(mx);
                             if (result.equals("PASS") || (sender != null && Provider.containsHELO(ip, hostname))) {
                                 // Quando fo PASS, significa que o domínio
@@ -4755,7 +5389,7 @@ public final class SPF implements Serializable {
                                     // o MX deve ser listado.
                                     tokenSet.add(mx);
                                     origem = mx;
-                                } else if (Domain.isValidEmail(sender)) {
+                                } else if (senderAddress.isValidEmail()) {
                                     // Listar apenas o remetente se o
                                     // hostname for um provedor de e-mail.
                                     tokenSet.add(sender);
@@ -5205,7 +5839,18 @@ public final class SPF implements Serializable {
         }
     }
     
+    private static final Metrics.Histogram STAGE_TICKET = Metrics.getStage("ticket");
+    
     public static String createTicket(long time, TreeSet<String> tokenSet) throws ProcessException {
+        long start = Metrics.time();
+        try {
+            return createTicketInternal(time, tokenSet);
+        } finally {
+            STAGE_TICKET.record(start);
+        }
+    }
+    
+    private static String createTicketInternal(long time, TreeSet<String> tokenSet) throws ProcessException {
         String ticket = "spam";
         for (String token : tokenSet) {
             ticket += " " + token;
@@ -5314,14 +5959,43 @@ public final class SPF implements Serializable {
             TreeSet<String> tokenSet,
             String result
             ) throws ProcessException {
+        return addQueryHam(
+                null, null, client, user, ip, helo, hostname,
+                sender, qualifier, recipient, tokenSet, result
+        );
+    }
+    
+    /**
+     * @param memo a consulta memorizada da sessão SMTP ou nulo.
+     * @param instance o identificador da mensagem no Postfix.
+     */
+    private static String addQueryHam(
+            MemoPostfix memo,
+            String instance,
+            Client client,
+            User user,
+            String ip,
+            String helo,
+            String hostname,
+            String sender,
+            String qualifier,
+            String recipient,
+            TreeSet<String> tokenSet,
+            String result
+            ) throws ProcessException {
         long time = Server.getNewUniqueTime();
         String ticket = SPF.createTicket(time, tokenSet);
-        for (String token : expandTokenSet(tokenSet)) {
-            if (isValidReputation(token)) {
-                Distribution distribution = CacheDistribution.get(token, true);
-                distribution.addQueryHam(time);
-                distribution.getStatus(token);
+        long counted = memo == null ? time : memo.getCountedHam(instance, time);
+        if (counted == time) {
+            for (String token : expandTokenSet(tokenSet)) {
+                if (isValidReputation(token)) {
+                    Distribution distribution = CacheDistribution.get(token, true);
+                    distribution.addQueryHam(time);
+                    distribution.getStatus(token);
+                }
             }
+        } else {
+            CacheDistribution.addUncounted(time, counted);
         }
         if (user != null) {
             user.addQuery(
@@ -5383,19 +6057,48 @@ public final class SPF implements Serializable {
             TreeSet<String> tokenSet,
             String result
             ) throws ProcessException {
+        addQuerySpam(
+                null, null, client, user, ip, helo, hostname,
+                sender, qualifier, recipient, tokenSet, result
+        );
+    }
+    
+    /**
+     * @param memo a consulta memorizada da sessão SMTP ou nulo.
+     * @param instance o identificador da mensagem no Postfix.
+     */
+    private static void addQuerySpam(
+            MemoPostfix memo,
+            String instance,
+            Client client,
+            User user,
+            String ip,
+            String helo,
+            String hostname,
+            String sender,
+            String qualifier,
+            String recipient,
+            TreeSet<String> tokenSet,
+            String result
+            ) throws ProcessException {
         long time = Server.getNewUniqueTime();
-        for (String token : expandTokenSet(tokenSet)) {
-            if (isValidReputation(token)) {
-                Distribution distribution = CacheDistribution.get(token, true);
-                if (Ignore.contains(token)) {
-                    distribution.addQueryHam(time);
-                    distribution.getStatus(token);
-                } else {
-                    distribution.addQuerySpam(time);
-                    distribution.getStatus(token);
-                    Peer.sendToAll(token, distribution);
+        long counted = memo == null ? time : memo.getCountedSpam(instance, time);
+        if (counted == time) {
+            for (String token : expandTokenSet(tokenSet)) {
+                if (isValidReputation(token)) {
+                    Distribution distribution = CacheDistribution.get(token, true);
+                    if (Ignore.contains(token)) {
+                        distribution.addQueryHam(time);
+                        distribution.getStatus(token);
+                    } else {
+                        distribution.addQuerySpam(time);
+                        distribution.getStatus(token);
+                        Peer.sendToAll(token, distribution);
+                    }
                 }
             }
+        } else {
+            CacheDistribution.addUncounted(time, counted);
         }
         if (user != null) {
             user.addQuery(time, client, ip, helo, hostname,
@@ -5636,6 +6339,193 @@ public final class SPF implements Serializable {
     private static final float LIMIAR1 = 0.25f;
     private static final float LIMIAR2 = 0.50f;
     private static final float LIMIAR3 = 0.75f;
+    
+    /**
+     * Modelo de reputação das distribuições.
+     */
+    public enum Backend {
+        SET, // Conjuntos de instantes HAM e SPAM dos últimos sete dias.
+        DECAY, // Contadores com decaimento exponencial.
+        COMPARE // Conjuntos decidem, contadores avaliados lado a lado.
+    }
+    
+    private static Backend BACKEND = Backend.SET;
+    
+    private static final String DISAGREEMENT = "spfbl_reputation_disagreement_total";
+    
+    static {
+        Metrics.setHelp(DISAGREEMENT, "Status disagreements between the SET and DECAY reputation models.");
+    }
+    
+    public static void setReputationBackend(String backend) {
+        if (backend != null && backend.length() > 0) {
+            try {
+                setReputationBackend(Backend.valueOf(backend.toUpperCase()));
+            } catch (IllegalArgumentException ex) {
+                Server.logError("invalid reputation backend '" + backend + "'.");
+            }
+        }
+    }
+    
+    public static synchronized void setReputationBackend(Backend backend) {
+        if (backend != null) {
+            SPF.BACKEND = backend;
+        }
+    }
+    
+    private static synchronized Backend getReputationBackend() {
+        return BACKEND;
+    }
+    
+    /**
+     * Próximo status da máquina de estados a partir da probabilidade:
+     * lista num pico e só retira a listagem quando a probabilidade
+     * cair consideravelmente após este pico.
+     */
+    private static Status getNextStatus(Status statusOld, float probability) {
+        if (probability < LIMIAR1) {
+            return Status.GREEN;
+        } else if (probability > LIMIAR2) {
+            return Status.RED;
+        } else if (statusOld == Status.RED) {
+            return Status.RED;
+        } else {
+            return Status.YELLOW;
+        }
+    }
+    
+    /**
+     * Reputação em poucos primitivos com decaimento exponencial.
+     *
+     * Os contadores HAM e SPAM perdem peso continuamente com vida
+     * média de sete dias, o que equivale em massa à janela fixa de
+     * sete dias dos conjuntos. O intervalo entre consultas é uma média
+     * móvel exponencial. Cada atualização é O(1) e não há varredura
+     * de expiração: o decaimento é aplicado na própria atualização.
+     *
+     * Enquanto não houver sete dias de histórico, o total da semana
+     * é estimado pelo intervalo médio, como faz o conjunto ainda
+     * não pronto com a frequência mínima.
+     */
+    public static final class Decay implements Serializable {
+        
+        private static final long serialVersionUID = 1L;
+        
+        /**
+         * Vida média dos contadores em milissegundos.
+         */
+        private static final double TAU = 604800000.0d;
+        
+        /**
+         * Peso da última amostra na média do intervalo.
+         */
+        private static final float ALPHA = 0.125f;
+        
+        private double ham;
+        private double spam;
+        private long time;
+        private float interval = 0.0f; // Intervalo médio em segundos.
+        private long start; // Início do histórico.
+        private boolean ready; // Histórico de sete dias completo.
+        private Status status = Status.GREEN;
+        
+        private Decay(double ham, double spam, long time, boolean ready) {
+            this.ham = ham;
+            this.spam = spam;
+            this.time = time;
+            this.start = time;
+            this.ready = ready;
+        }
+        
+        private synchronized Decay replicate() {
+            Decay clone = new Decay(ham, spam, time, ready);
+            clone.start = this.start;
+            clone.interval = this.interval;
+            clone.status = this.status;
+            return clone;
+        }
+        
+        /**
+         * Aplica o decaimento até o instante e retorna o peso de um
+         * evento ocorrido no instante informado.
+         */
+        private double advance(long eventTime) {
+            if (eventTime > time) {
+                double factor = Math.exp((time - eventTime) / TAU);
+                ham *= factor;
+                spam *= factor;
+                time = eventTime;
+                return 1.0d;
+            } else {
+                return Math.exp((eventTime - time) / TAU);
+            }
+        }
+        
+        private synchronized void addHam(long eventTime) {
+            ham += advance(eventTime);
+        }
+        
+        private synchronized void addSpam(long eventTime) {
+            spam += advance(eventTime);
+        }
+        
+        /**
+         * Reclassifica um evento já contabilizado.
+         * @param toSpam verdadeiro de HAM para SPAM, falso ao contrário.
+         */
+        private synchronized void move(long eventTime, boolean toSpam) {
+            double weight = advance(eventTime);
+            if (toSpam) {
+                ham = Math.max(0.0d, ham - weight);
+                spam += weight;
+            } else {
+                spam = Math.max(0.0d, spam - weight);
+                ham += weight;
+            }
+        }
+        
+        private synchronized void addInterval(float seconds) {
+            if (interval == 0.0f) {
+                interval = seconds;
+            } else {
+                interval += ALPHA * (seconds - interval);
+            }
+        }
+        
+        private synchronized void clear() {
+            ham += spam;
+            spam = 0.0d;
+            status = Status.GREEN;
+        }
+        
+        private synchronized int[] getBinomial() {
+            advance(System.currentTimeMillis());
+            ready |= time - start >= TAU;
+            int[] result = new int[2];
+            if (ready) {
+                result[0] = (int) Math.round(ham);
+                result[1] = (int) Math.round(spam);
+            } else if (interval > 0.0f) {
+                int complain = (int) Math.round(spam);
+                double semana = 60 * 60 * 24 * 7;
+                int total = (int) (semana / interval);
+                if (total < complain) {
+                    total = complain;
+                }
+                result[0] = total - complain;
+                result[1] = complain;
+            }
+            return result;
+        }
+        
+        private synchronized Status getStatus(float probability) {
+            return status = getNextStatus(status, probability);
+        }
+        
+        public synchronized float getInterval() {
+            return interval;
+        }
+    }
 
     /**
      * Classe que representa a distribuição binomial entre SPAM e HAM.
@@ -5652,6 +6542,7 @@ public final class SPF implements Serializable {
         private TreeSet<Long> spamSet = new TreeSet<Long>();
         private boolean ready = false;
         private boolean good = false;
+        private Decay decay = null; // Modelo alternativo, mantido se selecionado.
         
         public Distribution() {
             lastQuery = 0;
@@ -5665,6 +6556,7 @@ public final class SPF implements Serializable {
             lastQuery = 0;
             status = Status.GREEN;
             frequency = null;
+            decay = null;
             CacheDistribution.CHANGED = true;
         }
         
@@ -5676,8 +6568,33 @@ public final class SPF implements Serializable {
             clone.hamSet.addAll(this.hamSet);
             clone.spamSet.addAll(this.spamSet);
             clone.ready = this.ready;
+            clone.decay = this.decay == null ? null : this.decay.replicate();
             return clone;
         }
+        
+        /**
+         * Retorna o modelo com decaimento, criando-o a partir dos
+         * conjuntos atuais na primeira vez que for selecionado.
+         * @return o modelo ou nulo se não estiver selecionado.
+         */
+        private synchronized Decay getDecay() {
+            if (getReputationBackend() == Backend.SET) {
+                return null;
+            } else if (decay == null) {
+                decay = new Decay(hamSet.size(), spamSet.size(), System.currentTimeMillis(), ready);
+                if (frequency != null && frequency.getMinimum() > 0.0d) {
+                    decay.interval = (float) frequency.getMinimum();
+                }
+            }
+            return decay;
+        }
+        
+        /**
+         * @return verdadeiro se os instantes HAM devem ser guardados.
+         */
+        private boolean isKeepingHam() {
+            return getReputationBackend() != Backend.DECAY;
+        }
 
         public boolean isExpired7() {
             return System.currentTimeMillis() - lastQuery > 604800000;
@@ -5687,6 +6604,28 @@ public final class SPF implements Serializable {
             return System.currentTimeMillis() - lastQuery > 604800000 * 2;
         }
         
+        /**
+         * Retorna o próximo prazo de verificação de expiração,
+         * seja da distribuição inteira ou da consulta mais antiga.
+         * @return o próximo prazo em milissegundos.
+         */
+        public synchronized long getExpiration() {
+            long expiration;
+            if (lastQuery > 0) {
+                expiration = lastQuery + 604800000 * 2;
+            } else {
+                // Sem consulta, apenas revisão diária.
+                expiration = System.currentTimeMillis() + Server.DAY_TIME;
+            }
+            if (!hamSet.isEmpty()) {
+                expiration = Math.min(expiration, hamSet.first() + 604800000);
+            }
+            if (!spamSet.isEmpty()) {
+                expiration = Math.min(expiration, spamSet.first() + 604800000);
+            }
+            return expiration;
+        }
+        
         public synchronized boolean dropExpiredQuery() {
             long time = System.currentTimeMillis() - 604800000;
             TreeSet<Long> removeSet = new TreeSet<Long>();
@@ -5703,8 +6642,14 @@ public final class SPF implements Serializable {
         }
 
         public synchronized boolean clear() {
-            hamSet.addAll(spamSet);
+            Decay decayLocal = getDecay();
+            if (isKeepingHam()) {
+                hamSet.addAll(spamSet);
+            }
             spamSet.clear();
+            if (decayLocal != null) {
+                decayLocal.clear();
+            }
             status = Status.GREEN;
             CacheDistribution.CHANGED = true;
             return true;
@@ -5770,6 +6715,10 @@ public final class SPF implements Serializable {
             if (refresh) {
                 lastQuery = currentTime;
                 CacheDistribution.CHANGED = true;
+                Decay decayLocal = getDecay();
+                if (decayLocal != null && interval > 0.0f) {
+                    decayLocal.addInterval(interval);
+                }
             }
             return interval;
         }
@@ -5789,7 +6738,7 @@ public final class SPF implements Serializable {
         }
         
         public void addQuerySpam(long time) {
-            addSpam(time);
+            addSpam(time, true);
             float interval = getInterval(time, true);
             if (interval == 0.0f) {
                 // Se não houver intervalo definido,
@@ -5803,16 +6752,24 @@ public final class SPF implements Serializable {
         }
         
         public synchronized int getHAM() {
-            return hamSet.size();
+            if (isKeepingHam()) {
+                return hamSet.size();
+            } else {
+                return getDecay().getBinomial()[0];
+            }
         }
         
         public synchronized int getSPAM() {
-            return spamSet.size();
+            if (isKeepingHam()) {
+                return spamSet.size();
+            } else {
+                return getDecay().getBinomial()[1];
+            }
         }
         
         public synchronized float getSpamProbability() {
-            int ham = hamSet.size();
-            int spam = spamSet.size();
+            int ham = getHAM();
+            int spam = getSPAM();
             if (ham + spam == 0) {
                 return 0.0f;
             } else {
@@ -5822,6 +6779,12 @@ public final class SPF implements Serializable {
         
         public float getSpamProbability(String token) {
             int[] binomial = getBinomial();
+            addPeerBinomial(token, binomial);
+            good = binomial[0] > 512 && binomial[1] < 32;
+            return getProbability(binomial);
+        }
+        
+        private static void addPeerBinomial(String token, int[] binomial) {
             if (token != null) {
                 for (Peer peer : Peer.getSet()) {
                     short reputationMax = peer.getReputationMax();
@@ -5842,9 +6805,11 @@ public final class SPF implements Serializable {
                     }
                 }
             }
+        }
+        
+        private static float getProbability(int[] binomial) {
             int total = binomial[0] + binomial[1];
             float probability = (float) binomial[1] / (float) total;
-            good = binomial[0] > 512 && binomial[1] < 32;
             if (total == 0) {
                 return 0.0f;
             } else if (probability > LIMIAR1 && binomial[1] < 3) {
@@ -5878,18 +6843,39 @@ public final class SPF implements Serializable {
         public Status getStatus(String token) {
             Status statusOld = status;
             float probability = getSpamProbability(token);
-            if (probability < LIMIAR1) {
-                status = Status.GREEN;
-            } else if (probability > LIMIAR2) {
-                status = Status.RED;
-            } else if (statusOld == Status.RED) {
-                status = Status.RED;
-            } else {
-                status = Status.YELLOW;
+            status = getNextStatus(statusOld, probability);
+            if (getReputationBackend() == Backend.COMPARE) {
+                compare(token);
             }
             return status;
         }
         
+        /**
+         * Avalia o modelo com decaimento com os mesmos limiares
+         * e registra quando o status dele diverge do atual.
+         */
+        private void compare(String token) {
+            Decay decayLocal = getDecay();
+            if (decayLocal != null) {
+                int[] binomial = decayLocal.getBinomial();
+                addPeerBinomial(token, binomial);
+                float probability = getProbability(binomial);
+                Status statusDecay = decayLocal.getStatus(probability);
+                if (statusDecay != status) {
+                    Metrics.getCounter(
+                            DISAGREEMENT,
+                            "set=\"" + status.name() + "\",decay=\"" + statusDecay.name() + "\""
+                    ).increment();
+                    Server.logDebug(
+                            "reputation of " + token + " is " + status.name()
+                            + " by SET " + hamSet.size() + "/" + spamSet.size()
+                            + " and " + statusDecay.name() + " by DECAY "
+                            + binomial[0] + "/" + binomial[1] + "."
+                    );
+                }
+            }
+        }
+        
         public boolean isGood() {
             return good;
         }
@@ -5936,8 +6922,16 @@ public final class SPF implements Serializable {
         }
 
         public synchronized boolean removeSpam(long time) {
-            hamSet.add(time);
-            spamSet.remove(time);
+            time = CacheDistribution.getCounted(time);
+            Decay decayLocal = getDecay();
+            if (isKeepingHam()) {
+                hamSet.add(time);
+            }
+            if (spamSet.remove(time)) {
+                if (decayLocal != null) {
+                    decayLocal.move(time, false);
+                }
+            }
             CacheDistribution.CHANGED = true;
             return true;
         }
@@ -5955,10 +6949,26 @@ public final class SPF implements Serializable {
             }
         }
 
-        public synchronized boolean addSpam(long time) {
+        public boolean addSpam(long time) {
+            return addSpam(CacheDistribution.getCounted(time), false);
+        }
+        
+        /**
+         * @param query verdadeiro se for uma nova consulta SPAM, falso
+         * se for a denúncia de uma consulta já contabilizada como HAM.
+         */
+        private synchronized boolean addSpam(long time, boolean query) {
+            Decay decayLocal = getDecay();
             boolean hamChanged = hamSet.remove(time);
             boolean spamChanged = spamSet.add(time);
             CacheDistribution.CHANGED |= hamChanged || spamChanged;
+            if (decayLocal != null && spamChanged) {
+                if (query) {
+                    decayLocal.addSpam(time);
+                } else {
+                    decayLocal.move(time, true);
+                }
+            }
             hairCut(2);
             return hamChanged || spamChanged;
         }
@@ -5968,15 +6978,26 @@ public final class SPF implements Serializable {
         }
         
         public synchronized boolean addHam(long time) {
-            boolean hamChanged = hamSet.add(time);
+            time = CacheDistribution.getCounted(time);
+            Decay decayLocal = getDecay();
+            boolean hamChanged = isKeepingHam() ? hamSet.add(time) : true;
             boolean spamChanged = spamSet.remove(time);
             CacheDistribution.CHANGED |= hamChanged || spamChanged;
+            if (decayLocal != null) {
+                if (spamChanged) {
+                    decayLocal.move(time, false);
+                } else if (hamChanged) {
+                    decayLocal.addHam(time);
+                }
+            }
             hairCut(2);
             return hamChanged || spamChanged;
         }
         
         public int[] getBinomial() {
-            if (frequency == null) {
+            if (!isKeepingHam()) {
+                return getDecay().getBinomial();
+            } else if (frequency == null) {
                 return new int[2];
             } else if (ready) {
                 int[] result = new int[2];
@@ -6023,7 +7044,12 @@ public final class SPF implements Serializable {
                     }
                 }
             }
-            if (ready) {
+            if (!isKeepingHam()) {
+                int[] binomial = getDecay().getBinomial();
+                result[0] += binomial[0];
+                result[1] += binomial[1];
+                return result;
+            } else if (ready) {
                 result[0] += hamSet.size();
                 result[1] += spamSet.size();
                 return result;
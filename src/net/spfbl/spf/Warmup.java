@@ -0,0 +1,195 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.spf;
+
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.spfbl.core.Client;
+import net.spfbl.core.Metrics;
+import net.spfbl.core.Reverse;
+import net.spfbl.core.Server;
+import net.spfbl.data.Block;
+
+/**
+ * Aquecimento antecipado dos caches da consulta do Postfix.
+ *
+ * Na conexão e no HELO já se conhece o IP e o HELO do cliente, e no
+ * MAIL FROM também o remetente. As consultas DNS que a decisão do
+ * RCPT fará são disparadas nesses estágios em segundo plano: o
+ * reverso, a validação do HELO, as DNSBL externas e, no MAIL FROM,
+ * o registro SPF e o resultado do remetente. Quando a consulta do
+ * RCPT chega, encontra tudo em cache.
+ *
+ * O aquecimento é descartável: se a fila estiver cheia ou o mesmo
+ * aquecimento já estiver em andamento, o pedido é ignorado.
+ *
+ * Fica desligado por padrão, pois nos estágios aquecidos a consulta
+ * responde DUNNO sem decidir. Só deve ser ligado quando o SPFBL é
+ * consultado apenas nas restrições de destinatário, com o padrão
+ * smtpd_delay_reject=yes do Postfix.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Warmup {
+
+    private static final Metrics.Counter QUEUED = Metrics.getCounter(
+            "spfbl_warmup_total", "result=\"queued\""
+    );
+    private static final Metrics.Counter IGNORED = Metrics.getCounter(
+            "spfbl_warmup_total", "result=\"ignored\""
+    );
+
+    static {
+        Metrics.setHelp("spfbl_warmup_total", "Cache warm-up requests by result.");
+    }
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            4, 4, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1024),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "WARMUP" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            },
+            new ThreadPoolExecutor.AbortPolicy()
+    );
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Aquecimentos em andamento.
+     */
+    private static final HashSet<String> SET = new HashSet<String>();
+
+    private static boolean ENABLED = false;
+
+    private Warmup() {
+    }
+
+    public static void setEnabled(String enabled) {
+        if (enabled != null && enabled.length() > 0) {
+            try {
+                setEnabled(Boolean.parseBoolean(enabled));
+            } catch (Exception ex) {
+                Server.logError("invalid postfix warm-up flag '" + enabled + "'.");
+            }
+        }
+    }
+
+    public static synchronized void setEnabled(boolean enabled) {
+        Warmup.ENABLED = enabled;
+    }
+
+    public static synchronized boolean isEnabled() {
+        return ENABLED;
+    }
+
+    private static synchronized boolean start(String key) {
+        return SET.add(key);
+    }
+
+    private static synchronized void finish(String key) {
+        SET.remove(key);
+    }
+
+    private static boolean submit(final String key, final Runnable runnable) {
+        if (!start(key)) {
+            IGNORED.increment();
+            return false;
+        } else {
+            try {
+                EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runnable.run();
+                        } catch (Exception ex) {
+                            Server.logError(ex);
+                        } finally {
+                            finish(key);
+                        }
+                    }
+                });
+                QUEUED.increment();
+                return true;
+            } catch (RejectedExecutionException ex) {
+                finish(key);
+                IGNORED.increment();
+                return false;
+            }
+        }
+    }
+
+    private static void warmConnect(String ip, String helo) {
+        Reverse.get(ip);
+        if (helo != null) {
+            SPF.matchHELO(ip, helo);
+        }
+        Block.containsDNSBL(ip);
+    }
+
+    /**
+     * Aquece os caches do estágio de conexão ou HELO.
+     * @param ip o IP do cliente SMTP.
+     * @param helo o HELO do cliente SMTP, se já conhecido.
+     * @return verdadeiro se o aquecimento foi agendado.
+     */
+    public static boolean connect(final String ip, final String helo) {
+        return submit(ip + ' ' + helo, new Runnable() {
+            @Override
+            public void run() {
+                warmConnect(ip, helo);
+            }
+        });
+    }
+
+    /**
+     * Aquece os caches do estágio MAIL FROM, incluindo o resultado
+     * SPF e os demais resultados independentes do destinatário.
+     * @param client o cliente SPFBL da consulta.
+     * @param ip o IP do cliente SMTP.
+     * @param sender o remetente normalizado ou nulo se vazio.
+     * @param helo o HELO do cliente SMTP.
+     * @return verdadeiro se o aquecimento foi agendado.
+     */
+    public static boolean mail(
+            final Client client,
+            final String ip,
+            final String sender,
+            final String helo
+    ) {
+        String email = client == null ? "" : client.getEmail();
+        return submit(email + ' ' + ip + ' ' + helo + ' ' + sender, new Runnable() {
+            @Override
+            public void run() {
+                warmConnect(ip, helo);
+                SPF.warmPostfix(client, ip, sender, helo);
+            }
+        });
+    }
+}
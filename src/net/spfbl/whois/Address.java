@@ -0,0 +1,237 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.whois;
+
+import net.spfbl.core.ProcessException;
+
+/**
+ * Endereço interpretado uma única vez por consulta.
+ *
+ * Reúne o resultado das validações e normalizações de um IP,
+ * e-mail ou hostname, para que o fluxo de consulta não repita
+ * a mesma análise sobre a mesma cadeia de caracteres.
+ *
+ * O domínio registrável e o TLD dependem do conjunto de TLDs
+ * e por isso só são extraídos quando solicitados.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class Address {
+
+    private final String value;
+    private final String ip;
+    private final byte[] octets;
+    private final String email;
+    private final boolean validEmail;
+    private final boolean hostname;
+    /**
+     * Host com arroba, se for e-mail, ou com ponto, se for hostname.
+     */
+    private final String host;
+
+    private String domain = null;
+    private boolean reserved = false;
+    private boolean extracted = false;
+
+    private Address(String value) {
+        this.value = value;
+        String normalizedIP = null;
+        byte[] octetArray = null;
+        if (SubnetIPv4.isValidIPv4(value)) {
+            normalizedIP = value;
+            octetArray = SubnetIPv4.split(value);
+        } else if (SubnetIPv6.isValidIPv6(value)) {
+            try {
+                normalizedIP = SubnetIPv6.normalizeIPv6(value);
+                short[] blocks = SubnetIPv6.split(value);
+                octetArray = new byte[16];
+                for (int index = 0; index < 8; index++) {
+                    octetArray[2 * index] = (byte) (blocks[index] >>> 8);
+                    octetArray[2 * index + 1] = (byte) blocks[index];
+                }
+            } catch (NumberFormatException ex) {
+                // Endereço com identificador de zona.
+                normalizedIP = null;
+                octetArray = null;
+            }
+        }
+        this.ip = normalizedIP;
+        this.octets = octetArray;
+        if (ip == null && Domain.isEmail(value)) {
+            this.email = value.trim().toLowerCase();
+            this.validEmail = Domain.isValidEmail(value);
+            this.hostname = false;
+            this.host = Domain.extractHost(value, true);
+        } else if (ip == null && Domain.isHostname(value)) {
+            this.email = null;
+            this.validEmail = false;
+            this.hostname = true;
+            this.host = Domain.extractHost(value, true);
+        } else {
+            this.email = null;
+            this.validEmail = false;
+            this.hostname = false;
+            this.host = null;
+        }
+    }
+
+    /**
+     * Interpreta o endereço.
+     * @param value o IP, e-mail ou hostname.
+     * @return o endereço interpretado, nunca nulo.
+     */
+    public static Address parse(String value) {
+        if (value == null) {
+            return NONE;
+        } else {
+            return new Address(value);
+        }
+    }
+
+    private static final Address NONE = new Address(null);
+
+    public boolean isIP() {
+        return ip != null;
+    }
+
+    public boolean isIPv4() {
+        return octets != null && octets.length == 4;
+    }
+
+    public boolean isIPv6() {
+        return octets != null && octets.length == 16;
+    }
+
+    /**
+     * @return o IP padronizado ou nulo se não for IP.
+     */
+    public String getIP() {
+        return ip;
+    }
+
+    /**
+     * @return os octetos do IP ou nulo se não for IP.
+     */
+    public byte[] getOctets() {
+        if (octets == null) {
+            return null;
+        } else {
+            return octets.clone();
+        }
+    }
+
+    public boolean isEmail() {
+        return email != null;
+    }
+
+    /**
+     * @return verdadeiro se o e-mail usa somente os caracteres mais restritos.
+     */
+    public boolean isValidEmail() {
+        return validEmail;
+    }
+
+    /**
+     * @return o e-mail em minúsculo ou nulo se não for e-mail.
+     */
+    public String getEmail() {
+        return email;
+    }
+
+    public boolean isHostname() {
+        return hostname;
+    }
+
+    /**
+     * Retorna o host, da mesma forma que Domain.extractHost.
+     * @param pontuacao se o arroba ou o ponto deve ser mantido.
+     * @return o host normalizado ou nulo se não houver.
+     */
+    public String getHost(boolean pontuacao) {
+        if (host == null) {
+            return null;
+        } else if (pontuacao) {
+            return host;
+        } else {
+            return host.substring(1);
+        }
+    }
+
+    private synchronized void extract() {
+        if (!extracted) {
+            if (host != null) {
+                try {
+                    domain = Domain.extractDomain('.' + host.substring(1), true);
+                } catch (ProcessException ex) {
+                    // O host é um TLD.
+                    reserved = true;
+                }
+            }
+            extracted = true;
+        }
+    }
+
+    /**
+     * Retorna o domínio registrável pelos TLDs conhecidos.
+     * @param pontuacao se o ponto deve ser mantido.
+     * @return o domínio ou nulo se não houver.
+     */
+    public synchronized String getDomain(boolean pontuacao) {
+        extract();
+        if (domain == null) {
+            return null;
+        } else if (pontuacao) {
+            return domain;
+        } else {
+            return domain.substring(1);
+        }
+    }
+
+    /**
+     * Retorna o TLD do domínio registrável.
+     * @param pontuacao se o ponto deve ser mantido.
+     * @return o TLD ou nulo se não houver.
+     */
+    public synchronized String getTLD(boolean pontuacao) {
+        extract();
+        if (domain == null) {
+            return null;
+        } else {
+            int index = domain.indexOf('.', 1);
+            if (index < 0) {
+                return null;
+            } else if (pontuacao) {
+                return domain.substring(index);
+            } else {
+                return domain.substring(index + 1);
+            }
+        }
+    }
+
+    /**
+     * @return verdadeiro se o host for um TLD conhecido.
+     */
+    public synchronized boolean isReserved() {
+        extract();
+        return reserved;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -415,50 +415,70 @@ public class AutonomousSystem implements Serializable, Comparable<AutonomousSyst
      * @return o registro de AS de um determinado número.
      * @throws ProcessException se houver falha no processamento.
      */
-    public static synchronized AutonomousSystem getAS(String number,
-            String server) throws ProcessException {
+    public static synchronized AutonomousSystem getAS(final String number,
+            final String server) throws ProcessException {
         // Busca eficiente O(1).
         if (MAP.containsKey(number)) {
             // Domínio encontrado.
-            AutonomousSystem as = MAP.get(number);
+            final AutonomousSystem as = MAP.get(number);
             as.queries++;
-            if (as.isRegistryExpired()) {
-                // Registro desatualizado.
-                // Atualizando campos do registro.
-                as.refresh();
-            } else if (as.isRegistryAlmostExpired()) {
-                // Registro quase vencendo.
-                // Adicionar no conjunto para atualização em background.
-                REFRESH.add(as);
+            if (as.isRegistryAlmostExpired()) {
+                // Registro desatualizado ou quase vencendo.
+                // Retorna o registro atual e atualiza em segundo plano.
+                WhoisQueue.Priority priority = as.isRegistryExpired()
+                        ? WhoisQueue.Priority.QUERY
+                        : WhoisQueue.Priority.BACKGROUND;
+                WhoisQueue.request(priority, new WhoisQueue.Request("AS " + number) {
+                    @Override
+                    public void run() throws ProcessException {
+                        refreshExpired(as);
+                    }
+                });
             }
             return as;
+        }
+        WhoisQueue.Request request = new WhoisQueue.Request("AS " + number) {
+            @Override
+            public void run() throws ProcessException {
+                if (!containsAS(number)) {
+                    newAS(number, server);
+                }
+            }
+        };
+        if (Server.hasWhoisQuery()) {
+            try {
+                return newAS(number, server);
+            } catch (ProcessException ex) {
+                if (WhoisQueue.isRetryable(ex)) {
+                    WhoisQueue.request(WhoisQueue.Priority.QUERY, request);
+                }
+                throw ex;
+            }
         } else {
-            // Realizando a consulta no WHOIS.
-            AutonomousSystem as = new AutonomousSystem(number, server);
-            // Adicinando registro em cache.
-            MAP.put(as.getNumber(), as);
-            AS_CHANGED = true;
-            return as;
+            // Não aguarda o limite do WHOIS.
+            WhoisQueue.request(WhoisQueue.Priority.QUERY, request);
+            throw new ProcessException("ERROR: WHOIS QUERY LIMIT");
         }
     }
     
-    /**
-     * Conjunto de registros para atualização em background.
-     */
-    private static final TreeSet<AutonomousSystem> REFRESH = new TreeSet<AutonomousSystem>();
+    private static synchronized boolean containsAS(String number) {
+        return MAP.containsKey(number);
+    }
     
-    /**
-     * Atualiza em background todos os registros adicionados no conjunto.
-     */
-    public static synchronized void backgroundRefresh() {
-        while (!REFRESH.isEmpty()) {
-            AutonomousSystem as = REFRESH.pollFirst();
-            try {
-                // Atualizando campos do registro.
-                as.refresh();
-            } catch (Exception ex) {
-                Server.logError(ex);
-            }
+    private static synchronized AutonomousSystem newAS(String number,
+            String server) throws ProcessException {
+        // Realizando a consulta no WHOIS.
+        AutonomousSystem as = new AutonomousSystem(number, server);
+        // Adicinando registro em cache.
+        MAP.put(as.getNumber(), as);
+        AS_CHANGED = true;
+        return as;
+    }
+    
+    private static synchronized void refreshExpired(AutonomousSystem as) throws ProcessException {
+        if (as.isRegistryAlmostExpired()) {
+            // Atualizando campos do registro.
+            as.refresh();
         }
     }
     
@@ -0,0 +1,180 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.whois;
+
+/**
+ * Árvore binária de prefixos CIDR com busca pelo maior prefixo.
+ *
+ * Os nós são imutáveis e cada alteração copia somente o caminho
+ * da raiz até o prefixo alterado, publicando uma nova raiz.
+ * Desta forma a busca não usa trava alguma e percorre no máximo
+ * 32 bits para IPv4 ou 128 bits para IPv6.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class CIDRTrie<V> {
+
+    private static final class Node<V> {
+
+        private final Node<V> zero;
+        private final Node<V> one;
+        private final V value;
+
+        private Node(Node<V> zero, Node<V> one, V value) {
+            this.zero = zero;
+            this.one = one;
+            this.value = value;
+        }
+
+        private boolean isEmpty() {
+            return zero == null && one == null && value == null;
+        }
+    }
+
+    private volatile Node<V> rootIPv4 = null;
+    private volatile Node<V> rootIPv6 = null;
+
+    private static int getBit(byte[] address, int index) {
+        return (address[index >>> 3] >>> (7 - (index & 7))) & 1;
+    }
+
+    /**
+     * Converte o IPv4 para inteiro sem criar objetos.
+     * @param ip o IPv4 válido.
+     * @return os 32 bits do IPv4.
+     */
+    private static int parseIPv4(String ip) {
+        int address = 0;
+        int octet = 0;
+        for (int index = 0; index < ip.length(); index++) {
+            char character = ip.charAt(index);
+            if (character == '.') {
+                address = (address << 8) | octet;
+                octet = 0;
+            } else {
+                octet = octet * 10 + (character - '0');
+            }
+        }
+        return (address << 8) | octet;
+    }
+
+    private static byte[] getAddress(String ip) {
+        if (SubnetIPv4.isValidIPv4(ip)) {
+            int address = parseIPv4(ip);
+            return new byte[]{
+                (byte) (address >>> 24),
+                (byte) (address >>> 16),
+                (byte) (address >>> 8),
+                (byte) address
+            };
+        } else {
+            return SubnetIPv6.splitByte(ip);
+        }
+    }
+
+    private Node<V> put(Node<V> node, byte[] address, int index, int mask, V value) {
+        Node<V> zero = node == null ? null : node.zero;
+        Node<V> one = node == null ? null : node.one;
+        Node<V> result;
+        if (index == mask) {
+            result = new Node<V>(zero, one, value);
+        } else if (getBit(address, index) == 0) {
+            result = new Node<V>(put(zero, address, index + 1, mask, value), one, node == null ? null : node.value);
+        } else {
+            result = new Node<V>(zero, put(one, address, index + 1, mask, value), node == null ? null : node.value);
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    /**
+     * Associa o valor ao bloco, substituindo o anterior.
+     * @param cidr o bloco CIDR válido.
+     * @param value o valor, ou nulo para remover.
+     */
+    public synchronized void put(String cidr, V value) {
+        int index = cidr.indexOf('/');
+        String ip = Subnet.getFirstIP(cidr);
+        int mask = Integer.parseInt(cidr.substring(index + 1));
+        byte[] address = getAddress(ip);
+        if (address.length == 4) {
+            rootIPv4 = put(rootIPv4, address, 0, mask, value);
+        } else {
+            rootIPv6 = put(rootIPv6, address, 0, mask, value);
+        }
+    }
+
+    public void remove(String cidr) {
+        put(cidr, null);
+    }
+
+    public synchronized void clear() {
+        rootIPv4 = null;
+        rootIPv6 = null;
+    }
+
+    /**
+     * Busca o valor do maior prefixo que contém o IP.
+     * @param ip o IP a ser buscado.
+     * @return o valor do bloco mais específico ou nulo se não houver.
+     */
+    public V get(String ip) {
+        if (ip == null) {
+            return null;
+        } else if (SubnetIPv4.isValidIPv4(ip)) {
+            int address = parseIPv4(ip);
+            Node<V> node = rootIPv4;
+            V value = null;
+            for (int index = 0; node != null; index++) {
+                if (node.value != null) {
+                    value = node.value;
+                }
+                if (index == 32) {
+                    break;
+                } else if (((address >>> (31 - index)) & 1) == 0) {
+                    node = node.zero;
+                } else {
+                    node = node.one;
+                }
+            }
+            return value;
+        } else {
+            int zone = ip.indexOf('%');
+            if (zone > 0) {
+                ip = ip.substring(0, zone);
+            }
+            if (!SubnetIPv6.isValidIPv6(ip)) {
+                return null;
+            }
+            byte[] address = SubnetIPv6.splitByte(ip);
+            Node<V> node = rootIPv6;
+            V value = null;
+            for (int index = 0; node != null; index++) {
+                if (node.value != null) {
+                    value = node.value;
+                }
+                if (index == 128) {
+                    break;
+                } else if (getBit(address, index) == 0) {
+                    node = node.zero;
+                } else {
+                    node = node.one;
+                }
+            }
+            return value;
+        }
+    }
+}
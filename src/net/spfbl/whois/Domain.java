@@ -18,6 +18,7 @@ package net.spfbl.whois;
 
 import net.spfbl.core.Server;
 import net.spfbl.core.ProcessException;
+import net.spfbl.core.Governor;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -30,6 +31,8 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
 import java.util.regex.Pattern;
@@ -141,38 +144,62 @@ public class Domain implements Serializable, Comparable<Domain> {
      * @return o host do endereço de e-mail.
      */
     public static String extractHost(String address, boolean pontuacao) {
+        int index;
         if (address == null) {
             return null;
         } else if (address.length() == 0) {
             return null;
-        } else if (address.contains("@")) {
+        } else if ((index = address.indexOf('@')) >= 0) {
             // O endereço é um e-mail.
             // Extrair a parte do host.
-            int index = address.indexOf('@');
             if (!pontuacao) {
                 index++;
             }
-            return Core.removerAcentuacao(address.substring(index)).toLowerCase();
+            return normalizeCase(address.substring(index));
         } else if (!Domain.isHostname(address)) {
             return null;
         } else if (pontuacao && !address.startsWith(".")) {
-            return "." + Core.removerAcentuacao(address).toLowerCase();
+            return "." + normalizeCase(address);
         } else if (pontuacao && address.startsWith(".")) {
-            return Core.removerAcentuacao(address).toLowerCase();
+            return normalizeCase(address);
         } else if (!pontuacao && !address.startsWith(".")) {
-            return Core.removerAcentuacao(address).toLowerCase();
+            return normalizeCase(address);
         } else{
-            return Core.removerAcentuacao(address.substring(1)).toLowerCase();
+            return normalizeCase(address.substring(1));
+        }
+    }
+    
+    /**
+     * Remove a acentuação e converte para minúsculo.
+     * O texto já normalizado, que é o caso mais comum,
+     * é devolvido sem cópia alguma.
+     * @param text o texto a ser normalizado.
+     * @return o texto sem acentuação e em minúsculo.
+     */
+    private static String normalizeCase(String text) {
+        boolean upper = false;
+        for (int index = 0; index < text.length(); index++) {
+            char character = text.charAt(index);
+            if (character >= 128) {
+                return Core.removerAcentuacao(text).toLowerCase();
+            } else if (character >= 'A' && character <= 'Z') {
+                upper = true;
+            }
+        }
+        if (upper) {
+            return text.toLowerCase();
+        } else {
+            return text;
         }
     }
     
     public static boolean isReserved(String address) {
-        if (address.contains("@")) {
-            int index = address.lastIndexOf('@') + 1;
-            address = '.' + address.substring(index);
-            return TLD_SET.contains(address);
+        int index = address.lastIndexOf('@');
+        if (index >= 0) {
+            // Domínio do e-mail com ponto no lugar do arroba.
+            return TLD_TRIE.containsDotted(address, index);
         } else {
-            return TLD_SET.contains(address);
+            return TLD_TRIE.contains(address);
         }
     }
     
@@ -182,10 +209,9 @@ public class Domain implements Serializable, Comparable<Domain> {
         } else {
             int index = address.indexOf('.', 1);
             if (index == -1) {
-                return !TLD_SET.contains(address);
+                return !TLD_TRIE.contains(address);
             } else {
-                String tld = address.substring(index);
-                return TLD_SET.contains(tld);
+                return TLD_TRIE.contains(address, index);
             }
         }
     }
@@ -204,25 +230,18 @@ public class Domain implements Serializable, Comparable<Domain> {
         } else if (isReserved(address)) {
             throw new ProcessException("ERROR: RESERVED");
         } else {
-            int lastIndex = address.length() - 1;
-            int beginIndex = 1;
-            while (beginIndex < lastIndex) {
-                int endIndex = address.indexOf('.', beginIndex);
-                if (endIndex == -1) {
-                    break;
+            // Maior TLD conhecido numa única passagem da direita para a esquerda.
+            int tldIndex = TLD_TRIE.indexOfSuffix(address, 1);
+            if (tldIndex > 0) {
+                // Separador anterior ao rótulo registrável.
+                int beginIndex = Math.max(0, address.lastIndexOf('.', tldIndex - 1));
+                if (pontuacao) {
+                    return address.substring(beginIndex);
                 } else {
-                    String tld = address.substring(endIndex);
-                    if (TLD_SET.contains(tld)) {
-                        if (pontuacao) {
-                            return address.substring(beginIndex-1);
-                        } else {
-                            return address.substring(beginIndex);
-                        }
-                    }
-                    beginIndex = endIndex + 1;
+                    return address.substring(beginIndex + 1);
                 }
             }
-            beginIndex = address.lastIndexOf('.');
+            int beginIndex = address.lastIndexOf('.');
             int endIndex = address.length();
             if (pontuacao) {
                 return address.substring(beginIndex, endIndex);
@@ -241,25 +260,16 @@ public class Domain implements Serializable, Comparable<Domain> {
      */
     public static String extractTLD(String address,
             boolean ponto) throws ProcessException {
-        int lastIndex = address.length() - 1;
-        int beginIndex = 0;
-        while (beginIndex < lastIndex) {
-            int endIndex = address.indexOf('.', beginIndex);
-            if (endIndex == -1) {
-                break;
+        // Maior TLD conhecido numa única passagem da direita para a esquerda.
+        int endIndex = TLD_TRIE.indexOfSuffix(address, 0);
+        if (endIndex >= 0) {
+            if (ponto) {
+                return address.substring(endIndex);
             } else {
-                String tld = address.substring(endIndex);
-                if (TLD_SET.contains(tld)) {
-                    if (ponto) {
-                        return tld;
-                    } else {
-                        return tld.substring(1);
-                    }
-                }
-                beginIndex = endIndex + 1;
+                return address.substring(endIndex + 1);
             }
         }
-        beginIndex = address.lastIndexOf('.');
+        int beginIndex = address.lastIndexOf('.');
         if (ponto) {
             return address.substring(beginIndex-1);
         } else {
@@ -281,17 +291,190 @@ public class Domain implements Serializable, Comparable<Domain> {
                 return false;
             } else {
                 address = address.toLowerCase();
-                return Pattern.matches(
-                        "^([a-zA-Z0-9._%+=-]+@)?"
-                        + "(([a-zA-Z0-9_]|[a-zA-Z0-9_][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9])"
-                        + "(\\.([a-zA-Z0-9_]|[a-zA-Z0-9_][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9]))*)"
-                        + "$", address
-                        );
-
+                return DOMAIN_PATTERN.matcher(address).matches();
             }
         }
     }
     
+    /**
+     * Expressões pré-compiladas para os casos fora da varredura direta.
+     */
+    private static final Pattern DOMAIN_PATTERN = Pattern.compile(
+            "^([a-zA-Z0-9._%+=-]+@)?"
+            + "(([a-zA-Z0-9_]|[a-zA-Z0-9_][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9])"
+            + "(\\.([a-zA-Z0-9_]|[a-zA-Z0-9_][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9]))*)"
+            + "$"
+            );
+    private static final Pattern HOSTNAME_PATTERN = Pattern.compile(
+            "^\\.?"
+            + "(([a-zA-Z0-9_]|[a-zA-Z0-9_][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9])"
+            + "(\\.([a-zA-Z0-9_]|[a-zA-Z0-9_][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9]))*)"
+            + "\\.?$"
+            );
+    private static final Pattern EMAIL_PATTERN = Pattern.compile(
+            "^"
+            + "[0-9a-zA-ZÀ-ÅÇ-ÏÑ-ÖÙ-Ýà-åç-ïñ-öù-ý._%/+=-]+"
+            + "@"
+            + "(([a-zA-Z0-9]|[a-zA-Z0-9][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9])"
+            + "(\\.([a-zA-Z0-9]|[a-zA-Z0-9][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9]))*)"
+            + "$"
+            );
+    private static final Pattern VALID_EMAIL_PATTERN = Pattern.compile(
+            "^[0-9a-zA-Z._-]+"
+            + "@"
+            + "(([a-zA-Z0-9]|[a-zA-Z0-9][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9])"
+            + "(\\.([a-zA-Z0-9]|[a-zA-Z0-9][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9]))*)"
+            + "$"
+            );
+    
+    /**
+     * Resultado da varredura que encontrou caractere fora do ASCII,
+     * que precisa ser tratado pela expressão regular.
+     */
+    private static final int SCAN_FALLBACK = -1;
+    private static final int SCAN_INVALID = 0;
+    private static final int SCAN_VALID = 1;
+    
+    /**
+     * Varre uma sequência de rótulos DNS separados por ponto.
+     * Cada rótulo tem de 1 a 63 caracteres alfanuméricos ou hífen,
+     * não termina com hífen nem sublinhado e só inicia com
+     * sublinhado se for permitido.
+     * @param text o texto a ser varrido.
+     * @param begin o início da sequência.
+     * @param end o final da sequência, exclusivo.
+     * @param underscore se o rótulo pode iniciar com sublinhado.
+     * @return o resultado da varredura.
+     */
+    private static int scanLabels(String text, int begin, int end, boolean underscore) {
+        if (begin >= end) {
+            return SCAN_INVALID;
+        }
+        int length = 0;
+        char last = '.';
+        for (int index = begin; index < end; index++) {
+            char character = text.charAt(index);
+            if (character >= 128) {
+                return SCAN_FALLBACK;
+            } else if (character == '.') {
+                if (length == 0) {
+                    return SCAN_INVALID;
+                } else if (length > 1 && (last == '-' || last == '_')) {
+                    return SCAN_INVALID;
+                }
+                length = 0;
+            } else if (isAlphanumeric(character)) {
+                length++;
+            } else if (character == '_') {
+                if (length == 0 && !underscore) {
+                    return SCAN_INVALID;
+                }
+                length++;
+            } else if (character == '-') {
+                if (length == 0) {
+                    return SCAN_INVALID;
+                }
+                length++;
+            } else {
+                return SCAN_INVALID;
+            }
+            if (length > 63) {
+                return SCAN_INVALID;
+            }
+            last = character;
+        }
+        if (length == 0) {
+            return SCAN_INVALID;
+        } else if (length > 1 && (last == '-' || last == '_')) {
+            return SCAN_INVALID;
+        } else {
+            return SCAN_VALID;
+        }
+    }
+    
+    private static boolean isAlphanumeric(char character) {
+        if (character >= 'a' && character <= 'z') {
+            return true;
+        } else if (character >= '0' && character <= '9') {
+            return true;
+        } else {
+            return character >= 'A' && character <= 'Z';
+        }
+    }
+    
+    /**
+     * Varre a parte local de um e-mail.
+     * @param text o texto a ser varrido.
+     * @param end a posição do arroba.
+     * @param extended se aceita os caracteres % / + = e acentuados.
+     * @return o resultado da varredura.
+     */
+    private static int scanLocalPart(String text, int begin, int end, boolean extended) {
+        if (begin >= end) {
+            return SCAN_INVALID;
+        }
+        for (int index = begin; index < end; index++) {
+            char character = text.charAt(index);
+            if (character >= 128) {
+                return SCAN_FALLBACK;
+            } else if (isAlphanumeric(character)) {
+                continue;
+            } else if (character == '.' || character == '_' || character == '-') {
+                continue;
+            } else if (extended && (character == '%' || character == '/'
+                    || character == '+' || character == '=')) {
+                continue;
+            } else {
+                return SCAN_INVALID;
+            }
+        }
+        return SCAN_VALID;
+    }
+    
+    private static int scanEmail(String address, boolean extended) {
+        int begin = 0;
+        int end = address.length();
+        while (begin < end && address.charAt(begin) <= ' ') {
+            begin++;
+        }
+        while (end > begin && address.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return scanEmail(address, begin, end, extended);
+    }
+    
+    /**
+     * Varre um e-mail sem espaços nas extremidades.
+     * @return o resultado da varredura.
+     */
+    private static int scanEmail(String address, int begin, int end, boolean extended) {
+        int index = address.indexOf('@', begin);
+        if (index < 0 || index >= end) {
+            return SCAN_INVALID;
+        }
+        int result = scanLocalPart(address, begin, index, extended);
+        if (result == SCAN_VALID) {
+            result = scanLabels(address, index + 1, end, false);
+            if (result == SCAN_VALID && isDigitsAndDots(address, index + 1, end)) {
+                // Domínio é um IPv4 e não um hostname.
+                if (SubnetIPv4.isValidIPv4(address.substring(index + 1, end))) {
+                    result = SCAN_INVALID;
+                }
+            }
+        }
+        return result;
+    }
+    
+    private static boolean isDigitsAndDots(String text, int begin, int end) {
+        for (int index = begin; index < end; index++) {
+            char character = text.charAt(index);
+            if (character != '.' && (character < '0' || character > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     /**
      * Verifica se o endereço contém um domínio.
      * @param address o endereço a ser verificado.
@@ -301,18 +484,37 @@ public class Domain implements Serializable, Comparable<Domain> {
         if (address == null) {
             return false;
         } else {
-            address = address.trim();
-            if (SubnetIPv4.isValidIPv4(address)) {
+            int begin = 0;
+            int end = address.length();
+            while (begin < end && address.charAt(begin) <= ' ') {
+                begin++;
+            }
+            while (end > begin && address.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            int first = begin;
+            int last = end;
+            if (first < last && address.charAt(first) == '.') {
+                first++;
+            }
+            if (last > first && address.charAt(last - 1) == '.') {
+                last--;
+            }
+            int result = scanLabels(address, first, last, true);
+            if (result == SCAN_FALLBACK) {
+                address = address.trim();
+                if (SubnetIPv4.isValidIPv4(address)) {
+                    return false;
+                } else {
+                    address = address.toLowerCase();
+                    return HOSTNAME_PATTERN.matcher(address).matches();
+                }
+            } else if (result == SCAN_INVALID) {
                 return false;
+            } else if (isDigitsAndDots(address, begin, end)) {
+                return !SubnetIPv4.isValidIPv4(address.substring(begin, end));
             } else {
-                address = address.toLowerCase();
-                return Pattern.matches(
-                        "^\\.?"
-                        + "(([a-zA-Z0-9_]|[a-zA-Z0-9_][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9])"
-                        + "(\\.([a-zA-Z0-9_]|[a-zA-Z0-9_][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9]))*)"
-                        + "\\.?$", address
-                        );
-
+                return true;
             }
         }
     }
@@ -362,16 +564,13 @@ public class Domain implements Serializable, Comparable<Domain> {
         if (address == null) {
             return false;
         } else {
+            int result = scanEmail(address, true);
+            if (result != SCAN_FALLBACK) {
+                return result == SCAN_VALID;
+            }
             address = address.trim();
             address = address.toLowerCase();
-            if (Pattern.matches(
-                    "^"
-                    + "[0-9a-zA-ZÀ-ÅÇ-ÏÑ-ÖÙ-Ýà-åç-ïñ-öù-ý._%/+=-]+"
-                    + "@"
-                    + "(([a-zA-Z0-9]|[a-zA-Z0-9][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9])"
-                    + "(\\.([a-zA-Z0-9]|[a-zA-Z0-9][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9]))*)"
-                    + "$", address
-                    )) {
+            if (EMAIL_PATTERN.matcher(address).matches()) {
                 int index = address.indexOf('@');
                 String domain = address.substring(index+1);
                 return Domain.isHostname(domain);
@@ -385,15 +584,13 @@ public class Domain implements Serializable, Comparable<Domain> {
         if (address == null) {
             return false;
         } else {
+            int result = scanEmail(address, false);
+            if (result != SCAN_FALLBACK) {
+                return result == SCAN_VALID;
+            }
             address = address.trim();
             address = address.toLowerCase();
-            if (Pattern.matches(
-                    "^[0-9a-zA-Z._-]+"
-                    + "@"
-                    + "(([a-zA-Z0-9]|[a-zA-Z0-9][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9])"
-                    + "(\\.([a-zA-Z0-9]|[a-zA-Z0-9][a-zA-Z0-9_-]{0,61}[a-zA-Z0-9]))*)"
-                    + "$", address
-                    )) {
+            if (VALID_EMAIL_PATTERN.matcher(address).matches()) {
                 int index = address.indexOf('@');
                 String domain = address.substring(index+1);
                 return Domain.isHostname(domain);
@@ -421,6 +618,20 @@ public class Domain implements Serializable, Comparable<Domain> {
      */
     public static final HashSet<String> TLD_SET = new HashSet<String>();
     
+    /**
+     * Árvore de sufixos do conjunto de TLDs para consulta sem trava.
+     * É reconstruída e substituída a cada alteração do conjunto.
+     */
+    private static volatile SuffixTrie TLD_TRIE = new SuffixTrie(TLD_SET);
+    
+    /**
+     * Reconstrói a árvore de sufixos após alteração do conjunto de TLDs.
+     * Deve ser chamado dentro da trava da classe.
+     */
+    private static void rebuildTLD() {
+        TLD_TRIE = new SuffixTrie(TLD_SET);
+    }
+    
     /**
      * Flag que indica se o cache foi modificado.
      */
@@ -456,6 +667,7 @@ public class Domain implements Serializable, Comparable<Domain> {
         if (Domain.isTLD(tld)) {
             tld = tld.toLowerCase();
             if (TLD_SET.add(tld)) {
+                rebuildTLD();
                 // Atualiza flag de atualização.
                 TLD_CHANGED = true;
                 return true;
@@ -469,6 +681,7 @@ public class Domain implements Serializable, Comparable<Domain> {
     
     public static synchronized boolean dropExactTLD(String tld) throws ProcessException {
         if (TLD_SET.remove(tld)) {
+            rebuildTLD();
             // Atualiza flag de atualização.
             TLD_CHANGED = true;
             return true;
@@ -1023,6 +1236,7 @@ public class Domain implements Serializable, Comparable<Domain> {
             }
             TLD_SET.add(tld);
         }
+        rebuildTLD();
     }
     
     /**
@@ -1144,6 +1358,57 @@ public class Domain implements Serializable, Comparable<Domain> {
      */
     private static boolean DOMAIN_CHANGED = false;
     
+    private static synchronized int size() {
+        return MAP.size();
+    }
+    
+    /**
+     * Descarta os registros menos consultados.
+     * @param count a quantidade de registros a descartar.
+     * @return a quantidade descartada.
+     */
+    private static int dropLeast(int count) {
+        return SWEEP.shed(getKeyList(), count);
+    }
+    
+    private static synchronized ArrayList<String> getKeyList() {
+        return new ArrayList<String>(MAP.keySet());
+    }
+    
+    private static final Governor.Sweep<String> SWEEP = new Governor.Sweep<String>() {
+        @Override
+        protected int drop(List<String> keyList, int count) {
+            synchronized (Domain.class) {
+                Governor.Selector<String> selector = new Governor.Selector<String>(count);
+                for (String key : keyList) {
+                    Domain domain = MAP.get(key);
+                    if (domain != null) {
+                        selector.add(key, domain.queries);
+                    }
+                }
+                int removed = 0;
+                for (String key : selector.getList()) {
+                    if (MAP.remove(key) != null) {
+                        DOMAIN_CHANGED = true;
+                        removed++;
+                    }
+                }
+                return removed;
+            }
+        }
+    };
+    
+    private static final Governor.Cache GOVERNOR = new Governor.Cache("domain", 2, 1024) {
+        @Override
+        protected long size() {
+            return Domain.size();
+        }
+        @Override
+        protected int shed(int count) {
+            return dropLeast(count);
+        }
+    };
+    
     public static synchronized TreeSet<Domain> getDomainSet() {
         TreeSet<Domain> domainSet = new TreeSet<Domain>();
         domainSet.addAll(MAP.values());
@@ -1246,6 +1511,7 @@ public class Domain implements Serializable, Comparable<Domain> {
                 if (ex.isErrorMessage("RESERVED")) {
                     // A chave de busca é um TLD.
                     if (TLD_SET.add(host)) {
+                        rebuildTLD();
                         // Atualiza flag de atualização.
                         TLD_CHANGED = true;
                     }
@@ -1345,6 +1611,7 @@ public class Domain implements Serializable, Comparable<Domain> {
                 if (ex.isErrorMessage("RESERVED")) {
                     // A chave de busca é um TLD.
                     if (TLD_SET.add(host)) {
+                        rebuildTLD();
                         // Atualiza flag de atualização.
                         TLD_CHANGED = true;
                     }
@@ -1356,6 +1623,18 @@ public class Domain implements Serializable, Comparable<Domain> {
 //        }
     }
     
+    /**
+     * @return verdadeiro se o registro do domínio já está em cache.
+     */
+    public static boolean isCached(String address) {
+        try {
+            String key = extractDomain(address, false);
+            return key != null && MAP.containsKey(key);
+        } catch (ProcessException ex) {
+            return false;
+        }
+    }
+    
     /**
      * Retorna o registro de domínio de um determinado host.
      * @param address o endereço cujo registro de domínio deve ser retornado.
@@ -1363,40 +1642,55 @@ public class Domain implements Serializable, Comparable<Domain> {
      * @throws ProcessException se houver falha no processamento.
      */
     public static Domain getDomain(String address) throws ProcessException {
-        String key = extractDomain(address, false);
-        Domain domain = MAP.get(key);
+        final String key = extractDomain(address, false);
+        final Domain domain = MAP.get(key);
         // Busca eficiente O(1).
         if (domain != null) {
             // Domínio encontrado.
             domain.queries++;
             if (domain.isRegistryExpired()) {
                 // Registro desatualizado.
-                // Atualizando campos do registro.
-                if (domain.refresh()) {
-                    // Domínio real do resultado WHOIS bate com o registro.
-                    return domain;
-                } else if (MAP.remove(domain.getDomain()) != null) {
-                    // Domínio real do resultado WHOIS não bate com o registro.
-                    // Pode haver a criação de uma nova TLD.
-                    // Apagando registro de domínio do cache.
-                    DOMAIN_CHANGED = true;
-                    // Segue para nova consulta.
-                }
-            } else {
-                // Registro atualizado.
-                return domain;
+                // Retorna o registro atual e atualiza em segundo plano.
+                WhoisQueue.request(
+                        WhoisQueue.Priority.QUERY,
+                        new WhoisQueue.Request("DOMAIN " + key) {
+                    @Override
+                    public void run() throws ProcessException {
+                        if (domain.isRegistryExpired()) {
+                            refreshDomain(key);
+                        }
+                    }
+                });
             }
+            return domain;
         }
         // Extrair o host se for e-mail.
-        String host = extractHost(address, false);
+        final String host = extractHost(address, false);
         // Verifica o DNS do host antes de fazer a consulta no WHOIS.
         // Evita consulta desnecessária no WHOIS.
         checkHost(host);
-//        if (SEMAPHORE_NEW.tryAcquire()) {
-            return newDomain(host);
-//        } else {
-//            return null;
-//        }
+        WhoisQueue.Request request = new WhoisQueue.Request("DOMAIN " + key) {
+            @Override
+            public void run() throws ProcessException {
+                if (!MAP.containsKey(key)) {
+                    newDomain(host);
+                }
+            }
+        };
+        if (Server.hasWhoisQuery()) {
+            try {
+                return newDomain(host);
+            } catch (ProcessException ex) {
+                if (WhoisQueue.isRetryable(ex)) {
+                    WhoisQueue.request(WhoisQueue.Priority.QUERY, request);
+                }
+                throw ex;
+            }
+        } else {
+            // Não aguarda o limite do WHOIS.
+            WhoisQueue.request(WhoisQueue.Priority.QUERY, request);
+            throw new ProcessException("ERROR: WHOIS QUERY LIMIT");
+        }
     }
     
     /**
@@ -0,0 +1,308 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.whois;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Mapa ordenado de blocos indexados pelo início do intervalo.
+ *
+ * O conteúdo fica em vetores ordenados imutáveis e cada alteração
+ * publica uma nova versão por cópia. Desta forma a leitura não usa
+ * trava alguma e a busca por piso é binária, em log2(n).
+ *
+ * As alterações são raras, pois dependem de consultas WHOIS,
+ * e podem ser agrupadas em lote através do método putAll.
+ *
+ * Os blocos podem estar aninhados, como uma alocação e as suas
+ * redistribuições. Cada versão guarda, para cada bloco, a posição
+ * do bloco mais próximo que o contém, calculada com uma pilha em
+ * tempo linear na publicação. A busca por continência parte do piso
+ * e sobe somente por estes blocos envolventes, então uma falha custa
+ * log2(n) mais a profundidade do aninhamento, limitada pela máscara.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+final class IntervalMap<K extends Comparable<K>,V> {
+
+    /**
+     * Relação de continência entre os blocos.
+     */
+    interface Nesting<V> {
+        /**
+         * @return verdadeiro se o bloco externo contém todo o interno.
+         */
+        boolean encloses(V outer, V inner);
+    }
+
+    /**
+     * Versão imutável do mapa.
+     */
+    static final class Snapshot<K extends Comparable<K>,V> {
+
+        private final Object[] keyArray;
+        private final Object[] valueArray;
+        private final int[] parentArray;
+
+        @SuppressWarnings("unchecked")
+        private Snapshot(Object[] keyArray, Object[] valueArray, Nesting<V> nesting) {
+            this.keyArray = keyArray;
+            this.valueArray = valueArray;
+            this.parentArray = new int[valueArray.length];
+            // Os blocos envolventes abertos ficam na pilha.
+            int[] stack = new int[valueArray.length];
+            int top = -1;
+            for (int index = 0; index < valueArray.length; index++) {
+                V value = (V) valueArray[index];
+                while (top >= 0 && !nesting.encloses((V) valueArray[stack[top]], value)) {
+                    top--;
+                }
+                parentArray[index] = top < 0 ? -1 : stack[top];
+                stack[++top] = index;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private int search(K key) {
+            int low = 0;
+            int high = keyArray.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int compare = ((K) keyArray[middle]).compareTo(key);
+                if (compare < 0) {
+                    low = middle + 1;
+                } else if (compare > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+
+        /**
+         * Busca a posição da maior chave menor ou igual à chave informada.
+         * @param key a chave de busca.
+         * @return a posição encontrada ou -1 se não houver.
+         */
+        int floorIndex(K key) {
+            int index = search(key);
+            if (index < 0) {
+                return -index - 2;
+            } else {
+                return index;
+            }
+        }
+
+        /**
+         * Busca a posição do bloco mais próximo que contém o bloco informado.
+         * @param index a posição do bloco.
+         * @return a posição do bloco envolvente ou -1 se não houver.
+         */
+        int parentIndex(int index) {
+            return parentArray[index];
+        }
+
+        int size() {
+            return keyArray.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        K getKey(int index) {
+            return (K) keyArray[index];
+        }
+
+        @SuppressWarnings("unchecked")
+        V getValue(int index) {
+            return (V) valueArray[index];
+        }
+
+        List<V> values() {
+            return new AbstractList<V>() {
+                @Override
+                public V get(int index) {
+                    return getValue(index);
+                }
+                @Override
+                public int size() {
+                    return valueArray.length;
+                }
+            };
+        }
+
+        /**
+         * Converte esta versão para o formato de armazenamento em disco.
+         * @return um mapa ordenado com o mesmo conteúdo.
+         */
+        TreeMap<K,V> toTreeMap() {
+            TreeMap<K,V> map = new TreeMap<K,V>();
+            for (int index = 0; index < keyArray.length; index++) {
+                map.put(getKey(index), getValue(index));
+            }
+            return map;
+        }
+    }
+
+    private final Nesting<V> nesting;
+    private volatile Snapshot<K,V> snapshot;
+
+    IntervalMap(Nesting<V> nesting) {
+        this.nesting = nesting;
+        this.snapshot = new Snapshot<K,V>(new Object[0], new Object[0], nesting);
+    }
+
+    /**
+     * Retorna a versão atual sem cópia e sem trava.
+     * @return a versão imutável atual do mapa.
+     */
+    Snapshot<K,V> getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Retorna o valor da maior chave menor ou igual à chave informada.
+     * @param key a chave de busca.
+     * @return o valor encontrado ou nulo se não houver.
+     */
+    V floorValue(K key) {
+        Snapshot<K,V> current = snapshot;
+        int index = current.floorIndex(key);
+        if (index < 0) {
+            return null;
+        } else {
+            return current.getValue(index);
+        }
+    }
+
+    int size() {
+        return snapshot.size();
+    }
+
+    synchronized V put(K key, V value) {
+        Snapshot<K,V> current = snapshot;
+        int index = current.search(key);
+        if (index >= 0) {
+            Object[] valueArray = current.valueArray.clone();
+            valueArray[index] = value;
+            snapshot = new Snapshot<K,V>(current.keyArray, valueArray, nesting);
+            return current.getValue(index);
+        } else {
+            index = -index - 1;
+            int length = current.keyArray.length;
+            Object[] keyArray = new Object[length + 1];
+            Object[] valueArray = new Object[length + 1];
+            System.arraycopy(current.keyArray, 0, keyArray, 0, index);
+            System.arraycopy(current.valueArray, 0, valueArray, 0, index);
+            keyArray[index] = key;
+            valueArray[index] = value;
+            System.arraycopy(current.keyArray, index, keyArray, index + 1, length - index);
+            System.arraycopy(current.valueArray, index, valueArray, index + 1, length - index);
+            snapshot = new Snapshot<K,V>(keyArray, valueArray, nesting);
+            return null;
+        }
+    }
+
+    /**
+     * Insere vários registros com uma única cópia.
+     * @param map os registros a serem inseridos.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void putAll(Map<K,V> map) {
+        if (!map.isEmpty()) {
+            TreeMap<K,V> treeMap = snapshot.toTreeMap();
+            treeMap.putAll(map);
+            Object[] keyArray = treeMap.keySet().toArray();
+            Object[] valueArray = treeMap.values().toArray();
+            snapshot = new Snapshot<K,V>(keyArray, valueArray, nesting);
+        }
+    }
+
+    private void removeIndex(Snapshot<K,V> current, int index) {
+        int length = current.keyArray.length;
+        Object[] keyArray = Arrays.copyOf(current.keyArray, length - 1);
+        Object[] valueArray = Arrays.copyOf(current.valueArray, length - 1);
+        System.arraycopy(current.keyArray, index + 1, keyArray, index, length - index - 1);
+        System.arraycopy(current.valueArray, index + 1, valueArray, index, length - index - 1);
+        snapshot = new Snapshot<K,V>(keyArray, valueArray, nesting);
+    }
+
+    synchronized V remove(K key) {
+        Snapshot<K,V> current = snapshot;
+        int index = current.search(key);
+        if (index < 0) {
+            return null;
+        } else {
+            V value = current.getValue(index);
+            removeIndex(current, index);
+            return value;
+        }
+    }
+
+    /**
+     * Remove vários registros com uma única cópia.
+     * @param keyCollection as chaves dos registros.
+     * @return a quantidade de registros removidos.
+     */
+    synchronized int removeAll(Collection<K> keyCollection) {
+        Snapshot<K,V> current = snapshot;
+        HashSet<K> keySet = new HashSet<K>(keyCollection);
+        int length = current.keyArray.length;
+        Object[] keyArray = new Object[length];
+        Object[] valueArray = new Object[length];
+        int size = 0;
+        for (int index = 0; index < length; index++) {
+            if (!keySet.contains(current.getKey(index))) {
+                keyArray[size] = current.keyArray[index];
+                valueArray[size] = current.valueArray[index];
+                size++;
+            }
+        }
+        if (size < length) {
+            snapshot = new Snapshot<K,V>(
+                    Arrays.copyOf(keyArray, size),
+                    Arrays.copyOf(valueArray, size),
+                    nesting
+            );
+        }
+        return length - size;
+    }
+
+    /**
+     * Remove o registro somente se ainda estiver associado ao valor informado.
+     * @param key a chave do registro.
+     * @param value o valor esperado.
+     * @return verdadeiro se o registro foi removido.
+     */
+    synchronized boolean remove(K key, V value) {
+        Snapshot<K,V> current = snapshot;
+        int index = current.search(key);
+        if (index < 0) {
+            return false;
+        } else if (current.getValue(index) != value) {
+            return false;
+        } else {
+            removeIndex(current, index);
+            return true;
+        }
+    }
+}
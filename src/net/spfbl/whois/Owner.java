@@ -461,29 +461,56 @@ public class Owner implements Serializable, Comparable<Owner> {
      * @throws ProcessException se houver falha no processamento.
      */
     public static synchronized Owner getOwner(String id) throws ProcessException {
-        String key = normalizeID(id);
+        final String key = normalizeID(id);
         // Busca eficiente O(1).
         if (MAP.containsKey(key)) {
             // Owner encontrado.
-            Owner owner = MAP.get(key);
+            final Owner owner = MAP.get(key);
             owner.queries++;
             if (owner.isRegistryExpired()) {
                 // Registro desatualizado.
-                // Atualizando campos do registro.
-                if (owner.refresh()) {
-                    // Owner real do resultado WHOIS bate com o registro.
-                    return owner;
-                } else if (MAP.remove(owner.getOwnerID()) != null) {
-                    // Owner real do resultado WHOIS não bate com o registro.
-                    OWNER_CHANGED = true;
-                    // Segue para nova consulta.
-                }
-            } else {
-                // Registro atualizado.
-                return owner;
+                // Retorna o registro atual e atualiza em segundo plano.
+                WhoisQueue.request(
+                        WhoisQueue.Priority.QUERY,
+                        new WhoisQueue.Request("OWNER " + key, true) {
+                    @Override
+                    public void run() throws ProcessException {
+                        refreshExpired(owner);
+                    }
+                });
             }
+            return owner;
         }
         // Não encontrou o dominio em cache.
+        WhoisQueue.Request request = new WhoisQueue.Request("OWNER " + key, true) {
+            @Override
+            public void run() throws ProcessException {
+                if (!containsOwner(key)) {
+                    newOwner(key);
+                }
+            }
+        };
+        if (Server.hasWhoisIDQuery()) {
+            try {
+                return newOwner(key);
+            } catch (ProcessException ex) {
+                if (WhoisQueue.isRetryable(ex)) {
+                    WhoisQueue.request(WhoisQueue.Priority.QUERY, request);
+                }
+                throw ex;
+            }
+        } else {
+            // Não aguarda o limite do WHOIS.
+            WhoisQueue.request(WhoisQueue.Priority.QUERY, request);
+            throw new ProcessException("ERROR: WHOIS QUERY LIMIT");
+        }
+    }
+    
+    private static synchronized boolean containsOwner(String key) {
+        return MAP.containsKey(key);
+    }
+    
+    private static synchronized Owner newOwner(String key) throws ProcessException {
         // Selecionando servidor da pesquisa WHOIS.
         String server = Server.WHOIS_BR;
         // Realizando a consulta no WHOIS.
@@ -495,6 +522,21 @@ public class Owner implements Serializable, Comparable<Owner> {
         return owner;
     }
     
+    /**
+     * Atualiza um registro expirado, removendo-o do cache
+     * se o resultado WHOIS não bater com o registro.
+     * @param owner o registro a ser atualizado.
+     * @throws ProcessException se houver falha no processamento.
+     */
+    private static synchronized void refreshExpired(Owner owner) throws ProcessException {
+        if (owner.isRegistryExpired() && !owner.refresh()) {
+            // Owner real do resultado WHOIS não bate com o registro.
+            if (MAP.remove(owner.getOwnerID()) != null) {
+                OWNER_CHANGED = true;
+            }
+        }
+    }
+    
     /**
      * Retorna a identificação do dono.
      * @return a identificação do dono.
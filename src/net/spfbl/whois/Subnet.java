@@ -73,6 +73,13 @@ public abstract class Subnet implements Serializable, Comparable<Subnet> {
     private boolean reduced = false; // Diz se a última consulta foi reduzida.
     private int queries = 1; // Contador de consultas.
     
+    /**
+     * @return o contador de consultas do bloco.
+     */
+    final int getQueries() {
+        return queries;
+    }
+    
     private static int REFRESH_TIME = 84; // Prazo máximo que o registro deve permanecer em cache em dias.
     
     /**
@@ -171,7 +178,9 @@ public abstract class Subnet implements Serializable, Comparable<Subnet> {
         if (ip == null) {
             return null;
         } else if (SubnetIPv4.isValidIPv4(ip)) {
-            return SubnetIPv4.normalizeIPv4(ip);
+            // A notação válida não tem zeros à esquerda,
+            // portanto já está padronizada.
+            return ip;
         } else if (SubnetIPv6.isValidIPv6(ip)) {
             return SubnetIPv6.normalizeIPv6(ip);
         } else {
@@ -179,6 +188,51 @@ public abstract class Subnet implements Serializable, Comparable<Subnet> {
         }
     }
     
+    /**
+     * Converte o IP para a forma binária compacta.
+     * @param ip o IP a ser convertido.
+     * @return 4 bytes para IPv4, 16 bytes para IPv6 ou nulo se inválido.
+     */
+    public static byte[] packIP(String ip) {
+        if (ip == null) {
+            return null;
+        } else if (SubnetIPv4.isValidIPv4(ip)) {
+            return SubnetIPv4.split(ip);
+        } else if (SubnetIPv6.isValidIPv6(ip)) {
+            return SubnetIPv6.splitByte(ip);
+        } else {
+            return null;
+        }
+    }
+    
+    /**
+     * Converte o IP da forma binária compacta para a forma normalizada.
+     * @param address os 4 ou 16 bytes do IP.
+     * @return o IP normalizado ou nulo se o tamanho for inválido.
+     */
+    public static String unpackIP(byte[] address) {
+        if (address == null) {
+            return null;
+        } else if (address.length == 4) {
+            return (address[0] & 0xFF) + "."
+                    + (address[1] & 0xFF) + "."
+                    + (address[2] & 0xFF) + "."
+                    + (address[3] & 0xFF);
+        } else if (address.length == 16) {
+            StringBuilder builder = new StringBuilder(39);
+            for (int index = 0; index < 16; index += 2) {
+                if (index > 0) {
+                    builder.append(':');
+                }
+                int block = ((address[index] & 0xFF) << 8) | (address[index + 1] & 0xFF);
+                builder.append(Integer.toHexString(block));
+            }
+            return builder.toString();
+        } else {
+            return null;
+        }
+    }
+    
     public static String expandIP(String ip) {
         if (SubnetIPv4.isValidIPv4(ip)) {
             return SubnetIPv4.expandIPv4(ip);
@@ -403,6 +457,43 @@ public abstract class Subnet implements Serializable, Comparable<Subnet> {
         return Owner.getOwner(ownerid);
     }
     
+    /**
+     * @return verdadeiro se a sub-rede do IP já está em cache.
+     */
+    public static boolean isCached(String ip) {
+        if (SubnetIPv4.isValidIPv4(ip)) {
+            return SubnetIPv4.getCachedSubnet(ip) != null;
+        } else if (SubnetIPv6.isValidIPv6(ip)) {
+            return SubnetIPv6.getCachedSubnet(ip) != null;
+        } else {
+            return false;
+        }
+    }
+    
+    /**
+     * Retorna o sistema autônomo do bloco somente se estiver em cache.
+     * Nunca dispara consulta WHOIS.
+     * @param ip o IP cujo sistema autônomo deve ser retornado.
+     * @return o aut-num do bloco em cache ou nulo se não houver.
+     */
+    public static String getCachedAutNum(String ip) {
+        Subnet subnet;
+        if (SubnetIPv4.isValidIPv4(ip)) {
+            subnet = SubnetIPv4.getCachedSubnet(ip);
+        } else if (SubnetIPv6.isValidIPv6(ip)) {
+            subnet = SubnetIPv6.getCachedSubnet(ip);
+        } else {
+            subnet = null;
+        }
+        if (subnet == null) {
+            return null;
+        } else if (subnet.aut_num == null || subnet.aut_num.length() == 0) {
+            return null;
+        } else {
+            return subnet.aut_num;
+        }
+    }
+    
     public Handle getAbuseHandle() {
         return Handle.getHandle(abuse_c);
     }
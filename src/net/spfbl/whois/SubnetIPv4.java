@@ -18,6 +18,7 @@ package net.spfbl.whois;
 
 import net.spfbl.core.Server;
 import net.spfbl.core.ProcessException;
+import net.spfbl.core.Governor;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -328,11 +329,38 @@ public final class SubnetIPv4 extends Subnet {
         if (ip == null) {
             return false;
         } else {
-            return Pattern.matches("^"
-                    + "(([0-9]|[1-9][0-9]|1[0-9]{2}|2[0-4][0-9]|25[0-5])\\.){3}"
-                    + "([0-9]|[1-9][0-9]|1[0-9]{2}|2[0-4][0-9]|25[0-5])"
-                    + "$", ip
-                    );
+            // Varredura única sem alocação, equivalente à expressão
+            // ^(([0-9]|[1-9][0-9]|1[0-9]{2}|2[0-4][0-9]|25[0-5])\\.){3}
+            // ([0-9]|[1-9][0-9]|1[0-9]{2}|2[0-4][0-9]|25[0-5])$
+            int length = ip.length();
+            if (length < 7 || length > 15) {
+                return false;
+            }
+            int dots = 0;
+            int digits = 0;
+            int value = 0;
+            for (int index = 0; index < length; index++) {
+                char character = ip.charAt(index);
+                if (character >= '0' && character <= '9') {
+                    if (digits > 0 && value == 0) {
+                        // Zero à esquerda.
+                        return false;
+                    }
+                    value = value * 10 + (character - '0');
+                    if (++digits > 3 || value > 255) {
+                        return false;
+                    }
+                } else if (character == '.') {
+                    if (digits == 0 || ++dots > 3) {
+                        return false;
+                    }
+                    digits = 0;
+                    value = 0;
+                } else {
+                    return false;
+                }
+            }
+            return dots == 3 && digits > 0;
         }
     }
     
@@ -406,9 +434,22 @@ public final class SubnetIPv4 extends Subnet {
     }
     
     /**
-     * Mapa de blocos IP de ASs com busca em árvore binária log2(n).
+     * Um bloco contém outro se contém o primeiro endereço
+     * dele e tem máscara igual ou mais curta.
+     */
+    private static final IntervalMap.Nesting<SubnetIPv4> NESTING = new IntervalMap.Nesting<SubnetIPv4>() {
+        @Override
+        public boolean encloses(SubnetIPv4 outer, SubnetIPv4 inner) {
+            return outer.contains(inner.address)
+                    && Integer.bitCount(outer.mask) <= Integer.bitCount(inner.mask);
+        }
+    };
+    
+    /**
+     * Mapa de blocos IP de ASs com busca binária log2(n) 
+     * sem trava na leitura e blocos aninhados.
      */
-    private static final TreeMap<Long,SubnetIPv4> MAP = new TreeMap<Long,SubnetIPv4>();
+    private static final IntervalMap<Long,SubnetIPv4> MAP = new IntervalMap<Long,SubnetIPv4>(NESTING);
     
     /**
      * Remove registro de bloco de IP para AS do cache.
@@ -418,12 +459,12 @@ public final class SubnetIPv4 extends Subnet {
     public static synchronized SubnetIPv4 removeSubnet(String ip) {
         // Busca eficiente O(log2(n)).
         // Este método só funciona se o mapa não tiver intersecção de blocos.
-        Long key = getLongIP(ip);
-        key = MAP.floorKey(key);
-        if (key == null) {
+        IntervalMap.Snapshot<Long,SubnetIPv4> snapshot = MAP.getSnapshot();
+        int index = snapshot.floorIndex(getLongIP(ip));
+        if (index < 0) {
             return null;
         } else {
-            SubnetIPv4 subnet = MAP.remove(key);
+            SubnetIPv4 subnet = MAP.remove(snapshot.getKey(index));
             // Atualiza flag de atualização.
             CHANGED = true;
             return subnet;
@@ -435,9 +476,38 @@ public final class SubnetIPv4 extends Subnet {
      */
     private static boolean CHANGED = false;
     
-    protected static synchronized TreeSet<Subnet> getSubnetSet() {
+    /**
+     * Descarta os blocos menos consultados.
+     * @param count a quantidade de registros a descartar.
+     * @return a quantidade descartada.
+     */
+    private static int dropLeast(int count) {
+        Governor.Selector<Long> selector = new Governor.Selector<Long>(count);
+        IntervalMap.Snapshot<Long,SubnetIPv4> snapshot = MAP.getSnapshot();
+        for (int index = 0; index < snapshot.size(); index++) {
+            selector.add(snapshot.getKey(index), snapshot.getValue(index).getQueries());
+        }
+        int removed = MAP.removeAll(selector.getList());
+        if (removed > 0) {
+            CHANGED = true;
+        }
+        return removed;
+    }
+    
+    private static final Governor.Cache GOVERNOR = new Governor.Cache("subnet4", 1, 1024) {
+        @Override
+        protected long size() {
+            return MAP.size();
+        }
+        @Override
+        protected int shed(int count) {
+            return dropLeast(count);
+        }
+    };
+    
+    protected static TreeSet<Subnet> getSubnetSet() {
         TreeSet<Subnet> subnetSet = new TreeSet<Subnet>();
-        subnetSet.addAll(MAP.values());
+        subnetSet.addAll(MAP.getSnapshot().values());
         return subnetSet;
     }
     
@@ -448,23 +518,26 @@ public final class SubnetIPv4 extends Subnet {
      */
     public static synchronized void refreshSubnet(String ip) throws ProcessException {
         SubnetIPv4 subnet;
-        Long key = getLongIP(ip);
-        key = MAP.floorKey(key);
-        while (key != null) {
-            subnet = MAP.get(key);
+        IntervalMap.Snapshot<Long,SubnetIPv4> snapshot = MAP.getSnapshot();
+        int index = snapshot.floorIndex(getLongIP(ip));
+        while (index >= 0) {
+            subnet = snapshot.getValue(index);
             if (subnet.contains(ip)) {
                 // Atualizando campos do registro.
                 if (!subnet.refresh()) {
                     // Domínio real do resultado WHOIS não bate com o registro.
                     // Pode haver mudança na distribuição dos blocos.
                     // Apagando registro de bloco do cache.
-                    MAP.remove(key);
+                    MAP.remove(snapshot.getKey(index), subnet);
                     CHANGED = true;
                     // Segue para nova consulta.
                     break;
+                } else {
+                    return;
                 }
             } else {
-                key = MAP.lowerKey(key);
+                // Sobe somente pelos blocos envolventes.
+                index = snapshot.parentIndex(index);
             }
         }
         // Não encontrou a sub-rede em cache.
@@ -475,7 +548,7 @@ public final class SubnetIPv4 extends Subnet {
         subnet = new SubnetIPv4(result);
         subnet.server = server; // Temporário até final de transição.
         ip = getFirstIPv4(subnet.getInetnum());
-        key = getLongIP(ip);
+        Long key = getLongIP(ip);
         MAP.put(key, subnet);
         CHANGED = true;
     }
@@ -561,42 +634,71 @@ public final class SubnetIPv4 extends Subnet {
      * @return o registro de bloco IPv4 de AS de um determinado IP.
      * @throws ProcessException se houver falha no processamento.
      */
-    public static SubnetIPv4 getSubnet(String ip) throws ProcessException {
-        SubnetIPv4 subnet;
-        Long key = getLongIP(ip);
-        key = MAP.floorKey(key);
-        while (key != null) {
-            subnet = MAP.get(key);
-            if (subnet.contains(ip)) {
-                if (subnet.isRegistryExpired()) {
-                    // Registro expirado.
-                    // Atualizando campos do registro.
-                    if (subnet.refresh()) {
-                        // Bloco do resultado WHOIS bate com o bloco do registro.
-                        return subnet;
-                    } else if (MAP.remove(key) != null) {
-                        // Domínio real do resultado WHOIS não bate com o registro.
-                        // Pode haver mudança na distribuição dos blocos.
-                        // Apagando registro de bloco do cache.
-                        CHANGED = true;
-                        // Segue para nova consulta.
-                        break;
+    public static SubnetIPv4 getSubnet(final String ip) throws ProcessException {
+        final SubnetIPv4 subnet = getCachedSubnet(ip);
+        if (subnet == null) {
+            // Não encontrou a sub-rede em cache.
+            WhoisQueue.Request request = new WhoisQueue.Request("IPv4 " + ip) {
+                @Override
+                public void run() throws ProcessException {
+                    if (getCachedSubnet(ip) == null) {
+                        newSubnet(ip);
                     }
-                } else {
-                    return subnet;
+                }
+            };
+            if (Server.hasWhoisQuery()) {
+                try {
+                    return newSubnet(ip);
+                } catch (ProcessException ex) {
+                    if (WhoisQueue.isRetryable(ex)) {
+                        WhoisQueue.request(WhoisQueue.Priority.QUERY, request);
+                    }
+                    throw ex;
                 }
             } else {
-                key = MAP.lowerKey(key);
+                // Não aguarda o limite do WHOIS.
+                WhoisQueue.request(WhoisQueue.Priority.QUERY, request);
+                throw new ProcessException("ERROR: WHOIS QUERY LIMIT");
             }
+        } else if (subnet.isRegistryExpired()) {
+            // Registro expirado.
+            // Retorna o registro atual e atualiza em segundo plano.
+            WhoisQueue.request(
+                    WhoisQueue.Priority.QUERY,
+                    new WhoisQueue.Request("IPv4 " + subnet.getInetnum()) {
+                @Override
+                public void run() throws ProcessException {
+                    if (subnet.isRegistryExpired()) {
+                        refreshSubnet(ip);
+                    }
+                }
+            });
+            return subnet;
+        } else {
+            return subnet;
         }
-        // Não encontrou a sub-rede em cache.
-        return newSubnet(ip);
     }
     
-    private static synchronized TreeMap<Long,SubnetIPv4> getMap() {
-        TreeMap<Long,SubnetIPv4> map = new TreeMap<Long,SubnetIPv4>();
-        map.putAll(MAP);
-        return map;
+    /**
+     * Busca o bloco de um determinado IP somente no cache.
+     * @param ip o IP cujo bloco deve ser retornado.
+     * @return o registro de bloco em cache ou nulo se não houver.
+     */
+    static SubnetIPv4 getCachedSubnet(String ip) {
+        SubnetIPv4 subnet;
+        // Versão imutável consultada sem trava.
+        IntervalMap.Snapshot<Long,SubnetIPv4> snapshot = MAP.getSnapshot();
+        int index = snapshot.floorIndex(getLongIP(ip));
+        while (index >= 0) {
+            subnet = snapshot.getValue(index);
+            if (subnet.contains(ip)) {
+                return subnet;
+            } else {
+                // Sobe somente pelos blocos envolventes.
+                index = snapshot.parentIndex(index);
+            }
+        }
+        return null;
     }
     
     /**
@@ -607,7 +709,9 @@ public final class SubnetIPv4 extends Subnet {
             try {
                 Server.logTrace("storing subnet4.map");
                 long time = System.currentTimeMillis();
-                TreeMap<Long,SubnetIPv4> map = getMap();
+                // Versão consistente obtida sem cópia nem trava,
+                // convertida para o formato em disco fora da trava.
+                TreeMap<Long,SubnetIPv4> map = MAP.getSnapshot().toTreeMap();
                 File file = new File("./data/subnet4.map");
                 FileOutputStream outputStream = new FileOutputStream(file);
                 try {
@@ -624,10 +728,6 @@ public final class SubnetIPv4 extends Subnet {
         }
     }
     
-    private static synchronized SubnetIPv4 put(Long key, SubnetIPv4 subnet) {
-        return MAP.put(key, subnet);
-    }
-    
     /**
      * Carregamento de cache do disco.
      */
@@ -643,6 +743,7 @@ public final class SubnetIPv4 extends Subnet {
                 } finally {
                     fileInputStream.close();
                 }
+                TreeMap<Long,SubnetIPv4> loadMap = new TreeMap<Long,SubnetIPv4>();
                 for (Object value : map.values()) {
                     if (value instanceof SubnetIPv4) {
                         SubnetIPv4 sub4 = (SubnetIPv4) value;
@@ -650,9 +751,11 @@ public final class SubnetIPv4 extends Subnet {
                         String cidr = sub4.getInetnum();
                         String ip = getFirstIPv4(cidr);
                         Long key = getLongIP(ip);
-                        put(key, sub4);
+                        loadMap.put(key, sub4);
                     }
                 }
+                // Inserção em lote com uma única cópia.
+                MAP.putAll(loadMap);
                 Server.logLoad(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -697,7 +800,7 @@ public final class SubnetIPv4 extends Subnet {
     /**
      * Mapa completo dos blocos alocados aos países.
      */
-    private static final TreeMap<Long,SubnetIPv4> SERVER_MAP = new TreeMap<Long,SubnetIPv4>();
+    private static final IntervalMap<Long,SubnetIPv4> SERVER_MAP = new IntervalMap<Long,SubnetIPv4>(NESTING);
     
     /**
      * Adiciona um servidor WHOIS na lista com seu respecitivo bloco.
@@ -731,12 +834,10 @@ public final class SubnetIPv4 extends Subnet {
     private static String getWhoisServer(String ip) throws ProcessException {
         // Busca eficiente O(log2(n)).
         // Este método só funciona se o mapa não tiver intersecção de blocos.
-        Long key = getLongIP(ip);
-        key = SERVER_MAP.floorKey(key);
-        if (key == null) {
+        SubnetIPv4 subnet = SERVER_MAP.floorValue(getLongIP(ip));
+        if (subnet == null) {
             throw new ProcessException("ERROR: SERVER NOT FOUND");
         } else {
-            SubnetIPv4 subnet = SERVER_MAP.get(key);
             if (subnet.contains(ip)) {
                 return subnet.getServer();
             } else {
@@ -18,6 +18,7 @@ package net.spfbl.whois;
 
 import net.spfbl.core.Server;
 import net.spfbl.core.ProcessException;
+import net.spfbl.core.Governor;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -312,22 +313,109 @@ public final class SubnetIPv6 extends Subnet {
         if (ip == null) {
             return false;
         } else {
-            ip = ip.trim();
-            ip = ip.toLowerCase();
-            return Pattern.matches("^"
-                    + "([0-9a-fA-F]{1,4}:){7,7}[0-9a-fA-F]{1,4}|"
-                    + "([0-9a-fA-F]{1,4}:){1,7}:|"
-                    + "([0-9a-fA-F]{1,4}:){1,6}:[0-9a-fA-F]{1,4}|"
-                    + "([0-9a-fA-F]{1,4}:){1,5}(:[0-9a-fA-F]{1,4}){1,2}|"
-                    + "([0-9a-fA-F]{1,4}:){1,4}(:[0-9a-fA-F]{1,4}){1,3}|"
-                    + "([0-9a-fA-F]{1,4}:){1,3}(:[0-9a-fA-F]{1,4}){1,4}|"
-                    + "([0-9a-fA-F]{1,4}:){1,2}(:[0-9a-fA-F]{1,4}){1,5}|"
-                    + "[0-9a-fA-F]{1,4}:((:[0-9a-fA-F]{1,4}){1,6})|"
-                    + ":((:[0-9a-fA-F]{1,4}){1,7}|:)|"
-                    + "fe80:(:[0-9a-fA-F]{0,4}){0,4}%[0-9a-zA-Z]{1,}"
-                    + "$", ip
-                    );
+            // Varredura única sem alocação, equivalente à expressão
+            // anterior que aceitava a forma completa, a forma abreviada
+            // com um único "::" e a forma fe80 com identificador de zona.
+            int begin = 0;
+            int end = ip.length();
+            while (begin < end && ip.charAt(begin) <= ' ') {
+                begin++;
+            }
+            while (end > begin && ip.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            if (begin == end) {
+                return false;
+            }
+            int zone = ip.indexOf('%', begin);
+            if (zone >= 0 && zone < end) {
+                return isValidZoneIPv6(ip, begin, zone, end);
+            }
+            int groups = 0;
+            int digits = 0;
+            boolean compressed = false;
+            for (int index = begin; index < end; index++) {
+                char character = ip.charAt(index);
+                if (isHexadecimal(character)) {
+                    if (++digits > 4) {
+                        return false;
+                    }
+                } else if (character != ':') {
+                    return false;
+                } else if (digits > 0) {
+                    groups++;
+                    digits = 0;
+                } else if (index == begin) {
+                    // Somente a abreviação pode iniciar com dois pontos.
+                    if (index + 1 == end || ip.charAt(index + 1) != ':') {
+                        return false;
+                    }
+                } else if (compressed) {
+                    // Só pode haver uma abreviação.
+                    return false;
+                } else {
+                    compressed = true;
+                }
+            }
+            if (digits > 0) {
+                groups++;
+            } else if (!compressed || ip.charAt(end - 2) != ':') {
+                // Terminou com dois pontos sem ser a abreviação.
+                return false;
+            }
+            if (compressed) {
+                return groups < 8;
+            } else {
+                return groups == 8;
+            }
+        }
+    }
+    
+    private static boolean isHexadecimal(char character) {
+        if (character >= '0' && character <= '9') {
+            return true;
+        } else if (character >= 'a' && character <= 'f') {
+            return true;
+        } else {
+            return character >= 'A' && character <= 'F';
+        }
+    }
+    
+    /**
+     * Verifica a forma fe80:(:[0-9a-f]{0,4}){0,4}%[0-9a-z]+ de endereço
+     * de enlace local com identificador de zona.
+     */
+    private static boolean isValidZoneIPv6(String ip, int begin, int zone, int end) {
+        if (!ip.regionMatches(true, begin, "fe80:", 0, 5)) {
+            return false;
+        } else if (zone + 1 == end) {
+            return false;
+        }
+        int index = begin + 5;
+        int blocks = 0;
+        while (index < zone) {
+            if (ip.charAt(index++) != ':' || ++blocks > 4) {
+                return false;
+            }
+            int digits = 0;
+            while (index < zone && isHexadecimal(ip.charAt(index))) {
+                if (++digits > 4) {
+                    return false;
+                }
+                index++;
+            }
+        }
+        for (index = zone + 1; index < end; index++) {
+            char character = Character.toLowerCase(ip.charAt(index));
+            if (character >= '0' && character <= '9') {
+                continue;
+            } else if (character >= 'a' && character <= 'z') {
+                continue;
+            } else {
+                return false;
+            }
         }
+        return true;
     }
     
     public static boolean isReservedIPv6(String ip) {
@@ -424,9 +512,22 @@ public final class SubnetIPv6 extends Subnet {
     }
     
     /**
-     * Mapa de blocos IP de ASs com busca em árvore binária log2(n).
+     * Um bloco contém outro se contém o primeiro endereço
+     * dele e tem máscara igual ou mais curta.
+     */
+    private static final IntervalMap.Nesting<SubnetIPv6> NESTING = new IntervalMap.Nesting<SubnetIPv6>() {
+        @Override
+        public boolean encloses(SubnetIPv6 outer, SubnetIPv6 inner) {
+            return outer.contains(inner.address)
+                    && Long.bitCount(outer.mask) <= Long.bitCount(inner.mask);
+        }
+    };
+    
+    /**
+     * Mapa de blocos IP de ASs com busca binária log2(n) 
+     * sem trava na leitura e blocos aninhados.
      */
-    private static final TreeMap<String,SubnetIPv6> MAP = new TreeMap<String,SubnetIPv6>();
+    private static final IntervalMap<String,SubnetIPv6> MAP = new IntervalMap<String,SubnetIPv6>(NESTING);
     
     /**
      * Remove registro de bloco de IP para AS do cache.
@@ -436,12 +537,12 @@ public final class SubnetIPv6 extends Subnet {
     public static synchronized SubnetIPv6 removeSubnet(String ip) {
         // Busca eficiente O(log2(n)).
         // Este método só funciona se o mapa não tiver intersecção de blocos.
-        String key = expandIPv6(ip);
-        key = MAP.floorKey(key);
-        if (key == null) {
+        IntervalMap.Snapshot<String,SubnetIPv6> snapshot = MAP.getSnapshot();
+        int index = snapshot.floorIndex(expandIPv6(ip));
+        if (index < 0) {
             return null;
         } else {
-            SubnetIPv6 subnet = MAP.remove(key);
+            SubnetIPv6 subnet = MAP.remove(snapshot.getKey(index));
             // Atualiza flag de atualização.
             CHANGED = true;
             return subnet;
@@ -453,9 +554,38 @@ public final class SubnetIPv6 extends Subnet {
      */
     private static boolean CHANGED = false;
     
-    protected static synchronized TreeSet<Subnet> getSubnetSet() {
+    /**
+     * Descarta os blocos menos consultados.
+     * @param count a quantidade de registros a descartar.
+     * @return a quantidade descartada.
+     */
+    private static int dropLeast(int count) {
+        Governor.Selector<String> selector = new Governor.Selector<String>(count);
+        IntervalMap.Snapshot<String,SubnetIPv6> snapshot = MAP.getSnapshot();
+        for (int index = 0; index < snapshot.size(); index++) {
+            selector.add(snapshot.getKey(index), snapshot.getValue(index).getQueries());
+        }
+        int removed = MAP.removeAll(selector.getList());
+        if (removed > 0) {
+            CHANGED = true;
+        }
+        return removed;
+    }
+    
+    private static final Governor.Cache GOVERNOR = new Governor.Cache("subnet6", 1, 1024) {
+        @Override
+        protected long size() {
+            return MAP.size();
+        }
+        @Override
+        protected int shed(int count) {
+            return dropLeast(count);
+        }
+    };
+    
+    protected static TreeSet<Subnet> getSubnetSet() {
         TreeSet<Subnet> subnetSet = new TreeSet<Subnet>();
-        subnetSet.addAll(MAP.values());
+        subnetSet.addAll(MAP.getSnapshot().values());
         return subnetSet;
     }
     
@@ -466,22 +596,26 @@ public final class SubnetIPv6 extends Subnet {
      */
     public static synchronized void refreshSubnet(String ip) throws ProcessException {
         SubnetIPv6 subnet;
-        String key = MAP.floorKey(expandIPv6(ip));
-        while (key != null) {
-            subnet = MAP.get(key);
+        IntervalMap.Snapshot<String,SubnetIPv6> snapshot = MAP.getSnapshot();
+        int index = snapshot.floorIndex(expandIPv6(ip));
+        while (index >= 0) {
+            subnet = snapshot.getValue(index);
             if (subnet.contains(ip)) {
                 // Atualizando campos do registro.
                 if (!subnet.refresh()) {
                     // Domínio real do resultado WHOIS não bate com o registro.
                     // Pode haver mudança na distribuição dos blocos.
                     // Apagando registro de bloco do cache.
-                    MAP.remove(key);
+                    MAP.remove(snapshot.getKey(index), subnet);
                     CHANGED = true;
                     // Segue para nova consulta.
                     break;
+                } else {
+                    return;
                 }
             } else {
-                key = MAP.lowerKey(key);
+                // Sobe somente pelos blocos envolventes.
+                index = snapshot.parentIndex(index);
             }
         }
         // Não encontrou a sub-rede em cache.
@@ -491,7 +625,7 @@ public final class SubnetIPv6 extends Subnet {
         String result = Server.whois(ip, server);
         subnet = new SubnetIPv6(result);
         subnet.server = server; // Temporário até final de transição.
-        key = getFirstIPv6(subnet.getInetnum());
+        String key = getFirstIPv6(subnet.getInetnum());
         key = expandIPv6(key);
         MAP.put(key, subnet);
         CHANGED = true;
@@ -666,41 +800,71 @@ public final class SubnetIPv6 extends Subnet {
      * @return o registro de bloco IPv6 de AS de um determinado IP.
      * @throws ProcessException se houver falha no processamento.
      */
-    public static SubnetIPv6 getSubnet(String ip) throws ProcessException {
-        SubnetIPv6 subnet;
-        String key = MAP.floorKey(expandIPv6(ip));
-        while (key != null) {
-            subnet = MAP.get(key);
-            if (subnet.contains(ip)) {
-                if (subnet.isRegistryExpired()) {
-                    // Registro expirado.
-                    // Atualizando campos do registro.
-                    if (subnet.refresh()) {
-                        // Bloco do resultado WHOIS bate com o bloco do registro.
-                        return subnet;
-                    } else if (MAP.remove(key) != null) {
-                        // Domínio real do resultado WHOIS não bate com o registro.
-                        // Pode haver mudança na distribuição dos blocos.
-                        // Apagando registro de bloco do cache.
-                        CHANGED = true;
-                        // Segue para nova consulta.
-                        break;
+    public static SubnetIPv6 getSubnet(final String ip) throws ProcessException {
+        final SubnetIPv6 subnet = getCachedSubnet(ip);
+        if (subnet == null) {
+            // Não encontrou a sub-rede em cache.
+            WhoisQueue.Request request = new WhoisQueue.Request("IPv6 " + ip) {
+                @Override
+                public void run() throws ProcessException {
+                    if (getCachedSubnet(ip) == null) {
+                        newSubnet(ip);
                     }
-                } else {
-                    return subnet;
+                }
+            };
+            if (Server.hasWhoisQuery()) {
+                try {
+                    return newSubnet(ip);
+                } catch (ProcessException ex) {
+                    if (WhoisQueue.isRetryable(ex)) {
+                        WhoisQueue.request(WhoisQueue.Priority.QUERY, request);
+                    }
+                    throw ex;
                 }
             } else {
-                key = MAP.lowerKey(key);
+                // Não aguarda o limite do WHOIS.
+                WhoisQueue.request(WhoisQueue.Priority.QUERY, request);
+                throw new ProcessException("ERROR: WHOIS QUERY LIMIT");
             }
+        } else if (subnet.isRegistryExpired()) {
+            // Registro expirado.
+            // Retorna o registro atual e atualiza em segundo plano.
+            WhoisQueue.request(
+                    WhoisQueue.Priority.QUERY,
+                    new WhoisQueue.Request("IPv6 " + subnet.getInetnum()) {
+                @Override
+                public void run() throws ProcessException {
+                    if (subnet.isRegistryExpired()) {
+                        refreshSubnet(ip);
+                    }
+                }
+            });
+            return subnet;
+        } else {
+            return subnet;
         }
-        // Não encontrou a sub-rede em cache.
-        return newSubnet(ip);
     }
     
-    private static synchronized TreeMap<String,SubnetIPv6> getMap() {
-        TreeMap<String,SubnetIPv6> map = new TreeMap<String,SubnetIPv6>();
-        map.putAll(MAP);
-        return map;
+    /**
+     * Busca o bloco de um determinado IP somente no cache.
+     * @param ip o IP cujo bloco deve ser retornado.
+     * @return o registro de bloco em cache ou nulo se não houver.
+     */
+    static SubnetIPv6 getCachedSubnet(String ip) {
+        SubnetIPv6 subnet;
+        // Versão imutável consultada sem trava.
+        IntervalMap.Snapshot<String,SubnetIPv6> snapshot = MAP.getSnapshot();
+        int index = snapshot.floorIndex(expandIPv6(ip));
+        while (index >= 0) {
+            subnet = snapshot.getValue(index);
+            if (subnet.contains(ip)) {
+                return subnet;
+            } else {
+                // Sobe somente pelos blocos envolventes.
+                index = snapshot.parentIndex(index);
+            }
+        }
+        return null;
     }
     
     /**
@@ -711,7 +875,9 @@ public final class SubnetIPv6 extends Subnet {
             try {
                 Server.logTrace("storing subnet6.map");
                 long time = System.currentTimeMillis();
-                TreeMap<String,SubnetIPv6> map = getMap();
+                // Versão consistente obtida sem cópia nem trava,
+                // convertida para o formato em disco fora da trava.
+                TreeMap<String,SubnetIPv6> map = MAP.getSnapshot().toTreeMap();
                 File file = new File("./data/subnet6.map");
                 FileOutputStream outputStream = new FileOutputStream(file);
                 try {
@@ -728,10 +894,6 @@ public final class SubnetIPv6 extends Subnet {
         }
     }
     
-    private static synchronized SubnetIPv6 put(String key, SubnetIPv6 subnet) {
-        return MAP.put(key, subnet);
-    }
-    
     /**
      * Carregamento de cache do disco.
      */
@@ -747,6 +909,7 @@ public final class SubnetIPv6 extends Subnet {
                 } finally {
                     fileInputStream.close();
                 }
+                TreeMap<String,SubnetIPv6> loadMap = new TreeMap<String,SubnetIPv6>();
                 for (Object value : map.values()) {
                     if (value instanceof SubnetIPv6) {
                         SubnetIPv6 sub6 = (SubnetIPv6) value;
@@ -754,9 +917,11 @@ public final class SubnetIPv6 extends Subnet {
                         String cidr = sub6.getInetnum();
                         String ip = getFirstIPv6(cidr);
                         String key = expandIPv6(ip);
-                        put(key, sub6);
+                        loadMap.put(key, sub6);
                     }
                 }
+                // Inserção em lote com uma única cópia.
+                MAP.putAll(loadMap);
                 Server.logLoad(time, file);
             } catch (Exception ex) {
                 Server.logError(ex);
@@ -803,7 +968,7 @@ public final class SubnetIPv6 extends Subnet {
     /**
      * Mapa completo dos blocos alocados aos países.
      */
-    private static final TreeMap<String,SubnetIPv6> SERVER_MAP = new TreeMap<String,SubnetIPv6>();
+    private static final IntervalMap<String,SubnetIPv6> SERVER_MAP = new IntervalMap<String,SubnetIPv6>(NESTING);
     
     /**
      * Adiciona um servidor WHOIS na lista com seu respecitivo bloco.
@@ -837,11 +1002,10 @@ public final class SubnetIPv6 extends Subnet {
     private static String getWhoisServer(String ip) throws ProcessException {
         // Busca eficiente O(log2(n)).
         ip = expandIPv6(ip);
-        String key = SERVER_MAP.floorKey(ip);
-        if (key == null) {
+        SubnetIPv6 subnet = SERVER_MAP.floorValue(ip);
+        if (subnet == null) {
             throw new ProcessException("ERROR: SERVER NOT FOUND");
         } else {
-            SubnetIPv6 subnet = SERVER_MAP.get(key);
             if (subnet.contains(ip)) {
                 return subnet.getServer();
             } else {
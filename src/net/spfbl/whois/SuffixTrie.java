@@ -0,0 +1,214 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.whois;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Árvore imutável de sufixos indexada pelos rótulos DNS invertidos.
+ *
+ * Cada nó guarda seus filhos numa tabela de espalhamento aberta
+ * cuja chave é comparada diretamente contra o trecho do endereço,
+ * de modo que a busca percorre o endereço da direita para a
+ * esquerda uma única vez sem criar substrings intermediárias.
+ *
+ * Qualquer alteração no conjunto de TLDs exige uma nova árvore.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+final class SuffixTrie {
+
+    private static final class Node {
+
+        private HashMap<String,Node> map = new HashMap<String,Node>();
+        private String[] labelArray = null;
+        private Node[] nodeArray = null;
+        private int mask = 0;
+        /**
+         * Existe elemento que é este sufixo iniciado por ponto.
+         */
+        private boolean dotted = false;
+        /**
+         * Existe elemento que é este sufixo sem o ponto inicial.
+         */
+        private boolean whole = false;
+
+        private Node put(String label) {
+            Node node = map.get(label);
+            if (node == null) {
+                node = new Node();
+                map.put(label, node);
+            }
+            return node;
+        }
+
+        /**
+         * Converte o mapa de construção para a tabela de busca.
+         */
+        private void freeze() {
+            int size = 2;
+            while (size < map.size() * 2) {
+                size <<= 1;
+            }
+            labelArray = new String[size];
+            nodeArray = new Node[size];
+            mask = size - 1;
+            for (Map.Entry<String,Node> entry : map.entrySet()) {
+                String label = entry.getKey();
+                int index = label.hashCode() & mask;
+                while (labelArray[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                labelArray[index] = label;
+                nodeArray[index] = entry.getValue();
+                entry.getValue().freeze();
+            }
+            map = null;
+        }
+
+        /**
+         * Busca o filho pelo trecho do texto sem criar substring.
+         * @param text o texto que contém o rótulo.
+         * @param begin o início do rótulo.
+         * @param end o final do rótulo, exclusivo.
+         * @return o nó filho ou nulo se não existir.
+         */
+        private Node get(String text, int begin, int end) {
+            int hash = 0;
+            for (int index = begin; index < end; index++) {
+                hash = 31 * hash + text.charAt(index);
+            }
+            int length = end - begin;
+            int index = hash & mask;
+            String label;
+            while ((label = labelArray[index]) != null) {
+                if (label.length() == length && text.regionMatches(begin, label, 0, length)) {
+                    return nodeArray[index];
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+    }
+
+    private final Node root = new Node();
+
+    SuffixTrie(Collection<String> collection) {
+        for (String element : collection) {
+            boolean dotted = element.startsWith(".");
+            int end = element.length();
+            int begin = dotted ? 1 : 0;
+            Node node = root;
+            while (true) {
+                int dot = element.lastIndexOf('.', end - 1);
+                if (dot < begin) {
+                    node = node.put(element.substring(begin, end));
+                    break;
+                } else {
+                    node = node.put(element.substring(dot + 1, end));
+                    end = dot;
+                }
+            }
+            if (dotted) {
+                node.dotted = true;
+            } else {
+                node.whole = true;
+            }
+        }
+        root.freeze();
+    }
+
+    /**
+     * Verifica se o trecho final do texto é um elemento do conjunto.
+     * @param text o texto a ser verificado.
+     * @param begin o início do trecho.
+     * @return verdadeiro se text.substring(begin) pertence ao conjunto.
+     */
+    boolean contains(String text, int begin) {
+        Node node = root;
+        int end = text.length();
+        while (true) {
+            int dot = end > begin ? text.lastIndexOf('.', end - 1) : -1;
+            if (dot < begin) {
+                node = node.get(text, begin, end);
+                return node != null && node.whole;
+            } else if ((node = node.get(text, dot + 1, end)) == null) {
+                return false;
+            } else if (dot == begin) {
+                return node.dotted;
+            } else {
+                end = dot;
+            }
+        }
+    }
+
+    boolean contains(String text) {
+        return contains(text, 0);
+    }
+
+    /**
+     * Verifica se o trecho após o separador, precedido de ponto,
+     * é um elemento do conjunto, como o domínio de um e-mail.
+     * @param text o texto a ser verificado.
+     * @param separator a posição do separador, como o arroba.
+     * @return verdadeiro se "." + text.substring(separator + 1) pertence ao conjunto.
+     */
+    boolean containsDotted(String text, int separator) {
+        Node node = root;
+        int end = text.length();
+        while (true) {
+            int dot = text.lastIndexOf('.', end - 1);
+            if (dot <= separator) {
+                node = node.get(text, separator + 1, end);
+                return node != null && node.dotted;
+            } else if ((node = node.get(text, dot + 1, end)) == null) {
+                return false;
+            } else {
+                end = dot;
+            }
+        }
+    }
+
+    /**
+     * Busca o maior sufixo do texto, iniciado por ponto, que pertence
+     * ao conjunto, considerando somente pontos a partir da posição mínima.
+     * @param text o texto a ser percorrido.
+     * @param minimum a posição mínima do ponto inicial do sufixo.
+     * @return a posição do ponto inicial do sufixo ou -1 se não houver.
+     */
+    int indexOfSuffix(String text, int minimum) {
+        int best = -1;
+        int end = text.length();
+        if (end - 1 > minimum) {
+            Node node = root;
+            while (end > minimum) {
+                int dot = text.lastIndexOf('.', end - 1);
+                if (dot < minimum) {
+                    break;
+                } else if ((node = node.get(text, dot + 1, end)) == null) {
+                    break;
+                } else if (node.dotted) {
+                    best = dot;
+                }
+                end = dot;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * This file is part of SPFBL.
+ *
+ * SPFBL is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPFBL is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPFBL.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.spfbl.whois;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+import net.spfbl.core.Metrics;
+import net.spfbl.core.ProcessException;
+import net.spfbl.core.Server;
+
+/**
+ * Fila de consultas WHOIS processadas em segundo plano.
+ *
+ * As consultas pendentes são indexadas por chave, de modo que
+ * pedidos repetidos para o mesmo registro são agrupados num só.
+ * As necessidades do fluxo de consulta passam na frente das
+ * atualizações de background, que só são executadas quando
+ * todo o direito de consulta do WHOIS estiver disponível.
+ *
+ * Nenhuma thread de consulta aguarda o limite do registro:
+ * ela recebe o valor em cache, mesmo expirado, ou o erro de
+ * limite enquanto a consulta segue enfileirada.
+ *
+ * @author Leandro Carlos Rodrigues <leandro@spfbl.net>
+ */
+public final class WhoisQueue extends Thread {
+
+    /**
+     * Prioridade do pedido, em ordem de atendimento.
+     */
+    public enum Priority {
+        QUERY,
+        BACKGROUND
+    }
+
+    /**
+     * Pedido de consulta ao WHOIS.
+     * A execução deve ser idempotente, pois o pedido pode
+     * ser repetido após o registro já ter sido atualizado.
+     */
+    public static abstract class Request {
+
+        private final String key;
+        private final boolean identification;
+
+        /**
+         * Pedido de consulta comum.
+         * @param key a chave de agrupamento dos pedidos repetidos.
+         */
+        public Request(String key) {
+            this(key, false);
+        }
+
+        /**
+         * Pedido de consulta.
+         * @param key a chave de agrupamento dos pedidos repetidos.
+         * @param identification se usa o limite de consulta de identificação.
+         */
+        public Request(String key, boolean identification) {
+            this.key = key;
+            this.identification = identification;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public abstract void run() throws ProcessException;
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        private final Request request;
+        private final long sequence;
+        private Priority priority;
+
+        private Entry(Request request, Priority priority, long sequence) {
+            this.request = request;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int compare = priority.compareTo(other.priority);
+            if (compare == 0) {
+                return Long.compare(sequence, other.sequence);
+            } else {
+                return compare;
+            }
+        }
+    }
+
+    /**
+     * Limite de pedidos pendentes.
+     */
+    private static final int CAPACITY = 4096;
+
+    private static final TreeSet<Entry> QUEUE = new TreeSet<Entry>();
+    private static final HashMap<String,Entry> PENDING = new HashMap<String,Entry>();
+    private static long SEQUENCE = 0;
+    private static WhoisQueue THREAD = null;
+
+    static {
+        Metrics.registerGauge("spfbl_whois_queue_size", null, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return size();
+            }
+        });
+        Metrics.setHelp("spfbl_whois_queue_size", "Pending WHOIS requests.");
+    }
+
+    private WhoisQueue() {
+        super("QUEUEWHOIS");
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public static synchronized int size() {
+        return QUEUE.size();
+    }
+
+    /**
+     * Enfileira um pedido de consulta.
+     * Se já houver um pedido pendente com a mesma chave,
+     * ele é mantido e somente tem sua prioridade elevada.
+     * @param priority a prioridade do pedido.
+     * @param request o pedido de consulta.
+     * @return verdadeiro se o pedido está pendente na fila.
+     */
+    public static synchronized boolean request(Priority priority, Request request) {
+        if (priority == null || request == null || request.getKey() == null) {
+            return false;
+        }
+        Entry entry = PENDING.get(request.getKey());
+        if (entry == null) {
+            if (QUEUE.size() >= CAPACITY) {
+                return false;
+            } else {
+                entry = new Entry(request, priority, SEQUENCE++);
+                PENDING.put(request.getKey(), entry);
+                QUEUE.add(entry);
+                if (THREAD == null) {
+                    THREAD = new WhoisQueue();
+                    THREAD.start();
+                }
+                WhoisQueue.class.notify();
+                return true;
+            }
+        } else if (priority.compareTo(entry.priority) < 0) {
+            // Elevação de prioridade mantendo a ordem de chegada.
+            QUEUE.remove(entry);
+            entry.priority = priority;
+            QUEUE.add(entry);
+            WhoisQueue.class.notify();
+            return true;
+        } else {
+            return true;
+        }
+    }
+
+    /**
+     * Verifica se a falha é transitória e a consulta pode ser reenfileirada.
+     * @param ex a falha da consulta.
+     * @return verdadeiro se a falha for por limite do WHOIS.
+     */
+    public static boolean isRetryable(ProcessException ex) {
+        if (ex.isErrorMessage("WHOIS QUERY LIMIT")) {
+            return true;
+        } else if (ex.isErrorMessage("TOO MANY CONNECTIONS")) {
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private static boolean isReady(Entry entry) {
+        if (entry.request.identification) {
+            return Server.hasWhoisIDQuery();
+        } else if (entry.priority == Priority.QUERY) {
+            return Server.hasWhoisQuery();
+        } else {
+            // Atualização de background somente com todo o direito disponível.
+            return Server.isWhoisQueryIdle();
+        }
+    }
+
+    /**
+     * Retira o primeiro pedido que pode ser atendido.
+     * @return o pedido retirado da fila.
+     * @throws InterruptedException se a thread for interrompida.
+     */
+    private static synchronized Entry take() throws InterruptedException {
+        while (true) {
+            for (Entry entry : QUEUE) {
+                if (isReady(entry)) {
+                    QUEUE.remove(entry);
+                    // Pedidos que chegarem durante a execução são novos.
+                    PENDING.remove(entry.request.getKey());
+                    return entry;
+                }
+            }
+            // Aguarda novo pedido ou a liberação do direito de consulta.
+            WhoisQueue.class.wait(1000);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Entry entry = take();
+                try {
+                    entry.request.run();
+                } catch (ProcessException ex) {
+                    if (isRetryable(ex)) {
+                        // Volta para a fila e aguarda a liberação.
+                        request(entry.priority, entry.request);
+                        Thread.sleep(1000);
+                    } else if (ex.isErrorMessage("WHOIS CONNECTION FAIL")) {
+                        // Fazer nada.
+                    } else if (ex.getCause() == null) {
+                        Server.logDebug("WHOIS request " + entry.request.getKey() + " " + ex.getMessage());
+                    } else {
+                        Server.logError(ex);
+                    }
+                } catch (Exception ex) {
+                    Server.logError(ex);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Server.logDebug("WHOIS queue interrupted.");
+        }
+    }
+}